@@ -0,0 +1,55 @@
+package nz.ac.auckland.concert.client;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.NewCookie;
+
+import nz.ac.auckland.concert.common.Config;
+
+/**
+ * Client filter that maintains the clientId cookie (Config.CLIENT_COOKIE)
+ * issued by the Concert Web service. The cookie is recorded from each
+ * response that carries one and is added to every later request, so all
+ * requests made through a ConcertClient belong to a single client session.
+ * The service issues a new cookie when it doesn't recognise the client's
+ * (for example, after its session has expired), and that one is used from
+ * then on.
+ *
+ */
+class ClientIdFilter implements ClientRequestFilter, ClientResponseFilter {
+
+	private final AtomicReference<String> _clientId = new AtomicReference<String>();
+
+	@Override
+	public void filter(ClientRequestContext requestContext) {
+		String clientId = _clientId.get();
+		if (clientId != null) {
+			requestContext.getHeaders().add(HttpHeaders.COOKIE,
+					Config.CLIENT_COOKIE + "=" + clientId);
+		}
+	}
+
+	@Override
+	public void filter(ClientRequestContext requestContext,
+			ClientResponseContext responseContext) {
+		NewCookie cookie = responseContext.getCookies().get(
+				Config.CLIENT_COOKIE);
+		if (cookie != null) {
+			// Concurrent first requests may each be issued an identifier;
+			// any of them identifies a session.
+			_clientId.set(cookie.getValue());
+		}
+	}
+
+	/**
+	 * Returns the client identifier, or null if none has been issued yet.
+	 */
+	String getClientId() {
+		return _clientId.get();
+	}
+}
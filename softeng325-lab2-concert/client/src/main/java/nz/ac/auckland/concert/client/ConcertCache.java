@@ -0,0 +1,59 @@
+package nz.ac.auckland.concert.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nz.ac.auckland.concert.domain.Concert;
+
+/**
+ * Bounded, least-recently-used cache of Concerts retrieved by a
+ * ConcertClient, each held with the entity tag the Web service returned for
+ * it. A cached Concert is revalidated rather than trusted: the client sends
+ * the tag in an If-None-Match header and uses the cached Concert only if the
+ * Web service replies 304 (Not Modified).
+ *
+ */
+class ConcertCache {
+
+	/**
+	 * A cached Concert and its entity tag.
+	 */
+	static class Entry {
+		final Concert _concert;
+		final String _tag;
+
+		Entry(Concert concert, String tag) {
+			_concert = concert;
+			_tag = tag;
+		}
+	}
+
+	private final Map<Long, Entry> _entries;
+
+	ConcertCache(final int capacity) {
+		_entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	synchronized Entry get(long id) {
+		return _entries.get(id);
+	}
+
+	synchronized void put(long id, Concert concert, String tag) {
+		_entries.put(id, new Entry(concert, tag));
+	}
+
+	synchronized void remove(long id) {
+		_entries.remove(id);
+	}
+
+	synchronized void clear() {
+		_entries.clear();
+	}
+}
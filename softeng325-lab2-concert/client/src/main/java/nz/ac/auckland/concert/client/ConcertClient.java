@@ -0,0 +1,492 @@
+package nz.ac.auckland.concert.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import nz.ac.auckland.concert.common.CompressionInterceptor;
+import nz.ac.auckland.concert.common.ConcertCodec;
+import nz.ac.auckland.concert.common.ConcertCodec.RecordWriter;
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.SerializationMessageBodyReaderAndWriter;
+import nz.ac.auckland.concert.domain.Concert;
+import nz.ac.auckland.concert.domain.ImportResult;
+
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reusable, thread-safe client for the Concert Web service.
+ *
+ * - Requests are made over a pool of persistent (keep-alive) HTTP
+ *   connections and run asynchronously: every operation returns a
+ *   CompletableFuture immediately.
+ *
+ * - The clientId cookie issued by the Web service is recorded and sent with
+ *   every request (see ClientIdFilter).
+ *
+ * - Concerts passed to createConcert() are batched. A batch is sent when it
+ *   is full or when the first Concert in it has waited for a short linger
+ *   time; a batch of one is created with an ordinary POST, and a larger
+ *   batch with a single request to the bulk import endpoint. Several
+ *   batches may be in flight at once, on different connections.
+ *
+ * - Retrieved Concerts are cached, with their entity tags. Retrieving a
+ *   cached Concert sends its tag in an If-None-Match header and the Web
+ *   service replies 304, without the Concert, if it hasn't changed.
+ *
+ * Response bodies are compressed when the Web service chooses to (see
+ * CompressionInterceptor). Settings can be overridden with system
+ * properties:
+ *
+ * - concert.client.connections   size of the connection pool (20).
+ * - concert.client.timeout       connect and read timeout, ms (30000).
+ * - concert.client.batch         maximum Concerts per batch (256).
+ * - concert.client.linger        maximum wait to fill a batch, ms (5).
+ * - concert.client.cache         maximum number of cached Concerts (10000).
+ *
+ * The batch size must not exceed the Web service's concert.import.batch
+ * setting, so that each batch is stored with consecutive ids.
+ *
+ */
+public class ConcertClient implements Closeable {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ConcertClient.class);
+
+	private final int _connections = Integer.getInteger(
+			"concert.client.connections", 20);
+	private final long _timeoutMillis = Long.getLong("concert.client.timeout",
+			30000);
+	private final int _maxBatch = Math.max(1, Integer.getInteger(
+			"concert.client.batch", 256));
+	private final long _lingerMillis = Long.getLong("concert.client.linger", 5);
+
+	/**
+	 * Processes the Response to an asynchronous request. The Response is
+	 * closed afterwards.
+	 */
+	private interface ResponseHandler<T> {
+		T handle(Response response) throws Exception;
+	}
+
+	/**
+	 * A Concert waiting to be sent in a batch.
+	 */
+	private static class PendingCreate {
+		final Concert _concert;
+		final CompletableFuture<Concert> _future = new CompletableFuture<Concert>();
+
+		PendingCreate(Concert concert) {
+			_concert = concert;
+		}
+	}
+
+	private final Client _client;
+	private final WebTarget _concerts;
+	private final ClientIdFilter _clientIdFilter = new ClientIdFilter();
+	private final ConcertCache _cache = new ConcertCache(Integer.getInteger(
+			"concert.client.cache", 10000));
+
+	private final ScheduledExecutorService _batchTimer;
+
+	// Concerts waiting to be sent, and the task that will send them when the
+	// linger time expires. Guarded by _pendingLock.
+	private final Object _pendingLock = new Object();
+	private List<PendingCreate> _pending = new ArrayList<PendingCreate>();
+	private ScheduledFuture<?> _lingerTask;
+
+	// Batches that have been sent but not yet answered.
+	private final Set<CompletableFuture<?>> _inFlight = ConcurrentHashMap
+			.newKeySet();
+
+	/**
+	 * Creates a ConcertClient.
+	 *
+	 * @param baseUri the base URI of the Web service, for example
+	 * "http://localhost:10000/services".
+	 */
+	public ConcertClient(String baseUri) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService asyncExecutor = Executors.newFixedThreadPool(
+				_connections, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "concert-client-"
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		_batchTimer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "concert-client-batcher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		_client = new ResteasyClientBuilder()
+				.connectionPoolSize(_connections)
+				.maxPooledPerRoute(_connections)
+				.establishConnectionTimeout(_timeoutMillis,
+						TimeUnit.MILLISECONDS)
+				.socketTimeout(_timeoutMillis, TimeUnit.MILLISECONDS)
+				.asyncExecutor(asyncExecutor, true)
+				.register(SerializationMessageBodyReaderAndWriter.class)
+				.register(CompressionInterceptor.class)
+				.register(_clientIdFilter).build();
+		_concerts = _client.target(baseUri).path("concerts");
+	}
+
+	/**
+	 * Retrieves a Concert, revalidating any cached copy.
+	 *
+	 * @return a future that completes with the Concert, or with null if
+	 * there is no Concert with the specified id.
+	 */
+	public CompletableFuture<Concert> retrieveConcert(final long id) {
+		final ConcertCache.Entry cached = _cache.get(id);
+
+		Invocation.Builder builder = _concerts.path(String.valueOf(id))
+				.request(SerializationMessageBodyReaderAndWriter.APPLICATION_JAVA_SERIALIZED_OBJECT);
+		if (cached != null) {
+			builder.header(HttpHeaders.IF_NONE_MATCH, "\"" + cached._tag + "\"");
+		}
+
+		return invoke(builder.buildGet(), new ResponseHandler<Concert>() {
+			public Concert handle(Response response) {
+				switch (response.getStatus()) {
+				case 304:
+					return cached._concert;
+				case 404:
+					_cache.remove(id);
+					return null;
+				default:
+					expect(response, 200);
+					Concert concert = response.readEntity(Concert.class);
+					if (response.getEntityTag() != null) {
+						_cache.put(id, concert, response.getEntityTag()
+								.getValue());
+					}
+					return concert;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Retrieves a page of at most size Concerts, starting at id start.
+	 */
+	public CompletableFuture<List<Concert>> retrieveConcerts(long start,
+			int size) {
+		Invocation invocation = _concerts.queryParam("start", start)
+				.queryParam("size", size)
+				.request(SerializationMessageBodyReaderAndWriter.APPLICATION_JAVA_SERIALIZED_OBJECT)
+				.buildGet();
+
+		return invoke(invocation, new ResponseHandler<List<Concert>>() {
+			public List<Concert> handle(Response response) {
+				expect(response, 200);
+				return response
+						.readEntity(new GenericType<ArrayList<Concert>>() {
+						});
+			}
+		});
+	}
+
+	/**
+	 * Creates a Concert. The Concert is sent as part of a batch.
+	 *
+	 * @return a future that completes with the created Concert, including
+	 * the id assigned by the Web service.
+	 */
+	public CompletableFuture<Concert> createConcert(Concert concert) {
+		PendingCreate create = new PendingCreate(concert);
+		List<PendingCreate> full = null;
+
+		synchronized (_pendingLock) {
+			_pending.add(create);
+			if (_pending.size() >= _maxBatch) {
+				full = takePending();
+			} else if (_lingerTask == null) {
+				_lingerTask = _batchTimer.schedule(new Runnable() {
+					public void run() {
+						List<PendingCreate> batch;
+						synchronized (_pendingLock) {
+							_lingerTask = null;
+							batch = takePending();
+						}
+						send(batch);
+					}
+				}, _lingerMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		if (full != null) {
+			send(full);
+		}
+		return create._future;
+	}
+
+	/**
+	 * Imports Concerts through the bulk import endpoint. The Concerts are
+	 * encoded as the request body is written, so any number can be imported
+	 * in constant memory.
+	 */
+	public CompletableFuture<ImportResult> importConcerts(
+			final Iterable<Concert> concerts) {
+		StreamingOutput body = new StreamingOutput() {
+			public void write(OutputStream output) throws IOException {
+				RecordWriter writer = ConcertCodec.binaryWriter(output);
+				for (Concert concert : concerts) {
+					writer.write(concert);
+				}
+				writer.flush();
+			}
+		};
+		return invokeImport(body);
+	}
+
+	/**
+	 * Deletes all Concerts. Batched creates made before this call are sent,
+	 * and answered, before the deletion is sent.
+	 */
+	public CompletableFuture<Void> deleteAllConcerts() {
+		return flush().thenCompose(
+				new Function<Void, CompletableFuture<Void>>() {
+					public CompletableFuture<Void> apply(Void ignored) {
+						_cache.clear();
+						return invoke(
+								_concerts.request().buildDelete(),
+								new ResponseHandler<Void>() {
+									public Void handle(Response response) {
+										expect(response, 204);
+										return null;
+									}
+								});
+					}
+				});
+	}
+
+	/**
+	 * Sends any batched creates immediately.
+	 *
+	 * @return a future that completes when all batches sent so far have been
+	 * answered, whether successfully or not.
+	 */
+	public CompletableFuture<Void> flush() {
+		List<PendingCreate> batch;
+		synchronized (_pendingLock) {
+			if (_lingerTask != null) {
+				_lingerTask.cancel(false);
+				_lingerTask = null;
+			}
+			batch = takePending();
+		}
+		send(batch);
+
+		CompletableFuture<?>[] inFlight = _inFlight
+				.toArray(new CompletableFuture<?>[0]);
+		return CompletableFuture.allOf(inFlight).handle(
+				new BiFunction<Void, Throwable, Void>() {
+					public Void apply(Void result, Throwable t) {
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Returns the client identifier issued by the Web service, or null if
+	 * none has been issued yet.
+	 */
+	public String getClientId() {
+		return _clientIdFilter.getClientId();
+	}
+
+	/**
+	 * Sends any batched creates, waits for outstanding batches and releases
+	 * the connection pool and threads.
+	 */
+	@Override
+	public void close() {
+		try {
+			flush().get(_timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			_logger.warn("Closing with unanswered batches: " + e);
+		}
+		_batchTimer.shutdown();
+		_client.close();
+	}
+
+	private List<PendingCreate> takePending() {
+		List<PendingCreate> batch = _pending;
+		_pending = new ArrayList<PendingCreate>();
+		return batch;
+	}
+
+	private void send(final List<PendingCreate> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		final CompletableFuture<?> future;
+		if (batch.size() == 1) {
+			future = sendOne(batch.get(0));
+		} else {
+			future = sendBatch(batch);
+		}
+
+		_inFlight.add(future);
+		future.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object result, Throwable t) {
+				_inFlight.remove(future);
+			}
+		});
+	}
+
+	private CompletableFuture<?> sendOne(final PendingCreate create) {
+		Invocation invocation = _concerts.request().buildPost(
+				Entity.entity(create._concert,
+						SerializationMessageBodyReaderAndWriter.APPLICATION_JAVA_SERIALIZED_OBJECT));
+
+		return invoke(invocation, new ResponseHandler<Concert>() {
+			public Concert handle(Response response) {
+				expect(response, 201);
+				URI location = response.getLocation();
+				String path = location.getPath();
+				long id = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+				return new Concert(id, create._concert.getTitle(),
+						create._concert.getDate());
+			}
+		}).whenComplete(completer(create._future));
+	}
+
+	private CompletableFuture<?> sendBatch(final List<PendingCreate> batch) {
+		// A batch is small, so it is encoded up front.
+		ByteArrayOutputStream body = new ByteArrayOutputStream(batch.size() * 48);
+		try {
+			RecordWriter writer = ConcertCodec.binaryWriter(body);
+			for (PendingCreate create : batch) {
+				writer.write(create._concert);
+			}
+			writer.flush();
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream.
+			throw new IllegalStateException(e);
+		}
+
+		return invokeImport(body.toByteArray()).whenComplete(
+				new BiConsumer<ImportResult, Throwable>() {
+					public void accept(ImportResult result, Throwable t) {
+						if (t == null
+								&& (result.getCount() != batch.size() || result
+										.getLastId() - result.getFirstId() + 1 != batch.size())) {
+							t = new IllegalStateException(
+									"Batch wasn't stored with consecutive ids: "
+											+ result);
+						}
+						for (int i = 0; i < batch.size(); i++) {
+							PendingCreate create = batch.get(i);
+							if (t != null) {
+								create._future.completeExceptionally(t);
+							} else {
+								create._future.complete(new Concert(result
+										.getFirstId() + i, create._concert
+										.getTitle(), create._concert.getDate()));
+							}
+						}
+					}
+				});
+	}
+
+	private CompletableFuture<ImportResult> invokeImport(Object body) {
+		Invocation invocation = _concerts
+				.path("import")
+				.request(SerializationMessageBodyReaderAndWriter.APPLICATION_JAVA_SERIALIZED_OBJECT)
+				.buildPost(Entity.entity(body, Config.CONCERT_STREAM));
+
+		return invoke(invocation, new ResponseHandler<ImportResult>() {
+			public ImportResult handle(Response response) {
+				expect(response, 200);
+				return response.readEntity(ImportResult.class);
+			}
+		});
+	}
+
+	private static <T> BiConsumer<T, Throwable> completer(
+			final CompletableFuture<T> target) {
+		return new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable t) {
+				if (t != null) {
+					target.completeExceptionally(t);
+				} else {
+					target.complete(result);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Submits an invocation asynchronously, and completes the returned
+	 * future with the result of handling its Response.
+	 */
+	private static <T> CompletableFuture<T> invoke(Invocation invocation,
+			final ResponseHandler<T> handler) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		invocation.submit(new InvocationCallback<Response>() {
+			@Override
+			public void completed(Response response) {
+				try {
+					future.complete(handler.handle(response));
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				} finally {
+					response.close();
+				}
+			}
+
+			@Override
+			public void failed(Throwable t) {
+				future.completeExceptionally(t);
+			}
+		});
+		return future;
+	}
+
+	private static void expect(Response response, int status) {
+		if (response.getStatus() != status) {
+			throw new WebApplicationException("Unexpected response status "
+					+ response.getStatus(), response.getStatus());
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import nz.ac.auckland.concert.common.DeflaterPool.Compressor;
+import nz.ac.auckland.concert.common.DeflaterPool.Encoding;
+
+/**
+ * JAX-RS filter and interceptor that applies HTTP content coding (gzip or
+ * deflate) to message bodies.
+ *
+ * On the Web service, the request filter negotiates a coding from the
+ * request's Accept-Encoding header and the writer interceptor compresses the
+ * response body accordingly. Bodies smaller than a threshold are sent
+ * uncompressed, as compressing them costs more than it saves. Compression
+ * uses pooled Deflaters (see DeflaterPool).
+ *
+ * On a client, the request filter advertises gzip and deflate support and
+ * the reader interceptor transparently decompresses response bodies. The
+ * reader interceptor equally decompresses compressed request bodies received
+ * by the Web service. A request body that inflates to more than a limit is
+ * refused with a 413 (Payload Too Large) response, so that a small
+ * compressed body can't expand without bound.
+ *
+ * The threshold (in bytes), compression level and inflated size limit (in
+ * bytes) can be overridden with the system properties
+ * concert.compression.threshold, concert.compression.level and
+ * concert.compression.maxInflated.
+ *
+ */
+@Priority(Priorities.ENTITY_CODER)
+public class CompressionInterceptor implements ContainerRequestFilter,
+		ClientRequestFilter, ReaderInterceptor, WriterInterceptor {
+
+	// Name of the request property that holds the negotiated Encoding.
+	private static final String ENCODING_PROPERTY = CompressionInterceptor.class
+			.getName() + ".encoding";
+
+	// Name of the request property that marks a body read by the Web
+	// service, rather than by a client.
+	private static final String SERVICE_PROPERTY = CompressionInterceptor.class
+			.getName() + ".service";
+
+	private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+	private static final int THRESHOLD = Integer.getInteger(
+			"concert.compression.threshold", 1024);
+	private static final int LEVEL = Integer.getInteger(
+			"concert.compression.level", Deflater.DEFAULT_COMPRESSION);
+	private static final int MAX_IDLE = 64;
+	private static final long MAX_INFLATED = Long.getLong(
+			"concert.compression.maxInflated", 64 * 1024 * 1024);
+
+	private static final DeflaterPool GZIP_POOL = new DeflaterPool(
+			Encoding.GZIP, LEVEL, THRESHOLD, MAX_IDLE);
+	private static final DeflaterPool DEFLATE_POOL = new DeflaterPool(
+			Encoding.DEFLATE, LEVEL, THRESHOLD, MAX_IDLE);
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		requestContext.setProperty(SERVICE_PROPERTY, Boolean.TRUE);
+		Encoding encoding = negotiate(requestContext
+				.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+		if (encoding != null) {
+			requestContext.setProperty(ENCODING_PROPERTY, encoding);
+		}
+	}
+
+	@Override
+	public void filter(ClientRequestContext requestContext) {
+		if (!requestContext.getHeaders().containsKey(
+				HttpHeaders.ACCEPT_ENCODING)) {
+			requestContext.getHeaders().putSingle(HttpHeaders.ACCEPT_ENCODING,
+					ACCEPTED_ENCODINGS);
+		}
+	}
+
+	@Override
+	public Object aroundReadFrom(ReaderInterceptorContext context)
+			throws IOException {
+		String contentEncoding = context.getHeaders().getFirst(
+				HttpHeaders.CONTENT_ENCODING);
+
+		if (contentEncoding != null) {
+			contentEncoding = contentEncoding.trim();
+			InputStream in = null;
+			if (contentEncoding.equalsIgnoreCase(Encoding.GZIP.token())) {
+				in = new GZIPInputStream(context.getInputStream());
+			} else if (contentEncoding.equalsIgnoreCase(Encoding.DEFLATE
+					.token())) {
+				in = new InflaterInputStream(context.getInputStream());
+			}
+			if (in != null) {
+				if (context.getProperty(SERVICE_PROPERTY) != null) {
+					in = new LimitedInputStream(in, MAX_INFLATED);
+				}
+				context.setInputStream(in);
+				context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+			}
+		}
+		return context.proceed();
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context)
+			throws IOException {
+		Encoding encoding = (Encoding) context.getProperty(ENCODING_PROPERTY);
+		if (encoding == null) {
+			context.proceed();
+			return;
+		}
+
+		context.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+		DeflaterPool pool = encoding == Encoding.GZIP ? GZIP_POOL
+				: DEFLATE_POOL;
+		Compressor compressor = pool.acquire();
+		try {
+			ThresholdOutputStream out = new ThresholdOutputStream(
+					context.getOutputStream(), context.getHeaders(), encoding,
+					compressor);
+			context.setOutputStream(out);
+			context.proceed();
+			out.finish();
+		} finally {
+			pool.release(compressor);
+		}
+	}
+
+	/**
+	 * Returns the preferred Encoding acceptable according to an
+	 * Accept-Encoding header value, or null if neither gzip nor deflate is
+	 * acceptable. As RFC 7231 (section 5.3.4) specifies, "*" applies only to
+	 * codings not named explicitly, and a coding with a quality of 0 is
+	 * never chosen.
+	 */
+	static Encoding negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+
+		// The quality of gzip, deflate and "*", or -1 if not named.
+		float gzipQuality = -1;
+		float deflateQuality = -1;
+		float anyQuality = -1;
+		for (String element : acceptEncoding.split(",")) {
+			String[] parts = element.split(";");
+			String coding = parts[0].trim();
+			float quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Float.parseFloat(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+
+			if (coding.equalsIgnoreCase(Encoding.GZIP.token())) {
+				gzipQuality = quality;
+			} else if (coding.equalsIgnoreCase(Encoding.DEFLATE.token())) {
+				deflateQuality = quality;
+			} else if (coding.equals("*")) {
+				anyQuality = quality;
+			}
+		}
+
+		if (gzipQuality < 0) {
+			gzipQuality = anyQuality;
+		}
+		if (deflateQuality < 0) {
+			deflateQuality = anyQuality;
+		}
+		// Prefer gzip when both codings have the same quality.
+		if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+			return Encoding.GZIP;
+		}
+		if (deflateQuality > 0) {
+			return Encoding.DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * InputStream that fails with a 413 (Payload Too Large) response once
+	 * more than a limit of bytes has been read from it.
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private long _remaining;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			_remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = super.read(b, off, len);
+			if (count > 0) {
+				count(count);
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count(long bytes) {
+			_remaining -= bytes;
+			if (_remaining < 0) {
+				throw new WebApplicationException(
+						Response.Status.REQUEST_ENTITY_TOO_LARGE);
+			}
+		}
+	}
+
+	/**
+	 * OutputStream that holds back up to THRESHOLD bytes of a message body.
+	 * If the body is no larger than that it is written unmodified; otherwise
+	 * the Content-Encoding header is set and the body is compressed. Nothing
+	 * is written to the underlying stream - so headers can still be changed -
+	 * until that decision has been made.
+	 */
+	private static class ThresholdOutputStream extends OutputStream {
+		private final OutputStream _out;
+		private final MultivaluedMap<String, Object> _headers;
+		private final Encoding _encoding;
+		private final Compressor _compressor;
+		private final byte[] _pending;
+		private int _count;
+		private boolean _compressing;
+
+		ThresholdOutputStream(OutputStream out,
+				MultivaluedMap<String, Object> headers, Encoding encoding,
+				Compressor compressor) {
+			_out = out;
+			_headers = headers;
+			_encoding = encoding;
+			_compressor = compressor;
+			_pending = compressor.pending();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (_compressing) {
+				_compressor.write(b, off, len);
+			} else if (_count + len <= _pending.length) {
+				System.arraycopy(b, off, _pending, _count, len);
+				_count += len;
+			} else {
+				startCompressing();
+				_compressor.write(b, off, len);
+			}
+		}
+
+		private void startCompressing() throws IOException {
+			_compressing = true;
+			_headers.putSingle(HttpHeaders.CONTENT_ENCODING, _encoding.token());
+			_headers.remove(HttpHeaders.CONTENT_LENGTH);
+			_compressor.start(_out);
+			_compressor.write(_pending, 0, _count);
+		}
+
+		/**
+		 * Writes out the remainder of the body.
+		 */
+		void finish() throws IOException {
+			if (_compressing) {
+				_compressor.finish();
+			} else if (_count > 0) {
+				_out.write(_pending, 0, _count);
+			}
+			_out.flush();
+		}
+	}
+}
@@ -0,0 +1,476 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import nz.ac.auckland.concert.domain.Concert;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Encodes and decodes streams of Concerts, one record at a time, for bulk
+ * export and import. Two formats are supported:
+ *
+ * - Binary (Config.CONCERT_STREAM). Each record is a 4-byte big-endian
+ *   length followed by that many bytes, holding the Concert in the compact
+ *   form written by Concert.writeTo().
+ *
+ * - NDJSON (Config.NDJSON). Each line is a JSON object with members "id",
+ *   "title" and "date", the date being an ISO-8601 string with an offset.
+ *   Unknown members are ignored.
+ *
+ * Readers and writers buffer a single record, so streams of any length are
+ * processed in constant memory. A record, whether a binary record or an
+ * NDJSON line, may be at most 256KB; a longer one is reported as malformed
+ * without being buffered.
+ *
+ */
+public class ConcertCodec {
+
+	// Upper bound on the size of a binary record, to protect the service
+	// against corrupt length prefixes, and on the length in characters of
+	// an NDJSON line.
+	private static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+	private static final DateTimeFormatter DATE_PRINTER = ISODateTimeFormat
+			.dateTime();
+	private static final DateTimeFormatter DATE_PARSER = ISODateTimeFormat
+			.dateTimeParser().withOffsetParsed();
+
+	/**
+	 * Writes Concerts to a stream.
+	 */
+	public interface RecordWriter {
+		void write(Concert concert) throws IOException;
+
+		/**
+		 * Writes any buffered records to the underlying stream.
+		 */
+		void flush() throws IOException;
+	}
+
+	/**
+	 * Reads Concerts from a stream.
+	 */
+	public interface RecordReader {
+		/**
+		 * Returns the next Concert, or null at the end of the stream.
+		 *
+		 * @throws MalformedRecordException if the next record can't be
+		 * decoded.
+		 */
+		Concert read() throws IOException;
+	}
+
+	/**
+	 * Thrown when a stream doesn't hold a well-formed record.
+	 */
+	public static class MalformedRecordException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public MalformedRecordException(String message) {
+			super(message);
+		}
+	}
+
+	public static RecordWriter binaryWriter(OutputStream out) {
+		return new BinaryWriter(out);
+	}
+
+	public static RecordReader binaryReader(InputStream in) {
+		return new BinaryReader(in);
+	}
+
+	public static RecordWriter jsonWriter(OutputStream out) {
+		return new JsonWriter(out);
+	}
+
+	public static RecordReader jsonReader(InputStream in) {
+		return new JsonReader(in);
+	}
+
+	private static class BinaryWriter implements RecordWriter {
+		private final DataOutputStream _out;
+		private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream(
+				128);
+		private final DataOutputStream _record = new DataOutputStream(_buffer);
+
+		BinaryWriter(OutputStream out) {
+			_out = new DataOutputStream(new BufferedOutputStream(out, 8192));
+		}
+
+		@Override
+		public void write(Concert concert) throws IOException {
+			_buffer.reset();
+			concert.writeTo(_record);
+
+			_out.writeInt(_buffer.size());
+			_buffer.writeTo(_out);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			_out.flush();
+		}
+	}
+
+	private static class BinaryReader implements RecordReader {
+		private final DataInputStream _in;
+		private byte[] _buffer = new byte[128];
+
+		BinaryReader(InputStream in) {
+			_in = new DataInputStream(new BufferedInputStream(in, 8192));
+		}
+
+		@Override
+		public Concert read() throws IOException {
+			int first = _in.read();
+			if (first < 0) {
+				return null;
+			}
+
+			try {
+				int length = (first << 24) | (_in.readUnsignedByte() << 16)
+						| (_in.readUnsignedByte() << 8) | _in.readUnsignedByte();
+				if (length < 9 || length > MAX_RECORD_LENGTH) {
+					throw new MalformedRecordException("Invalid record length: "
+							+ length);
+				}
+				if (length > _buffer.length) {
+					_buffer = new byte[Math.max(length, _buffer.length * 2)];
+				}
+				_in.readFully(_buffer, 0, length);
+
+				return Concert.readFrom(new DataInputStream(
+						new ByteArrayInputStream(_buffer, 0, length)));
+			} catch (EOFException e) {
+				throw new MalformedRecordException("Truncated record");
+			} catch (IllegalArgumentException e) {
+				// Unknown time zone id.
+				throw new MalformedRecordException(e.getMessage());
+			}
+		}
+	}
+
+	private static class JsonWriter implements RecordWriter {
+		private final Writer _out;
+
+		JsonWriter(OutputStream out) {
+			_out = new BufferedWriter(new OutputStreamWriter(out,
+					StandardCharsets.UTF_8), 8192);
+		}
+
+		@Override
+		public void write(Concert concert) throws IOException {
+			_out.write("{\"id\":");
+			_out.write(String.valueOf(concert.getId()));
+			_out.write(",\"title\":");
+			writeString(concert.getTitle());
+			_out.write(",\"date\":");
+			writeString(concert.getDate() == null ? null : DATE_PRINTER
+					.print(concert.getDate()));
+			_out.write("}\n");
+		}
+
+		@Override
+		public void flush() throws IOException {
+			_out.flush();
+		}
+
+		private void writeString(String value) throws IOException {
+			if (value == null) {
+				_out.write("null");
+				return;
+			}
+			_out.write('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+				case '"':
+					_out.write("\\\"");
+					break;
+				case '\\':
+					_out.write("\\\\");
+					break;
+				case '\n':
+					_out.write("\\n");
+					break;
+				case '\r':
+					_out.write("\\r");
+					break;
+				case '\t':
+					_out.write("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						_out.write(String.format("\\u%04x", (int) c));
+					} else {
+						_out.write(c);
+					}
+				}
+			}
+			_out.write('"');
+		}
+	}
+
+	private static class JsonReader implements RecordReader {
+		private final Reader _in;
+		private final char[] _buffer = new char[8192];
+		private int _bufferPosition;
+		private int _bufferLimit;
+		private final StringBuilder _lineBuilder = new StringBuilder(128);
+		private String _line;
+		private int _position;
+
+		JsonReader(InputStream in) {
+			_in = new InputStreamReader(in, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public Concert read() throws IOException {
+			do {
+				_line = readLine();
+				if (_line == null) {
+					return null;
+				}
+				_position = 0;
+				skipWhitespace();
+			} while (_position == _line.length());
+
+			Long id = null;
+			String title = null;
+			DateTime date = null;
+
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				_position++;
+			} else {
+				while (true) {
+					skipWhitespace();
+					String name = readString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+					Object value = readValue();
+
+					if (name.equals("id") && value != null) {
+						id = asLong(value);
+					} else if (name.equals("title")) {
+						title = (String) asType(value, String.class);
+					} else if (name.equals("date") && value != null) {
+						date = asDate((String) asType(value, String.class));
+					}
+
+					skipWhitespace();
+					char c = next();
+					if (c == '}') {
+						break;
+					} else if (c != ',') {
+						throw malformed("Expected ',' or '}'");
+					}
+				}
+			}
+			skipWhitespace();
+			if (_position != _line.length()) {
+				throw malformed("Unexpected content after object");
+			}
+			return new Concert(id, title, date);
+		}
+
+		/**
+		 * Reads a line terminated by '\n' or "\r\n", or the end of the
+		 * stream, returning null at the end of the stream. Unlike
+		 * BufferedReader.readLine(), a line longer than MAX_RECORD_LENGTH is
+		 * rejected as soon as the limit is passed.
+		 */
+		private String readLine() throws IOException {
+			_lineBuilder.setLength(0);
+			while (true) {
+				if (_bufferPosition == _bufferLimit) {
+					_bufferLimit = _in.read(_buffer);
+					_bufferPosition = 0;
+					if (_bufferLimit < 0) {
+						_bufferLimit = 0;
+						return _lineBuilder.length() == 0 ? null : endLine();
+					}
+				}
+				int start = _bufferPosition;
+				while (_bufferPosition < _bufferLimit
+						&& _buffer[_bufferPosition] != '\n') {
+					_bufferPosition++;
+				}
+				if (_lineBuilder.length() + _bufferPosition - start > MAX_RECORD_LENGTH) {
+					throw new MalformedRecordException(
+							"Record longer than " + MAX_RECORD_LENGTH
+									+ " characters");
+				}
+				_lineBuilder.append(_buffer, start, _bufferPosition - start);
+				if (_bufferPosition < _bufferLimit) {
+					_bufferPosition++;
+					return endLine();
+				}
+			}
+		}
+
+		private String endLine() {
+			int length = _lineBuilder.length();
+			if (length > 0 && _lineBuilder.charAt(length - 1) == '\r') {
+				_lineBuilder.setLength(length - 1);
+			}
+			return _lineBuilder.toString();
+		}
+
+		private Object readValue() throws MalformedRecordException {
+			char c = peek();
+			if (c == '"') {
+				return readString();
+			} else if (c == '-' || (c >= '0' && c <= '9')) {
+				int start = _position;
+				while (_position < _line.length()
+						&& "+-.eE0123456789".indexOf(_line.charAt(_position)) >= 0) {
+					_position++;
+				}
+				try {
+					return new BigDecimal(_line.substring(start, _position));
+				} catch (NumberFormatException e) {
+					throw malformed("Invalid number");
+				}
+			} else if (_line.startsWith("null", _position)) {
+				_position += 4;
+				return null;
+			} else if (_line.startsWith("true", _position)) {
+				_position += 4;
+				return Boolean.TRUE;
+			} else if (_line.startsWith("false", _position)) {
+				_position += 5;
+				return Boolean.FALSE;
+			}
+			throw malformed("Unsupported value");
+		}
+
+		private String readString() throws MalformedRecordException {
+			expect('"');
+			StringBuilder builder = new StringBuilder();
+			while (true) {
+				char c = next();
+				if (c == '"') {
+					return builder.toString();
+				} else if (c != '\\') {
+					builder.append(c);
+					continue;
+				}
+				c = next();
+				switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					builder.append(c);
+					break;
+				case 'b':
+					builder.append('\b');
+					break;
+				case 'f':
+					builder.append('\f');
+					break;
+				case 'n':
+					builder.append('\n');
+					break;
+				case 'r':
+					builder.append('\r');
+					break;
+				case 't':
+					builder.append('\t');
+					break;
+				case 'u':
+					if (_position + 4 > _line.length()) {
+						throw malformed("Truncated escape");
+					}
+					try {
+						builder.append((char) Integer.parseInt(
+								_line.substring(_position, _position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw malformed("Invalid escape");
+					}
+					_position += 4;
+					break;
+				default:
+					throw malformed("Invalid escape");
+				}
+			}
+		}
+
+		private Long asLong(Object value) throws MalformedRecordException {
+			try {
+				return ((BigDecimal) asType(value, BigDecimal.class))
+						.longValueExact();
+			} catch (ArithmeticException e) {
+				throw malformed("Expected an integer id");
+			}
+		}
+
+		private Object asType(Object value, Class<?> type)
+				throws MalformedRecordException {
+			if (value != null && !type.isInstance(value)) {
+				throw malformed("Unexpected value type");
+			}
+			return value;
+		}
+
+		private DateTime asDate(String value) throws MalformedRecordException {
+			try {
+				return DATE_PARSER.parseDateTime(value);
+			} catch (IllegalArgumentException e) {
+				throw malformed("Invalid date: " + value);
+			}
+		}
+
+		private void skipWhitespace() {
+			while (_position < _line.length()
+					&& Character.isWhitespace(_line.charAt(_position))) {
+				_position++;
+			}
+		}
+
+		private char peek() throws MalformedRecordException {
+			if (_position == _line.length()) {
+				throw malformed("Unexpected end of line");
+			}
+			return _line.charAt(_position);
+		}
+
+		private char next() throws MalformedRecordException {
+			char c = peek();
+			_position++;
+			return c;
+		}
+
+		private void expect(char expected) throws MalformedRecordException {
+			if (next() != expected) {
+				throw malformed("Expected '" + expected + "'");
+			}
+		}
+
+		private MalformedRecordException malformed(String message) {
+			return new MalformedRecordException(message + " at column "
+					+ (_position + 1) + ": " + _line);
+		}
+	}
+}
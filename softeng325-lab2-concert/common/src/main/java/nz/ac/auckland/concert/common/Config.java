@@ -0,0 +1,35 @@
+package nz.ac.auckland.concert.common;
+
+/**
+ * Class with shared configuration data for the client and Web service.
+ *
+ */
+public class Config {
+	/**
+	 * Name of a cookie exchanged by clients and the Web service.
+	 */
+	public static final String CLIENT_COOKIE = "clientId";
+
+	/**
+	 * Name of the query parameter with which a client passes back the token
+	 * of the snapshot from which a page of Concerts was read, so that later 
+	 * pages are read from the same point in time.
+	 */
+	public static final String SNAPSHOT = "snapshot";
+
+	/**
+	 * Name of the response header that carries the snapshot token.
+	 */
+	public static final String SNAPSHOT_HEADER = "Concert-Snapshot";
+
+	/**
+	 * Media type of a stream of Concerts in newline-delimited JSON, with one
+	 * Concert object per line.
+	 */
+	public static final String NDJSON = "application/x-ndjson";
+
+	/**
+	 * Media type of a stream of length-delimited binary Concert records.
+	 */
+	public static final String CONCERT_STREAM = "application/x-concert-stream";
+}
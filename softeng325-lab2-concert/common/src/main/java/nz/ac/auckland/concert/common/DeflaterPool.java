@@ -0,0 +1,174 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of Compressors, each of which wraps a Deflater together with the
+ * buffers needed to compress a single HTTP message body. Reusing Compressors
+ * avoids allocating a Deflater (and its native zlib state) and buffers for
+ * every compressed response.
+ *
+ */
+public class DeflaterPool {
+
+	/**
+	 * The supported content codings.
+	 */
+	public enum Encoding {
+		GZIP("gzip"), DEFLATE("deflate");
+
+		private final String _token;
+
+		private Encoding(String token) {
+			_token = token;
+		}
+
+		/**
+		 * Returns the content coding's name, as used in the Accept-Encoding
+		 * and Content-Encoding headers.
+		 */
+		public String token() {
+			return _token;
+		}
+	}
+
+	// Fixed 10-byte GZIP member header: magic, CM=deflate, no flags, no
+	// mtime, no extra flags, OS unknown.
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0,
+			0, 0, 0, 0, (byte) 0xff };
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * A pooled Deflater and its associated buffers. A Compressor is used by
+	 * one thread at a time, between acquire() and release().
+	 */
+	public static class Compressor {
+		private final Encoding _encoding;
+		private final Deflater _deflater;
+		private final CRC32 _crc = new CRC32();
+		private final byte[] _buffer = new byte[BUFFER_SIZE];
+		private final byte[] _pending;
+		private OutputStream _out;
+
+		Compressor(Encoding encoding, int level, int pendingSize) {
+			_encoding = encoding;
+			// GZIP wraps raw deflate data; the "deflate" coding is zlib data.
+			_deflater = new Deflater(level, encoding == Encoding.GZIP);
+			_pending = new byte[pendingSize];
+		}
+
+		/**
+		 * Returns a buffer that callers can use to hold uncompressed data
+		 * before deciding whether to compress it.
+		 */
+		public byte[] pending() {
+			return _pending;
+		}
+
+		/**
+		 * Starts compressing data onto out.
+		 */
+		public void start(OutputStream out) throws IOException {
+			_out = out;
+			if (_encoding == Encoding.GZIP) {
+				out.write(GZIP_HEADER);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (_encoding == Encoding.GZIP) {
+				_crc.update(b, off, len);
+			}
+			_deflater.setInput(b, off, len);
+			while (!_deflater.needsInput()) {
+				drain();
+			}
+		}
+
+		/**
+		 * Completes the compressed stream, without closing the underlying
+		 * OutputStream.
+		 */
+		public void finish() throws IOException {
+			_deflater.finish();
+			while (!_deflater.finished()) {
+				drain();
+			}
+			if (_encoding == Encoding.GZIP) {
+				writeIntLE((int) _crc.getValue());
+				writeIntLE((int) _deflater.getBytesRead());
+			}
+		}
+
+		private void drain() throws IOException {
+			int length = _deflater.deflate(_buffer, 0, _buffer.length);
+			if (length > 0) {
+				_out.write(_buffer, 0, length);
+			}
+		}
+
+		private void writeIntLE(int value) throws IOException {
+			_out.write(value & 0xff);
+			_out.write((value >> 8) & 0xff);
+			_out.write((value >> 16) & 0xff);
+			_out.write((value >> 24) & 0xff);
+		}
+
+		void reset() {
+			_deflater.reset();
+			_crc.reset();
+			_out = null;
+		}
+	}
+
+	private final Encoding _encoding;
+	private final int _level;
+	private final int _pendingSize;
+	private final int _maxIdle;
+	private final ConcurrentLinkedQueue<Compressor> _idle = new ConcurrentLinkedQueue<Compressor>();
+	private final AtomicInteger _idleCount = new AtomicInteger();
+
+	/**
+	 * Creates a DeflaterPool.
+	 *
+	 * @param encoding the content coding produced by the pool's Compressors.
+	 *
+	 * @param level the Deflater compression level.
+	 *
+	 * @param pendingSize the size of each Compressor's pending() buffer.
+	 *
+	 * @param maxIdle the maximum number of idle Compressors retained.
+	 */
+	public DeflaterPool(Encoding encoding, int level, int pendingSize,
+			int maxIdle) {
+		_encoding = encoding;
+		_level = level;
+		_pendingSize = pendingSize;
+		_maxIdle = maxIdle;
+	}
+
+	public Compressor acquire() {
+		Compressor compressor = _idle.poll();
+		if (compressor == null) {
+			return new Compressor(_encoding, _level, _pendingSize);
+		}
+		_idleCount.decrementAndGet();
+		return compressor;
+	}
+
+	public void release(Compressor compressor) {
+		compressor.reset();
+		if (_idleCount.incrementAndGet() <= _maxIdle) {
+			_idle.offer(compressor);
+		} else {
+			_idleCount.decrementAndGet();
+			compressor._deflater.end();
+		}
+	}
+}
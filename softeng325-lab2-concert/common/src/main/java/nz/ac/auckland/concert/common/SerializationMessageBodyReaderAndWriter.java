@@ -1,4 +1,4 @@
-package nz.ac.auckland.concert.services;
+package nz.ac.auckland.concert.common;
 
 import java.io.InputStream;
 import java.io.OutputStream;
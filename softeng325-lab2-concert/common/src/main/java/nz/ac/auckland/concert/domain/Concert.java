@@ -0,0 +1,201 @@
+package nz.ac.auckland.concert.domain;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Class to represent a Concert.
+ *
+ * A Concert is immutable. To keep large numbers of Concerts compact, the id
+ * is held as a primitive (0 meaning that no id has been assigned) and the
+ * date as epoch milliseconds plus a time zone, which is a shared instance;
+ * a DateTime is only created when getDate() is called. The hash code is
+ * computed once, on construction.
+ *
+ * The serialized form is unchanged from earlier versions of this class -
+ * fields _id (Long), _title (String) and _date (DateTime) - so that clients
+ * using Java serialization remain compatible. Where both ends are known to
+ * use this version, writeTo() and readFrom() provide a much smaller binary
+ * form.
+ *
+ */
+public class Concert implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("_id", Long.class),
+			new ObjectStreamField("_title", String.class),
+			new ObjectStreamField("_date", DateTime.class) };
+
+	private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat
+			.forPattern("dd/MM/yyyy");
+
+	// DATE_FORMATTER in each time zone used by toString(), since withZone()
+	// allocates a new formatter. There are only a few hundred time zones, so
+	// the cache is bounded.
+	private static final ConcurrentMap<DateTimeZone, DateTimeFormatter> ZONE_FORMATTERS =
+			new ConcurrentHashMap<DateTimeZone, DateTimeFormatter>();
+
+	// Flags written by writeTo() to say which optional values follow.
+	private static final int FLAG_TITLE = 1;
+	private static final int FLAG_DATE = 2;
+
+	// Fields aren't final only so that readObject() can assign them.
+	private long _id;
+	private String _title;
+	private long _dateMillis;
+	private DateTimeZone _zone;
+	private int _hash;
+
+	public Concert(Long id, String title, DateTime date) {
+		this(id == null ? 0 : id, title, date == null ? 0 : date.getMillis(),
+				date == null ? null : date.getZone());
+	}
+
+	public Concert(String title, DateTime date) {
+		this(null, title, date);
+	}
+
+	private Concert(long id, String title, long dateMillis, DateTimeZone zone) {
+		_id = id;
+		_title = title;
+		_dateMillis = dateMillis;
+		_zone = zone;
+		_hash = computeHash();
+	}
+
+	/**
+	 * Returns the Concert's id, or null if no id has been assigned.
+	 */
+	public Long getId() {
+		return _id == 0 ? null : _id;
+	}
+
+	public String getTitle() {
+		return _title;
+	}
+
+	/**
+	 * Returns the Concert's date, or null if it has none. Each call returns
+	 * a new DateTime.
+	 */
+	public DateTime getDate() {
+		return _zone == null ? null : new DateTime(_dateMillis, _zone);
+	}
+
+	/**
+	 * Writes the Concert in a compact binary form: the id (8 bytes, 0 if
+	 * unassigned), a flags byte saying whether a title and date follow, the
+	 * title (as written by DataOutput.writeUTF) and the date as epoch
+	 * milliseconds (8 bytes) plus its time zone id (writeUTF).
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(_id);
+		out.writeByte((_title == null ? 0 : FLAG_TITLE)
+				| (_zone == null ? 0 : FLAG_DATE));
+		if (_title != null) {
+			out.writeUTF(_title);
+		}
+		if (_zone != null) {
+			out.writeLong(_dateMillis);
+			out.writeUTF(_zone.getID());
+		}
+	}
+
+	/**
+	 * Reads a Concert written by writeTo().
+	 *
+	 * @throws IllegalArgumentException if the time zone id isn't known.
+	 */
+	public static Concert readFrom(DataInput in) throws IOException {
+		long id = in.readLong();
+		int flags = in.readUnsignedByte();
+		String title = (flags & FLAG_TITLE) != 0 ? in.readUTF() : null;
+		long dateMillis = 0;
+		DateTimeZone zone = null;
+		if ((flags & FLAG_DATE) != 0) {
+			dateMillis = in.readLong();
+			zone = DateTimeZone.forID(in.readUTF());
+		}
+		return new Concert(id, title, dateMillis, zone);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("_id", getId());
+		fields.put("_title", _title);
+		fields.put("_date", getDate());
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		Long id = (Long) fields.get("_id", null);
+		DateTime date = (DateTime) fields.get("_date", null);
+		_id = id == null ? 0 : id;
+		_title = (String) fields.get("_title", null);
+		_dateMillis = date == null ? 0 : date.getMillis();
+		_zone = date == null ? null : date.getZone();
+		_hash = computeHash();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buffer = new StringBuilder(64);
+		buffer.append("Concert: id ");
+		buffer.append(getId());
+		buffer.append(", title ");
+		buffer.append(_title);
+		buffer.append(", date ");
+		if (_zone == null) {
+			buffer.append("null");
+		} else {
+			DateTimeFormatter formatter = ZONE_FORMATTERS.get(_zone);
+			if (formatter == null) {
+				formatter = DATE_FORMATTER.withZone(_zone);
+				ZONE_FORMATTERS.putIfAbsent(_zone, formatter);
+			}
+			formatter.printTo(buffer, _dateMillis);
+		}
+
+		return buffer.toString();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof Concert))
+            return false;
+        if (other == this)
+            return true;
+
+        Concert rhs = (Concert) other;
+        return _hash == rhs._hash && _id == rhs._id
+        		&& (_title == null ? rhs._title == null : _title.equals(rhs._title));
+	}
+
+	@Override
+	public int hashCode() {
+		return _hash;
+	}
+
+	private int computeHash() {
+		int hash = 17;
+		hash = 31 * hash + (int) (_id ^ (_id >>> 32));
+		hash = 31 * hash + (_title == null ? 0 : _title.hashCode());
+		return hash;
+	}
+}
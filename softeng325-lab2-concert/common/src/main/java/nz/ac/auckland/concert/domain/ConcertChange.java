@@ -0,0 +1,57 @@
+package nz.ac.auckland.concert.domain;
+
+import java.io.Serializable;
+
+/**
+ * Class to represent a change made to the set of Concerts stored by the
+ * Concert Web service.
+ *
+ * Each change has a sequence number, assigned by the Web service in the order
+ * in which changes are made. A client that has processed all changes up to
+ * and including sequence number n can ask for the changes that follow n.
+ *
+ */
+public class ConcertChange implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Kinds of change.
+	 */
+	public enum Type {
+		CREATED, CLEARED
+	}
+
+	private long _sequence;
+	private Type _type;
+	private Concert _concert;
+
+	public ConcertChange() {}
+
+	public ConcertChange(long sequence, Type type, Concert concert) {
+		_sequence = sequence;
+		_type = type;
+		_concert = concert;
+	}
+
+	public long getSequence() {
+		return _sequence;
+	}
+
+	public Type getType() {
+		return _type;
+	}
+
+	/**
+	 * Returns the Concert that was created, or null for a CLEARED change.
+	 */
+	public Concert getConcert() {
+		return _concert;
+	}
+
+	@Override
+	public String toString() {
+		return "ConcertChange: sequence " + _sequence + ", type " + _type
+				+ ", concert " + _concert;
+	}
+}
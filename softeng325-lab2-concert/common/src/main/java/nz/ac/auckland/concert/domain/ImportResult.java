@@ -0,0 +1,57 @@
+package nz.ac.auckland.concert.domain;
+
+import java.io.Serializable;
+
+/**
+ * Class to represent the outcome of a bulk import of Concerts.
+ *
+ * Imported Concerts are assigned ids in blocks, so the ids of the imported
+ * Concerts lie between the first and last id. When other clients create
+ * Concerts during the import the range also includes their Concerts.
+ *
+ */
+public class ImportResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long _count;
+	private Long _firstId;
+	private Long _lastId;
+
+	public ImportResult() {}
+
+	public ImportResult(long count, Long firstId, Long lastId) {
+		_count = count;
+		_firstId = firstId;
+		_lastId = lastId;
+	}
+
+	/**
+	 * Returns the number of Concerts imported.
+	 */
+	public long getCount() {
+		return _count;
+	}
+
+	/**
+	 * Returns the id of the first imported Concert, or null if none were
+	 * imported.
+	 */
+	public Long getFirstId() {
+		return _firstId;
+	}
+
+	/**
+	 * Returns the id of the last imported Concert, or null if none were
+	 * imported.
+	 */
+	public Long getLastId() {
+		return _lastId;
+	}
+
+	@Override
+	public String toString() {
+		return "ImportResult: count " + _count + ", ids " + _firstId + " to "
+				+ _lastId;
+	}
+}
@@ -0,0 +1,49 @@
+package nz.ac.auckland.concert.services;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Cookie;
+
+import nz.ac.auckland.concert.common.Config;
+
+/**
+ * Filter that adds a record to the AccessLog for every request.
+ *
+ */
+@PreMatching
+@Priority(Priorities.AUTHENTICATION)
+public class AccessLogFilter implements ContainerRequestFilter,
+		ContainerResponseFilter {
+
+	private static final String START_PROPERTY = AccessLogFilter.class
+			.getName() + ".start";
+
+	private final AccessLog _accessLog;
+
+	public AccessLogFilter(AccessLog accessLog) {
+		_accessLog = accessLog;
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		requestContext.setProperty(START_PROPERTY, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext,
+			ContainerResponseContext responseContext) {
+		Long start = (Long) requestContext.getProperty(START_PROPERTY);
+		long duration = start == null ? 0 : System.nanoTime() - start;
+
+		Cookie clientId = requestContext.getCookies().get(Config.CLIENT_COOKIE);
+
+		_accessLog.record(requestContext.getMethod(), requestContext
+				.getUriInfo().getPath(), responseContext.getStatus(),
+				duration, clientId == null ? null : clientId.getValue());
+	}
+}
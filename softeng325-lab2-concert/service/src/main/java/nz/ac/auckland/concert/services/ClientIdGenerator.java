@@ -0,0 +1,58 @@
+package nz.ac.auckland.concert.services;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates client identifiers: random (version 4) UUIDs, as produced by
+ * UUID.randomUUID().
+ *
+ * UUID.randomUUID() draws from a single, shared SecureRandom instance, which
+ * becomes a point of contention when many threads issue identifiers. Instead,
+ * each thread here has its own SHA1PRNG SecureRandom, seeded once from a
+ * shared SecureRandom when the thread first issues an identifier. The
+ * platform's default SecureRandom isn't used per thread: on Linux it is
+ * NativePRNG, whose instances all share a single lock.
+ *
+ */
+public class ClientIdGenerator {
+
+	private static final int SEED_BYTES = 32;
+
+	// Source of the seeds of the per-thread generators.
+	private static final SecureRandom _seeds = new SecureRandom();
+
+	private static final ThreadLocal<SecureRandom> _random = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			SecureRandom random;
+			try {
+				random = SecureRandom.getInstance("SHA1PRNG");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			// Seeding before first use replaces SHA1PRNG's self-seeding.
+			byte[] seed = new byte[SEED_BYTES];
+			_seeds.nextBytes(seed);
+			random.setSeed(seed);
+			return random;
+		}
+	};
+
+	/**
+	 * Returns a new client identifier.
+	 */
+	public String next() {
+		SecureRandom random = _random.get();
+		long mostSigBits = random.nextLong();
+		long leastSigBits = random.nextLong();
+
+		// Set the version (4, random) and variant (IETF) fields.
+		mostSigBits = (mostSigBits & ~0xf000L) | 0x4000L;
+		leastSigBits = (leastSigBits & ~(0xc000000000000000L))
+				| 0x8000000000000000L;
+
+		return new UUID(mostSigBits, leastSigBits).toString();
+	}
+}
@@ -0,0 +1,79 @@
+package nz.ac.auckland.concert.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State held by the Concert Web service for a single client, identified by
+ * the value of its clientId cookie (Config.CLIENT_COOKIE).
+ *
+ * A ClientSession has a set of named attributes, which resource methods and
+ * filters can use to keep per-client data. Attributes can be accessed
+ * concurrently.
+ *
+ */
+public class ClientSession {
+
+	// Minimum interval between updates to _lastAccessed, so that frequently
+	// used sessions aren't written on every request.
+	private static final long TOUCH_RESOLUTION_MILLIS = 1000;
+
+	private final String _clientId;
+	private final long _created;
+	private volatile long _lastAccessed;
+	private final Map<String, Object> _attributes = new ConcurrentHashMap<String, Object>();
+
+	ClientSession(String clientId, long now) {
+		_clientId = clientId;
+		_created = now;
+		_lastAccessed = now;
+	}
+
+	public String getClientId() {
+		return _clientId;
+	}
+
+	public long getCreated() {
+		return _created;
+	}
+
+	public long getLastAccessed() {
+		return _lastAccessed;
+	}
+
+	/**
+	 * Returns the value of the named attribute, or null if it isn't set.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(String name) {
+		return (T) _attributes.get(name);
+	}
+
+	public void setAttribute(String name, Object value) {
+		_attributes.put(name, value);
+	}
+
+	/**
+	 * Sets the named attribute unless it's already set, and returns the
+	 * attribute's value.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T setAttributeIfAbsent(String name, T value) {
+		Object existing = _attributes.putIfAbsent(name, value);
+		return existing == null ? value : (T) existing;
+	}
+
+	public void removeAttribute(String name) {
+		_attributes.remove(name);
+	}
+
+	void touch(long now) {
+		if (now - _lastAccessed >= TOUCH_RESOLUTION_MILLIS) {
+			_lastAccessed = now;
+		}
+	}
+
+	boolean isExpired(long now, long timeToLiveMillis) {
+		return now - _lastAccessed > timeToLiveMillis;
+	}
+}
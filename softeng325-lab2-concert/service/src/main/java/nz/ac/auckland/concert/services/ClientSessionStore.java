@@ -0,0 +1,210 @@
+package nz.ac.auckland.concert.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded table of ClientSessions, keyed by client identifier. Sessions are
+ * created only for the identifiers the store issues, so values made up by
+ * clients can't fill the table. A session expires once it hasn't been
+ * accessed for a configurable time. Expired sessions are removed when they
+ * are next looked up, and periodically by a background sweep.
+ *
+ * Issuing an identifier doesn't create a session. An identifier is a random
+ * UUID followed by a signature, an HMAC of the UUID under a key known only to
+ * the store, and its session is created by find() when the identifier is
+ * first presented. A flood of requests without cookies therefore costs the
+ * store nothing, whereas if each issued identifier had its session created
+ * up front, the flood would fill the table for the sessions' time to live.
+ * Because the signature can be checked, an identifier whose session has
+ * expired is still recognised, and its session is simply created again.
+ *
+ * The store holds at most a configurable number of sessions. When it's full,
+ * expired sessions are swept immediately; if it's still full, issue()
+ * returns null rather than an identifier the store couldn't track, and
+ * clients that present an issued identifier are served without a session
+ * until space becomes available.
+ *
+ * The limits can be overridden with the system properties
+ * concert.sessions.max and concert.sessions.ttl (milliseconds).
+ *
+ */
+public class ClientSessionStore {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ClientSessionStore.class);
+
+	private final int _maxSessions = Integer.getInteger("concert.sessions.max",
+			100000);
+	private final long _timeToLiveMillis = Long.getLong("concert.sessions.ttl",
+			30 * 60 * 1000);
+
+	// A full store is swept at most this often, so that a store full of live
+	// sessions doesn't cause a sweep on every request.
+	private static final long MIN_SWEEP_INTERVAL_MILLIS = 1000;
+
+	private volatile long _lastSweep;
+
+	private final Map<String, ClientSession> _sessions = new ConcurrentHashMap<String, ClientSession>();
+	private final ClientIdGenerator _idGenerator = new ClientIdGenerator();
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	// Number of bytes of the HMAC kept in an identifier's signature.
+	private static final int SIGNATURE_BYTES = 16;
+
+	private static final char SIGNATURE_SEPARATOR = '.';
+
+	private final SecretKeySpec _key;
+
+	// A Mac isn't thread-safe, so each thread has its own.
+	private final ThreadLocal<Mac> _mac = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+				mac.init(_key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	public ClientSessionStore() {
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		_key = new SecretKeySpec(key, HMAC_ALGORITHM);
+
+
+		ScheduledExecutorService sweeper = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "concert-session-sweeper");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		long period = Math.max(_timeToLiveMillis / 4, 1000);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Issues a new client identifier. Its session is created when the
+	 * identifier is first presented to find().
+	 *
+	 * @return the new client identifier, or null if the store is full.
+	 */
+	public String issue() {
+		if (isFull(System.currentTimeMillis())) {
+			_logger.debug("Session store full; not issuing a client identifier");
+			return null;
+		}
+		String uuid = _idGenerator.next();
+		return uuid + SIGNATURE_SEPARATOR + sign(uuid);
+	}
+
+	/**
+	 * Returns true if clientId was issued by this store, whether or not it
+	 * currently has a session.
+	 */
+	public boolean isIssued(String clientId) {
+		int separator = clientId.lastIndexOf(SIGNATURE_SEPARATOR);
+		if (separator < 0) {
+			return false;
+		}
+		byte[] expected = sign(clientId.substring(0, separator)).getBytes(
+				StandardCharsets.US_ASCII);
+		byte[] actual = clientId.substring(separator + 1).getBytes(
+				StandardCharsets.US_ASCII);
+		return MessageDigest.isEqual(expected, actual);
+	}
+
+	/**
+	 * Returns the session for clientId and records that it has been accessed.
+	 * If clientId was issued by this store but has no session, because this
+	 * is its first use or its session has expired, the session is created.
+	 * Returns null if clientId wasn't issued by this store, or if the store is
+	 * full.
+	 */
+	public ClientSession find(String clientId) {
+		long now = System.currentTimeMillis();
+
+		ClientSession session = _sessions.get(clientId);
+		if (session != null && !session.isExpired(now, _timeToLiveMillis)) {
+			session.touch(now);
+			return session;
+		}
+		if (session != null) {
+			_sessions.remove(clientId, session);
+		}
+
+		if (!isIssued(clientId)) {
+			return null;
+		}
+		if (isFull(now)) {
+			_logger.debug("Session store full; not tracking client "
+					+ clientId);
+			return null;
+		}
+
+		session = new ClientSession(clientId, now);
+		ClientSession existing = _sessions.putIfAbsent(clientId, session);
+		return existing == null ? session : existing;
+	}
+
+	public int size() {
+		return _sessions.size();
+	}
+
+	// Returns true if the store is full, sweeping it first if it hasn't been
+	// swept recently.
+	private boolean isFull(long now) {
+		if (_sessions.size() < _maxSessions) {
+			return false;
+		}
+		if (now - _lastSweep >= MIN_SWEEP_INTERVAL_MILLIS) {
+			sweep();
+		}
+		return _sessions.size() >= _maxSessions;
+	}
+
+	private String sign(String uuid) {
+		byte[] hmac = _mac.get().doFinal(
+				uuid.getBytes(StandardCharsets.US_ASCII));
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(Arrays.copyOf(hmac, SIGNATURE_BYTES));
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		_lastSweep = now;
+		Iterator<ClientSession> iterator = _sessions.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isExpired(now, _timeToLiveMillis)) {
+				iterator.remove();
+			}
+		}
+	}
+}
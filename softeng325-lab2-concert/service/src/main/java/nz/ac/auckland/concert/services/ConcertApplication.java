@@ -6,6 +6,9 @@ import java.util.Set;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
 
+import nz.ac.auckland.concert.common.CompressionInterceptor;
+import nz.ac.auckland.concert.common.SerializationMessageBodyReaderAndWriter;
+
 
 
 @ApplicationPath("/services")
@@ -15,8 +18,17 @@ public class ConcertApplication extends Application {
 
 	public ConcertApplication()
 	{
-		_singletons.add(new ConcertResource());
+		ClientSessionStore sessions = new ClientSessionStore();
+		_singletons.add(new ConcertResource(sessions));
+		_singletons.add(new RateLimitFilter(sessions));
+
+		ResourceMetrics metrics = new ResourceMetrics();
+		_singletons.add(new MetricsFilter(metrics));
+		_singletons.add(new MetricsResource(metrics));
+
+		_singletons.add(new AccessLogFilter(new AccessLog()));
 		_classes.add(SerializationMessageBodyReaderAndWriter.class);
+		_classes.add(CompressionInterceptor.class);
 	}
 
 	@Override
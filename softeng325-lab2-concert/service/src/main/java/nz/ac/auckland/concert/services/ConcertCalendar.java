@@ -0,0 +1,109 @@
+package nz.ac.auckland.concert.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import nz.ac.auckland.concert.domain.Concert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+
+/**
+ * Counts of Concerts per calendar month and per day of the week, maintained
+ * incrementally as Concerts are stored, so that queries cost time in
+ * proportion to the number of buckets rather than the number of Concerts.
+ *
+ * Each ConcertStore generation has its own ConcertCalendar, so clearing the
+ * store resets the counts along with the Concerts. A Concert is counted in
+ * its own time zone, and Concerts without a date aren't counted. Counters
+ * are LongAdders, so concurrent creates don't contend on a shared counter.
+ *
+ */
+public class ConcertCalendar {
+
+	private static final String[] DAY_NAMES = { "MONDAY", "TUESDAY",
+			"WEDNESDAY", "THURSDAY", "FRIDAY", "SATURDAY", "SUNDAY" };
+
+	// Counters keyed by year * 12 + (month - 1).
+	private final ConcurrentSkipListMap<Integer, LongAdder> _months = new ConcurrentSkipListMap<Integer, LongAdder>();
+
+	// Counters indexed by ISO day of week - 1 (Monday is 0).
+	private final LongAdder[] _days = new LongAdder[DAY_NAMES.length];
+
+	public ConcertCalendar() {
+		for (int i = 0; i < _days.length; i++) {
+			_days[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Counts a newly stored Concert.
+	 */
+	public void add(Concert concert) {
+		DateTime date = concert.getDate();
+		if (date == null) {
+			return;
+		}
+
+		int month = monthKey(date.getYear(), date.getMonthOfYear());
+		LongAdder counter = _months.get(month);
+		if (counter == null) {
+			LongAdder newCounter = new LongAdder();
+			counter = _months.putIfAbsent(month, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.increment();
+
+		_days[date.getDayOfWeek() - DateTimeConstants.MONDAY].increment();
+	}
+
+	/**
+	 * Returns the number of Concerts in each month that has any, between two
+	 * months inclusive, keyed by month in the form yyyy-MM and in
+	 * chronological order.
+	 *
+	 * @param from the first month, as yyyy * 12 + (MM - 1), or
+	 * Integer.MIN_VALUE.
+	 *
+	 * @param to the last month, in the same form, or Integer.MAX_VALUE.
+	 */
+	public TreeMap<String, Long> countByMonth(int from, int to) {
+		TreeMap<String, Long> counts = new TreeMap<String, Long>();
+		if (from > to) {
+			return counts;
+		}
+		ConcurrentNavigableMap<Integer, LongAdder> range = _months.subMap(
+				from, true, to, true);
+		for (Map.Entry<Integer, LongAdder> entry : range.entrySet()) {
+			int key = entry.getKey();
+			counts.put(String.format("%04d-%02d", Math.floorDiv(key, 12),
+					Math.floorMod(key, 12) + 1), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the number of Concerts on each day of the week, keyed by day
+	 * name (MONDAY to SUNDAY), in that order.
+	 */
+	public LinkedHashMap<String, Long> countByDayOfWeek() {
+		LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < _days.length; i++) {
+			counts.put(DAY_NAMES[i], _days[i].sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the key used for a month.
+	 */
+	public static int monthKey(int year, int month) {
+		return year * 12 + (month - 1);
+	}
+}
@@ -0,0 +1,219 @@
+package nz.ac.auckland.concert.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
+import nz.ac.auckland.concert.domain.Concert;
+import nz.ac.auckland.concert.domain.ConcertChange;
+
+/**
+ * Bounded, in-memory feed of changes made to the Concert store.
+ *
+ * Changes are held in a fixed-size ring buffer and are numbered from 1. A
+ * client long-polls the feed with the sequence number of the last change it
+ * has seen: if later changes are available they are returned immediately,
+ * otherwise the request stays suspended until a change is published or the
+ * poll times out (in which case an empty list is returned). A client that
+ * has fallen further behind than the ring buffer's capacity receives a 410
+ * response and must reload the Concerts before polling again. So does a
+ * client polling since a change the feed hasn't reached, as happens after
+ * the service restarts and numbers changes from 1 again. A poll since 0
+ * returns the oldest retained changes instead.
+ *
+ * The capacity and maximum number of changes returned per poll can be
+ * overridden with the system properties concert.feed.capacity and
+ * concert.feed.batch.
+ *
+ */
+public class ConcertChangeFeed {
+
+	private final int _capacity = Integer.getInteger("concert.feed.capacity",
+			4096);
+	private final int _maxBatch = Integer.getInteger("concert.feed.batch", 256);
+
+	private final AtomicReferenceArray<ConcertChange> _ring = new AtomicReferenceArray<ConcertChange>(
+			_capacity);
+
+	// Sequence number of the most recently allocated change.
+	private final AtomicLong _head = new AtomicLong();
+
+	// Polls waiting for a change to be published.
+	private final ConcurrentLinkedQueue<Waiter> _waiters = new ConcurrentLinkedQueue<Waiter>();
+
+	// Waiting polls are resumed on this thread rather than on the thread that
+	// published the change.
+	private final ExecutorService _notifier = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "concert-feed-notifier");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Runnable _notifyWaiters = new Runnable() {
+		public void run() {
+			Iterator<Waiter> iterator = _waiters.iterator();
+			while (iterator.hasNext()) {
+				Waiter waiter = iterator.next();
+				if (waiter._asyncResponse.isDone()) {
+					iterator.remove();
+				} else if (waiter._since < _head.get()) {
+					iterator.remove();
+					waiter.resume(read(waiter));
+				}
+			}
+		}
+	};
+
+	private static class Waiter {
+		final long _since;
+		final AsyncResponse _asyncResponse;
+		final NewCookie _cookie;
+
+		Waiter(long since, AsyncResponse asyncResponse, NewCookie cookie) {
+			_since = since;
+			_asyncResponse = asyncResponse;
+			_cookie = cookie;
+		}
+
+		void resume(Response response) {
+			_asyncResponse.resume(response);
+		}
+	}
+
+	/**
+	 * Records that a Concert has been created.
+	 */
+	public void publishCreated(Concert concert) {
+		publish(ConcertChange.Type.CREATED, concert);
+	}
+
+	/**
+	 * Records that all Concerts have been deleted.
+	 */
+	public void publishCleared() {
+		publish(ConcertChange.Type.CLEARED, null);
+	}
+
+	private void publish(ConcertChange.Type type, Concert concert) {
+		long sequence = _head.incrementAndGet();
+		_ring.set(slot(sequence), new ConcertChange(sequence, type, concert));
+
+		if (!_waiters.isEmpty()) {
+			_notifier.execute(_notifyWaiters);
+		}
+	}
+
+	/**
+	 * Resumes asyncResponse with the changes that follow since. If there are
+	 * none, the response remains suspended until a change is published or
+	 * timeoutMillis elapses.
+	 *
+	 * @param since the sequence number of the last change seen by the client.
+	 *
+	 * @param timeoutMillis the maximum time to wait for a change.
+	 *
+	 * @param asyncResponse the suspended response of the polling request.
+	 *
+	 * @param cookie a cookie to return to the client, or null.
+	 */
+	public void poll(long since, long timeoutMillis,
+			AsyncResponse asyncResponse, NewCookie cookie) {
+		final Waiter waiter = new Waiter(since, asyncResponse, cookie);
+
+		if (since > _head.get()) {
+			// The client's changes came from an earlier feed.
+			waiter.resume(gone(waiter));
+			return;
+		} else if (since < _head.get()) {
+			waiter.resume(read(waiter));
+			return;
+		} else if (timeoutMillis <= 0) {
+			waiter.resume(changes(new ArrayList<ConcertChange>(), waiter));
+			return;
+		}
+
+		asyncResponse.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+			public void handleTimeout(AsyncResponse asyncResponse) {
+				_waiters.remove(waiter);
+				waiter.resume(changes(new ArrayList<ConcertChange>(), waiter));
+			}
+		});
+		_waiters.add(waiter);
+
+		// A change published between the check above and registering the
+		// waiter wouldn't have seen it, so check again.
+		if (since < _head.get() && _waiters.remove(waiter)) {
+			waiter.resume(read(waiter));
+		}
+	}
+
+	private Response read(Waiter waiter) {
+		long since = waiter._since;
+		long head = _head.get();
+		if (since == 0) {
+			// Start from the oldest change still in the ring buffer.
+			since = Math.max(0, head - _capacity);
+		}
+		if (head - since > _capacity) {
+			// Changes following since have been overwritten.
+			return gone(waiter);
+		}
+
+		List<ConcertChange> changes = new ArrayList<ConcertChange>();
+		long last = Math.min(head, since + _maxBatch);
+		for (long sequence = since + 1; sequence <= last; sequence++) {
+			ConcertChange change = _ring.get(slot(sequence));
+			if (change == null || change.getSequence() != sequence) {
+				// The change has been allocated but not yet stored, or has
+				// already been overwritten; stop at the gap so that changes
+				// are always returned in order.
+				break;
+			}
+			changes.add(change);
+		}
+		return changes(changes, waiter);
+	}
+
+	/**
+	 * Returns the 410 response telling a client to reload the Concerts.
+	 */
+	private static Response gone(Waiter waiter) {
+		ResponseBuilder builder = Response.status(Response.Status.GONE);
+		if (waiter._cookie != null) {
+			builder.cookie(waiter._cookie);
+		}
+		return builder.build();
+	}
+
+	private static Response changes(List<ConcertChange> changes, Waiter waiter) {
+		GenericEntity<List<ConcertChange>> entity = new GenericEntity<List<ConcertChange>>(
+				changes) {};
+		ResponseBuilder builder = Response.ok(entity);
+		if (waiter._cookie != null) {
+			builder.cookie(waiter._cookie);
+		}
+		return builder.build();
+	}
+
+	private int slot(long sequence) {
+		return (int) (sequence % _capacity);
+	}
+}
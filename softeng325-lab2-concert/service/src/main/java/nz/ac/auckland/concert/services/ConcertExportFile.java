@@ -0,0 +1,120 @@
+package nz.ac.auckland.concert.services;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import nz.ac.auckland.concert.common.ConcertCodec;
+import nz.ac.auckland.concert.common.ConcertCodec.RecordWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-built binary export of a ConcertStore, held in a file.
+ *
+ * The file is rebuilt only when the store has changed since it was written,
+ * so repeated exports of an unchanged store are served straight from the
+ * file - with FileChannel.transferTo - instead of re-encoding every Concert.
+ * Each file is written from a ConcertStore.Snapshot, so it holds the store's
+ * Concerts at a single point in time.
+ *
+ * The directory holding the file can be set with the system property
+ * concert.export.dir; by default a temporary directory is used.
+ *
+ */
+public class ConcertExportFile {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ConcertExportFile.class);
+
+	private final ConcertStore _store;
+	private File _directory;
+
+	// The most recently built file, and the Snapshot it was written from.
+	private File _file;
+	private long _generation;
+	private long _version;
+
+	public ConcertExportFile(ConcertStore store) {
+		_store = store;
+	}
+
+	/**
+	 * Builds the file if it doesn't hold the store's current Concerts. Calling
+	 * update() ahead of open() moves the cost of a rebuild off the thread that
+	 * opens the file.
+	 */
+	public synchronized void update() throws IOException {
+		if (_file == null || !_store.isCurrent(_generation, _version)) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Returns an open channel on a file holding the store's current Concerts
+	 * in the binary format of ConcertCodec, building the file first if
+	 * necessary. The caller must close the channel.
+	 */
+	public synchronized FileChannel open() throws IOException {
+		update();
+		// Open the channel while holding the lock, so the file can't be
+		// deleted by a concurrent rebuild before it is opened. Once open, the
+		// channel remains readable even if the file is deleted.
+		return FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+	}
+
+	private void rebuild() throws IOException {
+		if (_directory == null) {
+			String directory = System.getProperty("concert.export.dir");
+			if (directory == null) {
+				_directory = Files.createTempDirectory("concert-export")
+						.toFile();
+				_directory.deleteOnExit();
+			} else {
+				_directory = new File(directory);
+				_directory.mkdirs();
+			}
+		}
+
+		ConcertStore.Snapshot snapshot = _store.snapshot();
+		File file = new File(_directory, "concerts-"
+				+ snapshot.getGeneration() + "-" + snapshot.getVersion()
+				+ ".bin");
+		File temporary = File.createTempFile("concerts-", ".tmp", _directory);
+
+		try (OutputStream out = new FileOutputStream(temporary)) {
+			RecordWriter writer = ConcertCodec.binaryWriter(out);
+			ConcertStore.Cursor cursor = snapshot.cursor();
+			while (cursor.hasNext()) {
+				writer.write(cursor.next());
+			}
+			writer.flush();
+		} catch (IOException e) {
+			temporary.delete();
+			throw e;
+		} finally {
+			snapshot.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		if (_file != null && !_file.equals(file)) {
+			_file.delete();
+		}
+		_file = file;
+		_generation = snapshot.getGeneration();
+		_version = snapshot.getVersion();
+
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Built export file " + file + " holding "
+					+ _version + " concerts.");
+		}
+	}
+}
@@ -0,0 +1,783 @@
+package nz.ac.auckland.concert.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.CookieParam;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
+import nz.ac.auckland.concert.common.ConcertCodec;
+import nz.ac.auckland.concert.common.ConcertCodec.MalformedRecordException;
+import nz.ac.auckland.concert.common.ConcertCodec.RecordReader;
+import nz.ac.auckland.concert.common.ConcertCodec.RecordWriter;
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.domain.Concert;
+import nz.ac.auckland.concert.domain.ImportResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to implement a simple REST Web service for managing Concerts.
+ *
+ */
+@Path("/concerts")
+public class ConcertResource {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ConcertResource.class);
+
+	// Upper bound on the time a change feed poll can be held.
+	private static final long MAX_POLL_TIMEOUT_MILLIS = 60000;
+
+	// Per-item debug logging in retrieveConcerts is sampled at this rate.
+	// Each request is recorded in the access log (see AccessLogFilter).
+	private static final int ITEM_LOG_SAMPLE_RATE = 100;
+
+	// Upper bound on the number of Concerts returned in one page.
+	private static final int MAX_PAGE_SIZE = Integer.getInteger(
+			"concert.page.max", 1000);
+
+	// Number of imported Concerts stored with each ConcertStore.createAll().
+	private static final int IMPORT_BATCH_SIZE = Integer.getInteger(
+			"concert.import.batch", 512);
+
+	// Declare necessary instance variables.
+	private ConcertStore _concertDB;
+	private ConcertExportFile _exportFile;
+	private ConcertSnapshots _snapshots;
+	private ConcertChangeFeed _changeFeed = new ConcertChangeFeed();
+
+	// Orders changes to the store with their publication in the change feed:
+	// creates hold the read lock, so they run concurrently, and a clear holds
+	// the write lock, so no CREATED change can be published after the 
+	// CLEARED change of the clear that removed the Concert.
+	private ReadWriteLock _changeLock = new ReentrantReadWriteLock();
+	private ClientSessionStore _sessions;
+
+	// Executors that process suspended requests. Retrieving a page of
+	// Concerts has its own executor so that large list requests can't starve
+	// requests on individual Concerts.
+	private RequestExecutor _itemExecutor = RequestExecutor
+			.fromSystemProperties("item", 16, 256, 5000,
+					RequestExecutor.RejectionPolicy.REJECT);
+	private RequestExecutor _listExecutor = RequestExecutor
+			.fromSystemProperties("list", 4, 32, 10000,
+					RequestExecutor.RejectionPolicy.REJECT);
+	private RequestExecutor _bulkExecutor = RequestExecutor
+			.fromSystemProperties("bulk", 2, 4, 600000,
+					RequestExecutor.RejectionPolicy.REJECT);
+
+	/**
+	 * Creates a ConcertResource.
+	 * 
+	 * @param sessions the store used to issue client identifiers and to hold
+	 * the sessions of clients.
+	 */
+	public ConcertResource(ClientSessionStore sessions) {
+		this(sessions, new ConcertStore());
+	}
+
+	/**
+	 * Creates a ConcertResource that serves the Concerts of a specified
+	 * store.
+	 * 
+	 * @param sessions the store used to issue client identifiers and to hold
+	 * the sessions of clients.
+	 * 
+	 * @param store the store of Concerts.
+	 */
+	public ConcertResource(ClientSessionStore sessions, ConcertStore store) {
+		_sessions = sessions;
+		_concertDB = store;
+		_exportFile = new ConcertExportFile(store);
+		_snapshots = new ConcertSnapshots(store);
+	}
+ 
+	/**
+	 * Retrieves a Concert based on its unique id. The HTTP response message 
+	 * has a status code of either 200 or 404, depending on whether the 
+	 * specified Concert is found. 
+	 * 
+	 * The response carries an ETag derived from the Concert's content. If the
+	 * request's If-None-Match header matches it, the HTTP response message 
+	 * has a status code of 304 and no entity, so that a client holding the 
+	 * Concert in a cache needn't receive it again.
+	 * 
+	 * When clientId is null, the HTTP request message doesn't contain a cookie 
+	 * named clientId (Config.CLIENT_COOKIE), or the cookie's value isn't a 
+	 * client identifier issued by the service, this method generates a new 
+	 * cookie, whose value is a randomly generated UUID. This method returns 
+	 * the new cookie as part of the HTTP response message.
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts/{id}.
+	 * 
+	 * @param id the unique ID of the Concert.
+	 * 
+	 * @param ifNoneMatch the value of the request's If-None-Match header, or 
+	 * null.
+	 * 
+	 * @param clientId a cookie named Config.CLIENT_COOKIE that may be sent 
+	 * by the client.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a
+	 * Response object containing the required Concert.
+	 */
+	@GET
+	@Path("{id}")
+	@Produces("application/java-serialization")
+	public void retrieveConcert(@PathParam("id") final long id, @HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch, @CookieParam(Config.CLIENT_COOKIE) final Cookie clientId, @Suspended AsyncResponse asyncResponse) {
+		_itemExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() {
+				return doRetrieveConcert(id, ifNoneMatch, clientId);
+			}
+		});
+	}
+
+	private Response doRetrieveConcert(long id, String ifNoneMatch, Cookie clientId) {
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Retrieving concert with id: " + id);
+		}
+		// Lookup the Parolee within the in-memory data structure.
+		final Concert concert = _concertDB.get(id);
+		if (concert == null) {
+			// Return a HTTP 404 response if the specified Parolee isn't found.
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		
+		EntityTag tag = entityTag(concert);
+		ResponseBuilder builder = matches(ifNoneMatch, tag) ? Response
+				.notModified(tag) : Response.ok(concert).tag(tag);
+		
+		return withCookie(builder, clientId);
+	}
+	
+
+	/**
+	 * Retrieves a collection of Concerts, where the "start" query parameter
+     * identifies an index position, and "size" represents the maximum number
+     * of successive Concerts to return. The HTTP response message returns 200.
+     * 
+     * The Concerts are read from a consistent snapshot of the store, whose 
+     * token is returned in the Config.SNAPSHOT_HEADER response header. When 
+     * the token is passed back in the "snapshot" query parameter, the page is
+     * read from the same snapshot, so that a client paging through the 
+     * Concerts sees neither gaps nor duplicates while Concerts are created or
+     * deleted. The HTTP response message returns 410 if the snapshot is no 
+     * longer available, in which case the client should start again without 
+     * a snapshot.
+     * 
+     * When clientId is null, the HTTP request message doesn't contain a cookie 
+	 * named clientId (Config.CLIENT_COOKIE), or the cookie's value isn't a 
+	 * client identifier issued by the service, this method generates a new 
+	 * cookie, whose value is a randomly generated UUID. This method returns 
+	 * the new cookie as part of the HTTP response message.
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts?start&size.
+	 * 
+	 * @param start the ID of a Concert from which to start retrieving 
+	 * Concerts.
+	 * 
+	 * @param size the maximum number of Concerts to retrieve. At most 
+	 * "concert.page.max" (by default 1000) Concerts are returned.
+	 * 
+	 * @param snapshot the token of the snapshot to read from, or null to read
+	 * from a new snapshot.
+	 * 
+	 * @param clientId a cookie named Config.CLIENT_COOKIE that may be sent 
+	 * by the client.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing a List of Concerts. The List may be empty.
+	 */
+	@GET
+	@Produces("application/java-serialization")
+	public void retrieveConcerts(@QueryParam("start") final long start, @QueryParam("size") final int size, @QueryParam(Config.SNAPSHOT) final String snapshot, @CookieParam(Config.CLIENT_COOKIE) final Cookie clientId, @Suspended AsyncResponse asyncResponse) {
+		_listExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() {
+				return doRetrieveConcerts(start, size, snapshot, clientId);
+			}
+		});
+	}
+
+	private Response doRetrieveConcerts(long start, int size, String token, Cookie clientId) {
+		// The Response object should store an ArrayList<Concert> entity. The 
+		// ArrayList can be empty depending on the start and size arguments, 
+		// and Concerts stored.
+		//
+		// Because of type erasure with Java Generics, any generically typed 
+		// entity needs to be wrapped by a javax.ws.rs.core.GenericEntity that 
+		// stores the generic type information. Hence to add an ArrayList as a
+		// Response object's entity, you should use the following code:
+		//
+		// List<Concert> concerts = new ArrayList<Concert>();
+		// GenericEntity<List<Concert>> entity = new GenericEntity<List<Concert>>(concerts) {};
+		// ResponseBuilder builder = Response.ok(entity);
+	
+		ConcertStore.Snapshot snapshot = _snapshots.open(token);
+		if (snapshot == null) {
+			throw new WebApplicationException(Response.Status.GONE);
+		}
+
+		size = Math.min(size, MAX_PAGE_SIZE);
+		List<Concert> concerts = new ArrayList<Concert>();
+		try {
+			for (long i=start; i<(start+size); i++){
+				Concert concert = snapshot.get(i);
+				if (concert != null){
+					concerts.add(concert);
+					if (_logger.isDebugEnabled() && AccessLog.sample(ITEM_LOG_SAMPLE_RATE)) {
+						_logger.debug("Retrieving concert with id: " + i + " start at :" + start + " size :" + size);
+					}
+				}			
+			}
+		} finally {
+			snapshot.close();
+		}
+		
+		GenericEntity<List<Concert>> entity = new GenericEntity<List<Concert>>(concerts) {};
+		ResponseBuilder builder = Response.ok(entity).header(
+				Config.SNAPSHOT_HEADER, _snapshots.tokenFor(snapshot));
+		
+		return withCookie(builder, clientId);
+	}
+	
+	
+	/**
+	 * Exports all Concerts as a stream of length-delimited binary records 
+	 * (see ConcertCodec). The HTTP response message returns 200. The stream 
+	 * is served from a pre-built file (see ConcertExportFile), which is only 
+	 * rebuilt when the Concerts have changed since the previous export.
+	 * 
+	 * The file is brought up to date on the bulk executor, but it is only
+	 * opened when the entity is written. A response that is never written -
+	 * because the request timed out, or the client disconnected - then
+	 * holds no open file.
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts/export.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object whose entity streams the Concerts.
+	 */
+	@GET
+	@Path("export")
+	@Produces(Config.CONCERT_STREAM)
+	public void exportConcertsBinary(@Suspended AsyncResponse asyncResponse) {
+		_bulkExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() throws IOException {
+				_exportFile.update();
+				StreamingOutput output = new StreamingOutput() {
+					public void write(OutputStream output) throws IOException {
+						FileChannel channel = _exportFile.open();
+						try {
+							WritableByteChannel target = Channels
+									.newChannel(output);
+							long position = 0;
+							long size = channel.size();
+							while (position < size) {
+								position += channel.transferTo(position, size
+										- position, target);
+							}
+						} finally {
+							channel.close();
+						}
+					}
+				};
+				return Response.ok(output, Config.CONCERT_STREAM).build();
+			}
+		});
+	}
+
+	/**
+	 * Exports all Concerts as newline-delimited JSON (see ConcertCodec). The 
+	 * HTTP response message returns 200. Concerts are encoded as they are 
+	 * read from a snapshot of the store, so the export is consistent and 
+	 * needs constant memory.
+	 * 
+	 * The snapshot is taken when the entity is written, and closed once it
+	 * has been written. A response that is never written - because the 
+	 * request timed out, or the client disconnected - then pins no 
+	 * generation of the store.
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts/export.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object whose entity streams the Concerts.
+	 */
+	@GET
+	@Path("export")
+	@Produces(Config.NDJSON)
+	public void exportConcertsJson(@Suspended AsyncResponse asyncResponse) {
+		_bulkExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() {
+				StreamingOutput output = new StreamingOutput() {
+					public void write(OutputStream output) throws IOException {
+						ConcertStore.Snapshot snapshot = _concertDB.snapshot();
+						try {
+							RecordWriter writer = ConcertCodec.jsonWriter(output);
+							ConcertStore.Cursor cursor = snapshot.cursor();
+							while (cursor.hasNext()) {
+								writer.write(cursor.next());
+							}
+							writer.flush();
+						} finally {
+							snapshot.close();
+						}
+					}
+				};
+				return Response.ok(output, Config.NDJSON).build();
+			}
+		});
+	}
+
+	/**
+	 * Imports a stream of length-delimited binary Concert records (see 
+	 * ConcertCodec). Each Concert is assigned a new id; any id in the stream 
+	 * is ignored. The HTTP response message returns 200 with an ImportResult,
+	 * or 400 if the stream is malformed (in which case the Concerts that 
+	 * preceded the malformed record have been imported).
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts/import.
+	 * 
+	 * @param in the request body.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing an ImportResult.
+	 */
+	@POST
+	@Path("import")
+	@Consumes(Config.CONCERT_STREAM)
+	@Produces("application/java-serialization")
+	public void importConcertsBinary(final InputStream in, @Suspended AsyncResponse asyncResponse) {
+		_bulkExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() throws IOException {
+				return doImportConcerts(ConcertCodec.binaryReader(in));
+			}
+		});
+	}
+
+	/**
+	 * Imports newline-delimited JSON Concerts (see ConcertCodec), in the same
+	 * way as importConcertsBinary().
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts/import.
+	 * 
+	 * @param in the request body.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing an ImportResult.
+	 */
+	@POST
+	@Path("import")
+	@Consumes(Config.NDJSON)
+	@Produces("application/java-serialization")
+	public void importConcertsJson(final InputStream in, @Suspended AsyncResponse asyncResponse) {
+		_bulkExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() throws IOException {
+				return doImportConcerts(ConcertCodec.jsonReader(in));
+			}
+		});
+	}
+
+	private Response doImportConcerts(RecordReader reader) throws IOException {
+		List<Concert> batch = new ArrayList<Concert>(IMPORT_BATCH_SIZE);
+		long count = 0;
+		Long firstId = null;
+		Long lastId = null;
+
+		MalformedRecordException malformed = null;
+		Concert concert;
+		do {
+			try {
+				concert = reader.read();
+			} catch (MalformedRecordException e) {
+				// Store the Concerts that preceded the malformed record.
+				malformed = e;
+				concert = null;
+			}
+			if (concert != null) {
+				batch.add(concert);
+			}
+			if (batch.size() == IMPORT_BATCH_SIZE
+					|| (concert == null && !batch.isEmpty())) {
+				List<Concert> newConcerts;
+				_changeLock.readLock().lock();
+				try {
+					newConcerts = _concertDB.createAll(batch);
+					for (Concert newConcert : newConcerts) {
+						_changeFeed.publishCreated(newConcert);
+					}
+				} finally {
+					_changeLock.readLock().unlock();
+				}
+				if (firstId == null) {
+					firstId = newConcerts.get(0).getId();
+				}
+				lastId = newConcerts.get(newConcerts.size() - 1).getId();
+				count += batch.size();
+				batch.clear();
+			}
+		} while (concert != null);
+
+		if (malformed != null) {
+			_logger.info("Import stopped after " + count + " concerts: "
+					+ malformed.getMessage());
+			throw new WebApplicationException(malformed.getMessage(),
+					Response.Status.BAD_REQUEST);
+		}
+
+		_logger.info("Imported " + count + " concerts.");
+		return Response.ok(new ImportResult(count, firstId, lastId)).build();
+	}
+
+	/**
+	 * Retrieves the number of Concerts in each month, optionally restricted 
+	 * to a range of months. Months without Concerts are omitted. The HTTP 
+	 * response message returns 200 with a Map from month (yyyy-MM) to count,
+	 * in chronological order, or 400 if a month is malformed. The counts are 
+	 * maintained as Concerts are created, so the cost of this method depends
+	 * only on the number of months returned.
+	 * 
+	 * This method maps to the URI pattern 
+	 * <base-uri>/concerts/calendar/months?from&to.
+	 * 
+	 * @param from the first month (yyyy-MM) to include, or null.
+	 * 
+	 * @param to the last month (yyyy-MM) to include, or null.
+	 * 
+	 * @param clientId a cookie named Config.CLIENT_COOKIE that may be sent 
+	 * by the client.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing the counts.
+	 */
+	@GET
+	@Path("calendar/months")
+	@Produces("application/java-serialization")
+	public void retrieveCountsByMonth(@QueryParam("from") final String from, @QueryParam("to") final String to, @CookieParam(Config.CLIENT_COOKIE) final Cookie clientId, @Suspended AsyncResponse asyncResponse) {
+		_itemExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() {
+				int first = from == null ? Integer.MIN_VALUE : parseMonth(from);
+				int last = to == null ? Integer.MAX_VALUE : parseMonth(to);
+				return withCookie(Response.ok(_concertDB.calendar()
+						.countByMonth(first, last)), clientId);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves the number of Concerts on each day of the week. The HTTP 
+	 * response message returns 200 with a Map from day name (MONDAY to 
+	 * SUNDAY) to count. The counts are maintained as Concerts are created, 
+	 * so the cost of this method doesn't depend on the number of Concerts.
+	 * 
+	 * This method maps to the URI pattern 
+	 * <base-uri>/concerts/calendar/weekdays.
+	 * 
+	 * @param clientId a cookie named Config.CLIENT_COOKIE that may be sent 
+	 * by the client.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing the counts.
+	 */
+	@GET
+	@Path("calendar/weekdays")
+	@Produces("application/java-serialization")
+	public void retrieveCountsByDayOfWeek(@CookieParam(Config.CLIENT_COOKIE) final Cookie clientId, @Suspended AsyncResponse asyncResponse) {
+		_itemExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() {
+				return withCookie(Response.ok(_concertDB.calendar()
+						.countByDayOfWeek()), clientId);
+			}
+		});
+	}
+
+	/**
+	 * Parses a month of the form yyyy-MM into a ConcertCalendar month key.
+	 */
+	private static int parseMonth(String month) {
+		try {
+			String[] parts = month.trim().split("-");
+			int monthOfYear = Integer.parseInt(parts[1]);
+			if (parts.length != 2 || monthOfYear < 1 || monthOfYear > 12) {
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			return ConcertCalendar.monthKey(Integer.parseInt(parts[0]),
+					monthOfYear);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Builds a Response, adding a new clientId cookie if the request didn't 
+	 * have a valid one (see makeCookie()).
+	 */
+	private Response withCookie(ResponseBuilder builder, Cookie clientId) {
+		NewCookie newClientId = makeCookie(clientId);
+		if (newClientId != null) {
+			builder.cookie(newClientId);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Retrieves the changes made to the stored Concerts after the change with
+	 * sequence number "since". This is a long poll: when there are no such 
+	 * changes the request is held for up to "timeout" milliseconds, waiting 
+	 * for one to be made. The HTTP response message returns 200 with a 
+	 * (possibly empty) List of ConcertChanges, or 410 when the requested 
+	 * changes are no longer retained, or "since" is later than any change 
+	 * made (as after the service restarts), and the client should reload 
+	 * the Concerts via <base-uri>/concerts?start&size.
+	 * 
+	 * When clientId is null, the HTTP request message doesn't contain a cookie 
+	 * named clientId (Config.CLIENT_COOKIE), or the cookie's value isn't a 
+	 * client identifier issued by the service, this method generates a new 
+	 * cookie, whose value is a randomly generated UUID. This method returns 
+	 * the new cookie as part of the HTTP response message.
+	 * 
+	 * This method maps to the URI pattern 
+	 * <base-uri>/concerts/changes?since&timeout.
+	 * 
+	 * @param since the sequence number of the last change seen by the client,
+	 * or 0 to start from the oldest retained change.
+	 * 
+	 * @param timeout the maximum time, in milliseconds, to wait for a change.
+	 * 
+	 * @param clientId a cookie named Config.CLIENT_COOKIE that may be sent 
+	 * by the client.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing a List of ConcertChanges.
+	 */
+	@GET
+	@Path("changes")
+	@LongPoll
+	@Produces("application/java-serialization")
+	public void retrieveChanges(@QueryParam("since") long since, @DefaultValue("30000") @QueryParam("timeout") long timeout, @CookieParam(Config.CLIENT_COOKIE) Cookie clientId, @Suspended AsyncResponse asyncResponse) {
+		_changeFeed.poll(Math.max(since, 0),
+				Math.min(Math.max(timeout, 0), MAX_POLL_TIMEOUT_MILLIS),
+				asyncResponse, makeCookie(clientId));
+	}
+
+	/**
+	 * Creates a new Concert. This method assigns an ID to the new Concert and
+	 * stores it in memory. The HTTP Response message returns a Location header 
+	 * with the URI of the new Concert and a status code of 201.
+	 * 
+	 * When clientId is null, the HTTP request message doesn't contain a cookie 
+	 * named clientId (Config.CLIENT_COOKIE), or the cookie's value isn't a 
+	 * client identifier issued by the service, this method generates a new 
+	 * cookie, whose value is a randomly generated UUID. This method returns 
+	 * the new cookie as part of the HTTP response message.
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts.
+	 * 
+	 * @param concert the new Concert to create.
+	 * 
+	 * @param clientId a cookie named Config.CLIENT_COOKIE that may be sent 
+	 * by the client.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing the status code 201 and a Location header.
+	 */
+	@POST
+	@Produces("application/java-serialization")
+	@Consumes("application/java-serialization")
+	public void createConcert(final Concert concert, @CookieParam(Config.CLIENT_COOKIE) final Cookie clientId, @Suspended AsyncResponse asyncResponse) {
+		_itemExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() {
+				return doCreateConcert(concert, clientId);
+			}
+		});
+	}
+
+	private Response doCreateConcert(Concert concert, Cookie clientId) {
+		
+		if (concert == null){
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+
+		Concert newConcert;
+		_changeLock.readLock().lock();
+		try {
+			newConcert = _concertDB.create(concert);
+			_changeFeed.publishCreated(newConcert);
+		} finally {
+			_changeLock.readLock().unlock();
+		}
+
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Created new concert with id: " + newConcert.getId());
+		}
+
+		return withCookie(Response.created(URI.create("/concerts/"
+				+ newConcert.getId())), clientId);
+	}
+
+
+	/**
+	 * Deletes all Concerts, returning a status code of 204.  
+	 * 
+	 * When clientId is null, the HTTP request message doesn't contain a cookie 
+	 * named clientId (Config.CLIENT_COOKIE), or the cookie's value isn't a 
+	 * client identifier issued by the service, this method generates a new 
+	 * cookie, whose value is a randomly generated UUID. This method returns 
+	 * the new cookie as part of the HTTP response message.
+	 * 
+	 * This method maps to the URI pattern <base-uri>/concerts.
+	 * 
+	 * @param clientId a cookie named Config.CLIENT_COOKIE that may be sent 
+	 * by the client.
+	 * 
+	 * @param asyncResponse the suspended response, which is resumed with a 
+	 * Response object containing the status code 204.
+	 */
+	@DELETE
+	public void deleteAllConcerts(@CookieParam(Config.CLIENT_COOKIE) final Cookie clientId, @Suspended AsyncResponse asyncResponse) {
+		_itemExecutor.submit(asyncResponse, new Callable<Response>() {
+			public Response call() {
+				return doDeleteAllConcerts(clientId);
+			}
+		});
+	}
+
+	private Response doDeleteAllConcerts(Cookie clientId) {
+		
+		_changeLock.writeLock().lock();
+		try {
+			_concertDB.clear();
+			_changeFeed.publishCleared();
+		} finally {
+			_changeLock.writeLock().unlock();
+		}
+		
+		ResponseBuilder builder = Response.status(204);
+		_logger.info("Clear all concerts.");
+		
+		return withCookie(builder, clientId);
+	}
+	
+	/**
+	 * Returns an entity tag for a Concert. Concerts are immutable, so the tag 
+	 * need only distinguish Concerts that have had the same id in different 
+	 * generations of the store. It is the first 128 bits of a SHA-256 digest 
+	 * of the Concert's compact form (see Concert.writeTo()), which covers its
+	 * id, title, date and time zone.
+	 */
+	private static EntityTag entityTag(Concert concert) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		try {
+			concert.writeTo(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream.
+			throw new IllegalStateException(e);
+		}
+		byte[] hash = digest.digest(bytes.toByteArray());
+
+		StringBuilder tag = new StringBuilder(32);
+		for (int i = 0; i < 16; i++) {
+			tag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			tag.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return new EntityTag(tag.toString());
+	}
+
+	/**
+	 * Returns true if an If-None-Match header value matches an entity tag.
+	 */
+	private static boolean matches(String ifNoneMatch, EntityTag tag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		String quoted = "\"" + tag.getValue() + "\"";
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(quoted)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Helper method that can be called from every service method to generate a 
+	 * NewCookie instance, if necessary, based on the clientId parameter. If 
+	 * the client has a session it is marked as accessed. Only identifiers 
+	 * that the service issued are accepted: any other value is replaced by a 
+	 * newly issued identifier, so that made-up values never enter the 
+	 * session table. An issued identifier whose session has expired, or 
+	 * couldn't be created because the session table is full, is kept. 
+	 * 
+	 * @param clientId the Cookie whose name is Config.CLIENT_COOKIE, extracted 
+	 * from a HTTP request message. This can be null if there was no cookie 
+	 * named Config.CLIENT_COOKIE present in the HTTP request message. 
+	 * 
+	 * @return a NewCookie object, with a newly issued identifier, if the 
+	 * clientId parameter is null or isn't an issued client identifier. 
+	 * Otherwise, this method returns null as there's no need to return a 
+	 * NewCookie in the HTTP response message. It also returns null if the 
+	 * session table is full, and so no identifier can be issued. 
+	 */
+	private NewCookie makeCookie(Cookie clientId){
+		if (clientId != null && (_sessions.find(clientId.getValue()) != null
+				|| _sessions.isIssued(clientId.getValue()))) {
+			return null;
+		}
+
+		String issued = _sessions.issue();
+		if (issued == null) {
+			return null;
+		}
+		NewCookie newCookie = new NewCookie(Config.CLIENT_COOKIE, issued);
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Generated cookie: " + newCookie.getValue());
+		}
+		return newCookie;
+	}
+}
@@ -0,0 +1,167 @@
+package nz.ac.auckland.concert.services;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table of leased ConcertStore Snapshots, used to give paginated reads a
+ * consistent view of the store across requests.
+ *
+ * The first page of a traversal opens a new Snapshot and returns a token
+ * naming it; later pages pass the token back and read from the same
+ * Snapshot. Each token holds a lease on its Snapshot, renewed whenever the
+ * token is used. The lease keeps the Snapshot's generation from being
+ * reclaimed if the store is cleared mid-traversal. Leases that haven't been
+ * used for a configurable time expire, releasing their Snapshots, so
+ * abandoned traversals don't retain old generations for long.
+ *
+ * A token whose lease has expired remains usable while its generation is
+ * still current, since the Concerts it sees are never modified.
+ *
+ * The limits can be overridden with the system properties
+ * concert.snapshots.max and concert.snapshots.ttl (milliseconds).
+ *
+ */
+public class ConcertSnapshots {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ConcertSnapshots.class);
+
+	private final int _maxLeases = Integer.getInteger("concert.snapshots.max",
+			10000);
+	private final long _timeToLiveMillis = Long.getLong(
+			"concert.snapshots.ttl", 60 * 1000);
+
+	// A full table is swept at most this often.
+	private static final long MIN_SWEEP_INTERVAL_MILLIS = 1000;
+
+	private volatile long _lastSweep;
+
+	private static class Lease {
+		final ConcertStore.Snapshot _snapshot;
+		volatile long _lastAccess;
+
+		Lease(ConcertStore.Snapshot snapshot, long now) {
+			_snapshot = snapshot;
+			_lastAccess = now;
+		}
+	}
+
+	private final ConcertStore _store;
+	private final Map<String, Lease> _leases = new ConcurrentHashMap<String, Lease>();
+
+	public ConcertSnapshots(ConcertStore store) {
+		_store = store;
+
+		ScheduledExecutorService sweeper = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"concert-snapshot-sweeper");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		long period = Math.max(_timeToLiveMillis / 4, 1000);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens a Snapshot for a request, leasing it if necessary.
+	 *
+	 * @param token a token returned by tokenFor(), or null to open a Snapshot
+	 * of the store's current state.
+	 *
+	 * @return a Snapshot, which the caller must close; or null if the token
+	 * is malformed or the state it names is no longer available.
+	 */
+	public ConcertStore.Snapshot open(String token) {
+		if (token == null) {
+			ConcertStore.Snapshot snapshot = _store.snapshot();
+			lease(tokenFor(snapshot), snapshot.getGeneration(),
+					snapshot.getVersion());
+			return snapshot;
+		}
+
+		int separator = token.indexOf('.');
+		long generation;
+		long version;
+		try {
+			generation = Long.parseLong(token.substring(0, Math.max(separator, 0)));
+			version = Long.parseLong(token.substring(separator + 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		ConcertStore.Snapshot snapshot = _store.snapshot(generation, version);
+		if (snapshot != null) {
+			lease(token, generation, version);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the token that names a Snapshot.
+	 */
+	public String tokenFor(ConcertStore.Snapshot snapshot) {
+		return snapshot.getGeneration() + "." + snapshot.getVersion();
+	}
+
+	/**
+	 * Creates or renews the lease for a token.
+	 */
+	private void lease(String token, long generation, long version) {
+		long now = System.currentTimeMillis();
+
+		Lease lease = _leases.get(token);
+		if (lease != null) {
+			lease._lastAccess = now;
+			return;
+		}
+
+		if (_leases.size() >= _maxLeases) {
+			if (now - _lastSweep >= MIN_SWEEP_INTERVAL_MILLIS) {
+				sweep();
+			}
+			if (_leases.size() >= _maxLeases) {
+				_logger.debug("Snapshot table full; not leasing " + token);
+				return;
+			}
+		}
+
+		// The lease holds its own pin, independent of the Snapshots opened
+		// for requests.
+		ConcertStore.Snapshot snapshot = _store.snapshot(generation, version);
+		if (snapshot == null) {
+			return;
+		}
+		if (_leases.putIfAbsent(token, new Lease(snapshot, now)) != null) {
+			snapshot.close();
+		}
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		_lastSweep = now;
+		Iterator<Lease> iterator = _leases.values().iterator();
+		while (iterator.hasNext()) {
+			Lease lease = iterator.next();
+			if (now - lease._lastAccess >= _timeToLiveMillis) {
+				iterator.remove();
+				lease._snapshot.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package nz.ac.auckland.concert.services;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nz.ac.auckland.concert.domain.Concert;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory store of Concerts, organised as a sequence of generations.
+ *
+ * Each generation owns both the Map of Concerts and the counter used to
+ * allocate Concert ids. Clearing the store installs a fresh, empty generation
+ * with a single atomic pointer swap, so a concurrent create always takes its
+ * id from, and stores its Concert in, the same generation. A create that
+ * finds the generation it used has been retired meanwhile stores its
+ * Concert again in the new generation, so that it never reports a Concert
+ * (and an id) that a clear() has released. The retired
+ * generation is emptied by a background thread rather than on the request
+ * thread that asked for the clear.
+ *
+ * The store also supports consistent reads (multi-version concurrency
+ * control). Within a generation ids are allocated consecutively from 1 and
+ * stored Concerts are never modified or removed individually, so the state
+ * of a generation at any moment is fully described by its committed
+ * watermark: the highest id n such that Concerts 1 to n have all been
+ * stored. A Snapshot is a (generation, watermark) pair. It sees exactly the
+ * Concerts up to its watermark, however many are created afterwards, and it
+ * pins its generation so that a clear() doesn't release the Concerts it
+ * reads; a retired generation is reclaimed only once no Snapshot pins it.
+ * Neither taking a Snapshot nor reading through one blocks writers.
+ *
+ * Each generation also maintains a ConcertCalendar of its Concerts.
+ *
+ */
+public class ConcertStore {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ConcertStore.class);
+
+	/**
+	 * A single generation of the store. A Generation is never reused once it
+	 * has been retired by clear().
+	 */
+	static class Generation {
+		final long _number;
+		final Map<Long, Concert> _concerts = new ConcurrentHashMap<Long, Concert>();
+		final AtomicLong _idCounter = new AtomicLong();
+		final ConcertCalendar _calendar = new ConcertCalendar();
+
+		// Highest id n such that the Concerts with ids 1 to n have all been
+		// stored.
+		final AtomicLong _committed = new AtomicLong();
+
+		// Number of Snapshots pinning the generation, or -1 once it has been
+		// reclaimed.
+		final AtomicInteger _pins = new AtomicInteger();
+		volatile boolean _retired;
+
+		Generation(long number) {
+			_number = number;
+		}
+
+		boolean pin() {
+			int pins;
+			do {
+				pins = _pins.get();
+				if (pins < 0) {
+					return false;
+				}
+			} while (!_pins.compareAndSet(pins, pins + 1));
+			return true;
+		}
+
+		/**
+		 * Advances the committed watermark over any ids that have been stored.
+		 * Called after every store, so the watermark can't be left behind a
+		 * stored Concert.
+		 */
+		void commit() {
+			long committed = _committed.get();
+			while (_concerts.containsKey(committed + 1)) {
+				_committed.compareAndSet(committed, committed + 1);
+				committed = _committed.get();
+			}
+		}
+	}
+
+	private final AtomicReference<Generation> _current;
+
+	// Retired generations that haven't yet been reclaimed, because Snapshots
+	// still pin them.
+	private final Map<Long, Generation> _retained = new ConcurrentHashMap<Long, Generation>();
+
+	// Single daemon thread used to release the contents of retired
+	// generations.
+	private final ExecutorService _reclaimer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "concert-store-reclaimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	public ConcertStore() {
+		_current = new AtomicReference<Generation>(new Generation(1));
+	}
+
+	/**
+	 * Stores a copy of the specified Concert under a newly allocated id.
+	 *
+	 * @param concert the Concert to store. Any id it carries is ignored.
+	 *
+	 * @return the stored Concert, including its allocated id.
+	 */
+	public Concert create(Concert concert) {
+		while (true) {
+			Generation generation = _current.get();
+			Concert newConcert = new Concert(
+					generation._idCounter.incrementAndGet(),
+					concert.getTitle(), concert.getDate());
+			generation._concerts.put(newConcert.getId(), newConcert);
+			generation._calendar.add(newConcert);
+			generation.commit();
+			if (_current.get() == generation) {
+				return newConcert;
+			}
+			// A concurrent clear() retired the generation, and may already
+			// have released the Concert; store it in the new generation.
+		}
+	}
+
+	/**
+	 * Stores copies of the specified Concerts under a block of consecutively
+	 * allocated ids, reserved with a single update of the id counter.
+	 *
+	 * @param concerts the Concerts to store. Any ids they carry are ignored.
+	 *
+	 * @return the stored Concerts, in the same order and including their
+	 * allocated ids.
+	 */
+	public List<Concert> createAll(List<Concert> concerts) {
+		while (true) {
+			Generation generation = _current.get();
+			long id = generation._idCounter.addAndGet(concerts.size())
+					- concerts.size();
+
+			List<Concert> newConcerts = new ArrayList<Concert>(concerts.size());
+			for (Concert concert : concerts) {
+				Concert newConcert = new Concert(++id, concert.getTitle(),
+						concert.getDate());
+				generation._concerts.put(id, newConcert);
+				generation._calendar.add(newConcert);
+				newConcerts.add(newConcert);
+			}
+			generation.commit();
+			if (_current.get() == generation) {
+				return newConcerts;
+			}
+			// Retired by a concurrent clear(), as in create().
+		}
+	}
+
+	/**
+	 * Retrieves the Concert with the specified id, or null if there is no such
+	 * Concert in the current generation.
+	 */
+	public Concert get(long id) {
+		return _current.get()._concerts.get(id);
+	}
+
+	/**
+	 * Returns the calendar counts of the current generation's Concerts.
+	 */
+	public ConcertCalendar calendar() {
+		return _current.get()._calendar;
+	}
+
+	/**
+	 * Returns a Snapshot of the current generation at its committed
+	 * watermark. The caller must close the Snapshot.
+	 */
+	public Snapshot snapshot() {
+		while (true) {
+			Generation generation = _current.get();
+			if (generation.pin()) {
+				return new Snapshot(generation, generation._committed.get());
+			}
+			// The generation was retired and reclaimed since it was read;
+			// the new current generation can't have been.
+		}
+	}
+
+	/**
+	 * Returns a Snapshot of a specified generation and watermark, typically
+	 * those of an earlier Snapshot, or null if the generation has been
+	 * reclaimed or hasn't yet reached the watermark. The caller must close
+	 * the Snapshot.
+	 */
+	public Snapshot snapshot(long generation, long version) {
+		Generation current = _current.get();
+		Generation target = current._number == generation ? current
+				: _retained.get(generation);
+		if (target == null || !target.pin()) {
+			return null;
+		}
+		Snapshot snapshot = new Snapshot(target, version);
+		if (version < 0 || version > target._committed.get()) {
+			snapshot.close();
+			return null;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns true if a Snapshot with the specified generation and version
+	 * taken now would see the same Concerts.
+	 */
+	public boolean isCurrent(long generation, long version) {
+		Generation current = _current.get();
+		return current._number == generation
+				&& current._committed.get() == version;
+	}
+
+	/**
+	 * Returns the number of retired generations that haven't yet been
+	 * reclaimed because Snapshots still pin them.
+	 */
+	public int retainedGenerations() {
+		return _retained.size();
+	}
+
+	/**
+	 * Removes all Concerts and resets id allocation. The current generation is
+	 * replaced atomically; its contents are released in the background once
+	 * no Snapshot pins it.
+	 */
+	public void clear() {
+		Generation current;
+		do {
+			current = _current.get();
+		} while (!_current.compareAndSet(current, new Generation(
+				current._number + 1)));
+
+		_retained.put(current._number, current);
+		current._retired = true;
+		reclaimIfUnpinned(current);
+	}
+
+	private void reclaimIfUnpinned(final Generation retired) {
+		if (!retired._pins.compareAndSet(0, -1)) {
+			return;
+		}
+		_retained.remove(retired._number);
+		_reclaimer.execute(new Runnable() {
+			public void run() {
+				int size = retired._concerts.size();
+				retired._concerts.clear();
+				_logger.debug("Reclaimed generation " + retired._number
+						+ " holding " + size + " concerts.");
+			}
+		});
+	}
+
+	/**
+	 * A consistent, read-only view of the store: the Concerts of one
+	 * generation with ids up to a fixed version (watermark). Closing a
+	 * Snapshot releases its pin on the generation; a Snapshot must not be
+	 * used after it has been closed.
+	 */
+	public class Snapshot implements Closeable {
+		private final Generation _generation;
+		private final long _version;
+		private final AtomicBoolean _closed = new AtomicBoolean();
+
+		Snapshot(Generation generation, long version) {
+			_generation = generation;
+			_version = version;
+		}
+
+		public long getGeneration() {
+			return _generation._number;
+		}
+
+		/**
+		 * Returns the snapshot's version: the id of the last Concert it sees.
+		 */
+		public long getVersion() {
+			return _version;
+		}
+
+		/**
+		 * Retrieves the Concert with the specified id, or null if there is no
+		 * such Concert in this Snapshot.
+		 */
+		public Concert get(long id) {
+			if (id < 1 || id > _version) {
+				return null;
+			}
+			return _generation._concerts.get(id);
+		}
+
+		/**
+		 * Returns a Cursor over all the Concerts in this Snapshot.
+		 */
+		public Cursor cursor() {
+			return new Cursor(this);
+		}
+
+		@Override
+		public void close() {
+			if (_closed.compareAndSet(false, true)) {
+				_generation._pins.decrementAndGet();
+				if (_generation._retired) {
+					reclaimIfUnpinned(_generation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Iterator over the Concerts of a Snapshot, in id order. A Cursor holds
+	 * no copy of the Concerts, so traversing the whole store needs constant
+	 * memory.
+	 */
+	public static class Cursor implements Iterator<Concert> {
+		private final Snapshot _snapshot;
+		private long _id;
+
+		Cursor(Snapshot snapshot) {
+			_snapshot = snapshot;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return _id < _snapshot.getVersion();
+		}
+
+		@Override
+		public Concert next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return _snapshot.get(++_id);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package nz.ac.auckland.concert.services;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a resource method whose requests may legitimately stay suspended for
+ * a long time, such as a long poll. Such requests are rate limited like any
+ * other, but don't count against the limit on concurrently processed
+ * requests.
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface LongPoll {
+}
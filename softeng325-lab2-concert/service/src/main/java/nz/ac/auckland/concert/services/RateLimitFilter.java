@@ -0,0 +1,167 @@
+package nz.ac.auckland.concert.services;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.Response;
+
+import nz.ac.auckland.concert.common.Config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admission control for the Concert Web service, applied before a resource
+ * method runs.
+ *
+ * Each client, identified by its clientId cookie, has a TokenBucket held in
+ * its ClientSession. A request takes one token, plus one for every
+ * "concert.ratelimit.pageCost" Concerts requested by a "size" query
+ * parameter, so that large page requests cost more than small ones. A
+ * client that has run out of tokens receives a 429 response. Requests
+ * without a cookie, or whose cookie isn't a client identifier issued by the
+ * service, share a bucket that is striped across several TokenBuckets to
+ * avoid contention; so a client can't escape its limit by sending a new
+ * made-up identifier with each request.
+ *
+ * Independently, at most "concert.concurrency.max" requests are processed
+ * at once. Further requests receive a 503 response. Requests to @LongPoll
+ * methods are exempt from this limit.
+ *
+ * Both rejections include a Retry-After header. The limits are configured
+ * with the following system properties:
+ *
+ * - concert.ratelimit.rate            tokens per second per client (50).
+ * - concert.ratelimit.burst           bucket size per client (100).
+ * - concert.ratelimit.anonymous.rate  tokens per second shared by clients
+ *                                     without a cookie (200).
+ * - concert.ratelimit.pageCost        Concerts per additional token (50).
+ * - concert.concurrency.max           concurrently processed requests (64).
+ *
+ */
+@Priority(Priorities.AUTHORIZATION)
+public class RateLimitFilter implements ContainerRequestFilter,
+		ContainerResponseFilter {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(RateLimitFilter.class);
+
+	// Name of the ClientSession attribute that holds a client's TokenBucket.
+	private static final String BUCKET_ATTRIBUTE = RateLimitFilter.class
+			.getName() + ".bucket";
+
+	// Name of the request property set when a request holds a concurrency
+	// permit.
+	private static final String PERMIT_PROPERTY = RateLimitFilter.class
+			.getName() + ".permit";
+
+	private static final int ANONYMOUS_STRIPES = 8;
+
+	private final double _rate = Double.parseDouble(System.getProperty(
+			"concert.ratelimit.rate", "50"));
+	private final int _burst = Integer.getInteger("concert.ratelimit.burst",
+			100);
+	private final int _pageCost = Math.max(1, Integer.getInteger(
+			"concert.ratelimit.pageCost", 50));
+	private final Semaphore _permits = new Semaphore(Integer.getInteger(
+			"concert.concurrency.max", 64));
+
+	private final TokenBucket[] _anonymous = new TokenBucket[ANONYMOUS_STRIPES];
+
+	private final ClientSessionStore _sessions;
+
+	@Context
+	private ResourceInfo _resourceInfo;
+
+	public RateLimitFilter(ClientSessionStore sessions) {
+		_sessions = sessions;
+
+		double anonymousRate = Double.parseDouble(System.getProperty(
+				"concert.ratelimit.anonymous.rate", "200"));
+		for (int i = 0; i < ANONYMOUS_STRIPES; i++) {
+			_anonymous[i] = new TokenBucket(anonymousRate / ANONYMOUS_STRIPES,
+					Math.max(1, _burst / ANONYMOUS_STRIPES));
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		long now = System.nanoTime();
+
+		long wait = bucket(requestContext).tryTake(cost(requestContext), now);
+		if (wait > 0) {
+			_logger.debug("Rate limit exceeded for "
+					+ requestContext.getUriInfo().getPath());
+			requestContext.abortWith(reject(429, wait));
+			return;
+		}
+
+		if (_resourceInfo.getResourceMethod() != null
+				&& _resourceInfo.getResourceMethod().isAnnotationPresent(
+						LongPoll.class)) {
+			return;
+		}
+		if (!_permits.tryAcquire()) {
+			_logger.debug("Concurrency limit reached");
+			requestContext.abortWith(reject(503, TimeUnit.SECONDS.toNanos(1)));
+			return;
+		}
+		requestContext.setProperty(PERMIT_PROPERTY, Boolean.TRUE);
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext,
+			ContainerResponseContext responseContext) {
+		if (requestContext.getProperty(PERMIT_PROPERTY) != null) {
+			requestContext.removeProperty(PERMIT_PROPERTY);
+			_permits.release();
+		}
+	}
+
+	private TokenBucket bucket(ContainerRequestContext requestContext) {
+		Cookie cookie = requestContext.getCookies().get(Config.CLIENT_COOKIE);
+		ClientSession session = cookie == null ? null : _sessions
+				.find(cookie.getValue());
+
+		if (session == null) {
+			int stripe = (int) (Thread.currentThread().getId() % ANONYMOUS_STRIPES);
+			return _anonymous[stripe];
+		}
+
+		TokenBucket bucket = session.getAttribute(BUCKET_ATTRIBUTE);
+		if (bucket == null) {
+			bucket = session.setAttributeIfAbsent(BUCKET_ATTRIBUTE,
+					new TokenBucket(_rate, _burst));
+		}
+		return bucket;
+	}
+
+	private int cost(ContainerRequestContext requestContext) {
+		String size = requestContext.getUriInfo().getQueryParameters()
+				.getFirst("size");
+		if (size == null) {
+			return 1;
+		}
+		try {
+			return 1 + Math.max(0, Integer.parseInt(size.trim())) / _pageCost;
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	private static Response reject(int status, long waitNanos) {
+		long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos
+				+ TimeUnit.SECONDS.toNanos(1) - 1));
+		return Response.status(status)
+				.header("Retry-After", String.valueOf(seconds)).build();
+	}
+}
@@ -0,0 +1,149 @@
+package nz.ac.auckland.concert.services;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded executor used to process suspended (asynchronous) JAX-RS requests
+ * off the servlet container's request threads.
+ *
+ * A RequestExecutor has a fixed number of threads, a bounded queue of waiting
+ * requests and a timeout after which a suspended request is resumed with a
+ * 503 response. When the queue is full the configured RejectionPolicy
+ * decides whether the request is refused with a 503 response or is run on
+ * the calling (container) thread.
+ *
+ * Each setting can be overridden with a system property named
+ * concert.executor.<name>.<setting>, where setting is one of threads, queue,
+ * timeout (milliseconds) or rejection (REJECT or CALLER_RUNS).
+ *
+ */
+public class RequestExecutor {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(RequestExecutor.class);
+
+	/**
+	 * Behaviour applied when a request can't be queued.
+	 */
+	public enum RejectionPolicy {
+		REJECT, CALLER_RUNS
+	}
+
+	// Number of seconds a client is asked to wait before retrying a request
+	// that was refused or timed out.
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	private final String _name;
+	private final ThreadPoolExecutor _executor;
+	private final long _timeoutMillis;
+	private final RejectionPolicy _rejectionPolicy;
+
+	public RequestExecutor(final String name, int threads, int queueSize,
+			long timeoutMillis, RejectionPolicy rejectionPolicy) {
+		_name = name;
+		_timeoutMillis = timeoutMillis;
+		_rejectionPolicy = rejectionPolicy;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		_executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "concert-" + name + "-"
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+		_executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Creates a RequestExecutor whose settings are read from system
+	 * properties, falling back to the specified defaults.
+	 */
+	public static RequestExecutor fromSystemProperties(String name,
+			int threads, int queueSize, long timeoutMillis,
+			RejectionPolicy rejectionPolicy) {
+		String prefix = "concert.executor." + name + ".";
+		return new RequestExecutor(name,
+				Integer.getInteger(prefix + "threads", threads),
+				Integer.getInteger(prefix + "queue", queueSize),
+				Long.getLong(prefix + "timeout", timeoutMillis),
+				RejectionPolicy.valueOf(System.getProperty(prefix
+						+ "rejection", rejectionPolicy.name())));
+	}
+
+	/**
+	 * Runs task asynchronously and resumes the suspended response with the
+	 * Response it returns, or with any exception it throws.
+	 *
+	 * @param asyncResponse the suspended response of the current request.
+	 *
+	 * @param task the work required to produce the Response.
+	 */
+	public void submit(final AsyncResponse asyncResponse,
+			final Callable<Response> task) {
+		asyncResponse.setTimeout(_timeoutMillis, TimeUnit.MILLISECONDS);
+		asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+			public void handleTimeout(AsyncResponse asyncResponse) {
+				_logger.warn("Request timed out on executor " + _name);
+				asyncResponse.resume(unavailable());
+			}
+		});
+
+		// RESTEasy keeps request context (used, for example, to resolve a
+		// relative Location header) in thread-local storage, so make it
+		// available to the thread that runs the task.
+		final Map<Class<?>, Object> contextData = ResteasyProviderFactory
+				.getContextDataMap();
+
+		Runnable runnable = new Runnable() {
+			public void run() {
+				if (asyncResponse.isDone()) {
+					// Already resumed by the timeout handler.
+					return;
+				}
+				ResteasyProviderFactory.pushContextDataMap(contextData);
+				try {
+					asyncResponse.resume(task.call());
+				} catch (Throwable t) {
+					asyncResponse.resume(t);
+				} finally {
+					ResteasyProviderFactory.removeContextDataLevel();
+				}
+			}
+		};
+
+		try {
+			_executor.execute(runnable);
+		} catch (RejectedExecutionException e) {
+			if (_rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+				runnable.run();
+			} else {
+				_logger.warn("Request rejected by executor " + _name);
+				asyncResponse.resume(unavailable());
+			}
+		}
+	}
+
+	private static Response unavailable() {
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+				.header("Retry-After", RETRY_AFTER_SECONDS).build();
+	}
+}
@@ -0,0 +1,102 @@
+package nz.ac.auckland.concert.services;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of per-resource-method metrics for the Web service.
+ *
+ */
+public class ResourceMetrics {
+
+	/**
+	 * Metrics for a single resource method.
+	 */
+	public static class MethodMetrics {
+		private final String _name;
+
+		// Time from the request being matched to the resource method until
+		// the response is ready to be written, in nanoseconds.
+		final LatencyHistogram _resourceTime = new LatencyHistogram();
+
+		// Time spent writing the response entity, in nanoseconds.
+		final LatencyHistogram _writerTime = new LatencyHistogram();
+
+		final AtomicLong _clientErrors = new AtomicLong();
+		final AtomicLong _serverErrors = new AtomicLong();
+		final AtomicLong _bytesIn = new AtomicLong();
+		final AtomicLong _bytesOut = new AtomicLong();
+
+		MethodMetrics(String name) {
+			_name = name;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		public LatencyHistogram getResourceTime() {
+			return _resourceTime;
+		}
+
+		public LatencyHistogram getWriterTime() {
+			return _writerTime;
+		}
+
+		public long getClientErrors() {
+			return _clientErrors.get();
+		}
+
+		public long getServerErrors() {
+			return _serverErrors.get();
+		}
+
+		public long getBytesIn() {
+			return _bytesIn.get();
+		}
+
+		public long getBytesOut() {
+			return _bytesOut.get();
+		}
+	}
+
+	private final ConcurrentMap<Method, MethodMetrics> _metrics = new ConcurrentHashMap<Method, MethodMetrics>();
+
+	/**
+	 * Returns the MethodMetrics for a resource method, creating them on first
+	 * use.
+	 */
+	public MethodMetrics forMethod(Method method) {
+		MethodMetrics metrics = _metrics.get(method);
+		if (metrics == null) {
+			MethodMetrics created = new MethodMetrics(method
+					.getDeclaringClass().getSimpleName()
+					+ "." + method.getName());
+			metrics = _metrics.putIfAbsent(method, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns all MethodMetrics, ordered by name.
+	 */
+	public List<MethodMetrics> getAll() {
+		List<MethodMetrics> all = new ArrayList<MethodMetrics>(
+				_metrics.values());
+		Collections.sort(all, new Comparator<MethodMetrics>() {
+			public int compare(MethodMetrics a, MethodMetrics b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return all;
+	}
+}
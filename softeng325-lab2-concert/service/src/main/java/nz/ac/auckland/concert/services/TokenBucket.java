@@ -0,0 +1,63 @@
+package nz.ac.auckland.concert.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.
+ *
+ * The bucket is implemented as a generic cell rate algorithm: rather than
+ * counting tokens, it stores a single "theoretical arrival time" (TAT) that
+ * advances by a fixed emission interval for each token taken. A request is
+ * admitted while the TAT stays within the burst allowance of the current
+ * time. Because the whole state is one long, taking tokens is a single
+ * compare-and-set.
+ *
+ */
+public class TokenBucket {
+
+	private final long _intervalNanos;
+	private final long _capacityNanos;
+	private final int _burst;
+	private final AtomicLong _theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Creates a TokenBucket.
+	 *
+	 * @param ratePerSecond the rate at which tokens are replenished.
+	 *
+	 * @param burst the maximum number of tokens the bucket holds.
+	 */
+	public TokenBucket(double ratePerSecond, int burst) {
+		_intervalNanos = Math.max(1, (long) (1000000000L / ratePerSecond));
+		_burst = Math.max(1, burst);
+		_capacityNanos = _intervalNanos * _burst;
+	}
+
+	/**
+	 * Attempts to take tokens from the bucket.
+	 *
+	 * @param tokens the number of tokens required. Requests for more tokens
+	 * than the bucket holds are treated as requests for a full bucket.
+	 *
+	 * @param now the current time, from System.nanoTime().
+	 *
+	 * @return 0 if the tokens were taken, otherwise the number of
+	 * nanoseconds until they would be available.
+	 */
+	public long tryTake(int tokens, long now) {
+		long cost = _intervalNanos * Math.min(Math.max(tokens, 1), _burst);
+		while (true) {
+			long current = _theoreticalArrival.get();
+			long start = current == Long.MIN_VALUE || current - now < 0 ? now
+					: current;
+			long next = start + cost;
+			long excess = next - now - _capacityNanos;
+			if (excess > 0) {
+				return excess;
+			}
+			if (_theoreticalArrival.compareAndSet(current, next)) {
+				return 0;
+			}
+		}
+	}
+}
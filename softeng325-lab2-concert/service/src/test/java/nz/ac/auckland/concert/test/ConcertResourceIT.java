@@ -0,0 +1,1066 @@
+package nz.ac.auckland.concert.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation.Builder;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+
+import nz.ac.auckland.concert.client.ConcertClient;
+import nz.ac.auckland.concert.common.CompressionInterceptor;
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.SerializationMessageBodyReaderAndWriter;
+import nz.ac.auckland.concert.domain.Concert;
+import nz.ac.auckland.concert.domain.ConcertChange;
+import nz.ac.auckland.concert.domain.ImportResult;
+import nz.ac.auckland.concert.services.AccessLog;
+import nz.ac.auckland.concert.services.ClientSessionStore;
+import nz.ac.auckland.concert.services.ConcertResource;
+import nz.ac.auckland.concert.services.ConcertStore;
+import nz.ac.auckland.concert.services.RateLimitFilter;
+import nz.ac.auckland.concert.services.RequestExecutor;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.joda.time.DateTime;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple JUnit test to test the behaviour of the Concert Web service.
+ * 
+ * The test is implemented using the JAX-RS client API.
+ *
+ */
+public class ConcertResourceIT {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ConcertResourceIT.class);
+
+	private static String WEB_SERVICE_URI = "http://localhost:10000/services/concerts";
+
+	private static Client _client;
+
+	// List of Concerts.
+	private static List<Concert> _concerts = new ArrayList<Concert>();
+
+	// List of Concert URIs generated by the Web service. The Concert at 
+	// position i in _concerts has the URI at position i in _concertUris.
+	private static List<String> _concertUris = new ArrayList<String>();
+	
+	// Set of cookie values returned by the Web service.
+	private static Set<String> _cookieValues = new HashSet<String>();
+
+	@BeforeClass
+	public static void createClient() {
+		// Use ClientBuilder to create a new client that can be used to create
+		// connections to the Web service.
+		_client = ClientBuilder.newClient();
+		
+		// Register the Java-serializer with the client-side JAX-RS runtime.
+		_client.register(SerializationMessageBodyReaderAndWriter.class);
+		
+		// Register the compression interceptor, which asks for compressed 
+		// responses and decompresses them transparently.
+		_client.register(CompressionInterceptor.class);
+
+		// Create some Concerts.
+		_concerts.add(new Concert("One Night of Queen", new DateTime(2017, 8,
+				4, 20, 0)));
+		_concerts.add(new Concert("The Selecter and the Beat", new DateTime(
+				2018, 1, 25, 20, 0)));
+		_concerts.add(new Concert("Spend the Night with Alice Cooper",
+				new DateTime(2017, 10, 27, 19, 0)));
+	}
+
+	@AfterClass
+	public static void closeConnection() {
+		// After all tests have run, close the client.
+		_client.close();
+		
+		// After running all tests, only one cookie value should have been 
+		// generated by the Web service, since all requests have been made by 
+		// the same client.
+		assertEquals(1,_cookieValues.size());
+	}
+
+	@Before
+	public void clearAndPopulate() {
+		// Delete all Concerts in the Web service.
+		Builder builder = _client.target(WEB_SERVICE_URI).request();
+		addCookieToInvocation(builder);
+		Response response = builder.delete();
+		processCookieFromResponse(response);
+		response.close();
+
+		// Clear Parolee Uris
+		_concertUris.clear();
+
+		// Populate the Web service with Concerts.
+		for (Concert concert : _concerts) {
+			builder = _client.target(WEB_SERVICE_URI)
+					.request();
+			addCookieToInvocation(builder);
+			response = builder
+					.post(Entity.entity(concert,
+							"application/java-serialization"));
+			processCookieFromResponse(response);
+			String concertUri = response.getLocation().toString();
+			_concertUris.add(concertUri);
+			response.close();
+		}
+	}
+
+	@Test
+	public void testCreate() {
+		Response response = null;
+		
+		// Create a new Concert.
+		Concert concert = new Concert("Blondie", new DateTime(2017, 4, 26, 20,
+				0));
+		
+		try {
+			// Prepare an invocation on the Concert service
+			Builder builder = _client.target(WEB_SERVICE_URI).request();
+			
+			// Add any cookie that's previously been returned by the Web 
+			// service.
+			addCookieToInvocation(builder);
+			
+			// Make the service invocation via a HTTP POST message, and wait 
+			// for the response.
+			response = builder
+				.post(Entity.entity(concert, "application/java-serialization"));
+
+			// Check that the HTTP response code is 201 Created.
+			int responseCode = response.getStatus();
+			assertEquals(201, responseCode);
+
+			// Check that the Location header has been set.
+			URI concertUri = response.getLocation();
+			assertNotNull(concertUri);
+			
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+
+	@Test
+	public void testRetrieve() {
+		Response response = null;
+
+		try {
+			String concertUri = _concertUris.get(_concertUris.size() - 1);
+
+			// Make an invocation on a Concert URI and specify Java-
+			// serialization as the required data format.
+			Builder builder = _client.target(concertUri).request()
+					.accept("application/java-serialization");
+			
+			// Add any cookie that's previously been returned by the Web 
+			// service.
+			addCookieToInvocation(builder);
+
+			// Make the service invocation via a HTTP GET message, and wait for 
+			// the response.
+			response = builder.get();
+			
+			// Check that the HTTP response code is 200 OK.
+			int responseCode = response.getStatus();
+			assertEquals(200, responseCode);
+
+			// Check that the expected Concert is returned.
+			Concert concert = response.readEntity(Concert.class);
+			assertEquals(_concerts.get(_concerts.size() - 1).getTitle(), concert.getTitle());
+
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+
+	@Test
+	public void testRetrieveWithRange() {
+		Response response = null;
+		
+		try {
+			// Prepare an invocation on a Concert URI and specify Java-
+			// serialization as the required data format. Specify values for
+			// query parameters start (2) and size (10).
+			Builder builder = _client.target(WEB_SERVICE_URI + "?start=2&size=10").request()
+					.accept("application/java-serialization");
+						
+			// Add any cookie that's previously been returned by the Web 
+			// service.
+			addCookieToInvocation(builder);
+
+			// Make the service invocation via a HTTP GET message, and wait for 
+			// the response.
+			response = builder.get();
+	
+			// Check that 2 Concerts were returned.
+			ArrayList<Concert> concerts = response
+					.readEntity(new GenericType<ArrayList<Concert>>() {
+				});
+			assertEquals(2, concerts.size());
+			
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+
+	@Test
+	public void testRetrieveWithSnapshot() {
+		Response response = null;
+		
+		try {
+			// Retrieve the first page of Concerts, and the token of the 
+			// snapshot it was read from.
+			Builder builder = _client.target(WEB_SERVICE_URI + "?start=1&size=10").request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			response = builder.get();
+			String snapshot = response.getHeaderString(Config.SNAPSHOT_HEADER);
+			assertNotNull(snapshot);
+			response.close();
+			
+			// Create a new Concert.
+			builder = _client.target(WEB_SERVICE_URI).request();
+			addCookieToInvocation(builder);
+			response = builder.post(Entity.entity(new Concert("Blondie",
+					new DateTime(2017, 4, 26, 20, 0)), "application/java-serialization"));
+			response.close();
+			
+			// Check that reading from the snapshot doesn't include the new 
+			// Concert.
+			builder = _client.target(WEB_SERVICE_URI + "?start=1&size=10&" + Config.SNAPSHOT + "=" + snapshot).request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			response = builder.get();
+			ArrayList<Concert> concerts = response
+					.readEntity(new GenericType<ArrayList<Concert>>() {
+				});
+			assertEquals(_concerts.size(), concerts.size());
+			
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+
+	@Test
+	public void testRetrieveChanges() {
+		Response response = null;
+		
+		try {
+			// Prepare an invocation on the change feed, asking for all 
+			// retained changes without waiting for new ones.
+			Builder builder = _client.target(WEB_SERVICE_URI + "/changes?since=0&timeout=0").request()
+					.accept("application/java-serialization");
+			
+			// Add any cookie that's previously been returned by the Web 
+			// service.
+			addCookieToInvocation(builder);
+
+			// Make the service invocation via a HTTP GET message, and wait for 
+			// the response.
+			response = builder.get();
+			assertEquals(200, response.getStatus());
+			
+			// Check that the most recent change is the creation of the last 
+			// Concert added by clearAndPopulate().
+			ArrayList<ConcertChange> changes = response
+					.readEntity(new GenericType<ArrayList<ConcertChange>>() {
+				});
+			ConcertChange last = changes.get(changes.size() - 1);
+			assertEquals(ConcertChange.Type.CREATED, last.getType());
+			assertEquals(_concerts.get(_concerts.size() - 1).getTitle(), last.getConcert().getTitle());
+			
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+			response.close();
+			
+			// A client polling since a change the feed hasn't reached, as 
+			// after a restart, is told to reload rather than left waiting.
+			builder = _client.target(WEB_SERVICE_URI + "/changes")
+					.queryParam("since", last.getSequence() + 1000)
+					.queryParam("timeout", 5000).request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			long start = System.currentTimeMillis();
+			response = builder.get();
+			assertEquals(410, response.getStatus());
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+
+	@Test
+	public void testExportAndImport() {
+		Response response = null;
+		
+		try {
+			// Export the Concerts as newline-delimited JSON.
+			Builder builder = _client.target(WEB_SERVICE_URI + "/export").request()
+					.accept(Config.NDJSON);
+			addCookieToInvocation(builder);
+			response = builder.get();
+			assertEquals(200, response.getStatus());
+			
+			// Check that there is one line per Concert.
+			String json = response.readEntity(String.class);
+			response.close();
+			assertEquals(_concerts.size(), json.split("\n").length);
+			
+			// Export the Concerts as binary records.
+			builder = _client.target(WEB_SERVICE_URI + "/export").request()
+					.accept(Config.CONCERT_STREAM);
+			addCookieToInvocation(builder);
+			response = builder.get();
+			assertEquals(200, response.getStatus());
+			byte[] binary = response.readEntity(byte[].class);
+			response.close();
+			
+			// Import both exports, and check that each creates one new Concert
+			// per exported Concert.
+			builder = _client.target(WEB_SERVICE_URI + "/import").request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			response = builder.post(Entity.entity(json, Config.NDJSON));
+			assertEquals(200, response.getStatus());
+			ImportResult result = response.readEntity(ImportResult.class);
+			response.close();
+			assertEquals(_concerts.size(), result.getCount());
+			assertEquals(_concerts.size() + 1, (long) result.getFirstId());
+			
+			builder = _client.target(WEB_SERVICE_URI + "/import").request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			response = builder.post(Entity.entity(binary, Config.CONCERT_STREAM));
+			assertEquals(200, response.getStatus());
+			result = response.readEntity(ImportResult.class);
+			assertEquals(_concerts.size(), result.getCount());
+			
+			// Check that an imported Concert can be retrieved.
+			builder = _client.target(WEB_SERVICE_URI + "/" + result.getLastId()).request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			response.close();
+			response = builder.get();
+			Concert concert = response.readEntity(Concert.class);
+			assertEquals(_concerts.get(_concerts.size() - 1).getTitle(), concert.getTitle());
+			
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+
+	@Test
+	public void testExportTimeout() throws InterruptedException {
+		// Run a ConcertResource in-process, with an AsyncResponse that refuses
+		// to be resumed, as it does once the request has timed out.
+		ConcertStore store = new ConcertStore();
+		store.create(_concerts.get(0));
+		ConcertResource resource = new ConcertResource(
+				new ClientSessionStore(), store);
+
+		final CountDownLatch resumed = new CountDownLatch(2);
+		AsyncResponse timedOut = (AsyncResponse) Proxy.newProxyInstance(
+				AsyncResponse.class.getClassLoader(),
+				new Class<?>[] { AsyncResponse.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("resume")) {
+							resumed.countDown();
+							return false;
+						}
+						return method.getReturnType() == boolean.class ? false
+								: null;
+					}
+				});
+		resource.exportConcertsJson(timedOut);
+		resource.exportConcertsBinary(timedOut);
+		assertTrue(resumed.await(10, TimeUnit.SECONDS));
+
+		// The responses were never written, so once the store is cleared no
+		// export should be holding on to its old generation.
+		store.clear();
+		assertEquals(0, store.retainedGenerations());
+	}
+
+	@Test
+	public void testExecutorSaturation() throws Exception {
+		// Run a RequestExecutor in-process, with one thread and room for one 
+		// waiting request, and occupy its thread.
+		RequestExecutor executor = new RequestExecutor("test", 1, 1, 60000,
+				RequestExecutor.RejectionPolicy.REJECT);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		Callable<Response> task = new Callable<Response>() {
+			public Response call() throws InterruptedException {
+				calls.incrementAndGet();
+				release.await();
+				return Response.ok().build();
+			}
+		};
+		AtomicReference<Object> running = new AtomicReference<Object>();
+		executor.submit(asyncResponse(running, new TimeoutHandler[1]), task);
+		AtomicReference<Object> queued = new AtomicReference<Object>();
+		TimeoutHandler[] queuedTimeout = new TimeoutHandler[1];
+		AsyncResponse queuedResponse = asyncResponse(queued, queuedTimeout);
+		executor.submit(queuedResponse, task);
+
+		// The queue is full, so a further request is refused.
+		AtomicReference<Object> rejected = new AtomicReference<Object>();
+		executor.submit(asyncResponse(rejected, new TimeoutHandler[1]), task);
+		assertEquals(503, ((Response) rejected.get()).getStatus());
+		assertEquals("1", ((Response) rejected.get())
+				.getHeaderString("Retry-After"));
+
+		// The waiting request times out.
+		queuedTimeout[0].handleTimeout(queuedResponse);
+		assertEquals(503, ((Response) queued.get()).getStatus());
+		assertEquals("1", ((Response) queued.get())
+				.getHeaderString("Retry-After"));
+
+		// Once the thread is free, the timed-out request is skipped rather 
+		// than run: only the first request and a later one call the task. 
+		// The later request is refused until the queue has been drained.
+		release.countDown();
+		AtomicReference<Object> later = new AtomicReference<Object>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			later.set(null);
+			executor.submit(asyncResponse(later, new TimeoutHandler[1]), task);
+			while (later.get() == null
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			if (((Response) later.get()).getStatus() != 503) {
+				break;
+			}
+		}
+		assertEquals(200, ((Response) running.get()).getStatus());
+		assertEquals(200, ((Response) later.get()).getStatus());
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testAccessLog() throws InterruptedException {
+		// Capture, in this JVM, what an AccessLog writes to the "access" 
+		// logger. The first write holds up the writer until it is released.
+		final BlockingQueue<String> written = new LinkedBlockingQueue<String>();
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		AppenderSkeleton appender = new AppenderSkeleton() {
+			protected void append(LoggingEvent event) {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				written.add(event.getRenderedMessage());
+			}
+
+			public void close() {
+			}
+
+			public boolean requiresLayout() {
+				return false;
+			}
+		};
+		org.apache.log4j.Logger accessLogger = org.apache.log4j.Logger
+				.getLogger("access");
+		Level level = accessLogger.getLevel();
+		boolean additive = accessLogger.getAdditivity();
+		accessLogger.addAppender(appender);
+		accessLogger.setLevel(Level.INFO);
+		accessLogger.setAdditivity(false);
+		try {
+			// A ring buffer of four slots.
+			System.setProperty("access.log.capacity", "4");
+			AccessLog accessLog;
+			try {
+				accessLog = new AccessLog();
+			} finally {
+				System.clearProperty("access.log.capacity");
+			}
+
+			// The idle writer is woken by the first record, and is held up 
+			// writing it.
+			accessLog.record("GET", "/first", 200, 1000, null);
+			assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+			// Four more records fill the buffer, so the next is dropped.
+			accessLog.record("GET", "/second", 200, 1000, null);
+			accessLog.record("GET", "/third", 200, 1000, null);
+			accessLog.record("GET", "/fourth", 200, 1000, null);
+			accessLog.record("GET", "/forged\r\ntime=0 method=GET", 200,
+					1000, null);
+			accessLog.record("GET", "/dropped", 200, 1000, null);
+			assertEquals(1, accessLog.getDropped());
+
+			// Once released, the writer writes the records it holds. The 
+			// encoded CR and LF in a path are escaped, so can't start a line.
+			release.countDown();
+			StringBuilder text = new StringBuilder();
+			while (text.indexOf("/forged") < 0) {
+				String batch = written.poll(10, TimeUnit.SECONDS);
+				assertNotNull(batch);
+				text.append(batch).append('\n');
+			}
+			String[] lines = text.toString().split("\n");
+			assertEquals(5, lines.length);
+			assertTrue(lines[0].contains(" path=/first "));
+			assertTrue(lines[1].contains(" path=/second "));
+			assertTrue(lines[4].contains(
+					" path=/forged\\r\\ntime=0 method=GET status=200 "));
+			assertTrue(text.indexOf("/dropped") < 0);
+		} finally {
+			release.countDown();
+			accessLogger.removeAppender(appender);
+			accessLogger.setLevel(level);
+			accessLogger.setAdditivity(additive);
+		}
+	}
+
+	@Test
+	public void testCompressedImportLimit() throws IOException {
+		// A deflated NDJSON body of blank lines, about 64KB compressed, that 
+		// inflates to more than the default limit of 64MB.
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+			byte[] lines = new byte[1024 * 1024];
+			Arrays.fill(lines, (byte) '\n');
+			for (int i = 0; i < 65; i++) {
+				out.write(lines);
+			}
+		}
+
+		Builder builder = _client.target(WEB_SERVICE_URI + "/import").request()
+				.accept("application/java-serialization");
+		addCookieToInvocation(builder);
+		Response response = builder.post(Entity.entity(
+				compressed.toByteArray(), new Variant(
+						MediaType.valueOf(Config.NDJSON), (String) null,
+						"deflate")));
+		try {
+			assertEquals(413, response.getStatus());
+			processCookieFromResponse(response);
+		} finally {
+			response.close();
+		}
+	}
+
+	@Test
+	public void testAcceptEncodingWildcard() {
+		// Import enough Concerts for an export to pass the compression 
+		// threshold.
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			json.append("{\"title\":\"Concert ").append(i)
+					.append("\",\"date\":\"2017-06-01T20:00:00.000+12:00\"}\n");
+		}
+		Builder builder = _client.target(WEB_SERVICE_URI + "/import").request()
+				.accept("application/java-serialization");
+		addCookieToInvocation(builder);
+		Response response = builder.post(Entity.entity(json.toString(),
+				Config.NDJSON));
+		assertEquals(200, response.getStatus());
+		processCookieFromResponse(response);
+		response.close();
+
+		// "*" stands only for the codings not named, and a coding with a 
+		// quality of 0 is never used. A separate client, without the 
+		// CompressionInterceptor, sees the coding chosen.
+		Client client = ClientBuilder.newClient();
+		try {
+			assertEquals("deflate", exportEncoding(client, "gzip;q=0, *"));
+			assertNull(exportEncoding(client, "gzip;q=0, deflate;q=0, *"));
+			assertEquals("gzip", exportEncoding(client, "deflate;q=0.5, *"));
+		} finally {
+			client.close();
+		}
+	}
+
+	private static String exportEncoding(Client client, String acceptEncoding) {
+		Response response = client.target(WEB_SERVICE_URI + "/export")
+				.request().accept(Config.NDJSON)
+				.header("Accept-Encoding", acceptEncoding).get();
+		try {
+			assertEquals(200, response.getStatus());
+			return response.getHeaderString("Content-Encoding");
+		} finally {
+			response.close();
+		}
+	}
+
+	@Test
+	public void testImportLineLimit() {
+		// An NDJSON record whose title takes it past the 256KB line limit.
+		char[] title = new char[300 * 1024];
+		Arrays.fill(title, 'x');
+		String json = "{\"title\":\"" + new String(title)
+				+ "\",\"date\":\"2017-06-01T20:00:00.000+12:00\"}\n";
+
+		Builder builder = _client.target(WEB_SERVICE_URI + "/import").request()
+				.accept("application/java-serialization");
+		addCookieToInvocation(builder);
+		Response response = builder.post(Entity.entity(json, Config.NDJSON));
+		try {
+			assertEquals(400, response.getStatus());
+			processCookieFromResponse(response);
+		} finally {
+			response.close();
+		}
+	}
+
+	@Test
+	public void testRetrieveCalendarCounts() {
+		Response response = null;
+		
+		try {
+			// Retrieve the number of Concerts per month in 2017.
+			Builder builder = _client.target(WEB_SERVICE_URI + "/calendar/months?from=2017-01&to=2017-12").request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			response = builder.get();
+			assertEquals(200, response.getStatus());
+			
+			// Check that the two 2017 Concerts are counted in their months.
+			Map<String, Long> months = response
+					.readEntity(new GenericType<TreeMap<String, Long>>() {
+				});
+			assertEquals(2, months.size());
+			assertEquals(1, (long) months.get("2017-08"));
+			assertEquals(1, (long) months.get("2017-10"));
+			response.close();
+			
+			// Retrieve the number of Concerts per day of the week, and check 
+			// that all Concerts are counted.
+			builder = _client.target(WEB_SERVICE_URI + "/calendar/weekdays").request()
+					.accept("application/java-serialization");
+			addCookieToInvocation(builder);
+			response = builder.get();
+			Map<String, Long> days = response
+					.readEntity(new GenericType<LinkedHashMap<String, Long>>() {
+				});
+			long total = 0;
+			for (long count : days.values()) {
+				total += count;
+			}
+			assertEquals(7, days.size());
+			assertEquals(_concerts.size(), total);
+			
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+
+	@Test
+	public void testClient() {
+		// The client SDK manages its own connections and cookie.
+		ConcertClient client = new ConcertClient("http://localhost:10000/services");
+		
+		try {
+			// Create Concerts concurrently, so that they're sent as a batch.
+			List<CompletableFuture<Concert>> futures = new ArrayList<CompletableFuture<Concert>>();
+			for (Concert concert : _concerts) {
+				futures.add(client.createConcert(concert));
+			}
+			
+			// Check that each Concert has been assigned its own id, and can be
+			// retrieved - the second time from the client's cache.
+			Set<Long> ids = new HashSet<Long>();
+			for (int i = 0; i < futures.size(); i++) {
+				Concert created = futures.get(i).join();
+				ids.add(created.getId());
+				
+				Concert retrieved = client.retrieveConcert(created.getId()).join();
+				assertEquals(_concerts.get(i).getTitle(), retrieved.getTitle());
+				assertEquals(retrieved, client.retrieveConcert(created.getId()).join());
+			}
+			assertEquals(_concerts.size(), ids.size());
+			assertNotNull(client.getClientId());
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testUnknownClientId() {
+		// A clientId that wasn't issued by the Web service is replaced with a
+		// new one. A separate client is used, so that the cookies held by 
+		// _client aren't sent, and the new cookie isn't recorded.
+		Client client = ClientBuilder.newClient();
+		client.register(SerializationMessageBodyReaderAndWriter.class);
+		Response response = client.target(_concertUris.get(0)).request()
+				.accept("application/java-serialization")
+				.cookie(Config.CLIENT_COOKIE, "made-up").get();
+		try {
+			assertEquals(200, response.getStatus());
+			NewCookie cookie = response.getCookies().get(Config.CLIENT_COOKIE);
+			assertNotNull(cookie);
+			assertNotEquals("made-up", cookie.getValue());
+		} finally {
+			response.close();
+			client.close();
+		}
+	}
+
+	@Test
+	public void testLazySessions() {
+		// Issuing an identifier doesn't create a session; presenting it does.
+		// Once the store is full, no further identifiers are issued, but an 
+		// identifier that was issued earlier is still recognised.
+		System.setProperty("concert.sessions.max", "1");
+		ClientSessionStore sessions;
+		try {
+			sessions = new ClientSessionStore();
+		} finally {
+			System.clearProperty("concert.sessions.max");
+		}
+
+		String first = sessions.issue();
+		String second = sessions.issue();
+		assertNotNull(first);
+		assertNotNull(second);
+		assertEquals(0, sessions.size());
+
+		assertNull(sessions.find("made-up"));
+		assertNull(sessions.find(first.substring(0, first.length() - 1)
+				+ (first.endsWith("A") ? "B" : "A")));
+		assertEquals(0, sessions.size());
+
+		assertNotNull(sessions.find(first));
+		assertEquals(1, sessions.size());
+		assertNull(sessions.issue());
+
+		assertNull(sessions.find(second));
+		assertTrue(sessions.isIssued(second));
+		assertNotNull(sessions.find(first));
+		assertEquals(1, sessions.size());
+	}
+
+	@Test
+	public void testRateLimit() {
+		// A separate client, so that _client's bucket isn't drained and the 
+		// new cookie isn't recorded.
+		Client client = ClientBuilder.newClient();
+		client.register(SerializationMessageBodyReaderAndWriter.class);
+		try {
+			Response response = client.target(WEB_SERVICE_URI)
+					.queryParam("size", 1).request()
+					.accept("application/java-serialization").get();
+			String clientId = response.getCookies().get(Config.CLIENT_COOKIE)
+					.getValue();
+			response.close();
+
+			// A request for a page of many Concerts costs a whole bucket, so 
+			// the second of two in quick succession is rejected.
+			response = client.target(WEB_SERVICE_URI)
+					.queryParam("size", 100000).request()
+					.accept("application/java-serialization")
+					.cookie(Config.CLIENT_COOKIE, clientId).get();
+			assertNotEquals(429, response.getStatus());
+			response.close();
+			response = client.target(WEB_SERVICE_URI)
+					.queryParam("size", 100000).request()
+					.accept("application/java-serialization")
+					.cookie(Config.CLIENT_COOKIE, clientId).get();
+			try {
+				assertEquals(429, response.getStatus());
+				assertTrue(Integer.parseInt(response
+						.getHeaderString("Retry-After")) >= 1);
+			} finally {
+				response.close();
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		// Run a RateLimitFilter in-process, allowing one request at a time.
+		System.setProperty("concert.concurrency.max", "1");
+		RateLimitFilter filter;
+		try {
+			filter = new RateLimitFilter(new ClientSessionStore());
+		} finally {
+			System.clearProperty("concert.concurrency.max");
+		}
+		Method retrieveConcerts = null;
+		for (Method method : ConcertResource.class.getMethods()) {
+			if (method.getName().equals("retrieveConcerts")) {
+				retrieveConcerts = method;
+			}
+		}
+		final Method resourceMethod = retrieveConcerts;
+		Field resourceInfo = RateLimitFilter.class
+				.getDeclaredField("_resourceInfo");
+		resourceInfo.setAccessible(true);
+		resourceInfo.set(filter, Proxy.newProxyInstance(
+				ResourceInfo.class.getClassLoader(),
+				new Class<?>[] { ResourceInfo.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return method.getName().equals("getResourceMethod")
+								? resourceMethod : null;
+					}
+				}));
+
+		Response[] aborted = new Response[1];
+		ContainerRequestContext first = requestContext(aborted);
+		filter.filter(first);
+		assertNull(aborted[0]);
+
+		// A second request, while the first is being processed, is rejected.
+		filter.filter(requestContext(aborted));
+		assertNotNull(aborted[0]);
+		assertEquals(503, aborted[0].getStatus());
+		assertEquals("1", aborted[0].getHeaderString("Retry-After"));
+
+		// Once the first has completed, another is admitted.
+		filter.filter(first, null);
+		aborted[0] = null;
+		filter.filter(requestContext(aborted));
+		assertNull(aborted[0]);
+	}
+
+	@Test
+	public void testMetrics() {
+		// Retrieving a Concert is counted, and its latency and size recorded, 
+		// under ConcertResource.retrieveConcert.
+		String metricsUri = "http://localhost:10000/services/metrics";
+		String method = "ConcertResource.retrieveConcert";
+		String before = _client.target(metricsUri).request()
+				.accept("text/plain").get(String.class);
+
+		Builder builder = _client.target(_concertUris.get(0)).request()
+				.accept("application/java-serialization");
+		addCookieToInvocation(builder);
+		Response response = builder.get();
+		try {
+			assertEquals(200, response.getStatus());
+			response.readEntity(Concert.class);
+			processCookieFromResponse(response);
+		} finally {
+			response.close();
+		}
+
+		String after = _client.target(metricsUri).request()
+				.accept("text/plain").get(String.class);
+		_logger.info("Metrics: " + after);
+		assertEquals(metric(before, method, "requests") + 1,
+				metric(after, method, "requests"));
+		assertTrue(metric(after, method, "bytes_out") > metric(before,
+				method, "bytes_out"));
+		assertTrue(metric(after, method, "resource_max_us") > 0);
+		assertTrue(metric(after, method, "resource_max_us") >= metric(before,
+				method, "resource_max_us"));
+	}
+
+	@Test
+	public void testDelete() {
+		Response response = null;
+		
+		try {
+			// Prepare an invocation on the Concert Web service.
+			Builder builder = _client.target(WEB_SERVICE_URI).request();
+								
+			// Add any cookie that's previously been returned by the Web 
+			// service.
+			addCookieToInvocation(builder);
+
+			// Make the service invocation via a HTTP DELETE message, and wait 
+			// for the response.
+			response = builder.delete();
+
+			// Check that the HTTP response code is 204 No content.
+			int status = response.getStatus();
+			assertEquals(204, status);
+			
+			// Store any cookie returned in the HTTP response message.
+			processCookieFromResponse(response);
+		} finally {
+			// Close the Response object.
+			response.close();
+		}
+	}
+	
+	// Method to read a field of a resource method's line in the report 
+	// written by MetricsResource, or 0 if the method has no line yet.
+	private static long metric(String report, String method, String field) {
+		for (String line : report.split("\n")) {
+			if (line.startsWith(method + " ")) {
+				for (String pair : line.split(" ")) {
+					if (pair.startsWith(field + "=")) {
+						return Long.parseLong(pair.substring(field
+								.length() + 1));
+					}
+				}
+			}
+		}
+		return 0;
+	}
+
+	// Method to create an in-process AsyncResponse. The first value it is 
+	// resumed with is stored in resumed, and its TimeoutHandler in 
+	// timeoutHandler[0].
+	private static AsyncResponse asyncResponse(
+			final AtomicReference<Object> resumed,
+			final TimeoutHandler[] timeoutHandler) {
+		return (AsyncResponse) Proxy.newProxyInstance(
+				AsyncResponse.class.getClassLoader(),
+				new Class<?>[] { AsyncResponse.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("resume")) {
+							return resumed.compareAndSet(null, args[0]);
+						} else if (name.equals("isDone")) {
+							return resumed.get() != null;
+						} else if (name.equals("setTimeoutHandler")) {
+							timeoutHandler[0] = (TimeoutHandler) args[0];
+						}
+						return method.getReturnType() == boolean.class ? true
+								: null;
+					}
+				});
+	}
+
+	// Method to create an in-process ContainerRequestContext for a request 
+	// without cookies or query parameters. A Response passed to abortWith() 
+	// is stored in aborted[0].
+	private static ContainerRequestContext requestContext(
+			final Response[] aborted) {
+		final Map<String, Object> properties = new HashMap<String, Object>();
+		final UriInfo uriInfo = (UriInfo) Proxy.newProxyInstance(
+				UriInfo.class.getClassLoader(), new Class<?>[] { UriInfo.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getQueryParameters")) {
+							return new MultivaluedHashMap<String, String>();
+						}
+						return method.getName().equals("getPath") ? "concerts"
+								: null;
+					}
+				});
+		return (ContainerRequestContext) Proxy.newProxyInstance(
+				ContainerRequestContext.class.getClassLoader(),
+				new Class<?>[] { ContainerRequestContext.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getCookies")) {
+							return new HashMap<String, Cookie>();
+						} else if (name.equals("getUriInfo")) {
+							return uriInfo;
+						} else if (name.equals("abortWith")) {
+							aborted[0] = (Response) args[0];
+						} else if (name.equals("setProperty")) {
+							properties.put((String) args[0], args[1]);
+						} else if (name.equals("getProperty")) {
+							return properties.get(args[0]);
+						} else if (name.equals("removeProperty")) {
+							properties.remove(args[0]);
+						}
+						return null;
+					}
+				});
+	}
+
+	// Method to add any cookie previously returned from the Web service to an
+	// Invocation.Builder instance.
+	private void addCookieToInvocation(Builder builder) {
+		if(!_cookieValues.isEmpty()) {
+			builder.cookie(Config.CLIENT_COOKIE, _cookieValues.iterator().next());
+		}
+	}
+	
+	// Method to extract any cookie from a Response object received from the 
+	// Web service. If there is a cookie named clientId (Config.CLIENT_COOKIE)
+	// it is added to the _cookieValues set, which stores all cookie values for
+	// clientId received by the Web service.
+	private void processCookieFromResponse(Response response) {
+		Map<String, NewCookie> cookies = response.getCookies();
+		
+		if(cookies.containsKey(Config.CLIENT_COOKIE)) {
+			String cookieValue = cookies.get(Config.CLIENT_COOKIE).getValue();
+			_cookieValues.add(cookieValue);
+		}
+	}
+}
\ No newline at end of file
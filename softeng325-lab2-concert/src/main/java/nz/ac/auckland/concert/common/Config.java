@@ -1,12 +0,0 @@
-package nz.ac.auckland.concert.common;
-
-/**
- * Class with shared configuration data for the client and Web service.
- *
- */
-public class Config {
-	/**
-	 * Name of a cookie exchanged by clients and the Web service.
-	 */
-	public static final String CLIENT_COOKIE = "clientId";
-}
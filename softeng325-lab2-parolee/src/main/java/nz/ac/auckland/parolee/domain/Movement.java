@@ -0,0 +1,42 @@
+package nz.ac.auckland.parolee.domain;
+
+import org.joda.time.DateTime;
+
+/**
+ * Class to represent a Movement of a Parolee: where the Parolee was at a
+ * point in time, as reported by a GPS tracker or a check-in.
+ *
+ * Positions are held to 7 decimal places of a degree (about 1cm), and
+ * timestamps to the millisecond. Like Parolee, a Movement is immutable.
+ *
+ */
+public class Movement {
+	private final DateTime _timestamp;
+	private final double _latitude;
+	private final double _longitude;
+	private final MovementType _type;
+
+	public Movement(DateTime timestamp, double latitude, double longitude,
+			MovementType type) {
+		_timestamp = timestamp;
+		_latitude = latitude;
+		_longitude = longitude;
+		_type = type;
+	}
+
+	public DateTime getTimestamp() {
+		return _timestamp;
+	}
+
+	public double getLatitude() {
+		return _latitude;
+	}
+
+	public double getLongitude() {
+		return _longitude;
+	}
+
+	public MovementType getType() {
+		return _type;
+	}
+}
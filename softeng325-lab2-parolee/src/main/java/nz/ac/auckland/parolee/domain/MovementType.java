@@ -0,0 +1,25 @@
+package nz.ac.auckland.parolee.domain;
+
+/**
+ * Simple enumeration for representing the kind of a Movement: a position
+ * reported by a GPS tracker, or a check-in made by the parolee.
+ *
+ */
+public enum MovementType {
+	GPS, CHECK_IN;
+	
+	/**
+	 * Creates a MovementType value from a text string.
+	 * 
+	 */
+	public static MovementType fromString(String text) {
+		if (text != null) {
+			for (MovementType t : MovementType.values()) {
+				if (text.equalsIgnoreCase(t.toString())) {
+					return t;
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -4,55 +4,70 @@ import org.joda.time.DateTime;
 
 /**
  * Class to represent a Parolee.
- * 
- * A Parolee is simply represented by a unique id, a name, gender and date of 
- * birth.
+ *
+ * A Parolee is simply represented by a unique id, a name, gender and date of
+ * birth. Parolees are immutable: a change to a Parolee is made by storing a
+ * new Parolee in its place, with a new version. Because a Parolee can't
+ * change once constructed, it can be shared between threads freely and a
+ * reader always sees a consistent record.
  *
  */
 public class Parolee {
-	private long _id;
-	private String _lastname;
-	private String _firstname;
-	private Gender _gender;
-	private DateTime _dateOfBirth;
-	
+	private final long _id;
+	private final long _version;
+	private final String _lastname;
+	private final String _firstname;
+	private final Gender _gender;
+	private final DateTime _dateOfBirth;
+
+	public Parolee(long id, long version, String lastname, String firstname,
+			Gender gender, DateTime dateOfBirth) {
+		_id = id;
+		_version = version;
+		_lastname = lastname;
+		_firstname = firstname;
+		_gender = gender;
+		_dateOfBirth = dateOfBirth;
+	}
+
+	public Parolee(String lastname, String firstname, Gender gender,
+			DateTime dateOfBirth) {
+		this(0, 0, lastname, firstname, gender, dateOfBirth);
+	}
+
+	/**
+	 * Returns a copy of this Parolee with the specified id and version.
+	 */
+	public Parolee withIdentity(long id, long version) {
+		return new Parolee(id, version, _lastname, _firstname, _gender,
+				_dateOfBirth);
+	}
+
 	public long getId() {
 		return _id;
 	}
-	
-	public void setId(long id) {
-		_id = id;
+
+	/**
+	 * Returns the version of this Parolee, which changes whenever the Parolee
+	 * is updated. 0 means the Parolee hasn't been stored.
+	 */
+	public long getVersion() {
+		return _version;
 	}
-	
+
 	public String getLastname() {
 		return _lastname;
 	}
-	
-	public void setLastname(String lastname) {
-		_lastname = lastname;
-	}
-	
+
 	public String getFirstname() {
 		return _firstname;
 	}
-	
-	public void setFirstname(String firstname) {
-		_firstname = firstname;
-	}
-	
+
 	public Gender getGender() {
 		return _gender;
 	}
-	
-	public void setGender(Gender gender) {
-		_gender = gender;
-	}
-	
+
 	public DateTime getDateOfBirth() {
 		return _dateOfBirth;
 	}
-	
-	public void setDateOfBirth(DateTime dateOfBirth) {
-		_dateOfBirth = dateOfBirth;
-	}
-}
\ No newline at end of file
+}
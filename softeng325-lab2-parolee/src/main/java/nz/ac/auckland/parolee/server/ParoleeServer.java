@@ -0,0 +1,210 @@
+package nz.ac.auckland.parolee.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nz.ac.auckland.parolee.services.ParoleeApplication;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.jboss.resteasy.plugins.server.servlet.HttpServlet30Dispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Standalone launcher for the Parolee Web service. ParoleeServer runs an
+ * embedded Jetty server with ParoleeApplication deployed directly, rather
+ * than by deploying and scanning a WAR file.
+ *
+ * The server is configured with the following system properties:
+ *
+ * - server.port               HTTP port (default 10000).
+ * - server.acceptors          Number of acceptor threads (default: Jetty's
+ *                             choice, based on the number of CPUs).
+ * - server.selectors          Number of selector threads (default: Jetty's
+ *                             choice, based on the number of CPUs).
+ * - server.threads.min        Minimum request threads (default 8).
+ * - server.threads.max        Maximum request threads (default 200).
+ * - server.threads.idle       Idle thread timeout, in ms (default 60000).
+ * - server.queue              Capacity of the queue of jobs waiting for a
+ *                             request thread (default 1024).
+ * - server.idleTimeout        Connection idle timeout, in ms (default 30000).
+ * - server.virtualThreads     When true, and the JDK supports them, run
+ *                             requests on virtual threads instead of a
+ *                             pooled thread (default false).
+ *
+ * The launcher logs how long the server took to start and, when the first
+ * request arrives, the time to first request measured from JVM start.
+ *
+ * Run with: mvn compile exec:java
+ *
+ */
+public class ParoleeServer {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ParoleeServer.class);
+
+	private static final String SERVICES_PATH = "/services";
+
+	public static void main(String[] args) throws Exception {
+		long launched = System.currentTimeMillis();
+
+		Server server = new Server(createThreadPool());
+
+		HttpConfiguration httpConfiguration = new HttpConfiguration();
+		httpConfiguration.setSendServerVersion(false);
+		ServerConnector connector = new ServerConnector(server,
+				Integer.getInteger("server.acceptors", -1),
+				Integer.getInteger("server.selectors", -1),
+				new HttpConnectionFactory(httpConfiguration));
+		connector.setPort(Integer.getInteger("server.port", 10000));
+		connector.setIdleTimeout(Long.getLong("server.idleTimeout", 30000));
+		server.addConnector(connector);
+
+		// Deploy the JAX-RS application directly with RESTEasy's servlet 3.0
+		// dispatcher, which supports suspended requests.
+		ServletContextHandler context = new ServletContextHandler(
+				ServletContextHandler.NO_SESSIONS);
+		context.setContextPath("/");
+		ServletHolder holder = new ServletHolder(new HttpServlet30Dispatcher());
+		holder.setInitParameter("javax.ws.rs.Application",
+				ParoleeApplication.class.getName());
+		holder.setInitParameter("resteasy.servlet.mapping.prefix",
+				SERVICES_PATH);
+		holder.setAsyncSupported(true);
+		holder.setInitOrder(0);
+		context.addServlet(holder, SERVICES_PATH + "/*");
+
+		server.setHandler(new FirstRequestTimer(context));
+		server.setStopAtShutdown(true);
+		server.start();
+
+		_logger.info("Parolee service listening on port "
+				+ connector.getLocalPort() + ", started in "
+				+ (System.currentTimeMillis() - launched) + " ms ("
+				+ (System.currentTimeMillis() - jvmStartTime())
+				+ " ms since JVM start).");
+		server.join();
+	}
+
+	/**
+	 * Creates the server's ThreadPool: virtual threads when requested and
+	 * available, otherwise a bounded QueuedThreadPool.
+	 */
+	private static ThreadPool createThreadPool() {
+		if (Boolean.getBoolean("server.virtualThreads")) {
+			try {
+				ExecutorService executor = (ExecutorService) Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor").invoke(
+								null);
+				_logger.info("Running requests on virtual threads.");
+				return new VirtualThreadPool(executor);
+			} catch (ReflectiveOperationException e) {
+				_logger.warn("Virtual threads aren't supported by this JDK; using a thread pool.");
+			}
+		}
+
+		QueuedThreadPool threadPool = new QueuedThreadPool(
+				Integer.getInteger("server.threads.max", 200),
+				Integer.getInteger("server.threads.min", 8),
+				Integer.getInteger("server.threads.idle", 60000),
+				new ArrayBlockingQueue<Runnable>(Integer.getInteger(
+						"server.queue", 1024)));
+		threadPool.setName("parolee-http");
+		return threadPool;
+	}
+
+	private static long jvmStartTime() {
+		return ManagementFactory.getRuntimeMXBean().getStartTime();
+	}
+
+	/**
+	 * Handler that logs the time to first request: the time between the JVM
+	 * starting and the first request being received.
+	 */
+	private static class FirstRequestTimer extends HandlerWrapper {
+		private final AtomicBoolean _seen = new AtomicBoolean();
+
+		FirstRequestTimer(Handler handler) {
+			setHandler(handler);
+		}
+
+		@Override
+		public void handle(String target, Request baseRequest,
+				HttpServletRequest request, HttpServletResponse response)
+				throws IOException, ServletException {
+			if (!_seen.get() && _seen.compareAndSet(false, true)) {
+				_logger.info("Time to first request: "
+						+ (System.currentTimeMillis() - jvmStartTime())
+						+ " ms since JVM start.");
+			}
+			super.handle(target, baseRequest, request, response);
+		}
+	}
+
+	/**
+	 * Jetty ThreadPool that runs every job on its own virtual thread. The
+	 * pool is a LifeCycle, so the Server stops it - shutting down the
+	 * executor - when it is stopped, and join() then returns once the 
+	 * running jobs have finished.
+	 */
+	private static class VirtualThreadPool extends AbstractLifeCycle implements
+			ThreadPool {
+		private final ExecutorService _executor;
+
+		VirtualThreadPool(ExecutorService executor) {
+			_executor = executor;
+		}
+
+		@Override
+		protected void doStop() throws Exception {
+			_executor.shutdown();
+			super.doStop();
+		}
+
+		@Override
+		public void execute(Runnable job) {
+			_executor.execute(job);
+		}
+
+		@Override
+		public void join() throws InterruptedException {
+			_executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int getThreads() {
+			return 0;
+		}
+
+		@Override
+		public int getIdleThreads() {
+			return 0;
+		}
+
+		@Override
+		public boolean isLowOnThreads() {
+			// Virtual threads are created on demand.
+			return false;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package nz.ac.auckland.parolee.services;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous access log, holding one record per request.
+ *
+ * Request threads write records into a fixed-size ring buffer of
+ * preallocated slots; claiming a slot is a single compare-and-set, and
+ * nothing is allocated or formatted on the request thread. A background
+ * writer thread drains the buffer and writes each batch of records to the
+ * "access" logger in one call. When the buffer is full, records are dropped
+ * rather than blocking the request, and the writer periodically logs how
+ * many were dropped.
+ *
+ * When the buffer is empty the writer parks until a request thread
+ * publishes a record and unparks it, so an idle service doesn't wake the
+ * writer at all. Request threads only unpark the writer when it has said
+ * it is idle, so a busy writer costs them a volatile read.
+ *
+ * The path and client identifier come from the request, so the writer
+ * escapes any control characters in them (and backslashes, so that escapes
+ * are unambiguous). An encoded CR or LF in a path therefore can't start a
+ * forged line in the log.
+ *
+ * The buffer's capacity can be set with the system property
+ * access.log.capacity (rounded up to a power of two).
+ *
+ * This class is the same as the Concert service's AccessLog. The two
+ * services are separate Maven builds with no shared module, so each
+ * carries its own copy.
+ *
+ */
+public class AccessLog {
+
+	private static Logger _accessLogger = LoggerFactory.getLogger("access");
+	private static Logger _logger = LoggerFactory.getLogger(AccessLog.class);
+
+	// Maximum number of records written per logger call.
+	private static final int MAX_BATCH = 256;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// Interval between reports of dropped records.
+	private static final long DROP_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS
+			.toNanos(10);
+
+	/**
+	 * A slot in the ring buffer.
+	 */
+	private static class Slot {
+		// Sequence number of the record the slot holds, set after the record
+		// is complete.
+		volatile long _published = -1;
+
+		long _timestamp;
+		String _method;
+		String _path;
+		int _status;
+		long _durationNanos;
+		String _clientId;
+	}
+
+	private final Slot[] _slots;
+	private final int _mask;
+
+	// Sequence number of the next record to be claimed by a request thread.
+	private final AtomicLong _claimed = new AtomicLong();
+
+	// Sequence number of the next record to be written by the writer.
+	private volatile long _consumed;
+
+	private final AtomicLong _dropped = new AtomicLong();
+
+	private final Thread _writer;
+
+	// Set by the writer before it parks on an empty buffer.
+	private volatile boolean _idle;
+
+	public AccessLog() {
+		int capacity = Integer.highestOneBit(Math.max(2,
+				Integer.getInteger("access.log.capacity", 8192) - 1)) << 1;
+		_slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			_slots[i] = new Slot();
+		}
+		_mask = capacity - 1;
+
+		_writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "access-log-writer");
+		_writer.setDaemon(true);
+		_writer.start();
+	}
+
+	/**
+	 * Records a completed request. Never blocks.
+	 *
+	 * @param method the HTTP method.
+	 *
+	 * @param path the request path.
+	 *
+	 * @param status the response status code.
+	 *
+	 * @param durationNanos the time taken to process the request.
+	 *
+	 * @param clientId the client identifier, or null.
+	 */
+	public void record(String method, String path, int status,
+			long durationNanos, String clientId) {
+		long sequence;
+		do {
+			sequence = _claimed.get();
+			if (sequence - _consumed >= _slots.length) {
+				_dropped.incrementAndGet();
+				return;
+			}
+		} while (!_claimed.compareAndSet(sequence, sequence + 1));
+
+		Slot slot = _slots[(int) sequence & _mask];
+		slot._timestamp = System.currentTimeMillis();
+		slot._method = method;
+		slot._path = path;
+		slot._status = status;
+		slot._durationNanos = durationNanos;
+		slot._clientId = clientId;
+		slot._published = sequence;
+
+		if (_idle) {
+			LockSupport.unpark(_writer);
+		}
+	}
+
+	/**
+	 * Returns the number of records dropped because the buffer was full.
+	 */
+	public long getDropped() {
+		return _dropped.get();
+	}
+
+	/**
+	 * Returns true for roughly one call in every rate. Used to sample
+	 * high-volume debug output, such as per-item logging.
+	 */
+	public static boolean sample(int rate) {
+		return ThreadLocalRandom.current().nextInt(rate) == 0;
+	}
+
+	private void write() {
+		StringBuilder batch = new StringBuilder(MAX_BATCH * 96);
+		long lastDropReport = System.nanoTime();
+		long reportedDrops = 0;
+
+		while (true) {
+			long next = _consumed;
+			int count = 0;
+			batch.setLength(0);
+
+			while (count < MAX_BATCH) {
+				Slot slot = _slots[(int) next & _mask];
+				if (slot._published != next) {
+					break;
+				}
+				if (count > 0) {
+					batch.append('\n');
+				}
+				format(slot, batch);
+
+				// Release references held by the slot before handing it back.
+				slot._method = null;
+				slot._path = null;
+				slot._clientId = null;
+				next++;
+				count++;
+			}
+			_consumed = next;
+
+			if (count > 0) {
+				_accessLogger.info(batch.toString());
+			} else {
+				// Say the writer is idle, then check the buffer again: a
+				// record published in between would otherwise not unpark it.
+				// While drops are unreported, wake up to report them.
+				_idle = true;
+				if (_slots[(int) next & _mask]._published != next) {
+					if (_dropped.get() != reportedDrops) {
+						LockSupport.parkNanos(this, DROP_REPORT_INTERVAL_NANOS);
+					} else {
+						LockSupport.park(this);
+					}
+				}
+				_idle = false;
+			}
+
+			long now = System.nanoTime();
+			if (now - lastDropReport >= DROP_REPORT_INTERVAL_NANOS) {
+				long dropped = _dropped.get();
+				if (dropped != reportedDrops) {
+					_logger.warn("Access log buffer full: dropped "
+							+ (dropped - reportedDrops) + " records ("
+							+ dropped + " in total).");
+					reportedDrops = dropped;
+				}
+				lastDropReport = now;
+			}
+		}
+	}
+
+	private static void format(Slot slot, StringBuilder builder) {
+		builder.append("time=").append(slot._timestamp);
+		builder.append(" method=").append(slot._method);
+		builder.append(" path=");
+		appendEscaped(builder, slot._path);
+		builder.append(" status=").append(slot._status);
+		builder.append(" duration_us=").append(
+				TimeUnit.NANOSECONDS.toMicros(slot._durationNanos));
+		if (slot._clientId != null) {
+			builder.append(" client=");
+			appendEscaped(builder, slot._clientId);
+		}
+	}
+
+	/**
+	 * Appends text with backslashes and control characters escaped, as in a
+	 * Java string literal: CR, LF and tab as \r, \n and \t, and others as a
+	 * backslash, "u" and four hex digits.
+	 */
+	private static void appendEscaped(StringBuilder builder, String text) {
+		if (text == null) {
+			builder.append("null");
+			return;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				builder.append("\\\\");
+			} else if (c == '\r') {
+				builder.append("\\r");
+			} else if (c == '\n') {
+				builder.append("\\n");
+			} else if (c == '\t') {
+				builder.append("\\t");
+			} else if (Character.isISOControl(c) || c == '\u2028'
+					|| c == '\u2029') {
+				builder.append("\\u").append(HEX[(c >> 12) & 0xf])
+						.append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf])
+						.append(HEX[c & 0xf]);
+			} else {
+				builder.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package nz.ac.auckland.parolee.services;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+
+/**
+ * Filter that adds a record to the AccessLog for every request.
+ *
+ * It is a copy of the Concert service's AccessLogFilter, except that it
+ * records no client identifier, as this service doesn't issue them.
+ *
+ */
+@PreMatching
+@Priority(Priorities.AUTHENTICATION)
+public class AccessLogFilter implements ContainerRequestFilter,
+		ContainerResponseFilter {
+
+	private static final String START_PROPERTY = AccessLogFilter.class
+			.getName() + ".start";
+
+	private final AccessLog _accessLog;
+
+	public AccessLogFilter(AccessLog accessLog) {
+		_accessLog = accessLog;
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		requestContext.setProperty(START_PROPERTY, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext,
+			ContainerResponseContext responseContext) {
+		Long start = (Long) requestContext.getProperty(START_PROPERTY);
+		long duration = start == null ? 0 : System.nanoTime() - start;
+
+		_accessLog.record(requestContext.getMethod(), requestContext
+				.getUriInfo().getPath(), responseContext.getStatus(),
+				duration, null);
+	}
+}
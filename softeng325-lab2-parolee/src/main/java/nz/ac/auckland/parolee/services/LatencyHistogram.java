@@ -0,0 +1,100 @@
+package nz.ac.auckland.parolee.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of non-negative long values, typically latencies in
+ * nanoseconds.
+ *
+ * Values are counted in log-linear buckets in the style of an HDR histogram:
+ * each power of two is divided into 16 equal sub-buckets, so any recorded
+ * value is reported to within 1/16 (about 6%) of its true value, across the
+ * whole range of a long. Recording a value is a few arithmetic operations
+ * and an atomic increment, and allocates nothing.
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS
+			+ SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		_counts.incrementAndGet(index(value));
+		_count.incrementAndGet();
+		_sum.addAndGet(value);
+
+		long max = _max.get();
+		while (value > max && !_max.compareAndSet(max, value)) {
+			max = _max.get();
+		}
+	}
+
+	public long getCount() {
+		return _count.get();
+	}
+
+	public long getMax() {
+		return _max.get();
+	}
+
+	public double getMean() {
+		long count = _count.get();
+		return count == 0 ? 0 : (double) _sum.get() / count;
+	}
+
+	/**
+	 * Returns an estimate of the value at the given percentile, or 0 if no
+	 * values have been recorded.
+	 *
+	 * @param percentile a percentile between 0 and 100.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += _counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += _counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), _max.get());
+			}
+		}
+		return _max.get();
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		int shift = (64 - Long.numberOfLeadingZeros(value))
+				- (SUB_BUCKET_BITS + 1);
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long upperBound(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long mantissa = index - shift * SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,201 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import nz.ac.auckland.parolee.services.ResourceMetrics.MethodMetrics;
+
+/**
+ * Filter and interceptor that record ResourceMetrics for each request: the
+ * time spent in the resource method, the time spent writing the response
+ * entity with a MessageBodyWriter, the size of the request and response
+ * entities and the number of error responses.
+ *
+ * The request size is taken from the Content-Length header, so requests
+ * sent with chunked encoding aren't counted.
+ *
+ * MetricsFilter runs for every request, so it avoids allocating: the start
+ * time and the count of bytes written are kept in a RequestMetrics object
+ * that is taken from a small pool when the request arrives and returned
+ * when the response is complete. If the pool is empty, or a response is
+ * abandoned before its entity is written, a RequestMetrics is simply
+ * allocated or left to the garbage collector.
+ *
+ * This class, ResourceMetrics, LatencyHistogram and MetricsResource are
+ * the same as those of the Concert service. The two services are separate
+ * Maven builds with no shared module, so each carries its own copy.
+ *
+ */
+@Priority(Priorities.AUTHENTICATION)
+public class MetricsFilter implements ContainerRequestFilter,
+		ContainerResponseFilter, WriterInterceptor {
+
+	private static final String METRICS_PROPERTY = MetricsFilter.class
+			.getName() + ".metrics";
+
+	// Number of RequestMetrics kept for reuse, and the number of slots
+	// probed when taking or returning one.
+	private static final int POOL_SIZE = 64;
+	private static final int POOL_PROBES = 4;
+
+	private final ResourceMetrics _metrics;
+
+	private final AtomicReferenceArray<RequestMetrics> _pool =
+			new AtomicReferenceArray<RequestMetrics>(POOL_SIZE);
+
+	@Context
+	private ResourceInfo _resourceInfo;
+
+	public MetricsFilter(ResourceMetrics metrics) {
+		_metrics = metrics;
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		if (_resourceInfo.getResourceMethod() == null) {
+			return;
+		}
+		MethodMetrics metrics = _metrics.forMethod(_resourceInfo
+				.getResourceMethod());
+		RequestMetrics request = take();
+		request._metrics = metrics;
+		request._start = System.nanoTime();
+		requestContext.setProperty(METRICS_PROPERTY, request);
+
+		int length = requestContext.getLength();
+		if (length > 0) {
+			metrics._bytesIn.addAndGet(length);
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext,
+			ContainerResponseContext responseContext) {
+		RequestMetrics request = (RequestMetrics) requestContext
+				.getProperty(METRICS_PROPERTY);
+		if (request == null) {
+			return;
+		}
+		MethodMetrics metrics = request._metrics;
+		metrics._resourceTime.record(System.nanoTime() - request._start);
+
+		int status = responseContext.getStatus();
+		if (status >= 500) {
+			metrics._serverErrors.incrementAndGet();
+		} else if (status >= 400) {
+			metrics._clientErrors.incrementAndGet();
+		}
+
+		// Without an entity, aroundWriteTo() isn't called and the request
+		// is complete.
+		if (!responseContext.hasEntity()) {
+			requestContext.removeProperty(METRICS_PROPERTY);
+			release(request);
+		}
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context)
+			throws IOException {
+		RequestMetrics request = (RequestMetrics) context
+				.getProperty(METRICS_PROPERTY);
+		if (request == null) {
+			context.proceed();
+			return;
+		}
+		context.removeProperty(METRICS_PROPERTY);
+
+		OutputStream out = context.getOutputStream();
+		request._out = out;
+		request._count = 0;
+		context.setOutputStream(request);
+		long start = System.nanoTime();
+		try {
+			context.proceed();
+		} finally {
+			context.setOutputStream(out);
+			request._metrics._writerTime.record(System.nanoTime() - start);
+			request._metrics._bytesOut.addAndGet(request._count);
+			release(request);
+		}
+	}
+
+	/**
+	 * Takes a RequestMetrics from the pool, or allocates one if the slots
+	 * probed are empty. The probe starts at a slot chosen by the current
+	 * thread, so that threads mostly use different slots.
+	 */
+	private RequestMetrics take() {
+		int slot = (int) Thread.currentThread().getId();
+		for (int i = 0; i < POOL_PROBES; i++) {
+			RequestMetrics request = _pool.getAndSet(
+					(slot + i) & (POOL_SIZE - 1), null);
+			if (request != null) {
+				return request;
+			}
+		}
+		return new RequestMetrics();
+	}
+
+	/**
+	 * Returns a RequestMetrics to the pool, or drops it if the slots probed
+	 * are full.
+	 */
+	private void release(RequestMetrics request) {
+		request._metrics = null;
+		request._out = null;
+		int slot = (int) Thread.currentThread().getId();
+		for (int i = 0; i < POOL_PROBES; i++) {
+			if (_pool.compareAndSet((slot + i) & (POOL_SIZE - 1), null,
+					request)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The state of one request: its MethodMetrics and start time and, while
+	 * the response entity is written, an OutputStream that counts the bytes
+	 * written through it.
+	 */
+	private static class RequestMetrics extends OutputStream {
+		MethodMetrics _metrics;
+		long _start;
+		OutputStream _out;
+		long _count;
+
+		@Override
+		public void write(int b) throws IOException {
+			_out.write(b);
+			_count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			_out.write(b, off, len);
+			_count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			_out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			_out.close();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package nz.ac.auckland.parolee.services;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import nz.ac.auckland.parolee.services.ResourceMetrics.MethodMetrics;
+
+/**
+ * Class to implement a REST Web service that reports ResourceMetrics.
+ *
+ * - GET    <base-uri>/metrics
+ *          Retrieves, as plain text, one line per resource method with its
+ *          request count, error counts, resource and writer latency
+ *          percentiles (in microseconds) and bytes received and sent.
+ *
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private final ResourceMetrics _metrics;
+
+	public MetricsResource(ResourceMetrics metrics) {
+		_metrics = metrics;
+	}
+
+	@GET
+	@Produces("text/plain")
+	public String retrieveMetrics() {
+		StringBuilder builder = new StringBuilder();
+		for (MethodMetrics metrics : _metrics.getAll()) {
+			builder.append(metrics.getName());
+			builder.append(" requests=").append(
+					metrics.getResourceTime().getCount());
+			builder.append(" client_errors=").append(metrics.getClientErrors());
+			builder.append(" server_errors=").append(metrics.getServerErrors());
+			appendLatency(builder, "resource", metrics.getResourceTime());
+			appendLatency(builder, "writer", metrics.getWriterTime());
+			builder.append(" bytes_in=").append(metrics.getBytesIn());
+			builder.append(" bytes_out=").append(metrics.getBytesOut());
+			builder.append('\n');
+		}
+		return builder.toString();
+	}
+
+	private static void appendLatency(StringBuilder builder, String name,
+			LatencyHistogram histogram) {
+		for (double percentile : PERCENTILES) {
+			builder.append(' ').append(name).append("_p")
+					.append(formatPercentile(percentile)).append("_us=")
+					.append(micros(histogram.getPercentile(percentile)));
+		}
+		builder.append(' ').append(name).append("_max_us=")
+				.append(micros(histogram.getMax()));
+	}
+
+	private static String formatPercentile(double percentile) {
+		if (percentile == Math.rint(percentile)) {
+			return String.valueOf((long) percentile);
+		}
+		return String.valueOf(percentile).replace('.', '_');
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,29 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import nz.ac.auckland.parolee.domain.Movement;
+
+/**
+ * Reads a document holding many Movement representations one record at a
+ * time, so that each Movement can be recorded as it arrives rather than the
+ * whole document being held in memory.
+ *
+ */
+abstract class MovementRecordReader implements Closeable {
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the Movement, or null at the end of the document.
+	 *
+	 * @throws IllegalArgumentException if the record is invalid (for
+	 * example, has a coordinate out of range). No further records can be
+	 * read.
+	 *
+	 * @throws IOException if the document is malformed or can't be read. No
+	 * further records can be read.
+	 */
+	abstract Movement next() throws IOException;
+}
@@ -0,0 +1,615 @@
+package nz.ac.auckland.parolee.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nz.ac.auckland.parolee.domain.Movement;
+import nz.ac.auckland.parolee.domain.MovementType;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory time series of the Movements of each Parolee.
+ *
+ * Each Parolee's Movements are held in a chain of append-only chunks, newest
+ * first. A chunk is a byte array of encoded Movements. Each Movement is
+ * encoded relative to the chunk's base - the Movement that opened the chunk
+ * - as zigzag varints of the differences in timestamp (milliseconds),
+ * latitude and longitude (units of 10^-7 degrees), followed by its type. A
+ * Parolee's Movements are close together in time and space, so most
+ * Movements take 6 to 9 bytes, plus 4 bytes for the offset at which each
+ * ends. Because every Movement is encoded against the base, not against the
+ * Movement before it, each can be decoded on its own.
+ *
+ * Appends take no lock. A writer encodes its Movement, reserves space for it
+ * in the newest chunk by a compare-and-set of the chunk's (count, bytes)
+ * word, copies the bytes in, and then publishes the Movement by an ordered
+ * write of its end offset. Readers read a chunk's Movements in order up to
+ * the first that hasn't been published, so they never see a partly written
+ * Movement. When the newest chunk is full, a writer opens a new one,
+ * holding twice as many Movements up to a maximum, and swaps it in with a
+ * compare-and-set; a writer that loses the race retries on the winner's
+ * chunk.
+ *
+ * Reads return a Page of Movements in the order they were recorded. Finding
+ * a page reads only the timestamps of the Movements, and skips chunks whose
+ * timestamps (the minimum and maximum of which each chunk tracks) lie
+ * outside the requested range; the Movements themselves are decoded as the
+ * page is iterated, so memory use doesn't depend on the size of the page.
+ * latest() scans only the newest chunks, backwards from the end. range()
+ * returns at most a given number of Movements, with a cursor from which to
+ * continue: the position of the last Movement in the page, made of its
+ * chunk's sequence number (chunks are numbered from 1, oldest first) and
+ * its index in the chunk. Positions stay valid as Movements are appended
+ * and chunks evicted.
+ *
+ * Memory is bounded by retention: once every Movement in a chunk is older
+ * than parolee.movements.retention seconds (default 7 days), the chunk and
+ * the older chunks behind it are unlinked from the chain. This is done when
+ * a Parolee's chain gains a new chunk, and for every Parolee by a sweep
+ * every minute, which also discards the newest chunk of a Parolee whose
+ * Movements have all expired.
+ *
+ */
+public class MovementStore {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(MovementStore.class);
+
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_CAPACITY = 512;
+
+	// Bytes allowed per Movement when sizing a chunk. Most Movements need
+	// fewer; a chunk that runs out of bytes first is simply closed early.
+	private static final int BYTES_PER_MOVEMENT = 12;
+
+	// The longest possible encoding: three varints and the type.
+	private static final int MAX_ENCODED_BYTES = 10 + 5 + 5 + 1;
+
+	// Value of a chunk's reservation word once it is sealed for discarding.
+	private static final long SEALED = -1L;
+
+	private static final double COORDINATE_SCALE = 1e7;
+
+	private static final MovementType[] TYPES = MovementType.values();
+
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[MAX_ENCODED_BYTES];
+		}
+	};
+
+	/**
+	 * A page of the Movements of a Parolee.
+	 */
+	public static class Page {
+		private final Iterable<Movement> _movements;
+		private final Long _next;
+
+		Page(Iterable<Movement> movements, Long next) {
+			_movements = movements;
+			_next = next;
+		}
+
+		/**
+		 * Returns the Movements in the page, in the order they were recorded.
+		 * They are decoded as they are iterated.
+		 */
+		public Iterable<Movement> getMovements() {
+			return _movements;
+		}
+
+		/**
+		 * Returns the cursor from which to retrieve the next page, or null if
+		 * this is the last page.
+		 */
+		public Long getNext() {
+			return _next;
+		}
+	}
+
+	/**
+	 * A chunk of encoded Movements.
+	 */
+	private static class Chunk {
+		// Numbers the chunks of a chain, from 1 for the oldest.
+		final long _sequence;
+
+		final long _baseTimestamp;
+		final int _baseLatitude;
+		final int _baseLongitude;
+
+		final byte[] _bytes;
+
+		// End offset of each Movement in _bytes, or 0 until it is published.
+		final AtomicIntegerArray _ends;
+
+		// Movements reserved (high 32 bits) and bytes reserved (low 32 bits),
+		// or SEALED.
+		final AtomicLong _reserved = new AtomicLong();
+
+		final AtomicLong _minTimestamp = new AtomicLong(Long.MAX_VALUE);
+		final AtomicLong _maxTimestamp = new AtomicLong(Long.MIN_VALUE);
+
+		// The next older chunk; set to null when the older chunks are
+		// evicted.
+		volatile Chunk _previous;
+
+		Chunk(long timestamp, int latitude, int longitude, int capacity,
+				Chunk previous) {
+			_sequence = previous == null ? 1 : previous._sequence + 1;
+			_baseTimestamp = timestamp;
+			_baseLatitude = latitude;
+			_baseLongitude = longitude;
+			_bytes = new byte[capacity * BYTES_PER_MOVEMENT];
+			_ends = new AtomicIntegerArray(capacity);
+			_previous = previous;
+		}
+
+		int capacity() {
+			return _ends.length();
+		}
+
+		/**
+		 * Returns the number of Movements that can be read: those published
+		 * before the first that hasn't been.
+		 */
+		int published() {
+			long reserved = _reserved.get();
+			int count = reserved == SEALED ? capacity()
+					: (int) (reserved >>> 32);
+			for (int i = 0; i < count; i++) {
+				if (_ends.get(i) == 0) {
+					return i;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Returns whether any Movement in the chunk may have a timestamp from
+		 * start to end (inclusive).
+		 */
+		boolean overlaps(long start, long end) {
+			return _maxTimestamp.get() >= start && _minTimestamp.get() <= end;
+		}
+
+		/**
+		 * Decodes only the timestamp of a published Movement.
+		 */
+		long timestamp(int index) {
+			int position = index == 0 ? 0 : _ends.get(index - 1);
+			long[] value = new long[1];
+			readVarint(_bytes, position, value);
+			return _baseTimestamp + unzigzag(value[0]);
+		}
+
+		/**
+		 * Decodes a published Movement.
+		 */
+		Movement decode(int index) {
+			int position = index == 0 ? 0 : _ends.get(index - 1);
+			long[] value = new long[1];
+			position = readVarint(_bytes, position, value);
+			long timestamp = _baseTimestamp + unzigzag(value[0]);
+			position = readVarint(_bytes, position, value);
+			int latitude = _baseLatitude + (int) unzigzag(value[0]);
+			position = readVarint(_bytes, position, value);
+			int longitude = _baseLongitude + (int) unzigzag(value[0]);
+			MovementType type = TYPES[_bytes[position]];
+			return new Movement(new DateTime(timestamp), latitude
+					/ COORDINATE_SCALE, longitude / COORDINATE_SCALE, type);
+		}
+	}
+
+	private final long _retention = Long.getLong(
+			"parolee.movements.retention", 7 * 24 * 60 * 60) * 1000;
+
+	// The newest chunk of each Parolee's chain, by Parolee id.
+	private final ConcurrentMap<Long, AtomicReference<Chunk>> _series = new ConcurrentHashMap<Long, AtomicReference<Chunk>>();
+
+	public MovementStore() {
+		ScheduledExecutorService sweeper = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "parolee-movement-eviction");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					evict();
+				} catch (Exception e) {
+					_logger.error("Failed to evict expired movements", e);
+				}
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Records a Movement of the Parolee with the specified id.
+	 */
+	public void append(long paroleeId, Movement movement) {
+		AtomicReference<Chunk> series = _series.get(paroleeId);
+		if (series == null) {
+			series = new AtomicReference<Chunk>();
+			AtomicReference<Chunk> existing = _series.putIfAbsent(paroleeId,
+					series);
+			if (existing != null) {
+				series = existing;
+			}
+		}
+
+		long timestamp = movement.getTimestamp().getMillis();
+		int latitude = toFixed(movement.getLatitude());
+		int longitude = toFixed(movement.getLongitude());
+		byte[] scratch = SCRATCH.get();
+
+		while (true) {
+			Chunk chunk = series.get();
+			if (chunk == null) {
+				series.compareAndSet(null, new Chunk(timestamp, latitude,
+						longitude, MIN_CAPACITY, null));
+				continue;
+			}
+
+			int length = encode(chunk, timestamp, latitude, longitude,
+					movement.getType(), scratch);
+			long reserved = chunk._reserved.get();
+			int count = (int) (reserved >>> 32);
+			int used = (int) reserved;
+			if (reserved == SEALED || count == chunk.capacity()
+					|| used + length > chunk._bytes.length) {
+				// Open a new chunk, based on this Movement.
+				Chunk next = new Chunk(timestamp, latitude, longitude,
+						Math.min(chunk.capacity() * 2, MAX_CAPACITY), chunk);
+				if (series.compareAndSet(chunk, next)) {
+					evict(next, System.currentTimeMillis() - _retention);
+				}
+				continue;
+			}
+			if (!chunk._reserved.compareAndSet(reserved, reserved + (1L << 32)
+					+ length)) {
+				continue;
+			}
+
+			System.arraycopy(scratch, 0, chunk._bytes, used, length);
+			accumulate(chunk._minTimestamp, timestamp, false);
+			accumulate(chunk._maxTimestamp, timestamp, true);
+			// Publish the Movement; the ordered write makes the bytes
+			// visible to any reader that sees the end offset.
+			chunk._ends.lazySet(count, used + length);
+			return;
+		}
+	}
+
+	/**
+	 * Returns the count most recently recorded Movements of a Parolee with
+	 * timestamps from from to to (inclusive), oldest first.
+	 *
+	 * @param from the start of the range, or null for no start.
+	 *
+	 * @param to the end of the range, or null for no end.
+	 */
+	public Page latest(long paroleeId, DateTime from, DateTime to, int count) {
+		long start = from == null ? Long.MIN_VALUE : from.getMillis();
+		long end = to == null ? Long.MAX_VALUE : to.getMillis();
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		int[] limits = new int[8];
+		int first = 0;
+		int matched = 0;
+		AtomicReference<Chunk> series = _series.get(paroleeId);
+		Chunk chunk = series == null ? null : series.get();
+		for (; chunk != null && matched < count; chunk = chunk._previous) {
+			int published = chunk.published();
+			if (chunks.size() == limits.length) {
+				limits = Arrays.copyOf(limits, limits.length * 2);
+			}
+			limits[chunks.size()] = published;
+			chunks.add(chunk);
+			// The page starts in the oldest chunk reached.
+			first = 0;
+			if (!chunk.overlaps(start, end)) {
+				continue;
+			}
+			for (int i = published - 1; i >= 0 && matched < count; i--) {
+				long timestamp = chunk.timestamp(i);
+				if (timestamp >= start && timestamp <= end
+						&& ++matched == count) {
+					first = i;
+				}
+			}
+		}
+		Collections.reverse(chunks);
+		Chunk[] span = chunks.toArray(new Chunk[chunks.size()]);
+		int[] spanLimits = new int[span.length];
+		for (int i = 0; i < span.length; i++) {
+			spanLimits[i] = limits[span.length - 1 - i];
+		}
+		return new Page(new Span(span, first, spanLimits, start, end), null);
+	}
+
+	/**
+	 * Returns up to size Movements of a Parolee with timestamps from from to
+	 * to (inclusive), in the order they were recorded, starting after a
+	 * cursor.
+	 *
+	 * @param from the start of the range, or null for no start.
+	 *
+	 * @param to the end of the range, or null for no end.
+	 *
+	 * @param after the cursor returned with the previous page, or 0 to start
+	 * with the oldest Movement.
+	 *
+	 * @param size the maximum number of Movements to return; at least 1.
+	 */
+	public Page range(long paroleeId, DateTime from, DateTime to, long after,
+			int size) {
+		long start = from == null ? Long.MIN_VALUE : from.getMillis();
+		long end = to == null ? Long.MAX_VALUE : to.getMillis();
+		long afterSequence = after / MAX_CAPACITY;
+		int afterIndex = (int) (after % MAX_CAPACITY);
+
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		AtomicReference<Chunk> series = _series.get(paroleeId);
+		Chunk chunk = series == null ? null : series.get();
+		for (; chunk != null && chunk._sequence >= afterSequence; chunk = chunk._previous) {
+			chunks.add(chunk);
+		}
+		Collections.reverse(chunks);
+
+		// Find the end of the page, and whether any Movement matches beyond
+		// it, from the timestamps alone.
+		int[] limits = new int[chunks.size()];
+		int first = 0;
+		int matched = 0;
+		int lastChunk = 0;
+		int lastIndex = 0;
+		boolean more = false;
+		scan: for (int c = 0; c < chunks.size(); c++) {
+			chunk = chunks.get(c);
+			int i = chunk._sequence == afterSequence ? afterIndex + 1 : 0;
+			if (c == 0) {
+				first = i;
+			}
+			int published = chunk.published();
+			limits[c] = published;
+			if (!chunk.overlaps(start, end)) {
+				continue;
+			}
+			for (; i < published; i++) {
+				long timestamp = chunk.timestamp(i);
+				if (timestamp < start || timestamp > end) {
+					continue;
+				}
+				if (matched == size) {
+					more = true;
+					break scan;
+				}
+				matched++;
+				lastChunk = c;
+				lastIndex = i;
+			}
+		}
+		if (!more) {
+			return new Page(new Span(chunks.toArray(new Chunk[chunks.size()]),
+					first, limits, start, end), null);
+		}
+		Chunk[] span = chunks.subList(0, lastChunk + 1).toArray(
+				new Chunk[lastChunk + 1]);
+		limits = Arrays.copyOf(limits, span.length);
+		limits[lastChunk] = lastIndex + 1;
+		return new Page(new Span(span, first, limits, start, end),
+				span[lastChunk]._sequence * MAX_CAPACITY + lastIndex);
+	}
+
+	/**
+	 * The Movements of a Page: those in a run of chunks, from index first of
+	 * the first chunk up to (but not including) index limits[c] of each
+	 * chunk c, with timestamps from start to end (inclusive).
+	 */
+	private static class Span implements Iterable<Movement> {
+		private final Chunk[] _chunks;
+		private final int _first;
+		private final int[] _limits;
+		private final long _start;
+		private final long _end;
+
+		Span(Chunk[] chunks, int first, int[] limits, long start, long end) {
+			_chunks = chunks;
+			_first = first;
+			_limits = limits;
+			_start = start;
+			_end = end;
+		}
+
+		public Iterator<Movement> iterator() {
+			return new Iterator<Movement>() {
+				private int _chunk = 0;
+				private int _index = _first;
+				private Movement _next = advance();
+
+				/**
+				 * Decodes the next Movement in the Span, or returns null if
+				 * there are no more.
+				 */
+				private Movement advance() {
+					for (; _chunk < _chunks.length; _chunk++, _index = 0) {
+						Chunk chunk = _chunks[_chunk];
+						if (!chunk.overlaps(_start, _end)) {
+							continue;
+						}
+						while (_index < _limits[_chunk]) {
+							int index = _index++;
+							long timestamp = chunk.timestamp(index);
+							if (timestamp >= _start && timestamp <= _end) {
+								return chunk.decode(index);
+							}
+						}
+					}
+					return null;
+				}
+
+				public boolean hasNext() {
+					return _next != null;
+				}
+
+				public Movement next() {
+					if (_next == null) {
+						throw new NoSuchElementException();
+					}
+					Movement movement = _next;
+					_next = advance();
+					return movement;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Discards the Movements of a Parolee.
+	 */
+	public void remove(long paroleeId) {
+		_series.remove(paroleeId);
+	}
+
+	/**
+	 * Discards all Movements.
+	 */
+	public void clear() {
+		_series.clear();
+	}
+
+	/**
+	 * Discards, for every Parolee, the chunks whose Movements are all older
+	 * than the retention period.
+	 */
+	public void evict() {
+		long cutoff = System.currentTimeMillis() - _retention;
+		for (Map.Entry<Long, AtomicReference<Chunk>> entry : _series
+				.entrySet()) {
+			AtomicReference<Chunk> series = entry.getValue();
+			Chunk head = series.get();
+			if (head == null) {
+				continue;
+			}
+			evict(head, cutoff);
+
+			// The newest chunk can be discarded only once it is sealed
+			// against further appends and every append to it is published.
+			long reserved = head._reserved.get();
+			if (head._maxTimestamp.get() < cutoff && reserved != SEALED
+					&& head.published() == (int) (reserved >>> 32)
+					&& head._reserved.compareAndSet(reserved, SEALED)) {
+				series.compareAndSet(head, null);
+			}
+		}
+	}
+
+	/**
+	 * Unlinks the chunks behind newest from the first whose Movements are all
+	 * older than cutoff.
+	 */
+	private static void evict(Chunk newest, long cutoff) {
+		for (Chunk chunk = newest; chunk != null; chunk = chunk._previous) {
+			Chunk previous = chunk._previous;
+			if (previous != null && previous._maxTimestamp.get() < cutoff) {
+				chunk._previous = null;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Encodes a Movement relative to a chunk's base into bytes, returning the
+	 * number of bytes used.
+	 */
+	private static int encode(Chunk chunk, long timestamp, int latitude,
+			int longitude, MovementType type, byte[] bytes) {
+		int position = writeVarint(bytes, 0, zigzag(timestamp
+				- chunk._baseTimestamp));
+		position = writeVarint(bytes, position, zigzag((long) latitude
+				- chunk._baseLatitude));
+		position = writeVarint(bytes, position, zigzag((long) longitude
+				- chunk._baseLongitude));
+		bytes[position++] = (byte) type.ordinal();
+		return position;
+	}
+
+	private static int writeVarint(byte[] bytes, int position, long value) {
+		while ((value & ~0x7fL) != 0) {
+			bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		bytes[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Reads a varint into value[0], returning the position after it.
+	 */
+	private static int readVarint(byte[] bytes, int position, long[] value) {
+		long result = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = bytes[position++];
+			result |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		value[0] = result;
+		return position;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int toFixed(double degrees) {
+		return (int) Math.round(degrees * COORDINATE_SCALE);
+	}
+
+	/**
+	 * Raises (or lowers) an AtomicLong to value, if value is greater (or
+	 * less).
+	 */
+	private static void accumulate(AtomicLong bound, long value,
+			boolean maximum) {
+		while (true) {
+			long current = bound.get();
+			if (maximum ? value <= current : value >= current) {
+				return;
+			}
+			if (bound.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+}
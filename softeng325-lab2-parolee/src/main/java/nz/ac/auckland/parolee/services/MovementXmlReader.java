@@ -0,0 +1,136 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nz.ac.auckland.parolee.domain.Movement;
+import nz.ac.auckland.parolee.domain.MovementType;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Reads the XML representation of Movements with a StAX pull parser:
+ *
+ * <movement>
+ *    <timestamp>yyyy-MM-ddTHH:mm:ss.SSSZ</timestamp>
+ *    <latitude>...</latitude>
+ *    <longitude>...</longitude>
+ *    <type>GPS|CHECK_IN</type>
+ * </movement>
+ *
+ * or several <movement> elements in a <movements> document, which are read
+ * one at a time as they are requested. The timestamp is ISO 8601, and
+ * defaults to the time of reading; the type defaults to GPS. As in
+ * ParoleeXmlReader, unknown elements are skipped.
+ *
+ */
+public class MovementXmlReader {
+
+	/**
+	 * Format of timestamps in the XML representation.
+	 */
+	static final DateTimeFormatter TIMESTAMP_PARSER = ISODateTimeFormat
+			.dateTimeParser().withOffsetParsed();
+
+	/**
+	 * Returns a reader of the Movements in a <movement> element or a
+	 * <movements> document. The root element is read immediately; each
+	 * <movement> element is parsed as the next record is requested.
+	 *
+	 * @throws XMLStreamException if the root element is neither "movement"
+	 * nor "movements".
+	 */
+	static MovementRecordReader readAll(InputStream is)
+			throws XMLStreamException {
+		final XMLStreamReader reader = ParoleeXmlReader.INPUT_FACTORY
+				.createXMLStreamReader(is);
+		reader.nextTag();
+		final boolean single = reader.getLocalName().equals("movement");
+		if (!single && !reader.getLocalName().equals("movements")) {
+			reader.close();
+			throw new XMLStreamException("Expected <movement> but found <"
+					+ reader.getLocalName() + ">", reader.getLocation());
+		}
+		return new MovementRecordReader() {
+			private boolean _ended;
+
+			Movement next() throws IOException {
+				if (_ended) {
+					return null;
+				}
+				try {
+					if (single) {
+						_ended = true;
+						return readMovement(reader);
+					}
+					while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+						if (reader.getLocalName().equals("movement")) {
+							return readMovement(reader);
+						}
+						ParoleeXmlReader.skipElement(reader);
+					}
+					_ended = true;
+					return null;
+				} catch (XMLStreamException e) {
+					throw new IOException(e);
+				}
+			}
+
+			public void close() throws IOException {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads the <movement> element at which reader is positioned.
+	 *
+	 * @throws IllegalArgumentException if a timestamp, coordinate or type is
+	 * malformed, or a coordinate is missing or out of range.
+	 */
+	private static Movement readMovement(XMLStreamReader reader)
+			throws XMLStreamException {
+		DateTime timestamp = null;
+		Double latitude = null;
+		Double longitude = null;
+		MovementType type = MovementType.GPS;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+			if (name.equals("timestamp")) {
+				timestamp = TIMESTAMP_PARSER.parseDateTime(reader
+						.getElementText().trim());
+			} else if (name.equals("latitude")) {
+				latitude = Double.valueOf(reader.getElementText().trim());
+			} else if (name.equals("longitude")) {
+				longitude = Double.valueOf(reader.getElementText().trim());
+			} else if (name.equals("type")) {
+				String text = reader.getElementText().trim();
+				type = MovementType.fromString(text);
+				if (type == null) {
+					throw new IllegalArgumentException("Unknown type " + text);
+				}
+			} else {
+				ParoleeXmlReader.skipElement(reader);
+			}
+		}
+		if (latitude == null || !(latitude >= -90 && latitude <= 90)) {
+			throw new IllegalArgumentException("Invalid latitude " + latitude);
+		}
+		if (longitude == null || !(longitude >= -180 && longitude <= 180)) {
+			throw new IllegalArgumentException("Invalid longitude "
+					+ longitude);
+		}
+		return new Movement(timestamp == null ? new DateTime() : timestamp,
+				latitude, longitude, type);
+	}
+}
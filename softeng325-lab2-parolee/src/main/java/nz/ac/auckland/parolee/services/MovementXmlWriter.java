@@ -0,0 +1,50 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import nz.ac.auckland.parolee.domain.Movement;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Writes the XML representation of Movements (see MovementXmlReader) as
+ * UTF-8. Timestamps are written in UTC.
+ *
+ */
+public class MovementXmlWriter {
+
+	private static final DateTimeFormatter TIMESTAMP_FORMATTER = ISODateTimeFormat
+			.dateTime().withZoneUTC();
+
+	/**
+	 * Writes a <movements> document listing several Movements. The
+	 * Movements are written through a buffer as they are iterated, so memory
+	 * use doesn't depend on the number of Movements.
+	 */
+	public static void write(OutputStream os, Iterable<Movement> movements)
+			throws IOException {
+		Writer xml = new BufferedWriter(new OutputStreamWriter(os,
+				StandardCharsets.UTF_8));
+		xml.write("<movements>\n");
+		for (Movement movement : movements) {
+			xml.write("<movement>\n   <timestamp>");
+			TIMESTAMP_FORMATTER.printTo(xml, movement.getTimestamp());
+			xml.append("</timestamp>\n   <latitude>")
+					.append(Double.toString(movement.getLatitude()))
+					.append("</latitude>\n   <longitude>")
+					.append(Double.toString(movement.getLongitude()))
+					.append("</longitude>\n   <type>")
+					.append(movement.getType().toString())
+					.append("</type>\n</movement>\n");
+		}
+		xml.write("</movements>\n");
+		// Flushed, not closed: the OutputStream belongs to the caller.
+		xml.flush();
+	}
+}
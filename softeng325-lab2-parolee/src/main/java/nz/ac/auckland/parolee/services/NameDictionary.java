@@ -0,0 +1,75 @@
+package nz.ac.auckland.parolee.services;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary encoding of names. Each distinct name is assigned an int code,
+ * so that a column of names can be held as an int[] and each distinct name
+ * is held in memory once, however many records share it.
+ *
+ * Encoding a name that is already in the dictionary takes no lock; adding a
+ * name is synchronized. Codes are never reassigned, and decoding reads an
+ * array published through a volatile field, so a code obtained from any
+ * thread can be decoded without locking. Names are never removed; the
+ * dictionary is discarded as a whole when its ParoleeRegistry is cleared.
+ *
+ */
+class NameDictionary {
+
+	/**
+	 * Code representing a null name.
+	 */
+	static final int NULL_CODE = -1;
+
+	private final Map<String, Integer> _codes = new ConcurrentHashMap<String, Integer>();
+
+	// Names indexed by code. Replaced with a larger copy when full.
+	private volatile String[] _names = new String[64];
+
+	// Number of codes assigned; guarded by this.
+	private int _size;
+
+	/**
+	 * Returns the code for the specified name, adding the name to the
+	 * dictionary if necessary.
+	 */
+	int encode(String name) {
+		if (name == null) {
+			return NULL_CODE;
+		}
+		Integer code = _codes.get(name);
+		if (code != null) {
+			return code;
+		}
+		synchronized (this) {
+			code = _codes.get(name);
+			if (code == null) {
+				String[] names = _names;
+				if (_size == names.length) {
+					names = Arrays.copyOf(names, _size * 2);
+				}
+				names[_size] = name;
+				_names = names;
+				code = _size++;
+				_codes.put(name, code);
+			}
+			return code;
+		}
+	}
+
+	/**
+	 * Returns the name with the specified code, or null for NULL_CODE.
+	 */
+	String decode(int code) {
+		return code == NULL_CODE ? null : _names[code];
+	}
+
+	/**
+	 * Returns the number of distinct names in the dictionary.
+	 */
+	synchronized int size() {
+		return _size;
+	}
+}
@@ -2,6 +2,9 @@ package nz.ac.auckland.parolee.services;
 
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -14,6 +17,10 @@ import java.util.Set;
  * 
  * http://<host-name>:<port>/services.
  *
+ * If the parolee.data.dir system property is set, Parolees and their history
+ * are persisted in that directory (see ParoleeStorage); otherwise they are
+ * held in memory.
+ *
  */
 @ApplicationPath("/services")
 public class ParoleeApplication extends Application {
@@ -21,7 +28,35 @@ public class ParoleeApplication extends Application {
 
    public ParoleeApplication()
    {
-      _singletons.add(new ParoleeResource());
+      ParoleeHistory history = new ParoleeHistory();
+      _singletons.add(new ParoleeResource(createRegistry(history),
+            new MovementStore(), history));
+
+      ResourceMetrics metrics = new ResourceMetrics();
+      _singletons.add(new MetricsFilter(metrics));
+      _singletons.add(new MetricsResource(metrics));
+
+      _singletons.add(new AccessLogFilter(new AccessLog()));
+
+      // Representations of Parolees. XML is listed first by the resource
+      // methods, so it is the default.
+      _singletons.add(new ParoleeXmlProvider());
+      _singletons.add(new ParoleeJsonProvider());
+      _singletons.add(new ParoleeBinaryProvider());
+   }
+
+   private static ParoleeRegistry createRegistry(ParoleeHistory history)
+   {
+      String dataDir = System.getProperty("parolee.data.dir");
+      if (dataDir == null) {
+         return new ParoleeRegistry(history);
+      }
+      try {
+         return new ParoleeRegistry(new ParoleeStorage(new File(dataDir)),
+               history);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
    }
 
    @Override
@@ -0,0 +1,240 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+/**
+ * Reads and writes the compact binary representation of Parolees. Each
+ * Parolee is a record, preceded by its length in bytes:
+ *
+ * length       varint: the number of bytes that follow in the record
+ * id           varint
+ * version      varint
+ * first name   string
+ * last name    string
+ * gender       byte: 0 for none, otherwise 1 + the Gender's ordinal
+ * date of birth varint: 0 for none, otherwise 1 + the zigzag-encoded day
+ *              number (days since 1970-01-01)
+ *
+ * A varint holds 7 bits per byte, low bits first, with the top bit set on
+ * every byte but the last. A string is a varint of 0 for null, otherwise 1 +
+ * the length of its UTF-8 encoding, followed by the encoding. Several
+ * Parolees are written as a sequence of records, with no header, so a
+ * typical Parolee takes around 25 bytes, against 200 for its XML.
+ *
+ * The length prefix lets a reader skip a record without decoding it, and
+ * members added to the end of a record in future are ignored by older
+ * readers.
+ *
+ */
+public class ParoleeBinaryCodec {
+
+	/**
+	 * The largest record accepted, so that a corrupt length can't exhaust
+	 * memory.
+	 */
+	private static final int MAX_RECORD = 64 * 1024;
+
+	private static final Gender[] GENDERS = Gender.values();
+
+	/**
+	 * Reads the binary representation of a Parolee.
+	 *
+	 * @throws IllegalArgumentException if the record is malformed.
+	 *
+	 * @throws EOFException if the stream ends before the record does.
+	 */
+	public static Parolee read(InputStream is) throws IOException {
+		int length = readVarint(is);
+		if (length < 0 || length > MAX_RECORD) {
+			throw new IllegalArgumentException("Invalid record length "
+					+ length);
+		}
+		byte[] record = new byte[length];
+		new DataInputStream(is).readFully(record);
+		return new Decoder(record).decode();
+	}
+
+	/**
+	 * Writes the binary representation of a Parolee.
+	 */
+	public static void write(OutputStream os, Parolee parolee)
+			throws IOException {
+		Encoder encoder = new Encoder();
+		encoder.encode(parolee);
+		encoder.writeTo(os);
+		os.flush();
+	}
+
+	/**
+	 * Writes the records of several Parolees. Each is encoded into the same
+	 * buffer as it is iterated, and the records are written through a
+	 * fixed-size buffer.
+	 */
+	public static void write(OutputStream os, Iterable<Parolee> parolees)
+			throws IOException {
+		OutputStream out = new BufferedOutputStream(os, 8192);
+		Encoder encoder = new Encoder();
+		for (Parolee parolee : parolees) {
+			encoder.encode(parolee);
+			encoder.writeTo(out);
+		}
+		out.flush();
+	}
+
+	private static int readVarint(InputStream is) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = is.read();
+			if (b < 0) {
+				throw new EOFException("Stream ended within a varint");
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Builds one record at a time in a reusable buffer.
+	 */
+	private static class Encoder {
+		private byte[] _buffer = new byte[64];
+		private int _length;
+		private final byte[] _prefix = new byte[5];
+
+		void encode(Parolee parolee) {
+			_length = 0;
+			writeVarint(parolee.getId());
+			writeVarint(parolee.getVersion());
+			writeString(parolee.getFirstname());
+			writeString(parolee.getLastname());
+			ensureCapacity(1);
+			_buffer[_length++] = (byte) (parolee.getGender() == null ? 0
+					: parolee.getGender().ordinal() + 1);
+			int day = ParoleeTable.toDayNumber(parolee.getDateOfBirth());
+			int zigzag = (day << 1) ^ (day >> 31);
+			writeVarint(day == ParoleeTable.NULL_DATE ? 0
+					: (zigzag & 0xFFFFFFFFL) + 1);
+		}
+
+		/**
+		 * Writes the length prefix and the record to os.
+		 */
+		void writeTo(OutputStream os) throws IOException {
+			int count = 0;
+			int length = _length;
+			while ((length & ~0x7F) != 0) {
+				_prefix[count++] = (byte) ((length & 0x7F) | 0x80);
+				length >>>= 7;
+			}
+			_prefix[count++] = (byte) length;
+			os.write(_prefix, 0, count);
+			os.write(_buffer, 0, _length);
+		}
+
+		private void writeString(String text) {
+			if (text == null) {
+				writeVarint(0);
+				return;
+			}
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length + 1);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, _buffer, _length, bytes.length);
+			_length += bytes.length;
+		}
+
+		private void writeVarint(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				_buffer[_length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			_buffer[_length++] = (byte) value;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (_length + extra > _buffer.length) {
+				_buffer = Arrays.copyOf(_buffer, Math.max(_buffer.length * 2,
+						_length + extra));
+			}
+		}
+	}
+
+	/**
+	 * Decodes the members of one record.
+	 */
+	private static class Decoder {
+		private final byte[] _record;
+		private int _position;
+
+		Decoder(byte[] record) {
+			_record = record;
+		}
+
+		Parolee decode() {
+			long id = readVarint();
+			long version = readVarint();
+			String firstname = readString();
+			String lastname = readString();
+			int gender = readByte();
+			if (gender > GENDERS.length) {
+				throw new IllegalArgumentException("Unknown gender " + gender);
+			}
+			long date = readVarint();
+			if (date > 0x100000000L) {
+				throw new IllegalArgumentException("Invalid date of birth");
+			}
+			int zigzag = (int) (date - 1);
+			return new Parolee(id, version, lastname, firstname,
+					gender == 0 ? null : GENDERS[gender - 1],
+					date == 0 ? null : ParoleeTable
+							.toDate((zigzag >>> 1) ^ -(zigzag & 1)));
+		}
+
+		private String readString() {
+			long length = readVarint();
+			if (length == 0) {
+				return null;
+			}
+			if (length - 1 > _record.length - _position) {
+				throw new IllegalArgumentException("String overruns record");
+			}
+			String text = new String(_record, _position, (int) length - 1,
+					StandardCharsets.UTF_8);
+			_position += length - 1;
+			return text;
+		}
+
+		private int readByte() {
+			if (_position >= _record.length) {
+				throw new IllegalArgumentException("Record is truncated");
+			}
+			return _record[_position++] & 0xFF;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+
+/**
+ * Provider for the compact binary representation of Parolees (see
+ * ParoleeBinaryCodec). Several Parolees are written as a sequence of
+ * length-prefixed records.
+ *
+ */
+@Consumes(ParoleeBinaryProvider.MEDIA_TYPE)
+@Produces(ParoleeBinaryProvider.MEDIA_TYPE)
+public class ParoleeBinaryProvider extends ParoleeProvider {
+
+	/**
+	 * Media type of the binary representation.
+	 */
+	public static final String MEDIA_TYPE = "application/x-parolee";
+
+	Parolee read(InputStream is) throws Exception {
+		return ParoleeBinaryCodec.read(is);
+	}
+
+	void write(OutputStream os, Parolee parolee) throws IOException {
+		ParoleeBinaryCodec.write(os, parolee);
+	}
+
+	void write(OutputStream os, Iterable<Parolee> parolees) throws IOException {
+		ParoleeBinaryCodec.write(os, parolees);
+	}
+}
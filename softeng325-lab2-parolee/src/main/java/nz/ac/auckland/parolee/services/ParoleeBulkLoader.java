@@ -0,0 +1,250 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies a document of Parolee records to a ParoleeRegistry, writing back a
+ * result for each record.
+ *
+ * Records are read one at a time and gathered into batches of
+ * parolee.bulk.batch records (default 512); each batch is stored with a
+ * single ParoleeRegistry.upsert(), and its results are written and flushed
+ * before the next batch is read. Neither the document nor the results are
+ * held in memory beyond one batch, so the cost of a load is dominated by
+ * parsing the records.
+ *
+ * A record without an id is created, and a record with an id replaces the
+ * Parolee with that id. Each result carries the record's index in the
+ * document (from 0) and a status, as for the equivalent single request:
+ *
+ * - 201: created; the result includes the new id and version.
+ * - 204: updated; the result includes the id and new version.
+ * - 404: the record's id doesn't identify a Parolee.
+ * - 400: the record is invalid; the result includes an error message.
+ *
+ * An invalid record doesn't stop the load. If the document itself is
+ * malformed, a 400 result is written for the record at which reading
+ * failed, and the load stops; the records before it have been stored.
+ *
+ */
+class ParoleeBulkLoader {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ParoleeBulkLoader.class);
+
+	private static final int BATCH_SIZE = Integer.getInteger(
+			"parolee.bulk.batch", 512);
+
+	/**
+	 * Representation of the results.
+	 */
+	enum Format {
+		/**
+		 * A <results> document of <result index="..." status="..." .../>
+		 * elements.
+		 */
+		XML {
+			void start(StringBuilder out) {
+				out.append("<results>\n");
+			}
+
+			void result(StringBuilder out, int index, int status,
+					Parolee parolee, String error) {
+				out.append("<result index=\"").append(index)
+						.append("\" status=\"").append(status).append('"');
+				if (parolee != null) {
+					out.append(" id=\"").append(parolee.getId())
+							.append("\" version=\"")
+							.append(parolee.getVersion()).append('"');
+				}
+				if (error != null) {
+					out.append(" error=\"");
+					for (int i = 0; i < error.length(); i++) {
+						char c = error.charAt(i);
+						switch (c) {
+						case '<':
+							out.append("&lt;");
+							break;
+						case '>':
+							out.append("&gt;");
+							break;
+						case '&':
+							out.append("&amp;");
+							break;
+						case '"':
+							out.append("&quot;");
+							break;
+						default:
+							out.append(c < 0x20 ? ' ' : c);
+						}
+					}
+					out.append('"');
+				}
+				out.append("/>\n");
+			}
+
+			void end(StringBuilder out) {
+				out.append("</results>\n");
+			}
+		},
+
+		/**
+		 * One {"index":...,"status":...,...} object per line.
+		 */
+		NDJSON {
+			void start(StringBuilder out) {
+			}
+
+			void result(StringBuilder out, int index, int status,
+					Parolee parolee, String error) {
+				out.append("{\"index\":").append(index).append(",\"status\":")
+						.append(status);
+				if (parolee != null) {
+					out.append(",\"id\":").append(parolee.getId())
+							.append(",\"version\":")
+							.append(parolee.getVersion());
+				}
+				if (error != null) {
+					out.append(",\"error\":\"");
+					for (int i = 0; i < error.length(); i++) {
+						char c = error.charAt(i);
+						if (c == '"' || c == '\\') {
+							out.append('\\').append(c);
+						} else if (c < 0x20) {
+							out.append(String.format("\\u%04x", (int) c));
+						} else {
+							out.append(c);
+						}
+					}
+					out.append('"');
+				}
+				out.append("}\n");
+			}
+
+			void end(StringBuilder out) {
+			}
+		};
+
+		abstract void start(StringBuilder out);
+
+		abstract void result(StringBuilder out, int index, int status,
+				Parolee parolee, String error);
+
+		abstract void end(StringBuilder out);
+	}
+
+	/**
+	 * Loads the records read by records into registry, writing the results
+	 * to os in the specified format.
+	 */
+	static void load(ParoleeRecordReader records, ParoleeRegistry registry,
+			Format format, OutputStream os) throws IOException {
+		StringBuilder out = new StringBuilder();
+		format.start(out);
+
+		// The records of the current batch, in document order, with the
+		// error message in place of each invalid record.
+		List<Parolee> pending = new ArrayList<Parolee>(BATCH_SIZE);
+		List<String> errors = new ArrayList<String>(BATCH_SIZE);
+		int index = 0;
+		int loaded = 0;
+		String failure = null;
+		try {
+			while (true) {
+				Parolee parolee;
+				String error = null;
+				try {
+					parolee = records.next();
+					if (parolee == null) {
+						break;
+					}
+				} catch (IllegalArgumentException e) {
+					parolee = null;
+					error = e.getMessage();
+				} catch (IOException e) {
+					failure = "Malformed document: " + e.getMessage();
+					_logger.warn("Bulk load stopped by malformed document",
+							e);
+					break;
+				}
+				pending.add(parolee);
+				errors.add(error);
+				if (pending.size() == BATCH_SIZE) {
+					loaded += apply(registry, format, pending, errors, index,
+							out);
+					index += pending.size();
+					pending.clear();
+					errors.clear();
+					flush(out, os);
+				}
+			}
+			loaded += apply(registry, format, pending, errors, index, out);
+			index += pending.size();
+			if (failure != null) {
+				format.result(out, index, 400, null, failure);
+			}
+		} finally {
+			records.close();
+		}
+		format.end(out);
+		flush(out, os);
+
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Bulk load stored " + loaded + " of " + index
+					+ " parolees");
+		}
+	}
+
+	/**
+	 * Stores the valid records of a batch, and adds the batch's results to
+	 * out.
+	 *
+	 * @return the number of Parolees stored.
+	 */
+	private static int apply(ParoleeRegistry registry, Format format,
+			List<Parolee> pending, List<String> errors, int firstIndex,
+			StringBuilder out) {
+		List<Parolee> batch = new ArrayList<Parolee>(pending.size());
+		for (Parolee parolee : pending) {
+			if (parolee != null) {
+				batch.add(parolee);
+			}
+		}
+		Parolee[] stored = registry.upsert(batch);
+
+		int stores = 0;
+		int next = 0;
+		for (int i = 0; i < pending.size(); i++) {
+			Parolee parolee = pending.get(i);
+			if (parolee == null) {
+				format.result(out, firstIndex + i, 400, null, errors.get(i));
+				continue;
+			}
+			Parolee result = stored[next++];
+			if (result == null) {
+				format.result(out, firstIndex + i, 404, null, null);
+			} else {
+				format.result(out, firstIndex + i, parolee.getId() == 0 ? 201
+						: 204, result, null);
+				stores++;
+			}
+		}
+		return stores;
+	}
+
+	private static void flush(StringBuilder out, OutputStream os)
+			throws IOException {
+		os.write(out.toString().getBytes(StandardCharsets.UTF_8));
+		os.flush();
+		out.setLength(0);
+	}
+}
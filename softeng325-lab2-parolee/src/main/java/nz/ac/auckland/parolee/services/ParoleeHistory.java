@@ -0,0 +1,662 @@
+package nz.ac.auckland.parolee.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.joda.time.DateTime;
+
+/**
+ * The change history of every Parolee id: each create, update and delete,
+ * when it was made and the version it produced, recorded as the fields it
+ * changed rather than as a copy of the Parolee.
+ *
+ * Each id's history is a sequence of append-only segments of encoded
+ * changes. A change is encoded as:
+ *
+ *   flags:     one byte holding the kind of change and a bit for each field
+ *              that changed
+ *   timestamp: milliseconds since the previous change, as a varint
+ *   version:   the difference from the previous version, as a zigzag varint
+ *   fields:    the new value of each changed field only: names as varint
+ *              codes from a NameDictionary (0 for null), gender as a byte,
+ *              date of birth as a zigzag varint day number
+ *
+ * so an update of one field typically takes 5 to 8 bytes. A delete changes
+ * no fields, and a create changes those that aren't null.
+ *
+ * Each segment holds up to SEGMENT_CHANGES changes, and also records the
+ * full state of the Parolee as of its start. Reading the state as of a
+ * point in time therefore finds the segment covering that time by binary
+ * search, and applies only that segment's changes to its starting state.
+ * Reading the history decodes the changes one at a time as they are
+ * iterated, and yields only the fields each changed, so no intermediate
+ * version of the Parolee is rebuilt.
+ *
+ * Changes are recorded by ParoleeRegistry while it holds the Parolee's
+ * stripe lock, and a clear while it holds every stripe lock, so they're
+ * recorded in the order they're made; each id's history is also locked while
+ * a change is appended. Reads take no lock: a segment's bytes are written
+ * before its length is published, through a volatile field, and a reader
+ * reads only up to the length it sees.
+ *
+ * History is held in memory. For a persistent registry, each change is also
+ * appended, with the time it was recorded at, to its ParoleeStorage's
+ * history log, which is replayed into the history in the background when
+ * the registry is restored. Until the replay has finished, the history
+ * isn't loaded (see isLoaded()), and the changes the registry records are
+ * deferred, to be applied after the replayed ones. Ids are reused after the
+ * registry is cleared, so the history of an id can include several
+ * Parolees, each created after the last was deleted.
+ *
+ */
+public class ParoleeHistory {
+
+	/**
+	 * Bits identifying the fields of a Change.
+	 */
+	public static final int LASTNAME = 1;
+	public static final int FIRSTNAME = 2;
+	public static final int GENDER = 4;
+	public static final int DATE_OF_BIRTH = 8;
+
+	private static final int FIELDS = LASTNAME | FIRSTNAME | GENDER
+			| DATE_OF_BIRTH;
+
+	/**
+	 * Kinds of change.
+	 */
+	public enum Kind {
+		CREATE, UPDATE, DELETE
+	}
+
+	private static final Kind[] KINDS = Kind.values();
+
+	private static final int SEGMENT_CHANGES = 32;
+
+	private static final int INITIAL_SEGMENT_BYTES = 32;
+
+	private static final Gender[] GENDERS = Gender.values();
+
+	/**
+	 * A change to a Parolee, holding the new values of the fields it
+	 * changed.
+	 */
+	public static class Change {
+		private final Kind _kind;
+		private final long _timestamp;
+		private final long _version;
+		private final int _changed;
+		private final String _lastname;
+		private final String _firstname;
+		private final Gender _gender;
+		private final DateTime _dateOfBirth;
+
+		Change(Kind kind, long timestamp, long version, int changed,
+				String lastname, String firstname, Gender gender,
+				DateTime dateOfBirth) {
+			_kind = kind;
+			_timestamp = timestamp;
+			_version = version;
+			_changed = changed;
+			_lastname = lastname;
+			_firstname = firstname;
+			_gender = gender;
+			_dateOfBirth = dateOfBirth;
+		}
+
+		public Kind getKind() {
+			return _kind;
+		}
+
+		public DateTime getTimestamp() {
+			return new DateTime(_timestamp);
+		}
+
+		/**
+		 * Returns the version of the Parolee after the change; for a delete,
+		 * the version that was deleted.
+		 */
+		public long getVersion() {
+			return _version;
+		}
+
+		/**
+		 * Returns true if the change set the specified field (LASTNAME,
+		 * FIRSTNAME, GENDER or DATE_OF_BIRTH).
+		 */
+		public boolean isChanged(int field) {
+			return (_changed & field) != 0;
+		}
+
+		public String getLastname() {
+			return _lastname;
+		}
+
+		public String getFirstname() {
+			return _firstname;
+		}
+
+		public Gender getGender() {
+			return _gender;
+		}
+
+		public DateTime getDateOfBirth() {
+			return _dateOfBirth;
+		}
+	}
+
+	/**
+	 * The state of a Parolee, as field codes.
+	 */
+	private static class State {
+		boolean _exists;
+		long _timestamp;
+		long _version;
+		int _lastname = NameDictionary.NULL_CODE;
+		int _firstname = NameDictionary.NULL_CODE;
+		int _gender;
+		int _dateOfBirth = ParoleeTable.NULL_DATE;
+
+		State copy() {
+			State copy = new State();
+			copy._exists = _exists;
+			copy._timestamp = _timestamp;
+			copy._version = _version;
+			copy._lastname = _lastname;
+			copy._firstname = _firstname;
+			copy._gender = _gender;
+			copy._dateOfBirth = _dateOfBirth;
+			return copy;
+		}
+
+		/**
+		 * Decodes the change at position in bytes and applies it to this
+		 * state, returning the position of the next change.
+		 */
+		int apply(byte[] bytes, int position, long[] value) {
+			int flags = bytes[position++];
+			position = readVarint(bytes, position, value);
+			_timestamp += value[0];
+			position = readVarint(bytes, position, value);
+			_version += unzigzag(value[0]);
+			if ((flags & LASTNAME) != 0) {
+				position = readVarint(bytes, position, value);
+				_lastname = (int) value[0] - 1;
+			}
+			if ((flags & FIRSTNAME) != 0) {
+				position = readVarint(bytes, position, value);
+				_firstname = (int) value[0] - 1;
+			}
+			if ((flags & GENDER) != 0) {
+				_gender = bytes[position++];
+			}
+			if ((flags & DATE_OF_BIRTH) != 0) {
+				position = readVarint(bytes, position, value);
+				_dateOfBirth = (int) unzigzag(value[0]);
+			}
+			Kind kind = KINDS[(flags >> 4) & 3];
+			_exists = kind != Kind.DELETE;
+			if (!_exists) {
+				_lastname = NameDictionary.NULL_CODE;
+				_firstname = NameDictionary.NULL_CODE;
+				_gender = 0;
+				_dateOfBirth = ParoleeTable.NULL_DATE;
+			}
+			return position;
+		}
+	}
+
+	/**
+	 * A segment of changes, with the state before the first of them.
+	 */
+	private static class Segment {
+		final State _start;
+
+		// Timestamp of the first change, for finding the segment covering a
+		// point in time.
+		final long _firstTimestamp;
+
+		// Replaced by a larger copy when full; always written before
+		// _length.
+		volatile byte[] _bytes = new byte[INITIAL_SEGMENT_BYTES];
+		volatile int _length;
+
+		// Number of changes, guarded by the Series.
+		int _count;
+
+		Segment(State start, long firstTimestamp) {
+			_start = start;
+			_firstTimestamp = firstTimestamp;
+		}
+	}
+
+	/**
+	 * The history of one id.
+	 */
+	private static class Series {
+		// Replaced by a larger copy when a segment is added.
+		volatile Segment[] _segments = new Segment[0];
+
+		// The state after the latest change, guarded by this.
+		final State _current = new State();
+	}
+
+	private final NameDictionary _names = new NameDictionary();
+	private final ConcurrentMap<Long, Series> _series = new ConcurrentHashMap<Long, Series>();
+
+	// False while the history is being loaded; the changes recorded
+	// meanwhile are held in _deferred, which is null if they are being
+	// dropped because loading failed. Both guarded by this.
+	private volatile boolean _loaded = true;
+	private List<Runnable> _deferred;
+
+	/**
+	 * Returns true unless the history is being loaded from a history log, or
+	 * loading it failed.
+	 */
+	public boolean isLoaded() {
+		return _loaded;
+	}
+
+	/**
+	 * Waits until the history has been loaded or loading has failed, and
+	 * returns isLoaded().
+	 */
+	public synchronized boolean awaitLoaded() throws InterruptedException {
+		while (!_loaded && _deferred != null) {
+			wait();
+		}
+		return _loaded;
+	}
+
+	/**
+	 * Starts loading the history: until finishLoading() is called, the
+	 * changes recorded are deferred, while those restored are applied.
+	 */
+	synchronized void startLoading() {
+		_deferred = new ArrayList<Runnable>();
+		_loaded = false;
+	}
+
+	/**
+	 * Applies the changes deferred while the history was being loaded, and
+	 * marks it as loaded.
+	 */
+	synchronized void finishLoading() {
+		for (Runnable change : _deferred) {
+			change.run();
+		}
+		_deferred = null;
+		_loaded = true;
+		notifyAll();
+	}
+
+	/**
+	 * Drops the changes deferred while the history was being loaded, and
+	 * any recorded later. The history remains unloaded.
+	 */
+	synchronized void failLoading() {
+		_deferred = null;
+		notifyAll();
+	}
+
+	/**
+	 * Defers change if the history is being loaded, returning true if it
+	 * did.
+	 */
+	private synchronized boolean defer(Runnable change) {
+		if (_loaded) {
+			return false;
+		}
+		if (_deferred != null) {
+			_deferred.add(change);
+		}
+		return true;
+	}
+
+	/**
+	 * Records the creation or update of a Parolee, as the specified version,
+	 * at the specified time (in milliseconds).
+	 */
+	void recordPut(final long id, final long version, final Parolee parolee,
+			final long timestamp) {
+		if (!_loaded && defer(new Runnable() {
+			public void run() {
+				restorePut(id, version, parolee, timestamp);
+			}
+		})) {
+			return;
+		}
+		restorePut(id, version, parolee, timestamp);
+	}
+
+	/**
+	 * Records a put replayed from a history log, even while the history is
+	 * being loaded.
+	 */
+	void restorePut(long id, long version, Parolee parolee, long timestamp) {
+		Series series = _series.get(id);
+		if (series == null) {
+			series = new Series();
+			Series existing = _series.putIfAbsent(id, series);
+			if (existing != null) {
+				series = existing;
+			}
+		}
+		int lastname = _names.encode(parolee.getLastname());
+		int firstname = _names.encode(parolee.getFirstname());
+		int gender = parolee.getGender() == null ? 0 : parolee.getGender()
+				.ordinal() + 1;
+		int dateOfBirth = ParoleeTable.toDayNumber(parolee.getDateOfBirth());
+
+		synchronized (series) {
+			State current = series._current;
+			int changed = 0;
+			if (lastname != current._lastname) {
+				changed |= LASTNAME;
+			}
+			if (firstname != current._firstname) {
+				changed |= FIRSTNAME;
+			}
+			if (gender != current._gender) {
+				changed |= GENDER;
+			}
+			if (dateOfBirth != current._dateOfBirth) {
+				changed |= DATE_OF_BIRTH;
+			}
+			append(series, current._exists ? Kind.UPDATE : Kind.CREATE,
+					changed, version, lastname, firstname, gender, dateOfBirth,
+					timestamp);
+		}
+	}
+
+	/**
+	 * Records the deletion of a Parolee at the specified time.
+	 */
+	void recordDelete(final long id, final long timestamp) {
+		if (!_loaded && defer(new Runnable() {
+			public void run() {
+				restoreDelete(id, timestamp);
+			}
+		})) {
+			return;
+		}
+		restoreDelete(id, timestamp);
+	}
+
+	/**
+	 * Records a delete replayed from a history log, even while the history
+	 * is being loaded.
+	 */
+	void restoreDelete(long id, long timestamp) {
+		Series series = _series.get(id);
+		if (series == null) {
+			return;
+		}
+		synchronized (series) {
+			if (series._current._exists) {
+				append(series, Kind.DELETE, 0, series._current._version,
+						NameDictionary.NULL_CODE, NameDictionary.NULL_CODE, 0,
+						ParoleeTable.NULL_DATE, timestamp);
+			}
+		}
+	}
+
+	/**
+	 * Records the deletion of every Parolee, when the registry is cleared at
+	 * the specified time.
+	 */
+	void recordClear(final long timestamp) {
+		if (!_loaded && defer(new Runnable() {
+			public void run() {
+				restoreClear(timestamp);
+			}
+		})) {
+			return;
+		}
+		restoreClear(timestamp);
+	}
+
+	/**
+	 * Records a clear replayed from a history log, even while the history is
+	 * being loaded.
+	 */
+	void restoreClear(long timestamp) {
+		for (Map.Entry<Long, Series> entry : _series.entrySet()) {
+			restoreDelete(entry.getKey(), timestamp);
+		}
+	}
+
+	/**
+	 * Appends a change to a series, starting a new segment if necessary, and
+	 * applies it to the series' current state. Called with series locked.
+	 */
+	private void append(Series series, Kind kind, int changed, long version,
+			int lastname, int firstname, int gender, int dateOfBirth,
+			long timestamp) {
+		State current = series._current;
+		// Timestamps never go backwards within a series, so each is a
+		// non-negative difference and segments are in timestamp order.
+		timestamp = Math.max(timestamp, current._timestamp);
+
+		Segment[] segments = series._segments;
+		Segment segment = segments.length == 0 ? null
+				: segments[segments.length - 1];
+		if (segment == null || segment._count == SEGMENT_CHANGES) {
+			segment = new Segment(current.copy(), timestamp);
+			segments = Arrays.copyOf(segments, segments.length + 1);
+			segments[segments.length - 1] = segment;
+			series._segments = segments;
+		}
+
+		byte[] bytes = segment._bytes;
+		int length = segment._length;
+		// At most the flags, two 10-byte varints, two 5-byte varints, the
+		// gender and another 5-byte varint.
+		if (length + 36 > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2,
+					length + 36));
+		}
+		int position = length;
+		bytes[position++] = (byte) ((kind.ordinal() << 4) | changed);
+		position = writeVarint(bytes, position, timestamp - current._timestamp);
+		position = writeVarint(bytes, position, zigzag(version
+				- current._version));
+		if ((changed & LASTNAME) != 0) {
+			position = writeVarint(bytes, position, lastname + 1);
+		}
+		if ((changed & FIRSTNAME) != 0) {
+			position = writeVarint(bytes, position, firstname + 1);
+		}
+		if ((changed & GENDER) != 0) {
+			bytes[position++] = (byte) gender;
+		}
+		if ((changed & DATE_OF_BIRTH) != 0) {
+			position = writeVarint(bytes, position, zigzag(dateOfBirth));
+		}
+		// Publish the bytes, then the length.
+		segment._bytes = bytes;
+		segment._length = position;
+		segment._count++;
+
+		current.apply(bytes, length, new long[1]);
+	}
+
+	/**
+	 * Returns true if any change has been recorded for the specified id.
+	 */
+	public boolean contains(long id) {
+		return _series.containsKey(id);
+	}
+
+	/**
+	 * Returns the Parolee with the specified id as it was at the specified
+	 * time, or null if there was no such Parolee at that time.
+	 */
+	public Parolee asOf(long id, DateTime time) {
+		Series series = _series.get(id);
+		if (series == null) {
+			return null;
+		}
+		long millis = time.getMillis();
+		Segment[] segments = series._segments;
+
+		// Find the last segment starting at or before the time.
+		int low = 0;
+		int high = segments.length - 1;
+		int found = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (segments[middle]._firstTimestamp <= millis) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (found < 0) {
+			return null;
+		}
+
+		Segment segment = segments[found];
+		int length = segment._length;
+		byte[] bytes = segment._bytes;
+		State state = segment._start.copy();
+		State next = state.copy();
+		long[] value = new long[1];
+		int position = 0;
+		while (position < length) {
+			position = next.apply(bytes, position, value);
+			if (next._timestamp > millis) {
+				break;
+			}
+			state = next.copy();
+		}
+		if (!state._exists) {
+			return null;
+		}
+		return new Parolee(id, state._version, _names.decode(state._lastname),
+				_names.decode(state._firstname), state._gender == 0 ? null
+						: GENDERS[state._gender - 1],
+				ParoleeTable.toDate(state._dateOfBirth));
+	}
+
+	/**
+	 * Returns the changes recorded for the specified id, oldest first. The
+	 * changes are decoded as they are iterated; those recorded after the
+	 * call may or may not be included.
+	 */
+	public Iterable<Change> changes(long id) {
+		final Series series = _series.get(id);
+		return new Iterable<Change>() {
+			public Iterator<Change> iterator() {
+				final Segment[] segments = series == null ? new Segment[0]
+						: series._segments;
+				return new Iterator<Change>() {
+					private int _segment = -1;
+					private byte[] _bytes;
+					private int _length;
+					private int _position;
+					private State _state;
+					private final long[] _value = new long[1];
+
+					public boolean hasNext() {
+						while (_bytes == null || _position >= _length) {
+							if (_segment + 1 >= segments.length) {
+								return false;
+							}
+							Segment segment = segments[++_segment];
+							_length = segment._length;
+							_bytes = segment._bytes;
+							_position = 0;
+							_state = segment._start.copy();
+						}
+						return true;
+					}
+
+					public Change next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						int flags = _bytes[_position];
+						_position = _state.apply(_bytes, _position, _value);
+						return change(flags, _state);
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Returns the change with the specified flags, taking the values of the
+	 * fields it changed from the state after it.
+	 */
+	private Change change(int flags, State state) {
+		int changed = flags & FIELDS;
+		String lastname = null;
+		String firstname = null;
+		Gender gender = null;
+		DateTime dateOfBirth = null;
+		if ((changed & LASTNAME) != 0) {
+			lastname = _names.decode(state._lastname);
+		}
+		if ((changed & FIRSTNAME) != 0) {
+			firstname = _names.decode(state._firstname);
+		}
+		if ((changed & GENDER) != 0 && state._gender != 0) {
+			gender = GENDERS[state._gender - 1];
+		}
+		if ((changed & DATE_OF_BIRTH) != 0) {
+			dateOfBirth = ParoleeTable.toDate(state._dateOfBirth);
+		}
+		return new Change(KINDS[(flags >> 4) & 3], state._timestamp,
+				state._version, changed, lastname, firstname, gender,
+				dateOfBirth);
+	}
+
+	private static int writeVarint(byte[] bytes, int position, long value) {
+		while ((value & ~0x7fL) != 0) {
+			bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		bytes[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Reads a varint into value[0], returning the position after it.
+	 */
+	private static int readVarint(byte[] bytes, int position, long[] value) {
+		long result = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = bytes[position++];
+			result |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		value[0] = result;
+		return position;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,32 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+
+/**
+ * Provider for the JSON representation of Parolees (see ParoleeJsonReader
+ * and ParoleeJsonWriter). Several Parolees are written as a JSON array.
+ *
+ */
+@Consumes("application/json")
+@Produces("application/json")
+public class ParoleeJsonProvider extends ParoleeProvider {
+
+	Parolee read(InputStream is) throws Exception {
+		return ParoleeJsonReader.read(is);
+	}
+
+	void write(OutputStream os, Parolee parolee) throws IOException {
+		ParoleeJsonWriter.write(os, parolee);
+	}
+
+	void write(OutputStream os, Iterable<Parolee> parolees) throws IOException {
+		ParoleeJsonWriter.write(os, parolees);
+	}
+}
@@ -0,0 +1,419 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.joda.time.DateTime;
+
+/**
+ * Reads the JSON representation of a Parolee:
+ *
+ * {"id":..., "firstName":"...", "lastName":"...", "gender":"...",
+ *  "dateOfBirth":"dd/MM/yyyy"}
+ *
+ * Every member is optional and may be null, and unknown members are
+ * skipped, as are unknown elements in the XML representation. The parser is
+ * a small hand-written one for this flat shape: it reads the members
+ * straight into the Parolee, without building a tree.
+ *
+ * A single Parolee is small, so its document is read whole and then
+ * parsed. Several Parolees are read from newline-delimited JSON (NDJSON),
+ * with one object per line. Because records are delimited by lines, a
+ * malformed record can be skipped and reading can continue with the next.
+ *
+ * A document, or a line of NDJSON, may be at most MAX_RECORD_LENGTH
+ * characters, so that a request can't exhaust memory. A longer document is
+ * rejected as soon as the limit is passed; the rest of a longer line is
+ * skipped without being held, and the line is rejected as a malformed
+ * record.
+ *
+ */
+public class ParoleeJsonReader {
+
+	/**
+	 * The longest document or line accepted, in characters; as for
+	 * ParoleeBinaryCodec's records, far more than any Parolee needs.
+	 */
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+	/**
+	 * The deepest nesting of the values of unknown members accepted.
+	 */
+	private static final int MAX_DEPTH = 32;
+
+	/**
+	 * Reads a Parolee from its JSON representation, in UTF-8.
+	 *
+	 * @throws IllegalArgumentException if the document isn't a JSON object,
+	 * the id or date of birth is malformed, or the document is longer than
+	 * MAX_RECORD_LENGTH characters.
+	 */
+	public static Parolee read(InputStream is) throws IOException {
+		Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[512];
+		int count;
+		while ((count = reader.read(buffer)) > 0) {
+			if (text.length() + count > MAX_RECORD_LENGTH) {
+				throw new IllegalArgumentException("Document longer than "
+						+ MAX_RECORD_LENGTH + " characters");
+			}
+			text.append(buffer, 0, count);
+		}
+		return parse(text.toString());
+	}
+
+	/**
+	 * Returns a reader of the Parolees in an NDJSON document, in UTF-8. Blank
+	 * lines are ignored.
+	 */
+	static ParoleeRecordReader readAll(InputStream is) {
+		final LineReader reader = new LineReader(new InputStreamReader(is,
+				StandardCharsets.UTF_8));
+		return new ParoleeRecordReader() {
+			Parolee next() throws IOException {
+				String line;
+				do {
+					line = reader.readLine();
+					if (line == null) {
+						return null;
+					}
+				} while (line.trim().isEmpty());
+				return parse(line);
+			}
+
+			public void close() throws IOException {
+				reader._in.close();
+			}
+		};
+	}
+
+	/**
+	 * Reads lines terminated by '\n' or "\r\n", or the end of the stream.
+	 * Unlike BufferedReader.readLine(), a line longer than MAX_RECORD_LENGTH
+	 * isn't held: once the limit is passed, the rest of the line is skipped
+	 * and the line is rejected.
+	 */
+	private static class LineReader {
+		private final Reader _in;
+		private final char[] _buffer = new char[8192];
+		private int _position;
+		private int _limit;
+		private final StringBuilder _line = new StringBuilder(128);
+
+		LineReader(Reader in) {
+			_in = in;
+		}
+
+		/**
+		 * Reads a line, returning null at the end of the stream.
+		 *
+		 * @throws IllegalArgumentException if the line is longer than
+		 * MAX_RECORD_LENGTH characters. The line has been consumed.
+		 */
+		String readLine() throws IOException {
+			_line.setLength(0);
+			boolean tooLong = false;
+			while (true) {
+				if (_position == _limit) {
+					_limit = _in.read(_buffer);
+					_position = 0;
+					if (_limit < 0) {
+						_limit = 0;
+						if (tooLong) {
+							throw tooLong();
+						}
+						return _line.length() == 0 ? null : endLine();
+					}
+				}
+				int start = _position;
+				while (_position < _limit && _buffer[_position] != '\n') {
+					_position++;
+				}
+				if (!tooLong) {
+					if (_line.length() + _position - start > MAX_RECORD_LENGTH) {
+						tooLong = true;
+						_line.setLength(0);
+					} else {
+						_line.append(_buffer, start, _position - start);
+					}
+				}
+				if (_position < _limit) {
+					_position++;
+					if (tooLong) {
+						throw tooLong();
+					}
+					return endLine();
+				}
+			}
+		}
+
+		private String endLine() {
+			int length = _line.length();
+			if (length > 0 && _line.charAt(length - 1) == '\r') {
+				_line.setLength(length - 1);
+			}
+			return _line.toString();
+		}
+
+		private static IllegalArgumentException tooLong() {
+			return new IllegalArgumentException("Record longer than "
+					+ MAX_RECORD_LENGTH + " characters");
+		}
+	}
+
+	/**
+	 * Parses the JSON representation of a Parolee.
+	 *
+	 * @throws IllegalArgumentException if text isn't a JSON object, or the
+	 * id or date of birth is malformed.
+	 */
+	public static Parolee parse(String text) {
+		return new Parser(text).parseParolee();
+	}
+
+	/**
+	 * Recursive descent parser over the text of one JSON value.
+	 */
+	private static class Parser {
+		private final String _text;
+		private int _position;
+
+		Parser(String text) {
+			_text = text;
+		}
+
+		Parolee parseParolee() {
+			long id = 0;
+			String firstname = null;
+			String lastname = null;
+			Gender gender = null;
+			DateTime dateOfBirth = null;
+
+			expect('{');
+			if (!consume('}')) {
+				do {
+					String name = parseString();
+					expect(':');
+					if (name.equals("id")) {
+						String value = parseNumber();
+						id = value == null ? 0 : Long.parseLong(value);
+					} else if (name.equals("firstName")) {
+						firstname = parseNullableString();
+					} else if (name.equals("lastName")) {
+						lastname = parseNullableString();
+					} else if (name.equals("gender")) {
+						String value = parseNullableString();
+						gender = value == null ? null : Gender.fromString(value
+								.trim());
+					} else if (name.equals("dateOfBirth")) {
+						String value = parseNullableString();
+						dateOfBirth = value == null ? null
+								: ParoleeXmlReader.DATE_FORMATTER
+										.parseDateTime(value.trim());
+					} else {
+						skipValue(1);
+					}
+				} while (consume(','));
+				expect('}');
+			}
+			skipWhitespace();
+			if (_position < _text.length()) {
+				throw error("Unexpected text after object");
+			}
+			return new Parolee(id, 0, lastname, firstname, gender, dateOfBirth);
+		}
+
+		/**
+		 * Parses a string or null.
+		 */
+		private String parseNullableString() {
+			return consumeLiteral("null") ? null : parseString();
+		}
+
+		/**
+		 * Parses an integer or null, returning its text.
+		 */
+		private String parseNumber() {
+			if (consumeLiteral("null")) {
+				return null;
+			}
+			skipWhitespace();
+			int start = _position;
+			if (_position < _text.length() && _text.charAt(_position) == '-') {
+				_position++;
+			}
+			while (_position < _text.length()
+					&& Character.isDigit(_text.charAt(_position))) {
+				_position++;
+			}
+			if (_position == start) {
+				throw error("Expected a number");
+			}
+			return _text.substring(start, _position);
+		}
+
+		private String parseString() {
+			expect('"');
+			StringBuilder builder = null;
+			int start = _position;
+			while (true) {
+				if (_position >= _text.length()) {
+					throw error("Unterminated string");
+				}
+				char c = _text.charAt(_position++);
+				if (c == '"') {
+					if (builder == null) {
+						return _text.substring(start, _position - 1);
+					}
+					return builder.toString();
+				}
+				if (c != '\\') {
+					if (builder != null) {
+						builder.append(c);
+					}
+					continue;
+				}
+				// Copy the text so far, then decode the escape.
+				if (builder == null) {
+					builder = new StringBuilder(_text.substring(start,
+							_position - 1));
+				}
+				if (_position >= _text.length()) {
+					throw error("Unterminated string");
+				}
+				char escape = _text.charAt(_position++);
+				switch (escape) {
+				case '"':
+				case '\\':
+				case '/':
+					builder.append(escape);
+					break;
+				case 'b':
+					builder.append('\b');
+					break;
+				case 'f':
+					builder.append('\f');
+					break;
+				case 'n':
+					builder.append('\n');
+					break;
+				case 'r':
+					builder.append('\r');
+					break;
+				case 't':
+					builder.append('\t');
+					break;
+				case 'u':
+					if (_position + 4 > _text.length()) {
+						throw error("Malformed unicode escape");
+					}
+					try {
+						builder.append((char) Integer.parseInt(
+								_text.substring(_position, _position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("Malformed unicode escape");
+					}
+					_position += 4;
+					break;
+				default:
+					throw error("Unknown escape \\" + escape);
+				}
+			}
+		}
+
+		/**
+		 * Skips a value of any type, including nested objects and arrays,
+		 * nested to at most MAX_DEPTH levels. The limit keeps the recursion
+		 * from overflowing the stack, which would be an Error rather than a
+		 * malformed record.
+		 *
+		 * @param depth the nesting level of the value; 1 for a member of the
+		 * Parolee object.
+		 */
+		private void skipValue(int depth) {
+			if (depth > MAX_DEPTH) {
+				throw error("Nesting too deep");
+			}
+			skipWhitespace();
+			if (_position >= _text.length()) {
+				throw error("Expected a value");
+			}
+			char c = _text.charAt(_position);
+			if (c == '"') {
+				parseString();
+			} else if (c == '{') {
+				_position++;
+				if (!consume('}')) {
+					do {
+						parseString();
+						expect(':');
+						skipValue(depth + 1);
+					} while (consume(','));
+					expect('}');
+				}
+			} else if (c == '[') {
+				_position++;
+				if (!consume(']')) {
+					do {
+						skipValue(depth + 1);
+					} while (consume(','));
+					expect(']');
+				}
+			} else if (!consumeLiteral("null") && !consumeLiteral("true")
+					&& !consumeLiteral("false")) {
+				// A number, possibly with a fraction or exponent.
+				int start = _position;
+				while (_position < _text.length()
+						&& "+-.eE0123456789".indexOf(_text.charAt(_position)) >= 0) {
+					_position++;
+				}
+				if (_position == start) {
+					throw error("Expected a value");
+				}
+			}
+		}
+
+		private void expect(char c) {
+			if (!consume(c)) {
+				throw error("Expected '" + c + "'");
+			}
+		}
+
+		private boolean consume(char c) {
+			skipWhitespace();
+			if (_position < _text.length() && _text.charAt(_position) == c) {
+				_position++;
+				return true;
+			}
+			return false;
+		}
+
+		private boolean consumeLiteral(String literal) {
+			skipWhitespace();
+			if (_text.startsWith(literal, _position)) {
+				_position += literal.length();
+				return true;
+			}
+			return false;
+		}
+
+		private void skipWhitespace() {
+			while (_position < _text.length()
+					&& Character.isWhitespace(_text.charAt(_position))) {
+				_position++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at column "
+					+ (_position + 1));
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.joda.time.DateTime;
+
+/**
+ * Writes the JSON representation of Parolees (see ParoleeJsonReader) as
+ * UTF-8. Several Parolees are written as a JSON array, encoded as they are
+ * iterated through a fixed-size buffer, so memory use doesn't depend on the
+ * number of Parolees.
+ *
+ */
+public class ParoleeJsonWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Writes the JSON representation of a Parolee.
+	 */
+	public static void write(OutputStream os, Parolee parolee)
+			throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(os,
+				StandardCharsets.UTF_8), 256);
+		encode(writer, parolee);
+		writer.flush();
+	}
+
+	/**
+	 * Writes a JSON array of several Parolees.
+	 */
+	public static void write(OutputStream os, Iterable<Parolee> parolees)
+			throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(os,
+				StandardCharsets.UTF_8), BUFFER_SIZE);
+		writer.write('[');
+		boolean first = true;
+		for (Parolee parolee : parolees) {
+			if (!first) {
+				writer.write(",\n");
+			}
+			encode(writer, parolee);
+			first = false;
+		}
+		writer.write("]\n");
+		writer.flush();
+	}
+
+	private static void encode(Writer writer, Parolee parolee)
+			throws IOException {
+		writer.write("{\"id\":");
+		writer.write(Long.toString(parolee.getId()));
+		writer.write(",\"version\":");
+		writer.write(Long.toString(parolee.getVersion()));
+		writer.write(",\"firstName\":");
+		writeString(writer, parolee.getFirstname());
+		writer.write(",\"lastName\":");
+		writeString(writer, parolee.getLastname());
+		writer.write(",\"gender\":");
+		writeString(writer, parolee.getGender() == null ? null : parolee
+				.getGender().toString());
+		writer.write(",\"dateOfBirth\":");
+		DateTime dateOfBirth = parolee.getDateOfBirth();
+		writeString(writer, dateOfBirth == null ? null
+				: ParoleeXmlReader.DATE_FORMATTER.print(dateOfBirth));
+		writer.write('}');
+	}
+
+	private static void writeString(Writer writer, String text)
+			throws IOException {
+		if (text == null) {
+			writer.write("null");
+			return;
+		}
+		writer.write('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c < 0x20) {
+				writer.write(String.format("\\u%04x", (int) c));
+			} else {
+				writer.write(c);
+			}
+		}
+		writer.write('"');
+	}
+}
@@ -0,0 +1,106 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+
+/**
+ * Base class of the MessageBodyReaders and MessageBodyWriters that convert
+ * Parolees to and from one representation. Each subclass declares its media
+ * type with @Consumes and @Produces, and the JAX-RS run-time picks the
+ * provider whose media type matches the request's Content-Type, or the
+ * best match for its Accept header.
+ *
+ * A provider reads a Parolee, and writes either a Parolee or an Iterable
+ * of Parolees; an Iterable is written as it is iterated, so a resource
+ * method can return Parolees streamed from the ParoleeRegistry (wrapped in
+ * a GenericEntity, so that the element type is known).
+ *
+ */
+abstract class ParoleeProvider implements MessageBodyReader<Parolee>,
+		MessageBodyWriter<Object> {
+
+	/**
+	 * Reads a Parolee.
+	 *
+	 * @throws Exception if the representation is malformed.
+	 */
+	abstract Parolee read(InputStream is) throws Exception;
+
+	/**
+	 * Writes a Parolee.
+	 */
+	abstract void write(OutputStream os, Parolee parolee) throws IOException;
+
+	/**
+	 * Writes several Parolees.
+	 */
+	abstract void write(OutputStream os, Iterable<Parolee> parolees)
+			throws IOException;
+
+	public boolean isReadable(Class<?> type, Type genericType,
+			Annotation[] annotations, MediaType mediaType) {
+		return type == Parolee.class;
+	}
+
+	/**
+	 * Reads a Parolee, responding with 400 (Bad Request) if the request's
+	 * representation is malformed.
+	 */
+	public Parolee readFrom(Class<Parolee> type, Type genericType,
+			Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+			throws IOException, WebApplicationException {
+		try {
+			return read(entityStream);
+		} catch (Exception e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+	}
+
+	public boolean isWriteable(Class<?> type, Type genericType,
+			Annotation[] annotations, MediaType mediaType) {
+		if (Parolee.class.isAssignableFrom(type)) {
+			return true;
+		}
+		if (!Iterable.class.isAssignableFrom(type)
+				|| !(genericType instanceof ParameterizedType)) {
+			return false;
+		}
+		Type[] arguments = ((ParameterizedType) genericType)
+				.getActualTypeArguments();
+		return arguments.length == 1 && arguments[0] == Parolee.class;
+	}
+
+	/**
+	 * The length isn't known until the representation has been written.
+	 */
+	public long getSize(Object entity, Class<?> type, Type genericType,
+			Annotation[] annotations, MediaType mediaType) {
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void writeTo(Object entity, Class<?> type, Type genericType,
+			Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+			throws IOException, WebApplicationException {
+		if (entity instanceof Parolee) {
+			write(entityStream, (Parolee) entity);
+		} else {
+			write(entityStream, (Iterable<Parolee>) entity);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package nz.ac.auckland.parolee.services;
+
+import java.util.Locale;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.joda.time.DateTime;
+
+/**
+ * Criteria for selecting Parolees. Each criterion is optional (null), and a
+ * Parolee matches a query if it satisfies all of the query's criteria:
+ *
+ * - lastname:       last name equal to the given one, ignoring case.
+ * - lastnamePrefix: last name starting with the given text, ignoring case.
+ * - gender:         gender equal to the given one.
+ * - bornFrom:       date of birth on or after the given date.
+ * - bornTo:         date of birth on or before the given date.
+ *
+ * A ParoleeRegistry answers queries from its indexes; matches() checks a
+ * single Parolee directly.
+ *
+ */
+public class ParoleeQuery {
+	private final String _lastname;
+	private final String _lastnamePrefix;
+	private final Gender _gender;
+	private final DateTime _bornFrom;
+	private final DateTime _bornTo;
+
+	public ParoleeQuery(String lastname, String lastnamePrefix, Gender gender,
+			DateTime bornFrom, DateTime bornTo) {
+		_lastname = lastname == null ? null : normalise(lastname);
+		_lastnamePrefix = lastnamePrefix == null ? null
+				: normalise(lastnamePrefix);
+		_gender = gender;
+		_bornFrom = bornFrom;
+		_bornTo = bornTo;
+	}
+
+	/**
+	 * Returns the last name criterion, in the normalised (lower case) form
+	 * used by ParoleeRegistry's index.
+	 */
+	public String getLastname() {
+		return _lastname;
+	}
+
+	/**
+	 * Returns the last name prefix criterion, normalised as for getLastname().
+	 */
+	public String getLastnamePrefix() {
+		return _lastnamePrefix;
+	}
+
+	public Gender getGender() {
+		return _gender;
+	}
+
+	public DateTime getBornFrom() {
+		return _bornFrom;
+	}
+
+	public DateTime getBornTo() {
+		return _bornTo;
+	}
+
+	/**
+	 * Returns true if the query has no criteria, and so matches every
+	 * Parolee.
+	 */
+	public boolean isEmpty() {
+		return _lastname == null && _lastnamePrefix == null && _gender == null
+				&& _bornFrom == null && _bornTo == null;
+	}
+
+	/**
+	 * Returns true if the specified Parolee satisfies all of the query's
+	 * criteria.
+	 */
+	public boolean matches(Parolee parolee) {
+		String lastname = parolee.getLastname() == null ? null
+				: normalise(parolee.getLastname());
+		if (_lastname != null && !_lastname.equals(lastname)) {
+			return false;
+		}
+		if (_lastnamePrefix != null
+				&& (lastname == null || !lastname.startsWith(_lastnamePrefix))) {
+			return false;
+		}
+		if (_gender != null && _gender != parolee.getGender()) {
+			return false;
+		}
+		DateTime dateOfBirth = parolee.getDateOfBirth();
+		if (_bornFrom != null
+				&& (dateOfBirth == null || dateOfBirth.isBefore(_bornFrom))) {
+			return false;
+		}
+		if (_bornTo != null
+				&& (dateOfBirth == null || dateOfBirth.isAfter(_bornTo))) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the form in which last names are compared and indexed.
+	 */
+	static String normalise(String lastname) {
+		return lastname.toLowerCase(Locale.ROOT);
+	}
+}
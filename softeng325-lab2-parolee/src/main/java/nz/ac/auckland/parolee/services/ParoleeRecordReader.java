@@ -0,0 +1,29 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+
+/**
+ * Reads a document holding many Parolee representations one record at a
+ * time, so that a document of any size is processed as it arrives rather
+ * than being held in memory.
+ *
+ */
+abstract class ParoleeRecordReader implements Closeable {
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the Parolee, or null at the end of the document.
+	 *
+	 * @throws IllegalArgumentException if the record is invalid (for
+	 * example, has a malformed date of birth). The record has been consumed,
+	 * so reading can continue with the next one.
+	 *
+	 * @throws IOException if the document is malformed or can't be read. No
+	 * further records can be read.
+	 */
+	abstract Parolee next() throws IOException;
+}
@@ -0,0 +1,800 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+import nz.ac.auckland.parolee.services.ParoleeTable.Chunk;
+import nz.ac.auckland.parolee.services.ParoleeTable.IdList;
+
+/**
+ * In-memory store of Parolees, with secondary indexes for answering
+ * ParoleeQuerys without scanning every Parolee.
+ *
+ * Parolees are stored by column rather than as objects, so that a large
+ * registry costs tens rather than hundreds of bytes per Parolee. Ids are
+ * allocated consecutively, and the id of a Parolee is its row number in
+ * each column. The columns are primitive arrays, allocated in fixed-size
+ * chunks as the registry grows:
+ *
+ * - version:       a long per row; 0 marks a row with no Parolee.
+ * - names:         an int per row for each of the first and last names,
+ *                  holding a code from a NameDictionary, so each distinct
+ *                  name is held once.
+ * - gender:        two bits per row, packed into longs.
+ * - date of birth: an int per row holding the day number (days since
+ *                  1970-01-01); dates of birth are held to the day, which is
+ *                  all the XML representation carries.
+ *
+ * A Parolee object is materialised from its row only when it is retrieved.
+ *
+ * Alongside the columns the registry maintains three indexes:
+ *
+ * - last name:     a sorted map from normalised last name to the sorted ids
+ *                  of the Parolees with that name, so exact and prefix
+ *                  lookups are a logarithmic search followed by a walk over
+ *                  the matches.
+ * - gender:        a bitmap of ids per Gender.
+ * - date of birth: a sorted map from day number to ids, so a range of dates
+ *                  is a logarithmic search followed by a walk.
+ *
+ * A query looks up each of its criteria in the corresponding index, giving
+ * a bitmap of ids per criterion, and intersects the bitmaps.
+ *
+ * Each stored Parolee carries a version, unique across the registry. Rows
+ * are guarded by a set of StampedLocks (stripes); each stripe covers blocks
+ * of 32 consecutive rows, so that rows whose genders share a long are
+ * always written under the same lock. A read is optimistic: it reads the
+ * row without locking and then checks that no write to the stripe
+ * intervened, taking the read lock only if one did. A write - create,
+ * update or delete - holds the stripe's write lock while it checks the
+ * row's version, rewrites the row and updates the indexes, so a reader
+ * always sees a whole record and the indexes change in the same order as
+ * the rows. Index lookups take the index read lock, which is held only
+ * while ids are collected, not while matching Parolees are returned.
+ *
+ * As in ConcertStore, clearing the registry replaces all of its state (a
+ * ParoleeTable) with a single pointer swap, rather than emptying the
+ * columns in place. The swap is made while holding the write lock of every
+ * stripe of the old table, and a write checks, once it holds its stripe's
+ * lock, that its table is still the current one; if not, the write was
+ * overtaken by a clear and is retried against the new table. So no write
+ * lands in a table that has been discarded, and no write is logged after
+ * the clear that discarded it.
+ *
+ * A registry constructed with a ParoleeStorage is persistent: each change
+ * is logged, under the stripe's write lock, before it is applied, and the
+ * registry is restored from the storage's snapshot and logs on
+ * construction. A registry constructed with a ParoleeHistory records each
+ * change in it, also under the stripe's write lock (and a clear under every
+ * stripe's write lock), so the history of each id is in the order the
+ * changes were made. A persistent registry also appends each recorded change
+ * to the storage's history log, and restores its history from that log on
+ * construction; changes replayed from the storage's logs aren't recorded
+ * again.
+ *
+ * Since bitmaps are indexed by int, ids are limited to Integer.MAX_VALUE.
+ *
+ */
+public class ParoleeRegistry {
+
+	/**
+	 * Thrown by update() when the Parolee to be updated isn't at the expected
+	 * version.
+	 */
+	public static class VersionConflictException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private final Parolee _current;
+
+		VersionConflictException(Parolee current) {
+			super("Parolee " + current.getId() + " is at version "
+					+ current.getVersion());
+			_current = current;
+		}
+
+		/**
+		 * Returns the Parolee's current state.
+		 */
+		public Parolee getCurrent() {
+			return _current;
+		}
+	}
+
+	/**
+	 * A page of Parolees returned by find().
+	 */
+	public static class Page {
+		private final Iterable<Parolee> _parolees;
+		private final Long _next;
+
+		Page(Iterable<Parolee> parolees, Long next) {
+			_parolees = parolees;
+			_next = next;
+		}
+
+		/**
+		 * Returns the Parolees in the page, in id order. They are retrieved
+		 * from the registry as they are iterated.
+		 */
+		public Iterable<Parolee> getParolees() {
+			return _parolees;
+		}
+
+		/**
+		 * Returns the cursor from which to retrieve the next page, or null if
+		 * this is the last page.
+		 */
+		public Long getNext() {
+			return _next;
+		}
+	}
+
+	private volatile ParoleeTable _table;
+	private final AtomicLong _versionCounter = new AtomicLong();
+
+	// Where changes are logged, or null if the registry is held only in
+	// memory.
+	private final ParoleeStorage _storage;
+
+	// Where changes are recorded, or null if no history is kept.
+	private final ParoleeHistory _history;
+
+	/**
+	 * Creates an empty registry, held only in memory.
+	 */
+	public ParoleeRegistry() {
+		this((ParoleeHistory) null);
+	}
+
+	/**
+	 * Creates an empty registry, held only in memory, that records its
+	 * changes in history.
+	 */
+	public ParoleeRegistry(ParoleeHistory history) {
+		_table = new ParoleeTable();
+		_storage = null;
+		_history = history;
+	}
+
+	/**
+	 * Creates a registry persisted by storage, restoring the Parolees it
+	 * holds. Rows are paged in from the snapshot as they are accessed, and
+	 * the indexes are built on the first query, so this returns after
+	 * reading only the snapshot's name dictionary and replaying the logs.
+	 */
+	public ParoleeRegistry(ParoleeStorage storage) throws IOException {
+		this(storage, null);
+	}
+
+	/**
+	 * Creates a registry persisted by storage, as above, that records its
+	 * changes in history (if non-null). The history log is replayed into
+	 * history in the background, so history may not yet be loaded when this
+	 * returns.
+	 */
+	public ParoleeRegistry(ParoleeStorage storage, ParoleeHistory history)
+			throws IOException {
+		_table = storage.load();
+		_versionCounter.set(storage.getVersionCounter());
+		_storage = storage;
+		_history = history;
+		if (history != null) {
+			storage.loadHistory(history);
+		}
+		storage.replay(this);
+		storage.start(this);
+	}
+
+	/**
+	 * Stores a copy of the specified Parolee under a newly allocated id, at a
+	 * new version.
+	 *
+	 * @param parolee the Parolee to store. Any id and version it carries are
+	 * ignored.
+	 *
+	 * @return the stored Parolee.
+	 *
+	 * @throws IllegalStateException if no more ids can be allocated.
+	 */
+	public Parolee create(Parolee parolee) {
+		while (true) {
+			ParoleeTable table = _table;
+			long id = table._idCounter.incrementAndGet();
+			if (id > Integer.MAX_VALUE) {
+				table._idCounter.decrementAndGet();
+				throw new IllegalStateException("Parolee ids exhausted");
+			}
+			int row = (int) id;
+			long version = _versionCounter.incrementAndGet();
+			Chunk chunk = table.chunk(row);
+			if (chunk == null) {
+				chunk = table.allocate(row);
+			}
+
+			StampedLock stripe = table.stripe(row);
+			long stamp = stripe.writeLock();
+			try {
+				if (_table != table) {
+					// Overtaken by a clear; create in the new table.
+					continue;
+				}
+				if (_storage != null) {
+					_storage.logPut(row, version, parolee);
+				}
+				table.write(chunk, row, version, parolee, null);
+				recordPut(row, version, parolee);
+				return table.getLocked(chunk, row);
+			} finally {
+				stripe.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Stores a batch of Parolees. Each Parolee with id 0 is created, as by
+	 * create(); each other Parolee replaces the Parolee with its id, as by
+	 * update() with no expected version.
+	 *
+	 * The Parolees to be created are given consecutive ids and versions in a
+	 * single step, and are written a block of rows at a time, taking each
+	 * stripe's write lock (and logging to the storage) once per block rather
+	 * than once per Parolee. If a clear overtakes the batch, the Parolees
+	 * already written are cleared with the rest, and all of them are created
+	 * again in the new table.
+	 *
+	 * @return the stored Parolees, in the order of parolees, with null for
+	 * each update of a Parolee that doesn't exist.
+	 *
+	 * @throws IllegalStateException if no more ids can be allocated.
+	 */
+	public Parolee[] upsert(List<Parolee> parolees) {
+		Parolee[] stored = new Parolee[parolees.size()];
+		List<Parolee> creates = new ArrayList<Parolee>(parolees.size());
+		for (int i = 0; i < parolees.size(); i++) {
+			Parolee parolee = parolees.get(i);
+			if (parolee.getId() == 0) {
+				creates.add(parolee);
+			} else {
+				stored[i] = update(parolee.getId(), parolee, 0);
+			}
+		}
+		if (creates.isEmpty()) {
+			return stored;
+		}
+
+		int count = creates.size();
+		long first;
+		long firstVersion;
+		boolean overtaken;
+		do {
+			ParoleeTable table = _table;
+			first = table._idCounter.getAndAdd(count) + 1;
+			if (first + count - 1 > Integer.MAX_VALUE) {
+				table._idCounter.addAndGet(-count);
+				throw new IllegalStateException("Parolee ids exhausted");
+			}
+			firstVersion = _versionCounter.getAndAdd(count) + 1;
+
+			overtaken = false;
+			int i = 0;
+			while (i < count && !overtaken) {
+				int row = (int) (first + i);
+				// A block of 32 rows shares a stripe, and never spans chunks.
+				int blockEnd = Math.min(count, i + (row | 31) + 1 - row);
+				Chunk chunk = table.chunk(row);
+				if (chunk == null) {
+					chunk = table.allocate(row);
+				}
+				StampedLock stripe = table.stripe(row);
+				long stamp = stripe.writeLock();
+				try {
+					if (_table != table) {
+						overtaken = true;
+						continue;
+					}
+					if (_storage != null) {
+						_storage.logPuts(row, firstVersion + i,
+								creates.subList(i, blockEnd));
+					}
+					recordPuts(row, firstVersion + i, creates.subList(i,
+							blockEnd));
+					for (; i < blockEnd; i++, row++) {
+						table.write(chunk, row, firstVersion + i,
+								creates.get(i), null);
+					}
+				} finally {
+					stripe.unlockWrite(stamp);
+				}
+			}
+		} while (overtaken);
+
+		int created = 0;
+		for (int j = 0; j < stored.length; j++) {
+			if (parolees.get(j).getId() == 0) {
+				stored[j] = creates.get(created).withIdentity(first + created,
+						firstVersion + created);
+				created++;
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Retrieves the Parolee with the specified id, or null if there is no
+	 * such Parolee.
+	 */
+	public Parolee get(long id) {
+		if (id < 1 || id > Integer.MAX_VALUE) {
+			return null;
+		}
+		return _table.get((int) id);
+	}
+
+	/**
+	 * Replaces the Parolee with the specified id by a copy of update, at a
+	 * new version.
+	 *
+	 * @param expectedVersion the version the Parolee must be at, or 0 to
+	 * replace whatever version is current.
+	 *
+	 * @return the stored Parolee, or null if there is no Parolee with the
+	 * specified id.
+	 *
+	 * @throws VersionConflictException if the Parolee isn't at
+	 * expectedVersion.
+	 */
+	public Parolee update(long id, Parolee update, long expectedVersion) {
+		if (id < 1 || id > Integer.MAX_VALUE) {
+			return null;
+		}
+		int row = (int) id;
+		while (true) {
+			ParoleeTable table = _table;
+			Chunk chunk = table.chunk(row);
+			if (chunk == null) {
+				return null;
+			}
+
+			StampedLock stripe = table.stripe(row);
+			long stamp = stripe.writeLock();
+			try {
+				if (_table != table) {
+					// Overtaken by a clear; look for the row in the new table.
+					continue;
+				}
+				Parolee current = table.getLocked(chunk, row);
+				if (current == null) {
+					return null;
+				}
+				if (expectedVersion != 0
+						&& current.getVersion() != expectedVersion) {
+					throw new VersionConflictException(current);
+				}
+				long version = _versionCounter.incrementAndGet();
+				if (_storage != null) {
+					_storage.logPut(row, version, update);
+				}
+				table.write(chunk, row, version, update, current);
+				recordPut(row, version, update);
+				return table.getLocked(chunk, row);
+			} finally {
+				stripe.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Removes the Parolee with the specified id.
+	 *
+	 * @return false if there is no such Parolee.
+	 */
+	public boolean delete(long id) {
+		if (id < 1 || id > Integer.MAX_VALUE) {
+			return false;
+		}
+		int row = (int) id;
+		while (true) {
+			ParoleeTable table = _table;
+			Chunk chunk = table.chunk(row);
+			if (chunk == null) {
+				return false;
+			}
+
+			StampedLock stripe = table.stripe(row);
+			long stamp = stripe.writeLock();
+			try {
+				if (_table != table) {
+					// Overtaken by a clear; look for the row in the new table.
+					continue;
+				}
+				Parolee current = table.getLocked(chunk, row);
+				if (current == null) {
+					return false;
+				}
+				if (_storage != null) {
+					_storage.logDelete(row);
+				}
+				table.erase(chunk, row, current);
+				recordDelete(row);
+				return true;
+			} finally {
+				stripe.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Records the storing of a Parolee in the history, if there is one, and
+	 * in the storage's history log. Called with the row's stripe locked.
+	 */
+	private void recordPut(int row, long version, Parolee parolee) {
+		if (_history == null) {
+			return;
+		}
+		long timestamp = System.currentTimeMillis();
+		if (_storage != null) {
+			_storage.logHistoryPut(row, version, timestamp, parolee);
+		}
+		_history.recordPut(row, version, parolee, timestamp);
+	}
+
+	/**
+	 * Records the storing of Parolees with consecutive ids and versions, as
+	 * recordPut() does, logging them in a single write.
+	 */
+	private void recordPuts(int row, long version, List<Parolee> parolees) {
+		if (_history == null) {
+			return;
+		}
+		long timestamp = System.currentTimeMillis();
+		if (_storage != null) {
+			_storage.logHistoryPuts(row, version, timestamp, parolees);
+		}
+		for (int i = 0; i < parolees.size(); i++) {
+			_history.recordPut(row + i, version + i, parolees.get(i),
+					timestamp);
+		}
+	}
+
+	private void recordDelete(int row) {
+		if (_history == null) {
+			return;
+		}
+		long timestamp = System.currentTimeMillis();
+		if (_storage != null) {
+			_storage.logHistoryDelete(row, timestamp);
+		}
+		_history.recordDelete(row, timestamp);
+	}
+
+	private void recordClear() {
+		if (_history == null) {
+			return;
+		}
+		long timestamp = System.currentTimeMillis();
+		if (_storage != null) {
+			_storage.logHistoryClear(timestamp);
+		}
+		_history.recordClear(timestamp);
+	}
+
+	/**
+	 * Removes all Parolees and resets id allocation, by replacing the
+	 * registry's ParoleeTable. Versions continue to increase, so a version is
+	 * never reused.
+	 *
+	 * The old table's stripes are all write-locked while the clear is logged,
+	 * recorded in the history and the table replaced, so the clear waits for
+	 * writes in progress, and writes that follow it find the new table.
+	 */
+	public void clear() {
+		while (true) {
+			ParoleeTable table = _table;
+			long[] stamps = table.lockStripes();
+			try {
+				if (_table != table) {
+					// Replaced by a concurrent clear while the stripes were
+					// being locked.
+					continue;
+				}
+				if (_storage == null) {
+					recordClear();
+					_table = new ParoleeTable();
+					return;
+				}
+				// Logging and swapping under the storage's lock ensures a
+				// snapshot never captures the old table after the clear has
+				// been logged.
+				synchronized (_storage) {
+					_storage.logClear();
+					recordClear();
+					_table = new ParoleeTable();
+				}
+				return;
+			} finally {
+				table.unlockStripes(stamps);
+			}
+		}
+	}
+
+	/**
+	 * Stores a Parolee replayed from a log under its logged id and version,
+	 * without logging it again.
+	 */
+	void restore(long id, long version, Parolee parolee) {
+		ParoleeTable table = _table;
+		int row = (int) id;
+		if (table._idCounter.get() < id) {
+			table._idCounter.set(id);
+		}
+		if (_versionCounter.get() < version) {
+			_versionCounter.set(version);
+		}
+		Chunk chunk = table.allocate(row);
+		StampedLock stripe = table.stripe(row);
+		long stamp = stripe.writeLock();
+		try {
+			table.write(chunk, row, version, parolee, table.getLocked(chunk, row));
+		} finally {
+			stripe.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes a Parolee whose deletion is replayed from a log.
+	 */
+	void restoreDelete(long id) {
+		ParoleeTable table = _table;
+		int row = (int) id;
+		Chunk chunk = table.chunk(row);
+		if (chunk == null) {
+			return;
+		}
+		StampedLock stripe = table.stripe(row);
+		long stamp = stripe.writeLock();
+		try {
+			Parolee current = table.getLocked(chunk, row);
+			if (current != null) {
+				table.erase(chunk, row, current);
+			}
+		} finally {
+			stripe.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Replaces the registry's ParoleeTable for a clear replayed from a log.
+	 * Replay happens before the registry is shared, so the old table, which
+	 * may be backed by the snapshot, can be closed straight away.
+	 */
+	void restoreClear() throws IOException {
+		ParoleeTable table = _table;
+		_table = new ParoleeTable();
+		table.close();
+	}
+
+	/**
+	 * Returns the registry's current ParoleeTable, for snapshotting.
+	 */
+	ParoleeTable table() {
+		return _table;
+	}
+
+	/**
+	 * Returns the highest version allocated.
+	 */
+	long versionCounter() {
+		return _versionCounter.get();
+	}
+
+	/**
+	 * Finds the Parolees matching a query, in id order.
+	 *
+	 * @param query the criteria to match.
+	 *
+	 * @param after the id after which to start (exclusive).
+	 *
+	 * @param size the maximum number of Parolees in the page, or 0 for all.
+	 */
+	public Page find(ParoleeQuery query, long after, int size) {
+		ParoleeTable table = _table;
+		int from = (int) Math.min(Math.max(after + 1, 1), Integer.MAX_VALUE);
+		if (query.isEmpty()) {
+			return scan(table, from, size);
+		}
+
+		BitSet ids = lookup(table, query);
+		ids.clear(0, from);
+
+		Long next = null;
+		if (size > 0) {
+			int last = -1;
+			int count = 0;
+			for (int id = ids.nextSetBit(from); id >= 0; id = ids
+					.nextSetBit(id + 1)) {
+				if (count == size) {
+					next = (long) last;
+					ids.clear(id, ids.length());
+					break;
+				}
+				last = id;
+				count++;
+			}
+		}
+		return new Page(select(table, ids, query), next);
+	}
+
+	/**
+	 * Pages through all Parolees, row by row.
+	 */
+	private Page scan(final ParoleeTable table, final int from, int size) {
+		Long next = null;
+		long to = Long.MAX_VALUE;
+		if (size > 0) {
+			long end = table._idCounter.get();
+			long last = from - 1;
+			int count = 0;
+			for (long row = from; row <= end; row++) {
+				if (table.version((int) row) != 0) {
+					if (count == size) {
+						next = last;
+						break;
+					}
+					last = row;
+					count++;
+				}
+			}
+			to = last;
+		}
+
+		final long lastRow = to;
+		Iterable<Parolee> parolees = new Iterable<Parolee>() {
+			public Iterator<Parolee> iterator() {
+				final long end = Math.min(lastRow, table._idCounter.get());
+				return new ParoleeIterator() {
+					private long _row = from - 1;
+
+					protected Parolee advance() {
+						while (_row < end) {
+							Parolee parolee = table.get((int) ++_row);
+							if (parolee != null) {
+								return parolee;
+							}
+						}
+						return null;
+					}
+				};
+			}
+		};
+		return new Page(parolees, next);
+	}
+
+	/**
+	 * Returns the ids of the Parolees satisfying every criterion of a
+	 * (non-empty) query, according to the indexes.
+	 */
+	private BitSet lookup(ParoleeTable table, ParoleeQuery query) {
+		table.ensureIndexed();
+		table._indexLock.readLock().lock();
+		try {
+			BitSet result = null;
+			if (query.getLastname() != null) {
+				BitSet ids = new BitSet();
+				IdList postings = table._byLastname.get(query.getLastname());
+				if (postings != null) {
+					postings.addTo(ids);
+				}
+				result = intersect(result, ids);
+			}
+			if (query.getLastnamePrefix() != null) {
+				String prefix = query.getLastnamePrefix();
+				BitSet ids = new BitSet();
+				for (Map.Entry<String, IdList> entry : table._byLastname
+						.tailMap(prefix, true).entrySet()) {
+					if (!entry.getKey().startsWith(prefix)) {
+						break;
+					}
+					entry.getValue().addTo(ids);
+				}
+				result = intersect(result, ids);
+			}
+			if (query.getGender() != null) {
+				result = intersect(result, (BitSet) table._byGender.get(
+						query.getGender()).clone());
+			}
+			if (query.getBornFrom() != null || query.getBornTo() != null) {
+				NavigableMap<Integer, IdList> range = table._byDateOfBirth;
+				if (query.getBornFrom() != null) {
+					range = range.tailMap(
+							ParoleeTable.toDayNumber(query.getBornFrom()), true);
+				}
+				if (query.getBornTo() != null) {
+					range = range.headMap(
+							ParoleeTable.toDayNumber(query.getBornTo()), true);
+				}
+				BitSet ids = new BitSet();
+				for (IdList postings : range.values()) {
+					postings.addTo(ids);
+				}
+				result = intersect(result, ids);
+			}
+			return result;
+		} finally {
+			table._indexLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a view of the Parolees with the specified ids that (still)
+	 * match query, materialising each as it's iterated. A Parolee can be
+	 * updated or deleted after its id is looked up, so each is checked again.
+	 */
+	private Iterable<Parolee> select(final ParoleeTable table, final BitSet ids,
+			final ParoleeQuery query) {
+		return new Iterable<Parolee>() {
+			public Iterator<Parolee> iterator() {
+				return new ParoleeIterator() {
+					private int _id = -1;
+
+					protected Parolee advance() {
+						while (true) {
+							_id = ids.nextSetBit(_id + 1);
+							if (_id < 0) {
+								return null;
+							}
+							Parolee parolee = table.get(_id);
+							if (parolee != null && query.matches(parolee)) {
+								return parolee;
+							}
+						}
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Iterator over Parolees produced one at a time by advance().
+	 */
+	private static abstract class ParoleeIterator implements Iterator<Parolee> {
+		private Parolee _next;
+
+		/**
+		 * Returns the next Parolee, or null if there are no more.
+		 */
+		protected abstract Parolee advance();
+
+		public boolean hasNext() {
+			if (_next == null) {
+				_next = advance();
+			}
+			return _next != null;
+		}
+
+		public Parolee next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Parolee parolee = _next;
+			_next = null;
+			return parolee;
+		}
+	}
+
+	private static BitSet intersect(BitSet result, BitSet ids) {
+		if (result == null) {
+			return ids;
+		}
+		result.and(ids);
+		return result;
+	}
+}
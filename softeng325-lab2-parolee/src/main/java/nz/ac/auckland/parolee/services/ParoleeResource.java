@@ -3,38 +3,37 @@ package nz.ac.auckland.parolee.services;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.net.URI;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.ws.rs.core.UriInfo;
 
 import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Movement;
 import nz.ac.auckland.parolee.domain.Parolee;
 
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 /**
  * Class to implement a simple REST Web service for managing parolees.
@@ -43,21 +42,77 @@ import org.w3c.dom.NodeList;
  * 
  * - GET    <base-uri>/parolees/{id}
  *          Retrieves a parolee based on their unique id. The format of the 
- *          returned data is XML.
+ *          returned data is XML, or JSON or the compact binary format if 
+ *          the request's Accept header prefers them. The response carries 
+ *          an ETag identifying the parolee's version, and a request whose 
+ *          If-None-Match header matches it is answered with 304 (Not 
+ *          Modified).
+ *          
+ * - GET    <base-uri>/parolees?after&size&lastname&lastnamePrefix&gender
+ *          &bornFrom&bornTo
+ *          Retrieves, in id order, the parolees with ids greater than after
+ *          (default 0), optionally only those with the given last name or
+ *          last name prefix (ignoring case), gender, and date of birth 
+ *          within the range bornFrom to bornTo inclusive (dd/MM/yyyy). At 
+ *          most size parolees are returned (default: all); if more match, 
+ *          the response includes a Link header with rel "next" identifying
+ *          the following page. The returned data is an XML <parolees> 
+ *          document, a JSON array or a sequence of binary records.
  *          
  * - POST   <base-uri>/parolees
- *          Creates a new Parolee. The HTTP post message contains an XML 
- *          representation of the parolee to be created.
+ *          Creates a new Parolee. The HTTP post message contains an XML, 
+ *          JSON or binary representation of the parolee to be created, as
+ *          identified by its Content-Type.
+ *          
+ * - POST   <base-uri>/parolees/bulk
+ *          Creates and updates many parolees. The HTTP post message 
+ *          contains either a <parolees> XML document or NDJSON (one JSON 
+ *          object per line); a parolee with an id replaces the parolee with
+ *          that id, and one without is created. The records are stored in
+ *          batches as they are read, and the response streams back a result
+ *          per record in the same format (see ParoleeBulkLoader).
  *          
  * - PUT    <base-uri>/parolees/{id}
  *          Updates a parolee, identified by their id.The HTTP PUT message
- *          contains an XML document describing the new state of the parolee.
+ *          contains an XML, JSON or binary representation of the new state
+ *          of the parolee.
+ *          If the request has an If-Match header, the parolee is updated 
+ *          only if it is still at that version (ETag), otherwise the 
+ *          response is 412 (Precondition Failed).
+ *          
+ * - POST   <base-uri>/parolees/{id}/movements
+ *          Records movements (GPS positions or check-ins) of a parolee. The
+ *          HTTP post message contains an XML <movement>, or a <movements> 
+ *          document listing several.
+ *          
+ * - GET    <base-uri>/parolees/{id}/movements?latest&from&to&after&size
+ *          Retrieves the movements of a parolee, in the order they were 
+ *          recorded, with timestamps from from to to inclusive (ISO 8601, 
+ *          both optional): the latest ones, if latest is given, otherwise
+ *          those after the cursor after (default: from the oldest). At 
+ *          most size movements are returned (default and maximum: 
+ *          parolee.movements.pageSize, 1000); if more match, the response
+ *          includes a Link header with rel "next" identifying the 
+ *          following page. The returned data is an XML <movements> 
+ *          document.
+ *          
+ * - GET    <base-uri>/parolees/{id}/history?asOf
+ *          Retrieves the history of changes to a parolee, oldest first, as
+ *          an XML <history> document listing the fields each change set. 
+ *          If asOf (ISO 8601) is given, retrieves instead the parolee as it 
+ *          was at that time, in the same form as GET <base-uri>/parolees/{id}.
+ *          Returns 503 while the history is being loaded after a restart.
  *          
  * - DELETE <base-uri>/parolees/{id}
- *          Deletes a parolee, identified by their unique id.
+ *          Deletes a parolee, identified by their unique id, and their 
+ *          movements.
  *          
  * - DELETE <base-uri>/parolees
- *          Deletes all parolees.         
+ *          Deletes all parolees, and their movements.         
+ *
+ * Parolees are converted to and from their representations by the
+ * ParoleeProviders registered with ParoleeApplication: XML, the default, 
+ * JSON, and the compact binary format of ParoleeBinaryCodec.
  *
  */
 @Path("/parolees")
@@ -66,96 +121,433 @@ public class ParoleeResource {
 	private static Logger _logger = LoggerFactory
 			.getLogger(ParoleeResource.class);
 
-	private Map<Long, Parolee> _paroleeDB = new ConcurrentHashMap<Long, Parolee>();
-	private AtomicLong _idCounter = new AtomicLong();
+	/**
+	 * Media type of newline-delimited JSON.
+	 */
+	public static final String NDJSON = "application/x-ndjson";
+
+	// The default, and maximum, number of Movements returned per page.
+	private static final int MOVEMENTS_PAGE_SIZE = Integer.getInteger(
+			"parolee.movements.pageSize", 1000);
+
+	private final ParoleeRegistry _registry;
+	private final MovementStore _movements;
+	private final ParoleeHistory _history;
+
+	/**
+	 * @param history the history in which registry records its changes.
+	 */
+	public ParoleeResource(ParoleeRegistry registry, MovementStore movements,
+			ParoleeHistory history) {
+		_registry = registry;
+		_movements = movements;
+		_history = history;
+	}
 
 	/**
 	 * Attempts to retrieve a particular Parolee based on their unique id. If 
 	 * the required Parolee is found, this method returns a 200 response along 
-	 * with an XML representation of the Parolee. In other cases, this method 
+	 * with a representation of the Parolee. In other cases, this method 
 	 * returns a 404 response.
 	 *  
 	 * @param id the unique id of the Parolee to be returned.
 	 * 
-	 * @return a StreamingOutput object that writes out the Parolee state in 
-	 *         XML form.
+	 * @return a Response whose entity is the Parolee, written by the 
+	 *         ParoleeProvider for the negotiated media type (XML, unless the
+	 *         Accept header prefers another), and whose ETag header 
+	 *         identifies the Parolee's version; or a 304 response if the
+	 *         request's If-None-Match header matches that version.
 	 */
 	@GET
 	@Path("{id}")
-	@Produces("application/xml")
-	public StreamingOutput retrieveParolee(@PathParam("id") long id) {
-		_logger.info("Retrieving parolee with id: " + id);
+	@Produces({ "application/xml", "application/json",
+			ParoleeBinaryProvider.MEDIA_TYPE })
+	public Response retrieveParolee(@PathParam("id") long id,
+			@Context Request request) {
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Retrieving parolee with id: " + id);
+		}
 		// Lookup the Parolee within the in-memory data structure.
-		final Parolee parolee = _paroleeDB.get(id);
+		Parolee parolee = _registry.get(id);
 		if (parolee == null) {
 			// Return a HTTP 404 response if the specified Parolee isn't found.
 			throw new WebApplicationException(Response.Status.NOT_FOUND);
 		}
 
-		// Return a StreamingOuput instance that the JAX-RS implementation will
-		// use to set the body of the HTTP response message.
-		return new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				outputParolee(outputStream, parolee);
+		// The Parolee is immutable, so the version read here describes
+		// exactly what is written.
+		EntityTag tag = entityTag(parolee);
+		ResponseBuilder notModified = request.evaluatePreconditions(tag);
+		if (notModified != null) {
+			return notModified.build();
+		}
+
+		return Response.ok(parolee).tag(tag).build();
+	}
+
+	/**
+	 * Retrieves a page of Parolees in id order, optionally filtered by last
+	 * name, gender and date of birth. The criteria are looked up in the
+	 * ParoleeRegistry's indexes, and the matching Parolees are streamed from
+	 * the registry as the response is written, so no List of them is built
+	 * however large the page.
+	 * 
+	 * The end of the page, and whether any Parolees match beyond it, is
+	 * determined before the body is written, so that the "next" Link header
+	 * can be set.
+	 * 
+	 * @param after the id after which to start (exclusive).
+	 * 
+	 * @param size the maximum number of Parolees to return, or 0 for all.
+	 * 
+	 * @param lastname if non-null, only Parolees with this last name 
+	 * (ignoring case) are returned.
+	 * 
+	 * @param lastnamePrefix if non-null, only Parolees whose last name starts
+	 * with this text (ignoring case) are returned.
+	 * 
+	 * @param gender if non-null, only Parolees of this gender are returned.
+	 * 
+	 * @param bornFrom if non-null, only Parolees born on or after this date
+	 * (dd/MM/yyyy) are returned.
+	 * 
+	 * @param bornTo if non-null, only Parolees born on or before this date
+	 * (dd/MM/yyyy) are returned.
+	 * 
+	 * @return a Response whose entity streams the Parolees in the negotiated
+	 *         representation, with a "next" Link header if there are 
+	 *         further matching Parolees. A 400 response is returned if size 
+	 *         is negative, or gender or a date isn't recognised.
+	 */
+	@GET
+	@Produces({ "application/xml", "application/json",
+			ParoleeBinaryProvider.MEDIA_TYPE })
+	public Response retrieveParolees(@QueryParam("after") long after,
+			@QueryParam("size") int size,
+			@QueryParam("lastname") String lastname,
+			@QueryParam("lastnamePrefix") String lastnamePrefix,
+			@QueryParam("gender") String gender,
+			@QueryParam("bornFrom") String bornFrom,
+			@QueryParam("bornTo") String bornTo, @Context UriInfo uriInfo) {
+		Gender genderFilter = null;
+		if (gender != null) {
+			genderFilter = Gender.fromString(gender.trim());
+			if (genderFilter == null) {
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
 			}
-		};
+		}
+		if (size < 0) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		ParoleeQuery query = new ParoleeQuery(lastname, lastnamePrefix,
+				genderFilter, parseDate(bornFrom), parseDate(bornTo));
+
+		ParoleeRegistry.Page page = _registry.find(query, after, size);
+		// The GenericEntity keeps the element type, so that a ParoleeProvider
+		// is chosen to write the Parolees.
+		GenericEntity<Iterable<Parolee>> entity =
+				new GenericEntity<Iterable<Parolee>>(page.getParolees()) {
+				};
+
+		ResponseBuilder builder = Response.ok(entity);
+		if (page.getNext() != null) {
+			builder.links(Link.fromUriBuilder(
+					uriInfo.getRequestUriBuilder().replaceQueryParam("after",
+							page.getNext())).rel("next").build());
+		}
+		return builder.build();
 	}
 
 	/**
 	 * Creates a new Parolee.
 	 * 
-	 * @param is the Inputstream that contains an XML representation of the
-	 * Parolee to be created.
+	 * @param parolee the Parolee to be created, read from the request's XML,
+	 * JSON or binary representation by a ParoleeProvider.
 	 * 
 	 * @return a Response object that includes the HTTP "Location" header,
-	 *         whose value is the URI of the newly created resource. The HTTP 
-	 *         response code is 201. The JAX-RS run-time processes the Response
+	 *         whose value is the URI of the newly created resource, and an
+	 *         ETag header identifying its version. The HTTP response code
+	 *         is 201. The JAX-RS run-time processes the Response
 	 *         object when preparing the HTTP response message.
 	 */
 	@POST
-	@Produces("application/xml")
-	public Response createParolee(InputStream is) {
-		// Read an XML representation of a new Parolee. Note that with JAX-RS, 
-		// any non-annotated parameter in a Resource method is assumed to hold 
-		// the HTTP request's message body.
-		Parolee parolee = readParolee(is);
+	@Consumes({ "application/xml", "application/json",
+			ParoleeBinaryProvider.MEDIA_TYPE })
+	public Response createParolee(Parolee parolee) {
+		// Note that with JAX-RS, any non-annotated parameter in a Resource 
+		// method is assumed to hold the HTTP request's message body.
 
 		// Generate an ID for the new Parolee, and store it in memory.
-		parolee.setId(_idCounter.incrementAndGet());
-		_paroleeDB.put(parolee.getId(), parolee);
+		parolee = _registry.create(parolee);
 
-		_logger.debug("Created parolee with id: " + parolee.getId());
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Created parolee with id: " + parolee.getId());
+		}
 
 		return Response.created(URI.create("/parolees/" + parolee.getId()))
-				.build();
+				.tag(entityTag(parolee)).build();
+	}
+
+	/**
+	 * Creates and updates the Parolees in a <parolees> XML document. The 
+	 * document is parsed and stored incrementally, while the results are 
+	 * written.
+	 * 
+	 * @param is the InputStream containing the <parolees> document.
+	 * 
+	 * @return a Response whose entity streams a <results> document. A 400 
+	 *         response is returned if the root element isn't <parolees>.
+	 */
+	@POST
+	@Path("bulk")
+	@Consumes("application/xml")
+	@Produces("application/xml")
+	public Response loadParolees(InputStream is) {
+		ParoleeRecordReader records;
+		try {
+			records = ParoleeXmlReader.readAll(is);
+		} catch (Exception e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+		return load(records, ParoleeBulkLoader.Format.XML);
+	}
+
+	/**
+	 * Creates and updates the Parolees in an NDJSON document, one JSON 
+	 * object per line. The document is parsed and stored incrementally, 
+	 * while the results are written.
+	 * 
+	 * @param is the InputStream containing the NDJSON document.
+	 * 
+	 * @return a Response whose entity streams an NDJSON result per record.
+	 */
+	@POST
+	@Path("bulk")
+	@Consumes(NDJSON)
+	@Produces(NDJSON)
+	public Response loadParoleesNdjson(InputStream is) {
+		return load(ParoleeJsonReader.readAll(is),
+				ParoleeBulkLoader.Format.NDJSON);
 	}
 
 	/**
 	 * Attempts to update an existing Parolee. If the specified Parolee is
 	 * found it is updated, resulting in a HTTP 204 response being returned to 
-	 * the consumer. In other cases, a 404 response is returned.
+	 * the consumer, with an ETag header identifying the new version. In other
+	 * cases, a 404 response is returned.
+	 * 
+	 * The update rewrites the Parolee's row while holding the write lock of
+	 * the row's lock stripe (see ParoleeRegistry), so updates of Parolees in
+	 * other stripes proceed concurrently. If the request has an If-Match
+	 * header, the version is checked again under that lock, and the update 
+	 * succeeds only if the stored Parolee is still at the version that was 
+	 * checked against the header; otherwise, or if the header doesn't match,
+	 * a 412 response is returned.
 	 * 
 	 * @param id the unique id of the Parolee to update.
 	 * 
-	 * @param is the InputStream used to store an XML representation of the
-	 * new state for the Parolee.
+	 * @param ifMatch the request's If-Match header, or null.
+	 * 
+	 * @param update the new state for the Parolee, read from the request's
+	 * XML, JSON or binary representation.
 	 */
 	@PUT
 	@Path("{id}")
-	@Consumes("application/xml")
-	public void updateParolee(@PathParam("id") long id, InputStream is) {
-		Parolee update = readParolee(is);
-		Parolee current = _paroleeDB.get(id);
+	@Consumes({ "application/xml", "application/json",
+			ParoleeBinaryProvider.MEDIA_TYPE })
+	public Response updateParolee(@PathParam("id") long id,
+			@HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+			@Context Request request, Parolee update) {
+		Parolee current = _registry.get(id);
 		if (current == null) {
 			throw new WebApplicationException(Response.Status.NOT_FOUND);
 		}
 
-		// Update the details of the Parolee to be updated.
-		current.setFirstname(update.getFirstname());
-		current.setLastname(update.getLastname());
-		current.setGender(update.getGender());
-		current.setDateOfBirth(update.getDateOfBirth());
+		long expectedVersion = 0;
+		if (ifMatch != null) {
+			ResponseBuilder failed = request
+					.evaluatePreconditions(entityTag(current));
+			if (failed != null) {
+				return failed.build();
+			}
+			if (!ifMatch.trim().equals("*")) {
+				expectedVersion = current.getVersion();
+			}
+		}
+
+		// Update the details of the Parolee to be updated, and its index
+		// entries.
+		Parolee updated;
+		try {
+			updated = _registry.update(id, update, expectedVersion);
+		} catch (ParoleeRegistry.VersionConflictException e) {
+			return Response.status(Response.Status.PRECONDITION_FAILED)
+					.tag(entityTag(e.getCurrent())).build();
+		}
+		if (updated == null) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		return Response.noContent().tag(entityTag(updated)).build();
+	}
+
+	/**
+	 * Records Movements of a Parolee, each as it is read, so that a document 
+	 * of any size is recorded without being held in memory. A 204 response 
+	 * is returned once they are recorded; a 404 response if the Parolee 
+	 * isn't found, or a 400 response if the XML is malformed or a Movement 
+	 * is invalid, in which case the Movements before it have been recorded.
+	 * 
+	 * @param id the unique id of the Parolee.
+	 * 
+	 * @param is the InputStream containing an XML <movement> or <movements> 
+	 * document.
+	 */
+	@POST
+	@Path("{id}/movements")
+	@Consumes("application/xml")
+	public void recordMovements(@PathParam("id") long id, InputStream is) {
+		if (_registry.get(id) == null) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		MovementRecordReader movements;
+		try {
+			movements = MovementXmlReader.readAll(is);
+		} catch (Exception e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+		try {
+			Movement movement;
+			while ((movement = movements.next()) != null) {
+				_movements.append(id, movement);
+			}
+		} catch (Exception e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		} finally {
+			try {
+				movements.close();
+			} catch (IOException e) {
+				// The request has been read as far as it will be.
+			}
+		}
+	}
+
+	/**
+	 * Retrieves Movements of a Parolee, in the order they were recorded. The
+	 * end of the page is found from the Movements' timestamps before the 
+	 * body is written, so that the "next" Link header can be set, and the 
+	 * Movements are then decoded as they are written.
+	 * 
+	 * @param id the unique id of the Parolee.
+	 * 
+	 * @param latest if greater than 0, only this many of the most recently 
+	 * recorded Movements in the range are returned, up to size.
+	 * 
+	 * @param from if non-null, only Movements at or after this time (ISO 
+	 * 8601) are returned.
+	 * 
+	 * @param to if non-null, only Movements at or before this time (ISO 
+	 * 8601) are returned.
+	 * 
+	 * @param after the cursor from a "next" Link header, after which to 
+	 * start, or 0 to start from the oldest Movement.
+	 * 
+	 * @param size the maximum number of Movements to return, or 0 for the
+	 * default; larger sizes are reduced to the default.
+	 * 
+	 * @return a Response whose entity writes a <movements> document, with a
+	 *         "next" Link header if there are further matching Movements. A
+	 *         404 response is returned if the Parolee isn't found, and a 400 
+	 *         response if latest, after or size is negative or a time isn't
+	 *         recognised.
+	 */
+	@GET
+	@Path("{id}/movements")
+	@Produces("application/xml")
+	public Response retrieveMovements(@PathParam("id") long id,
+			@QueryParam("latest") int latest, @QueryParam("from") String from,
+			@QueryParam("to") String to, @QueryParam("after") long after,
+			@QueryParam("size") int size, @Context UriInfo uriInfo) {
+		if (latest < 0 || after < 0 || size < 0) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		if (_registry.get(id) == null) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		if (size == 0 || size > MOVEMENTS_PAGE_SIZE) {
+			size = MOVEMENTS_PAGE_SIZE;
+		}
+		
+		MovementStore.Page page;
+		if (latest > 0) {
+			page = _movements.latest(id, parseTimestamp(from),
+					parseTimestamp(to), Math.min(latest, size));
+		} else {
+			page = _movements.range(id, parseTimestamp(from),
+					parseTimestamp(to), after, size);
+		}
+
+		final Iterable<Movement> movements = page.getMovements();
+		StreamingOutput output = new StreamingOutput() {
+			public void write(OutputStream outputStream) throws IOException,
+					WebApplicationException {
+				MovementXmlWriter.write(outputStream, movements);
+			}
+		};
+		ResponseBuilder builder = Response.ok(output);
+		if (page.getNext() != null) {
+			builder.links(Link.fromUriBuilder(
+					uriInfo.getRequestUriBuilder().replaceQueryParam("after",
+							page.getNext())).rel("next").build());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Retrieves the history of changes to a Parolee, or the Parolee as it 
+	 * was at a point in time. The history is decoded as it is written, so 
+	 * memory use doesn't depend on its length.
+	 * 
+	 * @param id the unique id of the Parolee.
+	 * 
+	 * @param asOf if non-null, the time (ISO 8601) at which to retrieve the
+	 * Parolee.
+	 * 
+	 * @return a Response whose entity writes a <history> document, or, if 
+	 *         asOf is given, a <parolee>. A 404 response is returned if no
+	 *         change to the Parolee has been recorded, or it didn't exist at
+	 *         asOf; a 400 response if asOf isn't recognised; and a 503
+	 *         response, with a Retry-After header, while the history is
+	 *         still being loaded after a restart.
+	 */
+	@GET
+	@Path("{id}/history")
+	@Produces("application/xml")
+	public Response retrieveHistory(@PathParam("id") final long id,
+			@QueryParam("asOf") String asOf) {
+		if (!_history.isLoaded()) {
+			throw new WebApplicationException(Response
+					.status(Response.Status.SERVICE_UNAVAILABLE)
+					.header("Retry-After", "1").build());
+		}
+		if (!_history.contains(id)) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+
+		if (asOf != null) {
+			Parolee parolee = _history.asOf(id, parseTimestamp(asOf));
+			if (parolee == null) {
+				throw new WebApplicationException(Response.Status.NOT_FOUND);
+			}
+			return Response.ok(parolee).build();
+		}
+		final Iterable<ParoleeHistory.Change> changes = _history.changes(id);
+		StreamingOutput output = new StreamingOutput() {
+			public void write(OutputStream outputStream) throws IOException,
+					WebApplicationException {
+				ParoleeXmlWriter.write(outputStream, id, changes);
+			}
+		};
+		return Response.ok(output).build();
 	}
 
 	/**
@@ -168,14 +560,14 @@ public class ParoleeResource {
 	@DELETE
 	@Path("{id}")
 	public void deleteParolee(@PathParam("id") long id) {
-		Parolee current = _paroleeDB.get(id);
-		if (current == null) {
+		// Remove the Parolee.
+		if (!_registry.delete(id)) {
 			throw new WebApplicationException(Response.Status.NOT_FOUND);
 		}
-
-		// Remove the Parolee.
-		_paroleeDB.remove(id);
-		_logger.info("Deleted parolee with ID: " + id);
+		_movements.remove(id);
+		if (_logger.isDebugEnabled()) {
+			_logger.debug("Deleted parolee with ID: " + id);
+		}
 	}
 	
 	/**
@@ -183,90 +575,75 @@ public class ParoleeResource {
 	 */
 	@DELETE
 	public void deleteAllParolees() {
-		_paroleeDB.clear();
-		_idCounter = new AtomicLong();
+		_registry.clear();
+		_movements.clear();
 	}
 	
 
 	/**
-	 * Helper method to generate an XML representation of a particular Parolee.
-	 * 
-	 * @param os the OutputStream used to write out the XML.
-	 * 
-	 * @param parolee the Parolee for which to generate an XML representation.
-	 * 
-	 * @throws IOException if an error is encountered in writing the XML to the 
-	 * OutputStream.
+	 * Helper method to stream the results of loading a document of Parolee
+	 * records. The records are read from the request as the response is 
+	 * written.
 	 */
-	protected void outputParolee(OutputStream os, Parolee parolee)
-			throws IOException {
-		DateTimeFormatter formatter = DateTimeFormat.forPattern("dd/MM/yyyy");
-		String dateOfBirth = formatter.print(parolee.getDateOfBirth());
-
-		PrintStream writer = new PrintStream(os);
-		writer.println("<parolee id=\"" + parolee.getId() + "\">");
-		writer.println("   <first-name>" + parolee.getFirstname()
-				+ "</first-name>");
-		writer.println("   <last-name>" + parolee.getLastname()
-				+ "</last-name>");
-		writer.println("   <gender>" + parolee.getGender() + "</gender>");
-		writer.println("   <date-of-birth>" + dateOfBirth + "</date-of-birth>");
-		writer.println("</parolee>");
+	private Response load(final ParoleeRecordReader records,
+			final ParoleeBulkLoader.Format format) {
+		StreamingOutput output = new StreamingOutput() {
+			public void write(OutputStream outputStream) throws IOException,
+					WebApplicationException {
+				ParoleeBulkLoader.load(records, _registry, format,
+						outputStream);
+			}
+		};
+		return Response.ok(output).build();
 	}
 
 	/**
-	 * Helper method to generate an XML representation for a collection of 
-	 * Parolees.
+	 * Helper method to generate the entity tag identifying a Parolee's
+	 * version. Versions are unique across the registry, so a tag is never
+	 * reused, even by a later Parolee with the same id.
 	 */
-	protected void outputParolees(OutputStream os, List<Parolee> parolees)
-			throws IOException {
-		for (Parolee parolee : parolees) {
-			outputParolee(os, parolee);
-		}
+	private static EntityTag entityTag(Parolee parolee) {
+		return new EntityTag(Long.toString(parolee.getVersion()));
 	}
 
 	/**
-	 * Helper method to read an XML representation of a Parolee, and return a
-	 * corresponding Parolee object. 
+	 * Helper method to parse an optional date query parameter, in the same
+	 * format as dates of birth in the XML representation.
+	 * 
+	 * @return the date, or null if text is null.
 	 * 
-	 * @param is the InputStream containing an XML representation of the 
-	 *        Parolee to create.
-	 *        
-	 * @return a new Parolee object.
+	 * @throws WebApplicationException with a 400 status if text isn't a
+	 *         valid date.
 	 */
-	protected Parolee readParolee(InputStream is) {
+	private static DateTime parseDate(String text) {
+		if (text == null) {
+			return null;
+		}
 		try {
-			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
-					.newDocumentBuilder();
-			Document doc = builder.parse(is);
-			Element root = doc.getDocumentElement();
-
-			Parolee parolee = new Parolee();
-			if (root.getAttribute("id") != null
-					&& !root.getAttribute("id").trim().equals(""))
-				parolee.setId(Long.valueOf(root.getAttribute("id")));
-			NodeList nodes = root.getChildNodes();
-			for (int i = 0; i < nodes.getLength(); i++) {
-				Element element = (Element) nodes.item(i);
-				if (element.getTagName().equals("first-name")) {
-					parolee.setFirstname(element.getTextContent());
-				} else if (element.getTagName().equals("last-name")) {
-					parolee.setLastname(element.getTextContent());
-				} else if (element.getTagName().equals("gender")) {
-					parolee.setGender(Gender.fromString(element
-							.getTextContent()));
-				} else if (element.getTagName().equals("date-of-birth")) {
-					DateTimeFormatter formatter = DateTimeFormat
-							.forPattern("dd/MM/yyyy");
-					DateTime dateOfBirth = formatter.parseDateTime(element
-							.getTextContent());
-					parolee.setDateOfBirth(dateOfBirth);
-				}
-			}
-			return parolee;
-		} catch (Exception e) {
+			return ParoleeXmlReader.DATE_FORMATTER.parseDateTime(text.trim());
+		} catch (IllegalArgumentException e) {
 			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
 		}
 	}
 
+	/**
+	 * Helper method to parse an optional timestamp query parameter, in the
+	 * same format as timestamps in the XML representation of a Movement.
+	 * 
+	 * @return the timestamp, or null if text is null.
+	 * 
+	 * @throws WebApplicationException with a 400 status if text isn't a
+	 *         valid timestamp.
+	 */
+	private static DateTime parseTimestamp(String text) {
+		if (text == null) {
+			return null;
+		}
+		try {
+			return MovementXmlReader.TIMESTAMP_PARSER.parseDateTime(text
+					.trim());
+		} catch (IllegalArgumentException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+	}
 }
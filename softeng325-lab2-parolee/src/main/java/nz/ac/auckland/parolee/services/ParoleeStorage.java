@@ -0,0 +1,749 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists a ParoleeRegistry in a directory, as a snapshot file plus logs of
+ * the changes made since the snapshot was taken.
+ *
+ * The snapshot (snapshot.bin) is a 64-byte header, then a fixed-size record
+ * per row in id order, as held by ParoleeTable, then the name dictionary:
+ *
+ *   header:     magic, format (ints); highest id, version counter, first log
+ *               to replay, dictionary position (longs); dictionary size (int)
+ *   row:        version (long), first name code, last name code, day number
+ *               of date of birth, gender (ints)
+ *   dictionary: for each code in order, length (int) and UTF-8 bytes
+ *
+ * Because rows are fixed-size and in id order, a row can be located without
+ * reading anything before it. On startup only the header and dictionary are
+ * read; the registry's ParoleeTable pages in chunks of rows from a memory
+ * mapping of the file as they are first accessed, and builds its indexes on
+ * the first query.
+ *
+ * Every create, update, delete and clear is appended to the current log
+ * (log.<sequence>) before it is applied, as a length, a CRC32 and a payload:
+ *
+ *   put:    type, id, version, last name, first name, gender, day number
+ *   delete: type, id
+ *   clear:  type
+ *
+ * A put or delete sets a row to a state, so replaying a change that is
+ * already reflected in the snapshot is harmless. This lets snapshots be
+ * taken without stopping writes: a snapshot first switches to a new log,
+ * then copies the rows (each block under its stripe lock), and records in
+ * its header that replay starts at the new log. Older logs are deleted once
+ * the snapshot has been renamed into place. On startup, every log from the
+ * one named in the snapshot's header is replayed in order; a log ending in
+ * an incomplete or corrupt record (as a crash can leave) is read up to that
+ * record. The service then starts a fresh log.
+ *
+ * If the registry keeps a ParoleeHistory, each change is also appended to
+ * the history log (history.log), as a record in the same form prefixed by
+ * the time it was recorded (a long). Unlike the logs, the history log is
+ * never made redundant by a snapshot, so it is kept, and replayed into the
+ * history, for the life of the directory. Since it only grows, it is
+ * replayed by a background thread, and the registry serves requests
+ * meanwhile: history records made during the replay are held in memory,
+ * and written once the replay has truncated away any incomplete or corrupt
+ * record at the log's end.
+ *
+ * Snapshots are taken every parolee.snapshot.interval seconds (default
+ * 300) when there have been changes. Log appends are written to the file
+ * channel, and forced to disk only if parolee.log.sync is true.
+ *
+ */
+public class ParoleeStorage {
+
+	private static Logger _logger = LoggerFactory
+			.getLogger(ParoleeStorage.class);
+
+	private static final int MAGIC = 0x50524c45;
+	private static final int FORMAT = 1;
+	private static final int HEADER_BYTES = 64;
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte CLEAR = 3;
+
+	private static final String SNAPSHOT_FILE = "snapshot.bin";
+	private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+	private static final String LOG_PREFIX = "log.";
+	private static final String HISTORY_FILE = "history.log";
+
+	// Upper bound on the size of a log record's payload; a larger length can
+	// only come from a corrupt record.
+	private static final int MAX_RECORD_BYTES = 1 << 20;
+
+	private final File _dir;
+	private final boolean _sync = Boolean.getBoolean("parolee.log.sync");
+	private final long _snapshotInterval = Long.getLong(
+			"parolee.snapshot.interval", 300);
+
+	// Header fields of the snapshot read by load().
+	private long _versionCounter;
+	private long _firstLog = 1;
+
+	// The current log, its sequence number and the number of records written
+	// to it; guarded by this.
+	private FileChannel _log;
+	private long _logSequence;
+	private long _logRecords;
+
+	// The history log, opened once loadHistory() has replayed it, and the
+	// records appended while it was being replayed, or null if it isn't
+	// being replayed; guarded by this.
+	private FileChannel _historyLog;
+	private ByteArrayOutputStream _pendingHistory;
+
+	private Thread _historyLoader;
+
+	private ParoleeRegistry _registry;
+	private ScheduledExecutorService _snapshotter;
+
+	public ParoleeStorage(File dir) throws IOException {
+		_dir = dir;
+		Files.createDirectories(dir.toPath());
+	}
+
+	/**
+	 * Opens the snapshot, if there is one, and returns a ParoleeTable backed
+	 * by it; otherwise returns an empty table.
+	 */
+	ParoleeTable load() throws IOException {
+		File file = new File(_dir, SNAPSHOT_FILE);
+		if (!file.exists()) {
+			return new ParoleeTable();
+		}
+
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			readFully(channel, header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != FORMAT) {
+				throw new IOException(file + " isn't a parolee snapshot");
+			}
+			long idCounter = header.getLong();
+			_versionCounter = header.getLong();
+			_firstLog = header.getLong();
+			long dictionaryPosition = header.getLong();
+			int dictionarySize = header.getInt();
+
+			NameDictionary names = new NameDictionary();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel.position(dictionaryPosition))));
+			for (int code = 0; code < dictionarySize; code++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				names.encode(new String(bytes, StandardCharsets.UTF_8));
+			}
+
+			_logger.info("Opened snapshot of " + idCounter + " rows and "
+					+ dictionarySize + " names.");
+			return new ParoleeTable(names, idCounter, channel, HEADER_BYTES);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the version counter recorded in the snapshot read by load().
+	 */
+	long getVersionCounter() {
+		return _versionCounter;
+	}
+
+	/**
+	 * Replays the logs written since the snapshot read by load() into
+	 * registry.
+	 */
+	void replay(ParoleeRegistry registry) throws IOException {
+		long[] sequences = logSequences();
+		for (int i = 0; i < sequences.length; i++) {
+			if (sequences[i] >= _firstLog) {
+				int records = replay(registry, logFile(sequences[i]));
+				_logger.info("Replayed " + records + " changes from "
+						+ logFile(sequences[i]));
+			}
+			_logSequence = Math.max(_logSequence, sequences[i]);
+		}
+	}
+
+	private int replay(ParoleeRegistry registry, File file) throws IOException {
+		int records = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			CRC32 crc = new CRC32();
+			byte[] payload;
+			while ((payload = readRecord(in, crc, file)) != null) {
+				apply(registry, new DataInputStream(
+						new ByteArrayInputStream(payload)));
+				records++;
+			}
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Reads the payload of the next record of a log, or returns null at the
+	 * end of the log or at an incomplete or corrupt record.
+	 */
+	private static byte[] readRecord(DataInputStream in, CRC32 crc, File file)
+			throws IOException {
+		try {
+			int length = in.readInt();
+			long checksum = in.readInt() & 0xffffffffL;
+			if (length < 0 || length > MAX_RECORD_BYTES) {
+				_logger.warn("Corrupt record in " + file
+						+ "; ignoring the rest of the log.");
+				return null;
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			crc.reset();
+			crc.update(payload);
+			if (crc.getValue() != checksum) {
+				_logger.warn("Corrupt record in " + file
+						+ "; ignoring the rest of the log.");
+				return null;
+			}
+			return payload;
+		} catch (EOFException e) {
+			// End of log, possibly in the middle of a record that was never
+			// completely written.
+			return null;
+		}
+	}
+
+	private void apply(ParoleeRegistry registry, DataInputStream in)
+			throws IOException {
+		byte type = in.readByte();
+		if (type == PUT) {
+			long id = in.readLong();
+			long version = in.readLong();
+			registry.restore(id, version, readParolee(in));
+		} else if (type == DELETE) {
+			registry.restoreDelete(in.readLong());
+		} else if (type == CLEAR) {
+			registry.restoreClear();
+		} else {
+			throw new IOException("Unknown log record type " + type);
+		}
+	}
+
+	/**
+	 * Starts replaying the history log, if there is one, into history, on a
+	 * background thread, and then opens it for appending. The history
+	 * defers the changes recorded meanwhile until the replay has finished
+	 * (see ParoleeHistory.startLoading()).
+	 */
+	synchronized void loadHistory(final ParoleeHistory history) {
+		history.startLoading();
+		_pendingHistory = new ByteArrayOutputStream();
+		_historyLoader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					replayHistory(history);
+					history.finishLoading();
+				} catch (Exception e) {
+					_logger.error("Failed to load parolee history", e);
+					synchronized (ParoleeStorage.this) {
+						_pendingHistory = null;
+					}
+					history.failLoading();
+				}
+			}
+		}, "parolee-history-loader");
+		_historyLoader.setDaemon(true);
+		_historyLoader.start();
+	}
+
+	/**
+	 * Replays the history log, if there is one, into history, opens it for
+	 * appending and writes the records appended during the replay.
+	 */
+	private void replayHistory(ParoleeHistory history) throws IOException {
+		File file = new File(_dir, HISTORY_FILE);
+		long end = 0;
+		if (file.exists()) {
+			int records = 0;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				CRC32 crc = new CRC32();
+				byte[] payload;
+				while ((payload = readRecord(in, crc, file)) != null) {
+					applyHistory(history, new DataInputStream(
+							new ByteArrayInputStream(payload)));
+					end += 8 + payload.length;
+					records++;
+				}
+			} finally {
+				in.close();
+			}
+			_logger.info("Replayed " + records + " changes from " + file);
+		}
+
+		synchronized (this) {
+			FileChannel log = FileChannel.open(file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			log.truncate(end);
+			log.position(end);
+			write(log, _pendingHistory.toByteArray());
+			_pendingHistory = null;
+			_historyLog = log;
+		}
+	}
+
+	private static void applyHistory(ParoleeHistory history,
+			DataInputStream in) throws IOException {
+		long timestamp = in.readLong();
+		byte type = in.readByte();
+		if (type == PUT) {
+			long id = in.readLong();
+			long version = in.readLong();
+			history.restorePut(id, version, readParolee(in), timestamp);
+		} else if (type == DELETE) {
+			history.restoreDelete(in.readLong(), timestamp);
+		} else if (type == CLEAR) {
+			history.restoreClear(timestamp);
+		} else {
+			throw new IOException("Unknown history record type " + type);
+		}
+	}
+
+	/**
+	 * Reads the fields of a Parolee from a put record.
+	 */
+	private static Parolee readParolee(DataInputStream in) throws IOException {
+		String lastname = readName(in);
+		String firstname = readName(in);
+		int gender = in.readByte();
+		int dateOfBirth = in.readInt();
+		return new Parolee(lastname, firstname, gender == 0 ? null
+				: Gender.values()[gender - 1], ParoleeTable.toDate(dateOfBirth));
+	}
+
+	/**
+	 * Starts a new log for the changes made to registry, and schedules
+	 * periodic snapshots of it.
+	 */
+	synchronized void start(final ParoleeRegistry registry) throws IOException {
+		_registry = registry;
+		openLog(Math.max(_logSequence, _firstLog - 1) + 1);
+
+		_snapshotter = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "parolee-snapshot");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		_snapshotter.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					snapshot();
+				} catch (Exception e) {
+					_logger.error("Failed to write parolee snapshot", e);
+				}
+			}
+		}, _snapshotInterval, _snapshotInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Logs the storing of a Parolee (by create or update).
+	 */
+	synchronized void logPut(long id, long version, Parolee parolee) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(72);
+		record(records, putPayload(id, version, parolee));
+		append(records.toByteArray(), 1);
+	}
+
+	/**
+	 * Logs the storing of several Parolees, with consecutive ids and
+	 * versions starting at id and version, in a single write.
+	 */
+	synchronized void logPuts(long id, long version, List<Parolee> parolees) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(
+				72 * parolees.size());
+		for (int i = 0; i < parolees.size(); i++) {
+			record(records, putPayload(id + i, version + i, parolees.get(i)));
+		}
+		append(records.toByteArray(), parolees.size());
+	}
+
+	private static byte[] putPayload(long id, long version, Parolee parolee) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(PUT);
+			out.writeLong(id);
+			out.writeLong(version);
+			writeName(out, parolee.getLastname());
+			writeName(out, parolee.getFirstname());
+			out.writeByte(parolee.getGender() == null ? 0 : parolee
+					.getGender().ordinal() + 1);
+			out.writeInt(ParoleeTable.toDayNumber(parolee.getDateOfBirth()));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Logs the deletion of a Parolee.
+	 */
+	synchronized void logDelete(long id) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(17);
+		record(records, deletePayload(id));
+		append(records.toByteArray(), 1);
+	}
+
+	private static byte[] deletePayload(long id) {
+		ByteBuffer payload = ByteBuffer.allocate(9);
+		payload.put(DELETE).putLong(id);
+		return payload.array();
+	}
+
+	/**
+	 * Logs the clearing of the registry.
+	 */
+	synchronized void logClear() {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(9);
+		record(records, new byte[] { CLEAR });
+		append(records.toByteArray(), 1);
+	}
+
+	/**
+	 * Appends the recording of a put, at timestamp, to the history log.
+	 */
+	synchronized void logHistoryPut(long id, long version, long timestamp,
+			Parolee parolee) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(80);
+		record(records, timestamped(timestamp, putPayload(id, version,
+				parolee)));
+		writeHistory(records.toByteArray());
+	}
+
+	/**
+	 * Appends the recording of several puts, with consecutive ids and
+	 * versions starting at id and version, at timestamp, to the history log
+	 * in a single write.
+	 */
+	synchronized void logHistoryPuts(long id, long version, long timestamp,
+			List<Parolee> parolees) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(
+				80 * parolees.size());
+		for (int i = 0; i < parolees.size(); i++) {
+			record(records, timestamped(timestamp, putPayload(id + i, version
+					+ i, parolees.get(i))));
+		}
+		writeHistory(records.toByteArray());
+	}
+
+	/**
+	 * Appends the recording of a delete, at timestamp, to the history log.
+	 */
+	synchronized void logHistoryDelete(long id, long timestamp) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(25);
+		record(records, timestamped(timestamp, deletePayload(id)));
+		writeHistory(records.toByteArray());
+	}
+
+	/**
+	 * Appends the recording of a clear, at timestamp, to the history log.
+	 */
+	synchronized void logHistoryClear(long timestamp) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(17);
+		record(records, timestamped(timestamp, new byte[] { CLEAR }));
+		writeHistory(records.toByteArray());
+	}
+
+	private static byte[] timestamped(long timestamp, byte[] payload) {
+		ByteBuffer bytes = ByteBuffer.allocate(8 + payload.length);
+		bytes.putLong(timestamp).put(payload);
+		return bytes.array();
+	}
+
+	/**
+	 * Adds a record - length, CRC32 and payload - to records.
+	 */
+	private static void record(ByteArrayOutputStream records, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(payload.length).putInt((int) crc.getValue());
+		records.write(header.array(), 0, 8);
+		records.write(payload, 0, payload.length);
+	}
+
+	/**
+	 * Appends count records to the current log. Called with this locked.
+	 */
+	private void append(byte[] records, int count) {
+		write(_log, records);
+		_logRecords += count;
+	}
+
+	/**
+	 * Writes records to the history log or, while it is being replayed,
+	 * holds them until it has been. Records are dropped if the history
+	 * couldn't be loaded. Called with this locked.
+	 */
+	private void writeHistory(byte[] records) {
+		if (_historyLog != null) {
+			write(_historyLog, records);
+		} else if (_pendingHistory != null) {
+			_pendingHistory.write(records, 0, records.length);
+		}
+	}
+
+	/**
+	 * Writes records to a log, forcing them to disk if parolee.log.sync is
+	 * true. Called with this locked.
+	 */
+	private void write(FileChannel log, byte[] records) {
+		ByteBuffer buffer = ByteBuffer.wrap(records);
+		try {
+			while (buffer.hasRemaining()) {
+				log.write(buffer);
+			}
+			if (_sync) {
+				log.force(false);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the registry, if it has changed since the last
+	 * one, and deletes the logs the snapshot makes redundant.
+	 */
+	public void snapshot() throws IOException {
+		ParoleeTable table;
+		long versionCounter;
+		long firstLog;
+		synchronized (this) {
+			if (_logRecords == 0) {
+				return;
+			}
+			// Changes from here on go to the new log, which replay will
+			// start from.
+			firstLog = _logSequence + 1;
+			openLog(firstLog);
+			table = _registry.table();
+			versionCounter = _registry.versionCounter();
+		}
+
+		File temp = new File(_dir, SNAPSHOT_TEMP_FILE);
+		long rows = table._idCounter.get() + 1;
+		FileChannel out = FileChannel.open(temp.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(ParoleeTable.CHUNK_SIZE
+					* ParoleeTable.ROW_BYTES);
+			out.position(HEADER_BYTES);
+			for (long row = 0; row < rows; row += ParoleeTable.CHUNK_SIZE) {
+				buffer.clear();
+				table.copyRows((int) row,
+						(int) Math.min(ParoleeTable.CHUNK_SIZE, rows - row),
+						buffer);
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+			}
+
+			// The dictionary is written after the rows, so it includes every
+			// code they use.
+			long dictionaryPosition = out.position();
+			int dictionarySize = table._names.size();
+			DataOutputStream dictionary = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(out)));
+			for (int code = 0; code < dictionarySize; code++) {
+				byte[] bytes = table._names.decode(code).getBytes(
+						StandardCharsets.UTF_8);
+				dictionary.writeInt(bytes.length);
+				dictionary.write(bytes);
+			}
+			dictionary.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).putInt(FORMAT).putLong(rows - 1)
+					.putLong(versionCounter).putLong(firstLog)
+					.putLong(dictionaryPosition).putInt(dictionarySize);
+			header.clear();
+			while (header.hasRemaining()) {
+				out.write(header, header.position());
+			}
+			out.force(true);
+		} finally {
+			out.close();
+		}
+
+		File snapshot = new File(_dir, SNAPSHOT_FILE);
+		Files.move(temp.toPath(), snapshot.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		for (long sequence : logSequences()) {
+			if (sequence < firstLog) {
+				Files.deleteIfExists(logFile(sequence).toPath());
+			}
+		}
+		// Chunks the table hasn't paged in yet are now paged in from the new
+		// snapshot, and the previous one can be closed.
+		table.rebase(FileChannel.open(snapshot.toPath(),
+				StandardOpenOption.READ));
+		_logger.info("Wrote snapshot of " + (rows - 1) + " rows.");
+	}
+
+	/**
+	 * Stops taking snapshots, waits for the history log to be replayed, and
+	 * closes the current log and the history log.
+	 */
+	public void close() throws IOException {
+		Thread historyLoader;
+		synchronized (this) {
+			historyLoader = _historyLoader;
+		}
+		if (historyLoader != null) {
+			try {
+				historyLoader.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		synchronized (this) {
+			if (_snapshotter != null) {
+				_snapshotter.shutdown();
+			}
+			if (_log != null) {
+				_log.close();
+				_log = null;
+			}
+			if (_historyLog != null) {
+				_historyLog.close();
+				_historyLog = null;
+			}
+		}
+	}
+
+	/**
+	 * Switches to a new, empty log. Called with this locked.
+	 */
+	private void openLog(long sequence) throws IOException {
+		FileChannel log = FileChannel.open(logFile(sequence).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		if (_log != null) {
+			_log.force(false);
+			_log.close();
+		}
+		_log = log;
+		_logSequence = sequence;
+		_logRecords = 0;
+	}
+
+	private File logFile(long sequence) {
+		return new File(_dir, LOG_PREFIX + sequence);
+	}
+
+	/**
+	 * Returns the sequence numbers of the logs in the directory, in order.
+	 */
+	private long[] logSequences() {
+		String[] names = _dir.list();
+		long[] sequences = new long[names == null ? 0 : names.length];
+		int count = 0;
+		for (int i = 0; i < sequences.length; i++) {
+			if (names[i].startsWith(LOG_PREFIX)) {
+				try {
+					sequences[count] = Long.parseLong(names[i]
+							.substring(LOG_PREFIX.length()));
+					count++;
+				} catch (NumberFormatException e) {
+					// Not a log.
+				}
+			}
+		}
+		sequences = Arrays.copyOf(sequences, count);
+		Arrays.sort(sequences);
+		return sequences;
+	}
+
+	/**
+	 * Writes a name as its length (int) and UTF-8 bytes, as in the snapshot's
+	 * dictionary, or -1 if it is null. Unlike writeUTF(), this has no limit
+	 * of 65535 bytes.
+	 */
+	private static void writeName(DataOutputStream out, String name)
+			throws IOException {
+		if (name == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readName(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+}
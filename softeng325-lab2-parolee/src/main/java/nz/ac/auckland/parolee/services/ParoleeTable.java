@@ -0,0 +1,581 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+/**
+ * The complete state of a ParoleeRegistry between clears: the columns of
+ * Parolee data, the name dictionary and the indexes. See ParoleeRegistry for
+ * the layout and locking scheme.
+ *
+ * A table can be backed by a snapshot file (see ParoleeStorage). Its chunks
+ * are then paged in from the file, through a read-only memory mapping, the
+ * first time a row in them is accessed, and its indexes are built the first
+ * time they are needed, so a table over a large snapshot is ready for use as
+ * soon as its name dictionary has been read. Taking a snapshot of the table
+ * copies the rows of chunks not yet paged in straight from the mapping, and
+ * then moves the table onto the new snapshot file, so snapshots don't page
+ * in the whole table.
+ *
+ */
+class ParoleeTable {
+
+	static final int CHUNK_BITS = 12;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	static final int STRIPES = 64;
+
+	/**
+	 * Size of a row in a snapshot file: version (long), first name, last
+	 * name, date of birth and gender (ints).
+	 */
+	static final int ROW_BYTES = 24;
+
+	// Day number representing a null date of birth.
+	static final int NULL_DATE = Integer.MIN_VALUE;
+
+	private static final Gender[] GENDERS = Gender.values();
+
+	/**
+	 * One chunk of rows of each column.
+	 */
+	static class Chunk {
+		final long[] _versions = new long[CHUNK_SIZE];
+		final int[] _firstnames = new int[CHUNK_SIZE];
+		final int[] _lastnames = new int[CHUNK_SIZE];
+		final int[] _datesOfBirth = new int[CHUNK_SIZE];
+
+		// Two bits per row: 0 for no gender, otherwise the Gender's ordinal
+		// plus 1.
+		final long[] _genders = new long[CHUNK_SIZE / 32];
+
+		int gender(int offset) {
+			return (int) (_genders[offset >> 5] >>> ((offset & 31) << 1)) & 3;
+		}
+
+		void setGender(int offset, int gender) {
+			int shift = (offset & 31) << 1;
+			_genders[offset >> 5] = (_genders[offset >> 5] & ~(3L << shift))
+					| ((long) gender << shift);
+		}
+	}
+
+	/**
+	 * A sorted, growable list of ids, used for the postings of the last name
+	 * and date of birth indexes.
+	 */
+	static class IdList {
+		int[] _ids = new int[2];
+		int _size;
+
+		void add(int id) {
+			int i = Arrays.binarySearch(_ids, 0, _size, id);
+			if (i >= 0) {
+				return;
+			}
+			i = -i - 1;
+			if (_size == _ids.length) {
+				_ids = Arrays.copyOf(_ids, _size * 2);
+			}
+			System.arraycopy(_ids, i, _ids, i + 1, _size - i);
+			_ids[i] = id;
+			_size++;
+		}
+
+		void remove(int id) {
+			int i = Arrays.binarySearch(_ids, 0, _size, id);
+			if (i >= 0) {
+				System.arraycopy(_ids, i + 1, _ids, i, _size - i - 1);
+				_size--;
+			}
+		}
+
+		void addTo(BitSet bits) {
+			for (int i = 0; i < _size; i++) {
+				bits.set(_ids[i]);
+			}
+		}
+	}
+
+	final AtomicLong _idCounter;
+	final NameDictionary _names;
+	private final StampedLock[] _stripes = new StampedLock[STRIPES];
+
+	// Chunks indexed by row >> CHUNK_BITS. Replaced by a copy whenever a
+	// chunk is added, so readers never see a partly published array.
+	private volatile Chunk[] _chunks = new Chunk[0];
+
+	// Snapshot file from which chunks not yet in _chunks are paged in, the
+	// offset of row 0 within it and the number of rows it holds. The file is
+	// released once every chunk has been paged in; all guarded by this.
+	private FileChannel _base;
+	private final long _baseOffset;
+	private final long _baseRows;
+
+	// Indexes, guarded by _indexLock. Writes always maintain them, but the
+	// entries for rows paged in from a snapshot are added only by
+	// ensureIndexed().
+	final NavigableMap<String, IdList> _byLastname = new TreeMap<String, IdList>();
+	final Map<Gender, BitSet> _byGender = new EnumMap<Gender, BitSet>(
+			Gender.class);
+	final NavigableMap<Integer, IdList> _byDateOfBirth = new TreeMap<Integer, IdList>();
+	final ReadWriteLock _indexLock = new ReentrantReadWriteLock();
+	private final Object _indexBuild = new Object();
+	private volatile boolean _indexed;
+
+	/**
+	 * Creates an empty table.
+	 */
+	ParoleeTable() {
+		this(new NameDictionary(), 0, null, 0);
+		_indexed = true;
+	}
+
+	/**
+	 * Creates a table backed by a snapshot file.
+	 *
+	 * @param names the name dictionary used by the snapshot's rows.
+	 *
+	 * @param idCounter the highest id allocated; the snapshot holds rows 0 to
+	 * idCounter.
+	 *
+	 * @param base the snapshot file, which the table closes when it is moved
+	 * onto a later snapshot (see rebase()).
+	 *
+	 * @param baseOffset the position of row 0 in base.
+	 */
+	ParoleeTable(NameDictionary names, long idCounter, FileChannel base,
+			long baseOffset) {
+		_names = names;
+		_idCounter = new AtomicLong(idCounter);
+		_base = base;
+		_baseOffset = baseOffset;
+		_baseRows = base == null ? 0 : idCounter + 1;
+		for (int i = 0; i < _stripes.length; i++) {
+			_stripes[i] = new StampedLock();
+		}
+		for (Gender gender : GENDERS) {
+			_byGender.put(gender, new BitSet());
+		}
+	}
+
+	StampedLock stripe(int row) {
+		return _stripes[(row >> 5) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Write-locks every stripe, in order, and returns the stamps to pass to
+	 * unlockStripes().
+	 */
+	long[] lockStripes() {
+		long[] stamps = new long[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stamps[i] = _stripes[i].writeLock();
+		}
+		return stamps;
+	}
+
+	void unlockStripes(long[] stamps) {
+		for (int i = STRIPES - 1; i >= 0; i--) {
+			_stripes[i].unlockWrite(stamps[i]);
+		}
+	}
+
+	/**
+	 * Returns the chunk holding a row, paging it in from the snapshot file if
+	 * necessary, or null if it hasn't been allocated.
+	 */
+	Chunk chunk(int row) {
+		Chunk[] chunks = _chunks;
+		int index = row >> CHUNK_BITS;
+		Chunk chunk = index < chunks.length ? chunks[index] : null;
+		if (chunk == null && row < _baseRows) {
+			chunk = allocate(row);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Returns the chunk holding a row, allocating it (or paging it in) if
+	 * necessary.
+	 */
+	synchronized Chunk allocate(int row) {
+		Chunk[] chunks = _chunks;
+		int index = row >> CHUNK_BITS;
+		if (index >= chunks.length) {
+			chunks = Arrays.copyOf(chunks, index + 1);
+		} else if (chunks[index] != null) {
+			return chunks[index];
+		} else {
+			chunks = chunks.clone();
+		}
+		Chunk chunk = new Chunk();
+		if ((long) index * CHUNK_SIZE < _baseRows) {
+			pageIn(index, chunk);
+		}
+		chunks[index] = chunk;
+		_chunks = chunks;
+		return chunk;
+	}
+
+	/**
+	 * Reads a chunk's rows from the snapshot file. Called with the table
+	 * locked.
+	 */
+	private void pageIn(int index, Chunk chunk) {
+		long first = (long) index * CHUNK_SIZE;
+		int rows = (int) Math.min(CHUNK_SIZE, _baseRows - first);
+		ByteBuffer buffer = mapBase(first, rows);
+		for (int offset = 0; offset < rows; offset++) {
+			chunk._versions[offset] = buffer.getLong();
+			chunk._firstnames[offset] = buffer.getInt();
+			chunk._lastnames[offset] = buffer.getInt();
+			chunk._datesOfBirth[offset] = buffer.getInt();
+			chunk.setGender(offset, buffer.getInt());
+		}
+	}
+
+	/**
+	 * Maps rows first, first + 1, ... of the snapshot file. The mapping
+	 * remains valid after the file is closed.
+	 */
+	private synchronized ByteBuffer mapBase(long first, int rows) {
+		try {
+			return _base.map(FileChannel.MapMode.READ_ONLY, _baseOffset + first
+					* ROW_BYTES, (long) rows * ROW_BYTES);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Moves the table onto a later snapshot of it, and closes the snapshot
+	 * file it was backed by. The later snapshot's rows start at the same
+	 * position, and the rows of chunks not yet paged in are the same in both
+	 * (copyRows() copied them from the earlier snapshot, and no write can
+	 * have changed them without paging them in). The table takes ownership
+	 * of base.
+	 */
+	synchronized void rebase(FileChannel base) throws IOException {
+		FileChannel previous = _base;
+		if (previous == null) {
+			// The table isn't backed by a snapshot file.
+			base.close();
+			return;
+		}
+		_base = base;
+		previous.close();
+	}
+
+	/**
+	 * Closes the snapshot file the table is backed by, if any. The table
+	 * can't page in rows afterwards, so it must no longer be in use.
+	 */
+	synchronized void close() throws IOException {
+		if (_base != null) {
+			_base.close();
+			_base = null;
+		}
+	}
+
+	/**
+	 * Returns the version of the Parolee in a row, or 0 if there is none.
+	 */
+	long version(int row) {
+		Chunk chunk = chunk(row);
+		if (chunk == null) {
+			return 0;
+		}
+		int offset = row & CHUNK_MASK;
+		StampedLock stripe = stripe(row);
+		long stamp = stripe.tryOptimisticRead();
+		long version = chunk._versions[offset];
+		if (!stripe.validate(stamp)) {
+			stamp = stripe.readLock();
+			try {
+				version = chunk._versions[offset];
+			} finally {
+				stripe.unlockRead(stamp);
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * Materialises the Parolee in a row, or returns null if there is none.
+	 */
+	Parolee get(int row) {
+		Chunk chunk = chunk(row);
+		if (chunk == null) {
+			return null;
+		}
+		int offset = row & CHUNK_MASK;
+		StampedLock stripe = stripe(row);
+		long stamp = stripe.tryOptimisticRead();
+		boolean locked = false;
+		try {
+			while (true) {
+				long version = chunk._versions[offset];
+				int firstname = chunk._firstnames[offset];
+				int lastname = chunk._lastnames[offset];
+				int gender = chunk.gender(offset);
+				int dateOfBirth = chunk._datesOfBirth[offset];
+				if (locked || stripe.validate(stamp)) {
+					return version == 0 ? null : materialise(row, version,
+							firstname, lastname, gender, dateOfBirth);
+				}
+				// A write intervened; read again under the read lock.
+				stamp = stripe.readLock();
+				locked = true;
+			}
+		} finally {
+			if (locked) {
+				stripe.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Materialises the Parolee in a row whose stripe is locked by the caller,
+	 * or returns null if there is none.
+	 */
+	Parolee getLocked(Chunk chunk, int row) {
+		int offset = row & CHUNK_MASK;
+		long version = chunk._versions[offset];
+		return version == 0 ? null : materialise(row, version,
+				chunk._firstnames[offset], chunk._lastnames[offset],
+				chunk.gender(offset), chunk._datesOfBirth[offset]);
+	}
+
+	private Parolee materialise(int row, long version, int firstname,
+			int lastname, int gender, int dateOfBirth) {
+		return new Parolee(row, version, _names.decode(lastname),
+				_names.decode(firstname), gender == 0 ? null
+						: GENDERS[gender - 1], toDate(dateOfBirth));
+	}
+
+	/**
+	 * Writes a Parolee into a row whose stripe is write-locked by the caller,
+	 * and updates the indexes.
+	 *
+	 * @param previous the Parolee previously in the row, or null.
+	 */
+	void write(Chunk chunk, int row, long version, Parolee parolee,
+			Parolee previous) {
+		int offset = row & CHUNK_MASK;
+		chunk._versions[offset] = version;
+		chunk._firstnames[offset] = _names.encode(parolee.getFirstname());
+		chunk._lastnames[offset] = _names.encode(parolee.getLastname());
+		chunk.setGender(offset, parolee.getGender() == null ? 0 : parolee
+				.getGender().ordinal() + 1);
+		chunk._datesOfBirth[offset] = toDayNumber(parolee.getDateOfBirth());
+		reindex(row, previous, parolee);
+	}
+
+	/**
+	 * Empties a row whose stripe is write-locked by the caller, and removes
+	 * the index entries of the Parolee that was in it.
+	 */
+	void erase(Chunk chunk, int row, Parolee previous) {
+		chunk._versions[row & CHUNK_MASK] = 0;
+		reindex(row, previous, null);
+	}
+
+	/**
+	 * Copies rows from, from + 1, ... to buffer in snapshot file format,
+	 * reading each block of rows under its stripe's read lock. The rows must
+	 * all be in one chunk.
+	 *
+	 * If the chunk hasn't been paged in, its rows are copied straight from
+	 * the snapshot file, without paging it in. Whether it has is checked
+	 * under the stripe's lock: a write pages the chunk in before taking the
+	 * lock, so a block read from the file has no write in progress, and any
+	 * later write to it goes to the log opened for the new snapshot.
+	 */
+	void copyRows(int from, int count, ByteBuffer buffer) {
+		int index = from >> CHUNK_BITS;
+		ByteBuffer base = null;
+		int row = from;
+		int end = from + count;
+		while (row < end) {
+			// Rows up to the end of row's block share its stripe.
+			int blockEnd = Math.min(end, (row | 31) + 1);
+			StampedLock stripe = stripe(row);
+			long stamp = stripe.readLock();
+			try {
+				Chunk[] chunks = _chunks;
+				Chunk chunk = index < chunks.length ? chunks[index] : null;
+				for (; row < blockEnd; row++) {
+					int offset = row & CHUNK_MASK;
+					if (chunk == null && row < _baseRows) {
+						if (base == null) {
+							base = mapBase(from,
+									(int) Math.min(count, _baseRows - from));
+						}
+						int position = (row - from) * ROW_BYTES;
+						buffer.putLong(base.getLong(position))
+								.putInt(base.getInt(position + 8))
+								.putInt(base.getInt(position + 12))
+								.putInt(base.getInt(position + 16))
+								.putInt(base.getInt(position + 20));
+					} else if (chunk == null) {
+						buffer.putLong(0).putInt(NameDictionary.NULL_CODE)
+								.putInt(NameDictionary.NULL_CODE)
+								.putInt(NULL_DATE).putInt(0);
+					} else {
+						buffer.putLong(chunk._versions[offset])
+								.putInt(chunk._firstnames[offset])
+								.putInt(chunk._lastnames[offset])
+								.putInt(chunk._datesOfBirth[offset])
+								.putInt(chunk.gender(offset));
+					}
+				}
+			} finally {
+				stripe.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Ensures that the indexes cover the rows paged in from the snapshot
+	 * file, by reading every row the first time this is called. Each block of
+	 * rows is read and indexed under its stripe's read lock, so a concurrent
+	 * write to a row is indexed either before or after the row is read, never
+	 * in between.
+	 */
+	void ensureIndexed() {
+		if (_indexed) {
+			return;
+		}
+		synchronized (_indexBuild) {
+			if (_indexed) {
+				return;
+			}
+			int row = 1;
+			while (row < _baseRows) {
+				int blockEnd = (int) Math.min(_baseRows, (row | 31) + 1);
+				Chunk chunk = chunk(row);
+				StampedLock stripe = stripe(row);
+				long stamp = stripe.readLock();
+				try {
+					for (; row < blockEnd; row++) {
+						reindex(row, null, getLocked(chunk, row));
+					}
+				} finally {
+					stripe.unlockRead(stamp);
+				}
+			}
+			_indexed = true;
+		}
+	}
+
+	/**
+	 * Replaces the index entries of previous (if non-null) for a row by those
+	 * of current (if non-null).
+	 */
+	void reindex(int row, Parolee previous, Parolee current) {
+		if (previous == null && current == null) {
+			return;
+		}
+		_indexLock.writeLock().lock();
+		try {
+			if (previous != null) {
+				if (previous.getLastname() != null) {
+					String key = ParoleeQuery.normalise(previous.getLastname());
+					IdList ids = _byLastname.get(key);
+					if (ids != null) {
+						ids.remove(row);
+						if (ids._size == 0) {
+							_byLastname.remove(key);
+						}
+					}
+				}
+				if (previous.getGender() != null) {
+					_byGender.get(previous.getGender()).clear(row);
+				}
+				if (previous.getDateOfBirth() != null) {
+					int key = toDayNumber(previous.getDateOfBirth());
+					IdList ids = _byDateOfBirth.get(key);
+					if (ids != null) {
+						ids.remove(row);
+						if (ids._size == 0) {
+							_byDateOfBirth.remove(key);
+						}
+					}
+				}
+			}
+			if (current != null) {
+				if (current.getLastname() != null) {
+					String key = ParoleeQuery.normalise(current.getLastname());
+					IdList ids = _byLastname.get(key);
+					if (ids == null) {
+						ids = new IdList();
+						_byLastname.put(key, ids);
+					}
+					ids.add(row);
+				}
+				if (current.getGender() != null) {
+					_byGender.get(current.getGender()).set(row);
+				}
+				if (current.getDateOfBirth() != null) {
+					int key = toDayNumber(current.getDateOfBirth());
+					IdList ids = _byDateOfBirth.get(key);
+					if (ids == null) {
+						ids = new IdList();
+						_byDateOfBirth.put(key, ids);
+					}
+					ids.add(row);
+				}
+			}
+		} finally {
+			_indexLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the day number (days since 1970-01-01) of the calendar date of
+	 * a DateTime, in its own time zone, or NULL_DATE for null.
+	 */
+	static int toDayNumber(DateTime date) {
+		if (date == null) {
+			return NULL_DATE;
+		}
+		long millis = date.toLocalDate().toDateTimeAtStartOfDay(DateTimeZone.UTC)
+				.getMillis();
+		return (int) Math.floorDiv(millis, DateTimeConstants.MILLIS_PER_DAY);
+	}
+
+	/**
+	 * Returns the start of the day with the specified day number, in the
+	 * default time zone, or null for NULL_DATE.
+	 */
+	static DateTime toDate(int dayNumber) {
+		if (dayNumber == NULL_DATE) {
+			return null;
+		}
+		return new LocalDate((long) dayNumber
+				* DateTimeConstants.MILLIS_PER_DAY, DateTimeZone.UTC)
+				.toDateTimeAtStartOfDay();
+	}
+}
@@ -0,0 +1,32 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+
+import nz.ac.auckland.parolee.domain.Parolee;
+
+/**
+ * Provider for the XML representation of Parolees (see ParoleeXmlReader and
+ * ParoleeXmlWriter). Several Parolees are written as a <parolees> document.
+ *
+ */
+@Consumes("application/xml")
+@Produces("application/xml")
+public class ParoleeXmlProvider extends ParoleeProvider {
+
+	Parolee read(InputStream is) throws Exception {
+		return ParoleeXmlReader.read(is);
+	}
+
+	void write(OutputStream os, Parolee parolee) throws IOException {
+		ParoleeXmlWriter.write(os, parolee);
+	}
+
+	void write(OutputStream os, Iterable<Parolee> parolees) throws IOException {
+		ParoleeXmlWriter.write(os, parolees);
+	}
+}
@@ -0,0 +1,214 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Reads the XML representation of a Parolee with a StAX pull parser:
+ *
+ * <parolee id="...">
+ *    <first-name>...</first-name>
+ *    <last-name>...</last-name>
+ *    <gender>...</gender>
+ *    <date-of-birth>dd/MM/yyyy</date-of-birth>
+ * </parolee>
+ *
+ * No document tree is built: the text of the known child elements is read
+ * straight into the Parolee, and unknown elements, whitespace and comments
+ * are skipped. The XMLInputFactory and date formatter are created once and
+ * shared, as both are thread-safe once configured. DTDs and external
+ * entities are disabled.
+ *
+ * A name may be at most MAX_NAME_LENGTH characters, the same bound the JSON
+ * and binary representations place on a whole record, so that a stored
+ * Parolee always fits in a record of ParoleeStorage's logs.
+ *
+ */
+public class ParoleeXmlReader {
+
+	/**
+	 * Format of dates of birth in the XML representation.
+	 */
+	static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat
+			.forPattern("dd/MM/yyyy");
+
+	/**
+	 * Factory for the pull parsers of XML representations, configured with
+	 * DTDs and external entities disabled.
+	 */
+	static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+	private static final int MAX_NAME_LENGTH = 64 * 1024;
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return factory;
+	}
+
+	/**
+	 * Reads a Parolee from its XML representation.
+	 *
+	 * @throws XMLStreamException if the XML is malformed or the root element
+	 * isn't "parolee".
+	 *
+	 * @throws IllegalArgumentException if the id or date of birth is
+	 * malformed, or a name is longer than MAX_NAME_LENGTH characters.
+	 */
+	public static Parolee read(InputStream is) throws XMLStreamException {
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+		try {
+			reader.nextTag();
+			if (!reader.getLocalName().equals("parolee")) {
+				throw new XMLStreamException("Expected <parolee> but found <"
+						+ reader.getLocalName() + ">", reader.getLocation());
+			}
+			return readParolee(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns a reader of the Parolees in a <parolees> document, as written
+	 * by ParoleeXmlWriter. The root element is read immediately; each
+	 * <parolee> element is parsed as the next record is requested.
+	 *
+	 * @throws XMLStreamException if the root element isn't "parolees".
+	 */
+	static ParoleeRecordReader readAll(InputStream is)
+			throws XMLStreamException {
+		final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+		reader.nextTag();
+		if (!reader.getLocalName().equals("parolees")) {
+			reader.close();
+			throw new XMLStreamException("Expected <parolees> but found <"
+					+ reader.getLocalName() + ">", reader.getLocation());
+		}
+		return new ParoleeRecordReader() {
+			private boolean _ended;
+
+			Parolee next() throws IOException {
+				if (_ended) {
+					return null;
+				}
+				try {
+					if (reader.nextTag() == XMLStreamConstants.END_ELEMENT) {
+						_ended = true;
+						return null;
+					}
+					if (!reader.getLocalName().equals("parolee")) {
+						String name = reader.getLocalName();
+						skipElement(reader);
+						throw new IllegalArgumentException(
+								"Expected <parolee> but found <" + name + ">");
+					}
+					return readParolee(reader);
+				} catch (XMLStreamException e) {
+					throw new IOException(e);
+				}
+			}
+
+			public void close() throws IOException {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads the <parolee> element at which reader is positioned. The whole
+	 * element is read even if a field is invalid, so that a reader of
+	 * several Parolees can carry on with the next.
+	 *
+	 * @throws IllegalArgumentException if the id or date of birth is
+	 * malformed, or a name is longer than MAX_NAME_LENGTH characters.
+	 */
+	private static Parolee readParolee(XMLStreamReader reader)
+			throws XMLStreamException {
+		IllegalArgumentException invalid = null;
+
+		long id = 0;
+		String idAttribute = reader.getAttributeValue(null, "id");
+		if (idAttribute != null && !idAttribute.trim().isEmpty()) {
+			try {
+				id = Long.parseLong(idAttribute.trim());
+			} catch (NumberFormatException e) {
+				invalid = e;
+			}
+		}
+
+		String firstname = null;
+		String lastname = null;
+		Gender gender = null;
+		DateTime dateOfBirth = null;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+			if (name.equals("first-name")) {
+				firstname = reader.getElementText();
+				if (firstname.length() > MAX_NAME_LENGTH) {
+					invalid = nameTooLong();
+				}
+			} else if (name.equals("last-name")) {
+				lastname = reader.getElementText();
+				if (lastname.length() > MAX_NAME_LENGTH) {
+					invalid = nameTooLong();
+				}
+			} else if (name.equals("gender")) {
+				gender = Gender.fromString(reader.getElementText().trim());
+			} else if (name.equals("date-of-birth")) {
+				String text = reader.getElementText().trim();
+				try {
+					dateOfBirth = DATE_FORMATTER.parseDateTime(text);
+				} catch (IllegalArgumentException e) {
+					invalid = e;
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+		if (invalid != null) {
+			throw invalid;
+		}
+		return new Parolee(id, 0, lastname, firstname, gender, dateOfBirth);
+	}
+
+	private static IllegalArgumentException nameTooLong() {
+		return new IllegalArgumentException("Name longer than "
+				+ MAX_NAME_LENGTH + " characters");
+	}
+
+	/**
+	 * Skips the element at which reader is positioned, including its content.
+	 */
+	static void skipElement(XMLStreamReader reader)
+			throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package nz.ac.auckland.parolee.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Parolee;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Writes the XML representation of Parolees (see ParoleeXmlReader), and of
+ * their change history (see ParoleeHistory), as UTF-8.
+ *
+ * The fixed markup is held as pre-encoded byte templates, and the variable
+ * fields - id, names, gender and date of birth - are encoded directly into a
+ * per-thread buffer, escaping XML special characters in the names. Names
+ * read from JSON or binary representations may hold characters that XML
+ * can't represent at all - control characters other than tab, newline and
+ * carriage return, and U+FFFE and U+FFFF - so these are written as the
+ * replacement character U+FFFD, keeping the document well-formed. The
+ * buffer is written to the OutputStream in one call, so writing a Parolee
+ * allocates almost nothing beyond what the OutputStream itself does.
+ *
+ */
+public class ParoleeXmlWriter {
+
+	private static final byte[] PAROLEE_START = bytes("<parolee id=\"");
+	private static final byte[] FIRST_NAME_START = bytes("\">\n   <first-name>");
+	private static final byte[] LAST_NAME_START = bytes("</first-name>\n   <last-name>");
+	private static final byte[] GENDER_START = bytes("</last-name>\n   <gender>");
+	private static final byte[] DATE_OF_BIRTH_START = bytes("</gender>\n   <date-of-birth>");
+	private static final byte[] PAROLEE_END = bytes("</date-of-birth>\n</parolee>\n");
+	private static final byte[] NULL = bytes("null");
+	private static final byte[] PAROLEES_START = bytes("<parolees>\n");
+	private static final byte[] PAROLEES_END = bytes("</parolees>\n");
+
+	private static final byte[] HISTORY_START = bytes("<history id=\"");
+	private static final byte[] HISTORY_START_END = bytes("\">\n");
+	private static final byte[] HISTORY_END = bytes("</history>\n");
+	private static final byte[] CHANGE_START = bytes("<change kind=\"");
+	private static final byte[] CHANGE_VERSION = bytes("\" version=\"");
+	private static final byte[] CHANGE_TIMESTAMP = bytes("\" timestamp=\"");
+	private static final byte[] CHANGE_START_END = bytes("\">\n");
+	private static final byte[] CHANGE_END = bytes("</change>\n");
+	private static final byte[] FIRST_NAME = bytes("   <first-name>");
+	private static final byte[] FIRST_NAME_END = bytes("</first-name>\n");
+	private static final byte[] LAST_NAME = bytes("   <last-name>");
+	private static final byte[] LAST_NAME_END = bytes("</last-name>\n");
+	private static final byte[] GENDER = bytes("   <gender>");
+	private static final byte[] GENDER_END = bytes("</gender>\n");
+	private static final byte[] DATE_OF_BIRTH = bytes("   <date-of-birth>");
+	private static final byte[] DATE_OF_BIRTH_END = bytes("</date-of-birth>\n");
+
+	private static final DateTimeFormatter TIMESTAMP_FORMATTER = ISODateTimeFormat
+			.dateTime().withZoneUTC();
+
+	private static final byte[] ESCAPED_LT = bytes("&lt;");
+	private static final byte[] ESCAPED_GT = bytes("&gt;");
+	private static final byte[] ESCAPED_AMP = bytes("&amp;");
+	private static final byte[] ESCAPED_QUOT = bytes("&quot;");
+	private static final byte[] REPLACEMENT = bytes("\ufffd");
+
+	private static final byte[][] GENDERS = new byte[Gender.values().length][];
+	static {
+		for (Gender gender : Gender.values()) {
+			GENDERS[gender.ordinal()] = bytes(gender.toString());
+		}
+	}
+
+	private static final byte[][] KINDS = new byte[ParoleeHistory.Kind
+			.values().length][];
+	static {
+		for (ParoleeHistory.Kind kind : ParoleeHistory.Kind.values()) {
+			KINDS[kind.ordinal()] = bytes(kind.toString());
+		}
+	}
+
+	// When writing several Parolees, the buffer is flushed once it holds
+	// this many bytes.
+	private static final int FLUSH_THRESHOLD = 8192;
+
+	// A buffer that has grown beyond this size isn't kept for reuse.
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+	private static final ThreadLocal<Buffer> BUFFERS = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	/**
+	 * Writes the XML representation of a Parolee.
+	 */
+	public static void write(OutputStream os, Parolee parolee)
+			throws IOException {
+		Buffer buffer = BUFFERS.get();
+		try {
+			encode(buffer, parolee);
+			buffer.writeTo(os);
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * Writes an XML document listing several Parolees in a <parolees>
+	 * element. The Parolees are encoded as they are iterated, and the buffer
+	 * is flushed whenever it holds FLUSH_THRESHOLD bytes, so memory use
+	 * doesn't depend on the number of Parolees.
+	 */
+	public static void write(OutputStream os, Iterable<Parolee> parolees)
+			throws IOException {
+		Buffer buffer = BUFFERS.get();
+		try {
+			buffer.append(PAROLEES_START);
+			for (Parolee parolee : parolees) {
+				encode(buffer, parolee);
+				if (buffer._count >= FLUSH_THRESHOLD) {
+					buffer.writeTo(os);
+					buffer._count = 0;
+				}
+			}
+			buffer.append(PAROLEES_END);
+			buffer.writeTo(os);
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * Writes a <history> document listing the changes to the Parolee with
+	 * the specified id, each with only the fields it changed:
+	 *
+	 * <history id="...">
+	 * <change kind="CREATE|UPDATE|DELETE" version="..." timestamp="...">
+	 *    <first-name>...</first-name>
+	 *    ...
+	 * </change>
+	 * ...
+	 * </history>
+	 *
+	 * Timestamps are ISO 8601, in UTC. As for a <parolees> document, the
+	 * changes are encoded as they are iterated, and the buffer is flushed
+	 * whenever it holds FLUSH_THRESHOLD bytes.
+	 */
+	public static void write(OutputStream os, long id,
+			Iterable<ParoleeHistory.Change> changes) throws IOException {
+		Buffer buffer = BUFFERS.get();
+		try {
+			buffer.append(HISTORY_START);
+			buffer.appendLong(id);
+			buffer.append(HISTORY_START_END);
+			for (ParoleeHistory.Change change : changes) {
+				encode(buffer, change);
+				if (buffer._count >= FLUSH_THRESHOLD) {
+					buffer.writeTo(os);
+					buffer._count = 0;
+				}
+			}
+			buffer.append(HISTORY_END);
+			buffer.writeTo(os);
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	private static void encode(Buffer buffer, ParoleeHistory.Change change) {
+		buffer.append(CHANGE_START);
+		buffer.append(KINDS[change.getKind().ordinal()]);
+		buffer.append(CHANGE_VERSION);
+		buffer.appendLong(change.getVersion());
+		buffer.append(CHANGE_TIMESTAMP);
+		buffer.append(bytes(TIMESTAMP_FORMATTER.print(change.getTimestamp())));
+		buffer.append(CHANGE_START_END);
+		if (change.isChanged(ParoleeHistory.FIRSTNAME)) {
+			buffer.append(FIRST_NAME);
+			buffer.appendEscaped(change.getFirstname());
+			buffer.append(FIRST_NAME_END);
+		}
+		if (change.isChanged(ParoleeHistory.LASTNAME)) {
+			buffer.append(LAST_NAME);
+			buffer.appendEscaped(change.getLastname());
+			buffer.append(LAST_NAME_END);
+		}
+		if (change.isChanged(ParoleeHistory.GENDER)) {
+			Gender gender = change.getGender();
+			buffer.append(GENDER);
+			buffer.append(gender == null ? NULL : GENDERS[gender.ordinal()]);
+			buffer.append(GENDER_END);
+		}
+		if (change.isChanged(ParoleeHistory.DATE_OF_BIRTH)) {
+			buffer.append(DATE_OF_BIRTH);
+			buffer.appendDate(change.getDateOfBirth());
+			buffer.append(DATE_OF_BIRTH_END);
+		}
+		buffer.append(CHANGE_END);
+	}
+
+	private static void encode(Buffer buffer, Parolee parolee) {
+		buffer.append(PAROLEE_START);
+		buffer.appendLong(parolee.getId());
+		buffer.append(FIRST_NAME_START);
+		buffer.appendEscaped(parolee.getFirstname());
+		buffer.append(LAST_NAME_START);
+		buffer.appendEscaped(parolee.getLastname());
+		buffer.append(GENDER_START);
+		Gender gender = parolee.getGender();
+		buffer.append(gender == null ? NULL : GENDERS[gender.ordinal()]);
+		buffer.append(DATE_OF_BIRTH_START);
+		buffer.appendDate(parolee.getDateOfBirth());
+		buffer.append(PAROLEE_END);
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Growable byte buffer with encoders for the field types of a Parolee.
+	 */
+	private static class Buffer {
+		private static final int INITIAL_CAPACITY = 512;
+
+		byte[] _bytes = new byte[INITIAL_CAPACITY];
+		int _count;
+
+		void append(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, _bytes, _count, bytes.length);
+			_count += bytes.length;
+		}
+
+		void appendLong(long value) {
+			if (value == Long.MIN_VALUE) {
+				append(bytes(String.valueOf(value)));
+				return;
+			}
+			ensureCapacity(20);
+			if (value < 0) {
+				_bytes[_count++] = '-';
+				value = -value;
+			}
+			int start = _count;
+			do {
+				_bytes[_count++] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value > 0);
+			reverse(start, _count - 1);
+		}
+
+		/**
+		 * Appends a zero-padded, non-negative number of at least width digits.
+		 */
+		void appendPadded(int value, int width) {
+			ensureCapacity(Math.max(width, 10));
+			int start = _count;
+			do {
+				_bytes[_count++] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value > 0 || _count - start < width);
+			reverse(start, _count - 1);
+		}
+
+		void appendDate(DateTime date) {
+			if (date == null) {
+				return;
+			}
+			int year = date.getYear();
+			if (year < 0) {
+				append(bytes(ParoleeXmlReader.DATE_FORMATTER.print(date)));
+				return;
+			}
+			appendPadded(date.getDayOfMonth(), 2);
+			ensureCapacity(1);
+			_bytes[_count++] = '/';
+			appendPadded(date.getMonthOfYear(), 2);
+			ensureCapacity(1);
+			_bytes[_count++] = '/';
+			appendPadded(year, 4);
+		}
+
+		/**
+		 * Appends text as UTF-8, escaping the characters that are special in
+		 * XML element content and replacing those that XML doesn't allow.
+		 */
+		void appendEscaped(String text) {
+			if (text == null) {
+				append(NULL);
+				return;
+			}
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				switch (c) {
+				case '<':
+					append(ESCAPED_LT);
+					break;
+				case '>':
+					append(ESCAPED_GT);
+					break;
+				case '&':
+					append(ESCAPED_AMP);
+					break;
+				case '"':
+					append(ESCAPED_QUOT);
+					break;
+				default:
+					if ((c < 0x20 && c != '\t' && c != '\n' && c != '\r')
+							|| c == 0xfffe || c == 0xffff) {
+						append(REPLACEMENT);
+					} else if (c < 0x80) {
+						ensureCapacity(1);
+						_bytes[_count++] = (byte) c;
+					} else if (c < 0x800) {
+						ensureCapacity(2);
+						_bytes[_count++] = (byte) (0xc0 | (c >> 6));
+						_bytes[_count++] = (byte) (0x80 | (c & 0x3f));
+					} else if (Character.isHighSurrogate(c)
+							&& i + 1 < text.length()
+							&& Character.isLowSurrogate(text.charAt(i + 1))) {
+						int codePoint = Character.toCodePoint(c,
+								text.charAt(++i));
+						ensureCapacity(4);
+						_bytes[_count++] = (byte) (0xf0 | (codePoint >> 18));
+						_bytes[_count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+						_bytes[_count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+						_bytes[_count++] = (byte) (0x80 | (codePoint & 0x3f));
+					} else if (Character.isSurrogate(c)) {
+						// Unpaired surrogate; written as '?', as String.getBytes
+						// would.
+						ensureCapacity(1);
+						_bytes[_count++] = '?';
+					} else {
+						ensureCapacity(3);
+						_bytes[_count++] = (byte) (0xe0 | (c >> 12));
+						_bytes[_count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+						_bytes[_count++] = (byte) (0x80 | (c & 0x3f));
+					}
+				}
+			}
+		}
+
+		void writeTo(OutputStream os) throws IOException {
+			if (_count > 0) {
+				os.write(_bytes, 0, _count);
+			}
+		}
+
+		void reset() {
+			_count = 0;
+			if (_bytes.length > MAX_RETAINED_CAPACITY) {
+				_bytes = new byte[INITIAL_CAPACITY];
+			}
+		}
+
+		private void ensureCapacity(int additional) {
+			if (_count + additional > _bytes.length) {
+				byte[] bytes = new byte[Math.max(_bytes.length * 2, _count
+						+ additional)];
+				System.arraycopy(_bytes, 0, bytes, 0, _count);
+				_bytes = bytes;
+			}
+		}
+
+		private void reverse(int from, int to) {
+			while (from < to) {
+				byte b = _bytes[from];
+				_bytes[from++] = _bytes[to];
+				_bytes[to--] = b;
+			}
+		}
+	}
+}
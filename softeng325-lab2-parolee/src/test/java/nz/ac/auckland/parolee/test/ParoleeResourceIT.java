@@ -1,19 +1,63 @@
 package nz.ac.auckland.parolee.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.Response;
 
+import nz.ac.auckland.parolee.domain.Gender;
+import nz.ac.auckland.parolee.domain.Movement;
+import nz.ac.auckland.parolee.domain.MovementType;
+import nz.ac.auckland.parolee.domain.Parolee;
+import nz.ac.auckland.parolee.services.AccessLog;
+import nz.ac.auckland.parolee.services.MovementStore;
+import nz.ac.auckland.parolee.services.ParoleeBinaryCodec;
+import nz.ac.auckland.parolee.services.ParoleeBinaryProvider;
+import nz.ac.auckland.parolee.services.ParoleeHistory;
+import nz.ac.auckland.parolee.services.ParoleeJsonReader;
+import nz.ac.auckland.parolee.services.ParoleeQuery;
+import nz.ac.auckland.parolee.services.ParoleeRegistry;
+import nz.ac.auckland.parolee.services.ParoleeStorage;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.joda.time.DateTime;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TestName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,8 +116,25 @@ public class ParoleeResourceIT {
 		_client.close();
 	}
 	
+	/**
+	 * Marks a test that exercises the service's classes in this JVM, without
+	 * making requests to the Web service, so it needn't be populated.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.METHOD)
+	private @interface InProcess {
+	}
+	
+	@Rule
+	public TestName _testName = new TestName();
+	
 	@Before
-	public void clearAndPopulate() {
+	public void clearAndPopulate() throws NoSuchMethodException {
+		if (getClass().getMethod(_testName.getMethodName())
+				.isAnnotationPresent(InProcess.class)) {
+			return;
+		}
+		
 		// Delete all Parolees in the Web service.
 		Response response = _client.target(WEB_SERVICE_URI).request().delete();
 		response.close();
@@ -114,6 +175,32 @@ public class ParoleeResourceIT {
 		response.close();
 	}
 	
+	@Test
+	public void testCreateFormatted() {
+		// XML representation of a new Parolee, with indentation and a 
+		// comment between elements.
+		String xmlPayload = "<?xml version=\"1.0\"?>\n"
+				+ "<parolee>\n"
+				+ "   <!-- Outlaw -->\n"
+				+ "   <first-name>Butch</first-name>\n"
+				+ "   <last-name>Cassidy</last-name>\n"
+				+ "   <gender>Male</gender>\n"
+				+ "   <date-of-birth>13/04/1866</date-of-birth>\n"
+				+ "</parolee>\n";
+		
+		// Make a HTTP POST request to create a new Parolee.
+		Response response = _client.target(WEB_SERVICE_URI).request().post(Entity.xml(xmlPayload));
+		
+		// Check that the HTTP response code is 201 Created.
+		assertEquals(201, response.getStatus());
+		response.close();
+		
+		// Check that malformed XML is rejected with 400 Bad Request.
+		response = _client.target(WEB_SERVICE_URI).request().post(Entity.xml("<parolee>"));
+		assertEquals(400, response.getStatus());
+		response.close();
+	}
+	
 	@Test
 	public void testRetrieve() {
 		String paroleeUri = _paroleeUris.get(_paroleeUris.size()-1);
@@ -133,6 +220,177 @@ public class ParoleeResourceIT {
 			
 	}
 	
+	@Test
+	public void testMetrics() {
+		// Retrieving a Parolee is counted, and its latency and size recorded, 
+		// under ParoleeResource.retrieveParolee.
+		String metricsUri = "http://localhost:10000/services/metrics";
+		String method = "ParoleeResource.retrieveParolee";
+		String before = _client.target(metricsUri).request()
+				.accept("text/plain").get(String.class);
+
+		Response response = _client.target(_paroleeUris.get(0)).request()
+				.get();
+		assertEquals(200, response.getStatus());
+		response.readEntity(String.class);
+		response.close();
+
+		String after = _client.target(metricsUri).request()
+				.accept("text/plain").get(String.class);
+		_logger.info("Metrics: " + after);
+		assertEquals(metric(before, method, "requests") + 1,
+				metric(after, method, "requests"));
+		assertTrue(metric(after, method, "bytes_out") > metric(before,
+				method, "bytes_out"));
+		assertTrue(metric(after, method, "resource_max_us") > 0);
+		assertTrue(metric(after, method, "resource_max_us") >= metric(before,
+				method, "resource_max_us"));
+	}
+	
+	@Test
+	public void testRetrieveAll() {
+		// Make a HTTP GET request to retrieve the first page of Parolees.
+		Response response = _client.target(WEB_SERVICE_URI)
+				.queryParam("size", 3).request().get();
+		assertEquals(200, response.getStatus());
+		String xmlResponse = response.readEntity(String.class);
+		Link next = response.getLink("next");
+		response.close();
+		
+		// Check that the page holds the first 3 Parolees, and links to the
+		// rest.
+		assertEquals(3, countParolees(xmlResponse));
+		assertTrue(xmlResponse.startsWith("<parolees>"));
+		assertNotNull(next);
+		
+		// Follow the link to retrieve the last Parolee.
+		response = _client.target(next).request().get();
+		assertEquals(200, response.getStatus());
+		xmlResponse = response.readEntity(String.class);
+		assertNull(response.getLink("next"));
+		response.close();
+		assertEquals(1, countParolees(xmlResponse));
+		assertTrue(xmlResponse.contains("<last-name>Marcello</last-name>"));
+		
+		// Retrieve Parolees by last name.
+		response = _client.target(WEB_SERVICE_URI)
+				.queryParam("lastname", "gotti").request().get();
+		xmlResponse = response.readEntity(String.class);
+		response.close();
+		assertEquals(1, countParolees(xmlResponse));
+		assertTrue(xmlResponse.contains("<first-name>John</first-name>"));
+		
+		// Check that an unknown gender is rejected with 400 Bad Request.
+		response = _client.target(WEB_SERVICE_URI)
+				.queryParam("gender", "unknown").request().get();
+		assertEquals(400, response.getStatus());
+		response.close();
+	}
+	
+	@Test
+	public void testQuery() {
+		// Retrieve Parolees by last name prefix.
+		Response response = _client.target(WEB_SERVICE_URI)
+				.queryParam("lastnamePrefix", "CA").request().get();
+		assertEquals(200, response.getStatus());
+		String xmlResponse = response.readEntity(String.class);
+		response.close();
+		assertEquals(1, countParolees(xmlResponse));
+		assertTrue(xmlResponse.contains("<last-name>Capone</last-name>"));
+		
+		// Retrieve male Parolees born between 1900 and 1945, one per page.
+		response = _client.target(WEB_SERVICE_URI)
+				.queryParam("gender", "male")
+				.queryParam("bornFrom", "01/01/1900")
+				.queryParam("bornTo", "31/12/1945")
+				.queryParam("size", 1).request().get();
+		xmlResponse = response.readEntity(String.class);
+		Link next = response.getLink("next");
+		response.close();
+		assertEquals(1, countParolees(xmlResponse));
+		assertTrue(xmlResponse.contains("<last-name>Gotti</last-name>"));
+		assertNotNull(next);
+		
+		response = _client.target(next).request().get();
+		xmlResponse = response.readEntity(String.class);
+		assertNull(response.getLink("next"));
+		response.close();
+		assertEquals(1, countParolees(xmlResponse));
+		assertTrue(xmlResponse.contains("<last-name>Marcello</last-name>"));
+		
+		// Check that the indexes follow an update: Al Capone is no longer
+		// male.
+		Response update = _client.target(_paroleeUris.get(0)).request()
+				.put(Entity.xml("<parolee><first-name>Al</first-name>"
+						+ "<last-name>Capone</last-name>"
+						+ "<gender>Female</gender>"
+						+ "<date-of-birth>17/01/1899</date-of-birth>"
+						+ "</parolee>"));
+		assertEquals(204, update.getStatus());
+		update.close();
+		response = _client.target(WEB_SERVICE_URI)
+				.queryParam("gender", "male").request().get();
+		xmlResponse = response.readEntity(String.class);
+		response.close();
+		assertEquals(3, countParolees(xmlResponse));
+		
+		// Check that a malformed date is rejected with 400 Bad Request.
+		response = _client.target(WEB_SERVICE_URI)
+				.queryParam("bornFrom", "1900-01-01").request().get();
+		assertEquals(400, response.getStatus());
+		response.close();
+	}
+	
+	@Test
+	public void testRetrieveEscaped() {
+		// XML representation of a new Parolee whose name includes characters
+		// that must be escaped, and one outside ASCII.
+		String xmlPayload = "<parolee>" + "<first-name>Bonnie &amp; Clyde</first-name>"
+				+ "<last-name>Barrow &lt;Parker&gt; \u00e9</last-name>"
+				+ "<gender>Female</gender>"
+				+ "<date-of-birth>01/10/1910</date-of-birth>"
+				+ "</parolee>";
+		
+		Response response = _client.target(WEB_SERVICE_URI).request().post(Entity.xml(xmlPayload));
+		assertEquals(201, response.getStatus());
+		String paroleeUri = response.getLocation().toString();
+		response.close();
+		
+		// Check that the retrieved representation is well-formed XML with
+		// the names escaped.
+		response = _client.target(paroleeUri).request().get();
+		assertEquals(200, response.getStatus());
+		String xmlResponse = response.readEntity(String.class);
+		response.close();
+		
+		assertTrue(xmlResponse.contains("<first-name>Bonnie &amp; Clyde</first-name>"));
+		assertTrue(xmlResponse.contains("<last-name>Barrow &lt;Parker&gt; \u00e9</last-name>"));
+		assertTrue(xmlResponse.contains("<date-of-birth>01/10/1910</date-of-birth>"));
+		
+		// Check that the representation can be sent back unchanged.
+		response = _client.target(paroleeUri).request().put(Entity.xml(xmlResponse));
+		assertEquals(204, response.getStatus());
+		response.close();
+
+		// A name with a control character, which XML can't represent, can be
+		// sent as JSON. In XML it is replaced, so the document stays 
+		// well-formed and can also be sent back.
+		response = _client.target(WEB_SERVICE_URI).request().post(
+				Entity.json("{\"firstName\":\"Bell\\u0007\",\"lastName\":\"Barrow\","
+						+ "\"gender\":\"Male\",\"dateOfBirth\":\"24/03/1909\"}"));
+		assertEquals(201, response.getStatus());
+		paroleeUri = response.getLocation().toString();
+		response.close();
+
+		xmlResponse = _client.target(paroleeUri).request()
+				.accept("application/xml").get(String.class);
+		assertTrue(xmlResponse.contains("<first-name>Bell\ufffd</first-name>"));
+
+		response = _client.target(paroleeUri).request().put(Entity.xml(xmlResponse));
+		assertEquals(204, response.getStatus());
+		response.close();
+	}
+	
 	@Test
 	public void testUpdate() {
 		// Create a XML representation of the first parolee, changing Al
@@ -155,6 +413,47 @@ public class ParoleeResourceIT {
 		response.close();
 	}
 	
+	@Test
+	public void testConditionalUpdate() {
+		String paroleeUri = _paroleeUris.get(0);
+		String updateParolee = "<parolee>" + "<first-name>Alphonse</first-name>"
+				+ "<last-name>Capone</last-name>"
+				+ "<gender>Male</gender>"
+				+ "<date-of-birth>17/01/1899</date-of-birth>"
+				+ "</parolee>";
+
+		// Retrieve the Parolee and its version.
+		Response response = _client.target(paroleeUri).request().get();
+		assertEquals(200, response.getStatus());
+		EntityTag tag = response.getEntityTag();
+		response.close();
+		assertNotNull(tag);
+		
+		// Check that a conditional GET for the same version returns 304.
+		response = _client.target(paroleeUri).request()
+				.header(HttpHeaders.IF_NONE_MATCH, tag.toString()).get();
+		assertEquals(304, response.getStatus());
+		response.close();
+		
+		// Update the Parolee, conditional on its version.
+		response = _client.target(paroleeUri).request()
+				.header(HttpHeaders.IF_MATCH, tag.toString())
+				.put(Entity.xml(updateParolee));
+		assertEquals(204, response.getStatus());
+		EntityTag newTag = response.getEntityTag();
+		response.close();
+		assertNotNull(newTag);
+		assertNotEquals(tag, newTag);
+		
+		// Check that a second update against the old version fails with 412
+		// Precondition Failed.
+		response = _client.target(paroleeUri).request()
+				.header(HttpHeaders.IF_MATCH, tag.toString())
+				.put(Entity.xml(updateParolee));
+		assertEquals(412, response.getStatus());
+		response.close();
+	}
+	
 	@Test
 	public void testDelete() {
 		// Make a HTTP DELETE request to delete the first Parolee.
@@ -167,4 +466,704 @@ public class ParoleeResourceIT {
 		// Close the Response object.
 		response.close();
 	}
-}
\ No newline at end of file
+	
+	@Test
+	public void testRepresentations() throws IOException {
+		String paroleeUri = _paroleeUris.get(0);
+
+		// XML is returned unless another representation is asked for.
+		Response response = _client.target(paroleeUri).request().get();
+		assertEquals(200, response.getStatus());
+		assertTrue(response.getMediaType().toString()
+				.startsWith("application/xml"));
+		String xml = response.readEntity(String.class);
+		response.close();
+		assertTrue(xml.startsWith("<parolee"));
+
+		response = _client.target(paroleeUri).request()
+				.accept("application/json").get();
+		assertEquals(200, response.getStatus());
+		EntityTag tag = response.getEntityTag();
+		String json = response.readEntity(String.class);
+		response.close();
+		_logger.info("Retrieved Parolee as JSON: " + json);
+		assertTrue(json.startsWith("{\"id\":"));
+		assertTrue(json.contains("\"version\":" + tag.getValue() + ","));
+
+		// The binary representation decodes to the same Parolee.
+		byte[] binary = _client.target(paroleeUri).request()
+				.accept(ParoleeBinaryProvider.MEDIA_TYPE).get(byte[].class);
+		Parolee decoded = ParoleeBinaryCodec.read(new ByteArrayInputStream(
+				binary));
+		assertEquals(ParoleeJsonReader.parse(json).getLastname(),
+				decoded.getLastname());
+		assertEquals(Long.parseLong(tag.getValue()), decoded.getVersion());
+		assertTrue(binary.length < xml.length() / 2);
+
+		// Create a Parolee from JSON, and another from its binary form.
+		response = _client.target(WEB_SERVICE_URI).request().post(
+				Entity.json("{\"firstName\":\"Clyde\",\"lastName\":\"Barrow\","
+						+ "\"gender\":\"Male\",\"dateOfBirth\":\"24/03/1909\"}"));
+		assertEquals(201, response.getStatus());
+		String clydeUri = response.getLocation().toString();
+		response.close();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParoleeBinaryCodec.write(out, new Parolee(0, 0, "Parker", "Bonnie",
+				Gender.FEMALE, new DateTime(1910, 10, 1, 0, 0)));
+		response = _client.target(WEB_SERVICE_URI).request().post(
+				Entity.entity(out.toByteArray(),
+						ParoleeBinaryProvider.MEDIA_TYPE));
+		assertEquals(201, response.getStatus());
+		String bonnieUri = response.getLocation().toString();
+		response.close();
+
+		xml = _client.target(clydeUri).request().accept("application/xml")
+				.get(String.class);
+		assertTrue(xml.contains("<last-name>Barrow</last-name>"));
+		assertTrue(xml.contains("<date-of-birth>24/03/1909</date-of-birth>"));
+		json = _client.target(bonnieUri).request().accept("application/json")
+				.get(String.class);
+		assertTrue(json.contains("\"lastName\":\"Parker\""));
+		assertTrue(json.contains("\"gender\":\"FEMALE\""));
+		assertTrue(json.contains("\"dateOfBirth\":\"01/10/1910\""));
+
+		// A page of Parolees is a JSON array.
+		json = _client.target(WEB_SERVICE_URI).queryParam("size", 2)
+				.request().accept("application/json").get(String.class);
+		assertTrue(json.startsWith("["));
+		assertEquals(2, countOccurrences(json, "\"id\":"));
+
+		// Malformed representations are rejected.
+		response = _client.target(WEB_SERVICE_URI).request()
+				.post(Entity.json("{\"firstName\":"));
+		assertEquals(400, response.getStatus());
+		response.close();
+		response = _client.target(WEB_SERVICE_URI).request().post(
+				Entity.json("{\"firstName\":\"" + repeat('x', 100000) + "\"}"));
+		assertEquals(400, response.getStatus());
+		response.close();
+		response = _client.target(WEB_SERVICE_URI).request().post(
+				Entity.json("{\"x\":" + repeat('[', 60000)));
+		assertEquals(400, response.getStatus());
+		response.close();
+		response = _client.target(WEB_SERVICE_URI).request().post(
+				Entity.xml("<parolee><first-name>" + repeat('x', 100000)
+						+ "</first-name></parolee>"));
+		assertEquals(400, response.getStatus());
+		response.close();
+		response = _client.target(WEB_SERVICE_URI).request().post(
+				Entity.entity(new byte[] { 10, 1 },
+						ParoleeBinaryProvider.MEDIA_TYPE));
+		assertEquals(400, response.getStatus());
+		response.close();
+	}
+
+	@Test
+	public void testBulkLoad() {
+		// A <parolees> document creating two Parolees, updating the first of
+		// the existing ones, and with an invalid record and an update of a
+		// Parolee that doesn't exist.
+		String firstUri = _paroleeUris.get(0);
+		long firstId = Long.parseLong(firstUri.substring(firstUri
+				.lastIndexOf('/') + 1));
+		String xmlPayload = "<parolees>"
+				+ "<parolee><first-name>Jesse</first-name>"
+				+ "<last-name>James</last-name><gender>Male</gender>"
+				+ "<date-of-birth>05/09/1847</date-of-birth></parolee>"
+				+ "<parolee><first-name>Bonnie</first-name>"
+				+ "<last-name>Parker</last-name><gender>Female</gender>"
+				+ "<date-of-birth>99/99/1910</date-of-birth></parolee>"
+				+ "<parolee id=\"" + firstId + "\"><first-name>Alphonse</first-name>"
+				+ "<last-name>Capone</last-name><gender>Male</gender>"
+				+ "<date-of-birth>17/01/1899</date-of-birth></parolee>"
+				+ "<parolee id=\"999999\"><first-name>Nobody</first-name></parolee>"
+				+ "<parolee><first-name>Ned</first-name>"
+				+ "<last-name>Kelly</last-name><gender>Male</gender>"
+				+ "<date-of-birth>01/12/1854</date-of-birth></parolee>"
+				+ "</parolees>";
+		
+		Response response = _client.target(WEB_SERVICE_URI + "/bulk")
+				.request().post(Entity.xml(xmlPayload));
+		assertEquals(200, response.getStatus());
+		String results = response.readEntity(String.class);
+		response.close();
+		
+		// Check the result reported for each record.
+		assertTrue(results.contains("<result index=\"0\" status=\"201\""));
+		assertTrue(results.contains("<result index=\"1\" status=\"400\""));
+		assertTrue(results.contains("<result index=\"2\" status=\"204\" id=\""
+				+ firstId + "\""));
+		assertTrue(results.contains("<result index=\"3\" status=\"404\""));
+		assertTrue(results.contains("<result index=\"4\" status=\"201\""));
+		
+		String parolee = _client.target(firstUri).request()
+				.accept("application/xml").get(String.class);
+		assertTrue(parolee.contains("<first-name>Alphonse</first-name>"));
+		String xml = _client.target(WEB_SERVICE_URI).request()
+				.accept("application/xml").get(String.class);
+		assertEquals(_xmlPayloads.length + 2, countParolees(xml));
+		
+		// The same, as NDJSON.
+		String ndjson = "{\"firstName\":\"Clyde\",\"lastName\":\"Barrow\","
+				+ "\"gender\":\"Male\",\"dateOfBirth\":\"24/03/1909\"}\n"
+				+ "{\"firstName\": \"Broken\"\n"
+				+ "{\"firstName\":\"" + repeat('x', 100000) + "\"}\n"
+				+ "{\"id\":" + firstId + ",\"firstName\":\"Al\","
+				+ "\"lastName\":\"Capone\",\"extra\":[1,{\"a\":null}]}\n"
+				+ "{\"x\":" + repeat('[', 60000) + "}\n";
+		response = _client.target(WEB_SERVICE_URI + "/bulk").request()
+				.post(Entity.entity(ndjson, "application/x-ndjson"));
+		assertEquals(200, response.getStatus());
+		String[] lines = response.readEntity(String.class).split("\n");
+		response.close();
+		assertEquals(5, lines.length);
+		assertTrue(lines[0].startsWith("{\"index\":0,\"status\":201,"));
+		assertTrue(lines[1].startsWith("{\"index\":1,\"status\":400,"));
+		assertTrue(lines[2].startsWith("{\"index\":2,\"status\":400,"));
+		assertTrue(lines[3].startsWith("{\"index\":3,\"status\":204,\"id\":"
+				+ firstId + ","));
+		assertTrue(lines[4].startsWith("{\"index\":4,\"status\":400,"));
+	}
+	
+	@Test
+	public void testMovements() {
+		String movementsUri = _paroleeUris.get(0) + "/movements";
+		DateTime start = new DateTime().minusHours(1).withMillisOfSecond(0);
+		
+		// Record three GPS positions, then a check-in.
+		StringBuilder xmlPayload = new StringBuilder("<movements>");
+		for (int i = 0; i < 3; i++) {
+			xmlPayload.append("<movement><timestamp>")
+					.append(start.plusMinutes(i)).append("</timestamp>")
+					.append("<latitude>").append(-36.8485 + i * 0.001)
+					.append("</latitude><longitude>174.7633</longitude>")
+					.append("</movement>");
+		}
+		xmlPayload.append("</movements>");
+		Response response = _client.target(movementsUri).request()
+				.post(Entity.xml(xmlPayload.toString()));
+		assertEquals(204, response.getStatus());
+		response.close();
+		
+		response = _client.target(movementsUri).request()
+				.post(Entity.xml("<movement><timestamp>" + start.plusMinutes(10)
+						+ "</timestamp><latitude>-36.85</latitude>"
+						+ "<longitude>174.76</longitude><type>CHECK_IN</type>"
+						+ "</movement>"));
+		assertEquals(204, response.getStatus());
+		response.close();
+		
+		// The latest two Movements, in the order they were recorded.
+		String xml = _client.target(movementsUri).queryParam("latest", 2)
+				.request().accept("application/xml").get(String.class);
+		_logger.info("Latest movements: " + xml);
+		int first = xml.indexOf("<latitude>-36.8465</latitude>");
+		int second = xml.indexOf("<type>CHECK_IN</type>");
+		assertTrue(first >= 0 && second > first);
+		assertEquals(2, countOccurrences(xml, "<movement>"));
+		
+		// Movements in a time range.
+		xml = _client.target(movementsUri)
+				.queryParam("from", start.plusMinutes(1).toString())
+				.queryParam("to", start.plusMinutes(2).toString()).request()
+				.accept("application/xml").get(String.class);
+		assertEquals(2, countOccurrences(xml, "<movement>"));
+		
+		// All Movements, a page of three at a time.
+		response = _client.target(movementsUri).queryParam("size", 3)
+				.request().accept("application/xml").get();
+		assertEquals(3, countOccurrences(response.readEntity(String.class),
+				"<movement>"));
+		Link next = response.getLink("next");
+		assertNotNull(next);
+		response.close();
+		response = _client.target(next).request().accept("application/xml")
+				.get();
+		xml = response.readEntity(String.class);
+		assertEquals(1, countOccurrences(xml, "<movement>"));
+		assertTrue(xml.contains("<type>CHECK_IN</type>"));
+		assertNull(response.getLink("next"));
+		response.close();
+		
+		// An invalid Movement, and a Parolee that doesn't exist.
+		response = _client.target(movementsUri).request()
+				.post(Entity.xml("<movement><latitude>91</latitude>"
+						+ "<longitude>0</longitude></movement>"));
+		assertEquals(400, response.getStatus());
+		response.close();
+		
+		// Movements are recorded as they are read, so those before an
+		// invalid one are kept.
+		response = _client.target(movementsUri).request()
+				.post(Entity.xml("<movements><movement><latitude>-36.9"
+						+ "</latitude><longitude>174.7</longitude></movement>"
+						+ "<movement><latitude>x</latitude></movement>"
+						+ "</movements>"));
+		assertEquals(400, response.getStatus());
+		response.close();
+		xml = _client.target(movementsUri).queryParam("latest", 1)
+				.request().accept("application/xml").get(String.class);
+		assertTrue(xml.contains("<latitude>-36.9</latitude>"));
+		
+		response = _client.target(WEB_SERVICE_URI + "/999999/movements")
+				.request().get();
+		assertEquals(404, response.getStatus());
+		response.close();
+	}
+	
+	@Test
+	@InProcess
+	public void testMovementStoreConcurrentAppends() throws InterruptedException {
+		// Append, in this JVM, from several threads at once to one Parolee's
+		// time series, and check that every Movement can be read back.
+		final int threads = 4;
+		final int appends = 20000;
+		final MovementStore store = new MovementStore();
+		final DateTime start = new DateTime();
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			writers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < appends; i++) {
+						store.append(1, new Movement(start.plusMillis(i),
+								thread, i / 1e5, MovementType.GPS));
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		
+		// Read every Movement, a page at a time.
+		List<Movement> all = new ArrayList<Movement>();
+		long after = 0;
+		do {
+			MovementStore.Page page = store.range(1, null, null, after, 1000);
+			for (Movement movement : page.getMovements()) {
+				all.add(movement);
+			}
+			after = page.getNext() == null ? -1 : page.getNext();
+		} while (after >= 0);
+		assertEquals(threads * appends, all.size());
+		int[] counts = new int[threads];
+		for (Movement movement : all) {
+			counts[(int) movement.getLatitude()]++;
+		}
+		for (int count : counts) {
+			assertEquals(appends, count);
+		}
+		
+		List<Movement> latest = new ArrayList<Movement>();
+		for (Movement movement : store.latest(1, null, null, 10)
+				.getMovements()) {
+			latest.add(movement);
+		}
+		assertEquals(10, latest.size());
+		assertEquals(all.get(all.size() - 1).getTimestamp(),
+				latest.get(9).getTimestamp());
+		int later = 0;
+		for (Movement movement : store.range(1, start.plusMillis(1), null, 0,
+				threads * appends).getMovements()) {
+			assertTrue(movement.getTimestamp().isAfter(start));
+			later++;
+		}
+		assertEquals(appends - 1, later / threads);
+	}
+	
+	@Test
+	public void testHistory() throws InterruptedException {
+		String paroleeUri = _paroleeUris.get(0);
+		String historyUri = paroleeUri + "/history";
+		
+		// Change the first name only, then delete the Parolee.
+		Thread.sleep(20);
+		DateTime beforeUpdate = new DateTime();
+		Thread.sleep(20);
+		Response response = _client.target(paroleeUri).request()
+				.put(Entity.xml("<parolee><first-name>Alphonse</first-name>"
+						+ "<last-name>Capone</last-name><gender>Male</gender>"
+						+ "<date-of-birth>17/01/1899</date-of-birth></parolee>"));
+		assertEquals(204, response.getStatus());
+		response.close();
+		Thread.sleep(20);
+		DateTime afterUpdate = new DateTime();
+		Thread.sleep(20);
+		response = _client.target(paroleeUri).request().delete();
+		response.close();
+		
+		// The history ends with the creation, the update of the first name
+		// alone, and the deletion.
+		String xml = _client.target(historyUri).request()
+				.accept("application/xml").get(String.class);
+		_logger.info("History: " + xml);
+		String changes = xml.substring(xml.lastIndexOf("<change kind=\"CREATE\""));
+		String[] parts = changes.split("</change>");
+		assertTrue(parts[0].contains("<first-name>Al</first-name>"));
+		assertTrue(parts[0].contains("<last-name>Capone</last-name>"));
+		assertTrue(parts[1].contains("kind=\"UPDATE\""));
+		assertTrue(parts[1].contains("<first-name>Alphonse</first-name>"));
+		assertTrue(!parts[1].contains("<last-name>"));
+		assertTrue(parts[2].contains("kind=\"DELETE\""));
+		
+		// The Parolee as it was before and after the update, and after the
+		// deletion.
+		xml = _client.target(historyUri)
+				.queryParam("asOf", beforeUpdate.toString()).request()
+				.accept("application/xml").get(String.class);
+		assertTrue(xml.contains("<first-name>Al</first-name>"));
+		xml = _client.target(historyUri)
+				.queryParam("asOf", afterUpdate.toString()).request()
+				.accept("application/xml").get(String.class);
+		assertTrue(xml.contains("<first-name>Alphonse</first-name>"));
+		response = _client.target(historyUri)
+				.queryParam("asOf", new DateTime().toString()).request().get();
+		assertEquals(404, response.getStatus());
+		response.close();
+		
+		response = _client.target(WEB_SERVICE_URI + "/999999/history")
+				.request().get();
+		assertEquals(404, response.getStatus());
+		response.close();
+	}
+	
+	@Test
+	@InProcess
+	public void testRegistryFootprint() throws InterruptedException {
+		// Measure, in this JVM, the heap used per record by a ParoleeRegistry
+		// and, for comparison, by a map of Parolee objects. Heap samples 
+		// depend on the garbage collector, so the measurement is only logged.
+		final int records = 200000;
+		Random random = new Random(325);
+		
+		long before = usedHeap();
+		ParoleeRegistry registry = new ParoleeRegistry();
+		for (int i = 0; i < records; i++) {
+			registry.create(randomParolee(random));
+		}
+		long registryBytes = (usedHeap() - before) / records;
+		
+		before = usedHeap();
+		Map<Long, Parolee> objects = new ConcurrentSkipListMap<Long, Parolee>();
+		for (long i = 1; i <= records; i++) {
+			objects.put(i, randomParolee(random).withIdentity(i, i));
+		}
+		long objectBytes = (usedHeap() - before) / records;
+		
+		_logger.info("Heap per parolee: " + registryBytes
+				+ " bytes in ParoleeRegistry, " + objectBytes
+				+ " bytes as objects in a map");
+		assertEquals(records, objects.size());
+		assertNotNull(registry.get(records));
+	}
+	
+	@Test
+	@InProcess
+	public void testAccessLog() throws InterruptedException {
+		// Capture, in this JVM, what an AccessLog writes to the "access" 
+		// logger. The first write holds up the writer until it is released.
+		final BlockingQueue<String> written = new LinkedBlockingQueue<String>();
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		AppenderSkeleton appender = new AppenderSkeleton() {
+			protected void append(LoggingEvent event) {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				written.add(event.getRenderedMessage());
+			}
+			
+			public void close() {
+			}
+			
+			public boolean requiresLayout() {
+				return false;
+			}
+		};
+		org.apache.log4j.Logger accessLogger = org.apache.log4j.Logger
+				.getLogger("access");
+		Level level = accessLogger.getLevel();
+		boolean additive = accessLogger.getAdditivity();
+		accessLogger.addAppender(appender);
+		accessLogger.setLevel(Level.INFO);
+		accessLogger.setAdditivity(false);
+		try {
+			// A ring buffer of four slots.
+			System.setProperty("access.log.capacity", "4");
+			AccessLog accessLog;
+			try {
+				accessLog = new AccessLog();
+			} finally {
+				System.clearProperty("access.log.capacity");
+			}
+			
+			// The idle writer is woken by the first record, and is held up 
+			// writing it.
+			accessLog.record("GET", "/first", 200, 1000, null);
+			assertTrue(writing.await(10, TimeUnit.SECONDS));
+			
+			// Four more records fill the buffer, so the next is dropped.
+			accessLog.record("GET", "/second", 200, 1000, null);
+			accessLog.record("GET", "/third", 200, 1000, null);
+			accessLog.record("GET", "/fourth", 200, 1000, null);
+			accessLog.record("GET", "/forged\r\ntime=0 method=GET", 200,
+					1000, null);
+			accessLog.record("GET", "/dropped", 200, 1000, null);
+			assertEquals(1, accessLog.getDropped());
+			
+			// Once released, the writer writes the records it holds. The 
+			// encoded CR and LF in a path are escaped, so can't start a line.
+			release.countDown();
+			StringBuilder text = new StringBuilder();
+			while (text.indexOf("/forged") < 0) {
+				String batch = written.poll(10, TimeUnit.SECONDS);
+				assertNotNull(batch);
+				text.append(batch).append('\n');
+			}
+			String[] lines = text.toString().split("\n");
+			assertEquals(5, lines.length);
+			assertTrue(lines[0].contains(" path=/first "));
+			assertTrue(lines[1].contains(" path=/second "));
+			assertTrue(lines[4].contains(
+					" path=/forged\\r\\ntime=0 method=GET status=200 "));
+			assertTrue(text.indexOf("/dropped") < 0);
+		} finally {
+			release.countDown();
+			accessLogger.removeAppender(appender);
+			accessLogger.setLevel(level);
+			accessLogger.setAdditivity(additive);
+		}
+	}
+	
+	@Test
+	@InProcess
+	public void testPersistence() throws IOException {
+		// Persist a registry, in this JVM, through a snapshot followed by
+		// further logged changes, and restore it into a new registry.
+		final int records = 10000;
+		File dir = Files.createTempDirectory("parolees").toFile();
+		Random random = new Random(325);
+		
+		ParoleeStorage storage = new ParoleeStorage(dir);
+		ParoleeRegistry registry = new ParoleeRegistry(storage);
+		for (int i = 0; i < records; i++) {
+			registry.create(randomParolee(random));
+		}
+		registry.update(2, new Parolee("Smith", "Anna", Gender.FEMALE,
+				new DateTime(1970, 5, 17, 0, 0)), 0);
+		registry.delete(3);
+		storage.snapshot();
+		
+		registry.create(new Parolee("Taylor", "Zoe", null, null));
+		registry.update(5, new Parolee("Smith", "Ben", Gender.MALE,
+				new DateTime(1980, 1, 2, 0, 0)), 0);
+		registry.delete(4);
+		Parolee last = registry.get(records);
+		Parolee unpaged = registry.get(records / 2);
+		storage.close();
+		
+		storage = new ParoleeStorage(dir);
+		ParoleeRegistry restored = new ParoleeRegistry(storage);
+		assertEquals("Anna", restored.get(2).getFirstname());
+		assertEquals(new DateTime(1970, 5, 17, 0, 0), restored.get(2)
+				.getDateOfBirth());
+		assertNull(restored.get(3));
+		assertNull(restored.get(4));
+		assertEquals(registry.get(5).getVersion(), restored.get(5).getVersion());
+		assertEquals(last.getLastname(), restored.get(records).getLastname());
+		assertEquals(last.getGender(), restored.get(records).getGender());
+		assertEquals("Taylor", restored.get(records + 1).getLastname());
+		assertNull(restored.get(records + 1).getGender());
+		
+		// A snapshot of the restored registry copies the chunk holding
+		// unpaged, which hasn't been paged in yet, from the previous snapshot,
+		// and the registry then pages it in from the new one.
+		restored.delete(6);
+		storage.snapshot();
+		assertEquals(unpaged.getLastname(), restored.get(records / 2)
+				.getLastname());
+		assertNull(restored.get(6));
+		
+		// The indexes are built from the snapshot on the first query.
+		int smiths = 0;
+		for (Parolee parolee : restored.find(
+				new ParoleeQuery("smith", null, null, null, null), 0, 0)
+				.getParolees()) {
+			assertTrue(parolee.getId() == 2 || parolee.getId() == 5);
+			smiths++;
+		}
+		assertEquals(2, smiths);
+		
+		// New ids and versions continue from those restored.
+		Parolee created = restored.create(new Parolee("Brown", "Sam",
+				Gender.MALE, null));
+		assertEquals(records + 2, created.getId());
+		assertTrue(created.getVersion() > registry.get(5).getVersion());
+		
+		storage.close();
+		storage = new ParoleeStorage(dir);
+		restored = new ParoleeRegistry(storage);
+		assertNull(restored.get(6));
+		assertEquals(unpaged.getVersion(), restored.get(records / 2)
+				.getVersion());
+		assertEquals("Sam", restored.get(records + 2).getFirstname());
+		
+		restored.clear();
+		storage.close();
+		restored = new ParoleeRegistry(new ParoleeStorage(dir));
+		assertNull(restored.get(2));
+	}
+	
+	@Test
+	@InProcess
+	public void testPersistentHistory() throws IOException,
+			InterruptedException {
+		// Record, in this JVM, the history of a persistent registry, and
+		// check that it is restored with the registry. The history is loaded
+		// in the background, and changes made meanwhile follow those loaded.
+		File dir = Files.createTempDirectory("parolees").toFile();
+		ParoleeStorage storage = new ParoleeStorage(dir);
+		ParoleeHistory history = new ParoleeHistory();
+		ParoleeRegistry registry = new ParoleeRegistry(storage, history);
+		assertTrue(history.awaitLoaded());
+		Parolee created = registry.create(new Parolee("Sinnen", "Oliver",
+				Gender.MALE, new DateTime(1970, 5, 26, 0, 0)));
+		registry.update(created.getId(), new Parolee("Sinnen", "Olly",
+				Gender.MALE, new DateTime(1970, 5, 26, 0, 0)), 0);
+		storage.snapshot();
+		// A name whose UTF-8 encoding is longer than 65535 bytes.
+		String longName = repeat('\u20ac', 30000);
+		Parolee longNamed = registry.create(new Parolee(longName, "Ann",
+				null, null));
+		storage.close();
+		
+		storage = new ParoleeStorage(dir);
+		history = new ParoleeHistory();
+		registry = new ParoleeRegistry(storage, history);
+		assertEquals(longName, registry.get(longNamed.getId()).getLastname());
+		registry.update(created.getId(), new Parolee("Sinnen", "Oliver",
+				Gender.MALE, new DateTime(1970, 5, 26, 0, 0)), 0);
+		registry.clear();
+		assertTrue(history.awaitLoaded());
+		assertTrue(history.contains(created.getId()));
+		assertTrue(history.contains(longNamed.getId()));
+		storage.close();
+		
+		history = new ParoleeHistory();
+		storage = new ParoleeStorage(dir);
+		new ParoleeRegistry(storage, history);
+		storage.close();
+		assertTrue(history.isLoaded());
+		List<ParoleeHistory.Kind> kinds = new ArrayList<ParoleeHistory.Kind>();
+		List<String> firstnames = new ArrayList<String>();
+		for (ParoleeHistory.Change change : history.changes(created.getId())) {
+			kinds.add(change.getKind());
+			firstnames.add(change.getFirstname());
+		}
+		assertEquals(Arrays.asList(ParoleeHistory.Kind.CREATE,
+				ParoleeHistory.Kind.UPDATE, ParoleeHistory.Kind.UPDATE,
+				ParoleeHistory.Kind.DELETE), kinds);
+		assertEquals(Arrays.asList("Oliver", "Olly", "Oliver", null),
+				firstnames);
+	}
+	
+	@Test
+	@InProcess
+	public void testPersistenceClearRacingCreates() throws Exception {
+		// Create Parolees, in this JVM, while clearing the registry, and check
+		// that the restored registry holds exactly the Parolees created since
+		// the last clear.
+		File dir = Files.createTempDirectory("parolees").toFile();
+		ParoleeStorage storage = new ParoleeStorage(dir);
+		final ParoleeRegistry registry = new ParoleeRegistry(storage);
+		final int creates = 20000;
+		Thread creator = new Thread() {
+			public void run() {
+				Random random = new Random(325);
+				for (int i = 0; i < creates; i++) {
+					registry.create(randomParolee(random));
+				}
+			}
+		};
+		creator.start();
+		while (creator.isAlive()) {
+			registry.clear();
+			Thread.sleep(1);
+		}
+		creator.join();
+		storage.close();
+		
+		ParoleeRegistry restored = new ParoleeRegistry(new ParoleeStorage(dir));
+		for (int id = 1; id <= creates; id++) {
+			Parolee parolee = registry.get(id);
+			Parolee restoredParolee = restored.get(id);
+			if (parolee == null) {
+				assertNull(restoredParolee);
+			} else {
+				assertEquals(parolee.getVersion(), restoredParolee.getVersion());
+			}
+		}
+	}
+	
+	private static Parolee randomParolee(Random random) {
+		// Names are built afresh for each record, as when they are parsed
+		// from a request.
+		return new Parolee("Lastname" + random.nextInt(5000), "Firstname"
+				+ random.nextInt(1000), random.nextBoolean() ? Gender.MALE
+				: Gender.FEMALE, new DateTime(1940 + random.nextInt(60),
+				1 + random.nextInt(12), 1 + random.nextInt(28), 0, 0));
+	}
+	
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+	
+	// Method to read a field of a resource method's line in the report 
+	// written by MetricsResource, or 0 if the method has no line yet.
+	private static long metric(String report, String method, String field) {
+		for (String line : report.split("\n")) {
+			if (line.startsWith(method + " ")) {
+				for (String pair : line.split(" ")) {
+					if (pair.startsWith(field + "=")) {
+						return Long.parseLong(pair.substring(field
+								.length() + 1));
+					}
+				}
+			}
+		}
+		return 0;
+	}
+	
+	private static int countOccurrences(String text, String token) {
+		int count = 0;
+		for (int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+	
+	private static int countParolees(String xml) {
+		int count = 0;
+		for (int i = xml.indexOf("<parolee "); i >= 0; i = xml.indexOf("<parolee ", i + 1)) {
+			count++;
+		}
+		return count;
+	}
+}